@@ -0,0 +1,31 @@
+package org.kiji.ohm.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import org.kiji.ohm.dao.Aggregation;
+
+/**
+ * Delivers a {@link KijiColumn} field as a downsampled time-series.
+ *
+ * <p> The versions of the column are grouped into fixed time buckets, and each bucket is reduced
+ *   to a single value while the cells are streamed from the row. The field must be a TimeSeries,
+ *   keyed by the start time of each bucket. </p>
+ *
+ * <p> Downsampled fields are views of the column: the DAO does not write them back. </p>
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface Downsampled {
+  /**
+   * Duration of a bucket, in milliseconds.
+   */
+  long bucketMillis();
+
+  /**
+   * Reducer applied to the values of each bucket.
+   */
+  Aggregation reducer() default Aggregation.LAST;
+}
@@ -8,6 +8,13 @@ import java.lang.annotation.Target;
 @Retention(RetentionPolicy.RUNTIME)
 @Target({ElementType.FIELD, ElementType.METHOD})
 public @interface KijiColumn {
+  /**
+   * Table of the column to fetch from, sharing the entity ID components of the entity table.
+   * An empty string means the table of the @KijiEntity.
+   * Rows of other tables are fetched concurrently with the entity table row.
+   */
+  String table() default "";
+
   /**
    * Family of the column to fetch from.
    */
@@ -30,4 +37,44 @@ public @interface KijiColumn {
    * 0 means no paging.
    */
   int pageSize() default 0;
+
+  /**
+   * Number of pages to fetch ahead of the consumer, in the background.
+   * 0 means no prefetching. Requires paging to be enabled.
+   * Fields with prefetching enabled must be PrefetchingIterator.
+   */
+  int prefetchDepth() default 0;
+
+  /**
+   * Maximum number of versions per column to fetch in a single get, when paging is disabled.
+   * Columns with more versions are fetched again, page by page, and populate the same field.
+   * 0 means the default budget of the DAO, a negative value means no budget.
+   * Applies to TimeSeries, CompressedTimeSeries, KijiCellValueIterator and TSMapTypeValue
+   * fields.
+   */
+  int cellBudget() default 0;
+
+  /**
+   * Restricts a map-type family to the qualifiers starting with this prefix.
+   * An empty string means no prefix restriction.
+   */
+  String qualifierPrefix() default "";
+
+  /**
+   * Restricts a map-type family to the qualifiers greater than or equal to this one.
+   * An empty string means no lower bound.
+   */
+  String qualifierMin() default "";
+
+  /**
+   * Restricts a map-type family to the qualifiers strictly lower than this one.
+   * An empty string means no upper bound.
+   */
+  String qualifierMax() default "";
+
+  /**
+   * Restricts a map-type family to an explicit set of qualifiers.
+   * An empty array means no explicit set.
+   */
+  String[] qualifiers() default {};
 }
@@ -0,0 +1,29 @@
+package org.kiji.ohm.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares a secondary index on a {@link KijiColumn} field.
+ *
+ * <p> Entities written through the DAO record their entity ID in the index table, in the row
+ *   whose single STRING row key component is the field value. Entity IDs are recorded as
+ *   qualifiers of a map-type family with a <tt>"boolean"</tt> schema. </p>
+ *
+ * <p> Only single-version fields mapped to a fully-qualified column may be indexed. </p>
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface KijiIndexed {
+  /**
+   * Name of the Kiji table holding the index.
+   */
+  String table();
+
+  /**
+   * Map-type family of the index table where entity IDs are recorded.
+   */
+  String family() default "entity";
+}
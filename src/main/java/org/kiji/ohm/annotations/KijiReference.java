@@ -0,0 +1,36 @@
+package org.kiji.ohm.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares a field holding references to other entities, by entity ID.
+ *
+ * <p> The field holds either a single entity ID or a collection of entity IDs. Each entity ID is
+ *   an array of entity ID components, or the single component of the entity ID for tables whose
+ *   row keys have one component. </p>
+ *
+ * <p> Resolved entities are stored in the field named by {@link #into()}: a single entity for a
+ *   single entity ID, or a list of entities, in order, for a collection of entity IDs. </p>
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface KijiReference {
+  /**
+   * Class of the referenced entities. Must be annotated with {@link KijiEntity}.
+   */
+  Class<?> target();
+
+  /**
+   * Name of the field where resolved entities are stored.
+   */
+  String into();
+
+  /**
+   * Whether references are resolved when the entity is selected.
+   * When false, references are only resolved on demand.
+   */
+  boolean eager() default false;
+}
@@ -0,0 +1,39 @@
+package org.kiji.ohm.dao;
+
+import java.util.NavigableMap;
+
+/**
+ * Map from the qualifiers of a map-type family, possibly fetched with a qualifier restriction.
+ *
+ * @param <V> Type of the values associated to the qualifiers.
+ */
+public abstract class AbstractQualifierMap<V> extends AbstractDelegateNavigableMap<String, V> {
+  /** Restriction the qualifiers were fetched with, or null if the map holds the whole family. */
+  private final QualifierRestriction mRestriction;
+
+  /**
+   * Initializes a map of the qualifiers of a family fetched with a restriction.
+   *
+   * @param qualifierMap Map from qualifier to value.
+   * @param restriction Restriction the qualifiers were fetched with, or null.
+   */
+  protected AbstractQualifierMap(
+      NavigableMap<String, V> qualifierMap, QualifierRestriction restriction) {
+    super(qualifierMap);
+    mRestriction = restriction;
+  }
+
+  /**
+   * Reports whether this map holds a subset of the family qualifiers only.
+   *
+   * @return whether the qualifiers were fetched with a restriction.
+   */
+  public boolean isPartial() {
+    return mRestriction != null;
+  }
+
+  /** @return the restriction the qualifiers were fetched with, or null for the whole family. */
+  public QualifierRestriction getRestriction() {
+    return mRestriction;
+  }
+}
@@ -0,0 +1,24 @@
+package org.kiji.ohm.dao;
+
+/**
+ * Incremental fold over the cells of a column.
+ *
+ * <p> Cells are fed one at a time, in the order they are streamed from the row. An accumulator
+ *   holds a constant amount of state, regardless of the number of cells it is fed. </p>
+ */
+interface Accumulator {
+  /**
+   * Folds a cell into this accumulator.
+   *
+   * @param timestamp Timestamp of the cell.
+   * @param value Value of the cell. Null values are ignored.
+   */
+  void add(long timestamp, Object value);
+
+  /**
+   * Reports the result of the fold.
+   *
+   * @return the result of the fold over the cells added so far.
+   */
+  Object getResult();
+}
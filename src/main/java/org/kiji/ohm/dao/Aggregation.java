@@ -0,0 +1,149 @@
+package org.kiji.ohm.dao;
+
+/**
+ * Aggregation over the versions of a column, computed while the cells are streamed.
+ *
+ * <p> Null values are ignored. Aggregations over no value report null, except for
+ *   {@link #COUNT}. </p>
+ */
+public enum Aggregation {
+  /**
+   * Sum of numeric values.
+   * Reported as a Double if any value is a Float or a Double, as a Long otherwise.
+   */
+  SUM {
+    @Override
+    Accumulator newAccumulator() {
+      return new Accumulator() {
+        private long mLongSum = 0;
+        private double mDoubleSum = 0;
+        private boolean mFloating = false;
+        private boolean mEmpty = true;
+
+        @Override
+        public void add(long timestamp, Object value) {
+          if (value == null) {
+            return;
+          }
+          mEmpty = false;
+          final Number number = (Number) value;
+          if (!mFloating && ((value instanceof Double) || (value instanceof Float))) {
+            mFloating = true;
+            mDoubleSum = mLongSum;
+          }
+          if (mFloating) {
+            mDoubleSum += number.doubleValue();
+          } else {
+            mLongSum += number.longValue();
+          }
+        }
+
+        @Override
+        public Object getResult() {
+          if (mEmpty) {
+            return null;
+          }
+          return mFloating ? (Object) mDoubleSum : (Object) mLongSum;
+        }
+      };
+    }
+  },
+
+  /** Smallest value. Values must be mutually Comparable. */
+  MIN {
+    @Override
+    Accumulator newAccumulator() {
+      return new ExtremumAccumulator(-1);
+    }
+  },
+
+  /** Largest value. Values must be mutually Comparable. */
+  MAX {
+    @Override
+    Accumulator newAccumulator() {
+      return new ExtremumAccumulator(1);
+    }
+  },
+
+  /** Number of values, reported as a Long. */
+  COUNT {
+    @Override
+    Accumulator newAccumulator() {
+      return new Accumulator() {
+        private long mCount = 0;
+
+        @Override
+        public void add(long timestamp, Object value) {
+          if (value != null) {
+            mCount += 1;
+          }
+        }
+
+        @Override
+        public Object getResult() {
+          return mCount;
+        }
+      };
+    }
+  },
+
+  /** Most recent value, ie. the value with the greatest timestamp. */
+  LAST {
+    @Override
+    Accumulator newAccumulator() {
+      return new Accumulator() {
+        private long mTimestamp = Long.MIN_VALUE;
+        private Object mValue = null;
+
+        @Override
+        public void add(long timestamp, Object value) {
+          if ((value != null) && ((mValue == null) || (timestamp > mTimestamp))) {
+            mTimestamp = timestamp;
+            mValue = value;
+          }
+        }
+
+        @Override
+        public Object getResult() {
+          return mValue;
+        }
+      };
+    }
+  };
+
+  /**
+   * Creates a new accumulator computing this aggregation.
+   *
+   * @return a new accumulator computing this aggregation.
+   */
+  abstract Accumulator newAccumulator();
+
+  /** Accumulator keeping the smallest or largest value. */
+  private static final class ExtremumAccumulator implements Accumulator {
+    /** 1 to keep the largest value, -1 to keep the smallest value. */
+    private final int mSign;
+
+    private Comparable<Object> mValue = null;
+
+    private ExtremumAccumulator(int sign) {
+      mSign = sign;
+    }
+
+    @Override
+    public void add(long timestamp, Object value) {
+      if (value == null) {
+        return;
+      }
+      @SuppressWarnings("unchecked")
+      final Comparable<Object> comparable = (Comparable<Object>) value;
+      if ((mValue == null) || (comparable.compareTo(mValue) * mSign > 0)) {
+        mValue = comparable;
+      }
+    }
+
+    @Override
+    public Object getResult() {
+      return mValue;
+    }
+  }
+}
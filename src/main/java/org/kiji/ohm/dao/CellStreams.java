@@ -0,0 +1,69 @@
+package org.kiji.ohm.dao;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.kiji.schema.ColumnVersionIterator;
+import org.kiji.schema.KijiRowData;
+import org.kiji.schema.MapFamilyVersionIterator;
+
+/**
+ * Streams the cells of paged columns into accumulators, one page at a time.
+ */
+final class CellStreams {
+  /** Page size used to stream columns that do not configure paging. */
+  public static final int DEFAULT_PAGE_SIZE = 1000;
+
+  private CellStreams() {
+  }
+
+  /**
+   * Streams the cells of a paged column or map-type family of a row into an accumulator.
+   *
+   * <p> The column must be requested with paging enabled, and with the qualifier restriction
+   *   as column filter. Only one page of cells is held in memory at any time. </p>
+   *
+   * @param row Row to stream the cells of.
+   * @param family Family of the column.
+   * @param qualifier Qualifier of the column, or empty for a map-type family.
+   * @param restriction Qualifier restriction on the map-type family, or null.
+   * @param pageSize Number of cells per page.
+   * @param accumulator Accumulator to fold the cells into.
+   * @throws IOException on I/O error.
+   */
+  public static void accumulate(
+      KijiRowData row,
+      String family,
+      String qualifier,
+      QualifierRestriction restriction,
+      int pageSize,
+      Accumulator accumulator)
+      throws IOException {
+    if (qualifier.isEmpty()) {
+      final MapFamilyVersionIterator<Object> iterator =
+          new MapFamilyVersionIterator<Object>(row, family, pageSize, pageSize);
+      try {
+        while (iterator.hasNext()) {
+          final MapFamilyVersionIterator.Entry<Object> entry = iterator.next();
+          if ((restriction != null) && !restriction.matches(entry.getQualifier())) {
+            continue;
+          }
+          accumulator.add(entry.getTimestamp(), entry.getValue());
+        }
+      } finally {
+        iterator.close();
+      }
+    } else {
+      final ColumnVersionIterator<Object> iterator =
+          new ColumnVersionIterator<Object>(row, family, qualifier, pageSize);
+      try {
+        while (iterator.hasNext()) {
+          final Map.Entry<Long, Object> entry = iterator.next();
+          accumulator.add(entry.getKey(), entry.getValue());
+        }
+      } finally {
+        iterator.close();
+      }
+    }
+  }
+}
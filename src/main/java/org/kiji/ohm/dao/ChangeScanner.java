@@ -0,0 +1,199 @@
+package org.kiji.ohm.dao;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import org.apache.hadoop.hbase.HConstants;
+
+import org.kiji.schema.EntityId;
+import org.kiji.schema.KijiRowData;
+import org.kiji.schema.KijiRowScanner;
+import org.kiji.schema.KijiTableReader;
+
+/**
+ * Iterator over the entities with cells written within a time range.
+ *
+ * <p> Changed rows are found with a time-range scan, which only returns the rows with cells in
+ *   the range. Changed entities are then fetched in full, with one bulk get per batch of changed
+ *   rows: the cost of a change scan depends on the amount of change, not on the size of the
+ *   table. </p>
+ *
+ * <p> The time range ends at the checkpoint of the scan. Once all the changed entities are
+ *   processed, the checkpoint is the start of the next change scan, and may be committed for
+ *   the consumer of the scan. </p>
+ *
+ * @param <T> Type of the entities.
+ */
+public final class ChangeScanner<T> implements Iterator<T>, Closeable {
+  /** DAO the entities are populated by. */
+  private final KijiDao mDao;
+
+  /** Specification of the entities, leased by this scanner until closed. */
+  private final EntitySpec<T> mSpec;
+
+  /** Reader the scanner was opened with, returned to the pool when closed. */
+  private final KijiTableReader mReader;
+
+  /** Underlying time-range scanner. */
+  private final KijiRowScanner mScanner;
+
+  /** Iterator on the rows of the time-range scanner. */
+  private final Iterator<KijiRowData> mRows;
+
+  /** Consumer the checkpoint is committed for, or null. */
+  private final String mConsumer;
+
+  /** End of the time range of the scan, exclusive: the next checkpoint. */
+  private final long mCheckpoint;
+
+  /** Number of changed entities fetched per bulk get. */
+  private final int mBatchSize;
+
+  /** Changed entities fetched and not yet returned. */
+  private final List<T> mBatch = Lists.newArrayList();
+
+  /** Position of the next entity to return in the current batch. */
+  private int mBatchPosition = 0;
+
+  /** Whether this scanner is closed. */
+  private boolean mClosed = false;
+
+  /**
+   * Initializes a new change scanner.
+   *
+   * <p> The change scanner takes ownership of the specification lease, the reader and the
+   *   Kiji row scanner. </p>
+   *
+   * @param dao DAO populating the entities.
+   * @param spec Specification of the entities, leased by the caller.
+   * @param reader Reader the scanner was opened with, acquired from the specification.
+   * @param scanner Time-range scanner returning the changed rows.
+   * @param consumer Consumer the checkpoint is committed for, or null.
+   * @param checkpoint End of the time range of the scan, exclusive.
+   * @param batchSize Number of changed entities fetched per bulk get.
+   */
+  ChangeScanner(
+      KijiDao dao,
+      EntitySpec<T> spec,
+      KijiTableReader reader,
+      KijiRowScanner scanner,
+      String consumer,
+      long checkpoint,
+      int batchSize) {
+    mDao = dao;
+    mSpec = spec;
+    mReader = reader;
+    mScanner = scanner;
+    mRows = scanner.iterator();
+    mConsumer = consumer;
+    mCheckpoint = checkpoint;
+    mBatchSize = batchSize;
+  }
+
+  /** @return the checkpoint to start the next change scan from. */
+  public long getCheckpoint() {
+    return mCheckpoint;
+  }
+
+  /**
+   * Commits the checkpoint of this scan for its consumer.
+   *
+   * <p> Must be called once all the changed entities are processed: the next change scan of
+   *   the consumer starts from the checkpoint of this scan. </p>
+   *
+   * @throws IOException on I/O error.
+   * @throws IllegalStateException if the scan has no consumer.
+   */
+  public void commit() throws IOException {
+    Preconditions.checkState(mConsumer != null, "Change scan has no consumer to commit for.");
+    mDao.putChangeCheckpoint(mSpec.getTableName(), mConsumer, mCheckpoint);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean hasNext() {
+    if (mClosed) {
+      return false;
+    }
+    if (mBatchPosition < mBatch.size()) {
+      return true;
+    }
+    try {
+      return fetchBatch();
+    } catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+  }
+
+  /**
+   * Fetches the next batch of changed entities.
+   *
+   * @return whether a changed entity was fetched.
+   * @throws IOException on I/O error.
+   */
+  private boolean fetchBatch() throws IOException {
+    mBatch.clear();
+    mBatchPosition = 0;
+    final List<EntityId> entityIds = Lists.newArrayListWithCapacity(mBatchSize);
+    while ((entityIds.size() < mBatchSize) && mRows.hasNext()) {
+      entityIds.add(mRows.next().getEntityId());
+    }
+    if (entityIds.isEmpty()) {
+      return false;
+    }
+    mBatch.addAll(mDao.populateFromRows(
+        mSpec, 0 /*HConstants.OLDEST_TIMESTAMP*/, HConstants.LATEST_TIMESTAMP, entityIds));
+    return true;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public T next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    final T entity = mBatch.get(mBatchPosition);
+    mBatch.set(mBatchPosition, null);
+    mBatchPosition += 1;
+    return entity;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Closes the underlying Kiji scanner and releases the resources held by this scanner.
+   *
+   * <p> Closing does not commit the checkpoint. Entities fetched but not returned yet are
+   *   released. Subsequent calls have no effect. </p>
+   */
+  @Override
+  public void close() throws IOException {
+    if (mClosed) {
+      return;
+    }
+    mClosed = true;
+    try {
+      mScanner.close();
+      for (int i = mBatchPosition; i < mBatch.size(); ++i) {
+        mDao.releaseEntity(mBatch.get(i));
+      }
+      mBatch.clear();
+    } finally {
+      try {
+        mSpec.releaseReader(mReader);
+      } finally {
+        mSpec.release();
+      }
+    }
+  }
+}
@@ -0,0 +1,617 @@
+package org.kiji.ohm.dao;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+/**
+ * Compact, append-only time-series, decoded on iteration.
+ *
+ * <p> Like {@link TimeSeries}, points are ordered from the most recent to the oldest, which is
+ *   the order Kiji returns the versions of a column in. Points must be appended in that order,
+ *   with strictly decreasing timestamps. </p>
+ *
+ * <p> Points are encoded into a byte array, in blocks of {@link #BLOCK_SIZE} points:
+ *   <ul>
+ *     <li> timestamps are encoded as the zig-zag varint of their delta-of-delta, which takes a
+ *          single byte for regularly spaced points; </li>
+ *     <li> int and long values are encoded as the zig-zag varint of their delta with the
+ *          previous value; </li>
+ *     <li> float and double values are XOR-ed with the previous value and bit-packed into a
+ *          separate bit stream, as in Gorilla: an unchanged value takes a single bit, and a
+ *          changed value only stores the meaningful bits of the XOR, between its leading and
+ *          trailing zeros, reusing the window of the previous value when the bits fit in it.
+ *          </li>
+ *   </ul>
+ *   Only Integer, Long, Float and Double values are supported, and the value encoding is chosen
+ *   from the first value appended. Each block starts from scratch and its first timestamp is
+ *   indexed, so that range accesses and lookups only decode the blocks they cover. </p>
+ *
+ * <p> Compressed time-series can be used as @KijiColumn field type, in place of TimeSeries, for
+ *   entities with deep histories of numeric values: the column must be fully-qualified and hold
+ *   int, long, float or double cells, or counters. Not thread-safe. </p>
+ *
+ * @param <V> Type of the values.
+ */
+public final class CompressedTimeSeries<V> implements Iterable<Map.Entry<Long, V>> {
+  /** Number of points per block. */
+  public static final int BLOCK_SIZE = 128;
+
+  /** Encodings of the values. */
+  private static enum Encoding {
+    INT, LONG, FLOAT, DOUBLE
+  }
+
+  /** Number of bits encoding the number of leading zeros of a XOR-ed value. */
+  private static final int LEADING_ZEROS_BITS = 6;
+
+  /** Number of bits encoding the number of meaningful bits of a XOR-ed value, minus one. */
+  private static final int MEANINGFUL_BITS_BITS = 6;
+
+  /** Encoding of the values, or null until the first point is appended. */
+  private Encoding mEncoding = null;
+
+  /** Encoded points. */
+  private byte[] mBytes = new byte[16];
+
+  /** Number of bytes used in mBytes. */
+  private int mLength = 0;
+
+  /** Timestamp of the first point of each block. */
+  private long[] mBlockTimestamps = new long[1];
+
+  /** Offset in mBytes of the first point of each block. */
+  private int[] mBlockOffsets = new int[1];
+
+  /** Bit-packed values, for the FLOAT and DOUBLE encodings. Bits are filled from the MSB. */
+  private byte[] mValueBits = null;
+
+  /** Number of bits used in mValueBits. */
+  private int mValueBitLength = 0;
+
+  /** Bit offset in mValueBits of the first value of each block. */
+  private int[] mBlockValueBitOffsets = new int[1];
+
+  /** Number of points. */
+  private int mSize = 0;
+
+  /** Timestamp of the last point appended. */
+  private long mLastTimestamp = 0;
+
+  /** Timestamp delta between the last two points appended in the current block. */
+  private long mLastDelta = 0;
+
+  /** Bits of the last value appended. */
+  private long mLastBits = 0;
+
+  /** Leading zeros of the meaningful bits window of the FLOAT and DOUBLE encodings. */
+  private int mLastLeadingZeros = Integer.MAX_VALUE;
+
+  /** Trailing zeros of the meaningful bits window of the FLOAT and DOUBLE encodings. */
+  private int mLastTrailingZeros = Integer.MAX_VALUE;
+
+  /** Initializes an empty compressed time-series. */
+  public CompressedTimeSeries() {
+  }
+
+  /**
+   * Creates a compressed time-series holding the points of a time-series.
+   *
+   * @param timeseries Time-series to compress.
+   * @return a compressed time-series holding the points of the given time-series.
+   */
+  public static <V> CompressedTimeSeries<V> copyOf(TimeSeries<? extends V> timeseries) {
+    final CompressedTimeSeries<V> compressed = new CompressedTimeSeries<V>();
+    for (final Map.Entry<Long, ? extends V> entry : timeseries.entrySet()) {
+      compressed.append(entry.getKey(), entry.getValue());
+    }
+    compressed.trimToSize();
+    return compressed;
+  }
+
+  /** @return the number of points. */
+  public int size() {
+    return mSize;
+  }
+
+  /** @return whether the time-series has no point. */
+  public boolean isEmpty() {
+    return mSize == 0;
+  }
+
+  /** @return the timestamp of the most recent point. */
+  public long getNewestTimestamp() {
+    Preconditions.checkState(mSize > 0, "Empty time-series.");
+    return mBlockTimestamps[0];
+  }
+
+  /** @return the timestamp of the oldest point. */
+  public long getOldestTimestamp() {
+    Preconditions.checkState(mSize > 0, "Empty time-series.");
+    return mLastTimestamp;
+  }
+
+  /** @return the number of bytes of the encoded points and of the block index. */
+  public long getEncodedSizeBytes() {
+    final int nblocks = getBlockCount();
+    final int indexBits = Long.SIZE + Integer.SIZE + ((mValueBits != null) ? Integer.SIZE : 0);
+    return mLength + (mValueBitLength + 7) / 8 + (long) nblocks * indexBits / Byte.SIZE;
+  }
+
+  /**
+   * Appends a point, older than all the points of the time-series.
+   *
+   * @param timestamp Timestamp of the point, lower than the timestamp of the last point.
+   * @param value Value of the point: an Integer, a Long, a Float or a Double, of the type of
+   *     the first value appended.
+   * @throws IllegalArgumentException if the value is not supported.
+   */
+  public void append(long timestamp, V value) {
+    Preconditions.checkArgument((mSize == 0) || (timestamp < mLastTimestamp),
+        "Points must be appended with decreasing timestamps: %s after %s.",
+        timestamp, mLastTimestamp);
+    if (mEncoding == null) {
+      mEncoding = getEncoding(value);
+      Preconditions.checkArgument(mEncoding != null,
+          "Unsupported value '%s': compressed time-series hold Integer, Long, Float or Double.",
+          value);
+      if ((mEncoding == Encoding.FLOAT) || (mEncoding == Encoding.DOUBLE)) {
+        mValueBits = new byte[16];
+      }
+    }
+    final long bits = toBits(value);
+
+    if (mSize % BLOCK_SIZE == 0) {
+      final int block = mSize / BLOCK_SIZE;
+      if (block == mBlockTimestamps.length) {
+        mBlockTimestamps = Arrays.copyOf(mBlockTimestamps, block * 2);
+        mBlockOffsets = Arrays.copyOf(mBlockOffsets, block * 2);
+        mBlockValueBitOffsets = Arrays.copyOf(mBlockValueBitOffsets, block * 2);
+      }
+      mBlockTimestamps[block] = timestamp;
+      mBlockOffsets[block] = mLength;
+      mBlockValueBitOffsets[block] = mValueBitLength;
+      mLastDelta = 0;
+      mLastBits = 0;
+      mLastLeadingZeros = Integer.MAX_VALUE;
+      mLastTrailingZeros = Integer.MAX_VALUE;
+    } else {
+      final long delta = timestamp - mLastTimestamp;
+      writeVarLong(zigZag(delta - mLastDelta));
+      mLastDelta = delta;
+    }
+
+    switch (mEncoding) {
+      case INT:
+      case LONG: writeVarLong(zigZag(bits - mLastBits)); break;
+      case FLOAT:
+      case DOUBLE: writeXor(bits ^ mLastBits); break;
+      default: throw new IllegalStateException("Unknown encoding: " + mEncoding);
+    }
+    mLastBits = bits;
+    mLastTimestamp = timestamp;
+    mSize += 1;
+  }
+
+  /** Releases the capacity reserved for future points. */
+  public void trimToSize() {
+    mBytes = Arrays.copyOf(mBytes, mLength);
+    final int nblocks = getBlockCount();
+    mBlockTimestamps = Arrays.copyOf(mBlockTimestamps, Math.max(1, nblocks));
+    mBlockOffsets = Arrays.copyOf(mBlockOffsets, Math.max(1, nblocks));
+    mBlockValueBitOffsets = Arrays.copyOf(mBlockValueBitOffsets, Math.max(1, nblocks));
+    if (mValueBits != null) {
+      mValueBits = Arrays.copyOf(mValueBits, (mValueBitLength + 7) / 8);
+    }
+  }
+
+  /**
+   * Looks up the value of a point.
+   *
+   * @param timestamp Timestamp of the point to look up.
+   * @return the value of the point with the given timestamp, or null if there is none.
+   */
+  public V get(long timestamp) {
+    // Not range(timestamp, timestamp + 1), which overflows for HConstants.LATEST_TIMESTAMP:
+    final Iterator<Map.Entry<Long, V>> it = points(timestamp, timestamp);
+    return it.hasNext() ? it.next().getValue() : null;
+  }
+
+  /**
+   * Iterates over all the points, from the most recent to the oldest.
+   *
+   * @return an iterator decoding the points.
+   */
+  @Override
+  public Iterator<Map.Entry<Long, V>> iterator() {
+    return points(Long.MIN_VALUE, Long.MAX_VALUE);
+  }
+
+  /**
+   * Iterates over the points within a time range, from the most recent to the oldest.
+   *
+   * <p> Only the blocks overlapping the time range are decoded. </p>
+   *
+   * @param startTime Start of the time range, inclusive.
+   * @param endTime End of the time range, exclusive.
+   * @return an iterator decoding the points within the time range.
+   */
+  public Iterator<Map.Entry<Long, V>> range(long startTime, long endTime) {
+    if (endTime == Long.MIN_VALUE) {
+      return Collections.<Map.Entry<Long, V>>emptyList().iterator();
+    }
+    return points(startTime, endTime - 1);
+  }
+
+  /** @return a TimeSeries holding the decoded points. */
+  public TimeSeries<V> toTimeSeries() {
+    final TimeSeries<V> timeseries = new TimeSeries<V>();
+    for (final Map.Entry<Long, V> entry : this) {
+      timeseries.put(entry.getKey(), entry.getValue());
+    }
+    return timeseries;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("size", mSize)
+        .add("encoding", mEncoding)
+        .add("encoded_bytes", getEncodedSizeBytes())
+        .toString();
+  }
+
+  /**
+   * Iterates over the points within an inclusive time range, from the most recent to the oldest.
+   *
+   * @param startTime Start of the time range, inclusive.
+   * @param lastTime End of the time range, inclusive.
+   * @return an iterator decoding the points within the time range.
+   */
+  private Iterator<Map.Entry<Long, V>> points(long startTime, long lastTime) {
+    // Last block whose first point is after the range, or 0:
+    int low = 0;
+    int high = getBlockCount() - 1;
+    while (low < high) {
+      final int mid = (low + high + 1) >>> 1;
+      if (mBlockTimestamps[mid] > lastTime) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return new PointIterator(low, startTime, lastTime);
+  }
+
+  // -----------------------------------------------------------------------------------------------
+
+  /** Iterator decoding the points of a time range, starting from a block. */
+  private final class PointIterator implements Iterator<Map.Entry<Long, V>> {
+    /** Start of the time range, inclusive. */
+    private final long mStartTime;
+
+    /** End of the time range, inclusive. */
+    private final long mLastTime;
+
+    /** Index of the next point to decode. */
+    private int mIndex;
+
+    /** Position in mBytes of the next point to decode. */
+    private int mPos;
+
+    /** Bit position in mValueBits of the next value to decode. */
+    private int mBitPos;
+
+    /** Timestamp of the last point decoded. */
+    private long mTimestamp = 0;
+
+    /** Timestamp delta between the last two points decoded in the current block. */
+    private long mDelta = 0;
+
+    /** Bits of the last value decoded. */
+    private long mBits = 0;
+
+    /** Leading zeros of the meaningful bits window of the last value decoded. */
+    private int mLeadingZeros = 0;
+
+    /** Number of meaningful bits in the window of the last value decoded. */
+    private int mMeaningfulBits = 0;
+
+    /** Next point to return, or null if not decoded yet. */
+    private Map.Entry<Long, V> mNext = null;
+
+    /**
+     * Initializes an iterator.
+     *
+     * @param block Index of the block to start decoding from.
+     * @param startTime Start of the time range, inclusive.
+     * @param lastTime End of the time range, inclusive.
+     */
+    PointIterator(int block, long startTime, long lastTime) {
+      mStartTime = startTime;
+      mLastTime = lastTime;
+      mIndex = block * BLOCK_SIZE;
+      mPos = mBlockOffsets[block];
+      mBitPos = mBlockValueBitOffsets[block];
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean hasNext() {
+      while ((mNext == null) && (mIndex < mSize)) {
+        final Map.Entry<Long, V> point = decodeNext();
+        if (point.getKey() < mStartTime) {
+          mIndex = mSize;  // Points are sorted: no more point within the range.
+        } else if (point.getKey() <= mLastTime) {
+          mNext = point;
+        }
+      }
+      return mNext != null;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Map.Entry<Long, V> next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      final Map.Entry<Long, V> point = mNext;
+      mNext = null;
+      return point;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Decodes the next point.
+     *
+     * @return the next point.
+     */
+    private Map.Entry<Long, V> decodeNext() {
+      if (mIndex % BLOCK_SIZE == 0) {
+        mTimestamp = mBlockTimestamps[mIndex / BLOCK_SIZE];
+        mDelta = 0;
+        mBits = 0;
+        mLeadingZeros = 0;
+        mMeaningfulBits = 0;
+      } else {
+        mDelta += unZigZag(readVarLong());
+        mTimestamp += mDelta;
+      }
+
+      final Object value;
+      switch (mEncoding) {
+        case INT: {
+          mBits += unZigZag(readVarLong());
+          value = (int) mBits;
+          break;
+        }
+        case LONG: {
+          mBits += unZigZag(readVarLong());
+          value = mBits;
+          break;
+        }
+        case FLOAT: {
+          mBits ^= readXor();
+          value = Float.intBitsToFloat((int) mBits);
+          break;
+        }
+        case DOUBLE: {
+          mBits ^= readXor();
+          value = Double.longBitsToDouble(mBits);
+          break;
+        }
+        default: throw new IllegalStateException("Unknown encoding: " + mEncoding);
+      }
+      mIndex += 1;
+
+      @SuppressWarnings("unchecked")
+      final V typed = (V) value;
+      return Maps.immutableEntry(mTimestamp, typed);
+    }
+
+    /**
+     * Reads an unsigned varint.
+     *
+     * @return the decoded long.
+     */
+    private long readVarLong() {
+      long raw = 0;
+      int shift = 0;
+      int b;
+      do {
+        b = mBytes[mPos++] & 0xff;
+        raw |= (long) (b & 0x7f) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+      return raw;
+    }
+
+    /**
+     * Reads the XOR of a value with the previous value, as written by {@link #writeXor(long)}.
+     *
+     * @return the XOR of the value with the previous value.
+     */
+    private long readXor() {
+      if (readBits(1) == 0) {
+        return 0;
+      }
+      if (readBits(1) != 0) {
+        mLeadingZeros = (int) readBits(LEADING_ZEROS_BITS);
+        mMeaningfulBits = (int) readBits(MEANINGFUL_BITS_BITS) + 1;
+      }
+      return readBits(mMeaningfulBits) << (Long.SIZE - mLeadingZeros - mMeaningfulBits);
+    }
+
+    /**
+     * Reads bits from the value bit stream.
+     *
+     * @param nbits Number of bits to read, at most 64.
+     * @return the bits read, in the low bits of the long.
+     */
+    private long readBits(int nbits) {
+      long bits = 0;
+      int remaining = nbits;
+      while (remaining > 0) {
+        final int bitInByte = mBitPos & 7;
+        final int count = Math.min(8 - bitInByte, remaining);
+        final int b = mValueBits[mBitPos >>> 3] & 0xff;
+        bits = (bits << count) | ((b >>> (8 - bitInByte - count)) & ((1 << count) - 1));
+        mBitPos += count;
+        remaining -= count;
+      }
+      return bits;
+    }
+  }
+
+  // -----------------------------------------------------------------------------------------------
+
+  /** @return the number of blocks. */
+  private int getBlockCount() {
+    return (mSize + BLOCK_SIZE - 1) / BLOCK_SIZE;
+  }
+
+  /**
+   * Chooses the encoding of the values from the first value.
+   *
+   * @param value First value appended.
+   * @return the encoding of the values, or null if the value is not supported.
+   */
+  private static Encoding getEncoding(Object value) {
+    if (value instanceof Integer) {
+      return Encoding.INT;
+    } else if (value instanceof Long) {
+      return Encoding.LONG;
+    } else if (value instanceof Float) {
+      return Encoding.FLOAT;
+    } else if (value instanceof Double) {
+      return Encoding.DOUBLE;
+    } else {
+      return null;
+    }
+  }
+
+  /**
+   * Converts a value into the bits encoded for it.
+   *
+   * @param value Value to convert, of the type of the encoding.
+   * @return the bits of the value.
+   */
+  private long toBits(Object value) {
+    Preconditions.checkArgument(
+        (value != null) && (getEncoding(value) == mEncoding),
+        "Value '%s' does not match the %s encoding of the time-series.", value, mEncoding);
+    switch (mEncoding) {
+      case INT: return (Integer) value;
+      case LONG: return (Long) value;
+      case FLOAT: return Float.floatToIntBits((Float) value) & 0xffffffffL;
+      case DOUBLE: return Double.doubleToLongBits((Double) value);
+      default: throw new IllegalStateException("Unknown encoding: " + mEncoding);
+    }
+  }
+
+  /**
+   * Writes the XOR of a value with the previous value into the value bit stream.
+   *
+   * <p> A zero XOR is written as a single 0 bit. Otherwise, a 1 bit is followed by:
+   *   <ul>
+   *     <li> a 0 bit and the bits of the window of the previous value, if the meaningful bits
+   *          of the XOR fit in that window; </li>
+   *     <li> a 1 bit, the number of leading zeros, the number of meaningful bits minus one,
+   *          and the meaningful bits, which then become the window. </li>
+   *   </ul> </p>
+   *
+   * @param xor XOR of the value with the previous value.
+   */
+  private void writeXor(long xor) {
+    if (xor == 0) {
+      writeBits(0, 1);
+      return;
+    }
+    writeBits(1, 1);
+    final int leadingZeros = Long.numberOfLeadingZeros(xor);
+    final int trailingZeros = Long.numberOfTrailingZeros(xor);
+    if ((leadingZeros >= mLastLeadingZeros) && (trailingZeros >= mLastTrailingZeros)) {
+      writeBits(0, 1);
+      writeBits(xor >>> mLastTrailingZeros, Long.SIZE - mLastLeadingZeros - mLastTrailingZeros);
+    } else {
+      final int meaningfulBits = Long.SIZE - leadingZeros - trailingZeros;
+      writeBits(1, 1);
+      writeBits(leadingZeros, LEADING_ZEROS_BITS);
+      writeBits(meaningfulBits - 1, MEANINGFUL_BITS_BITS);
+      writeBits(xor >>> trailingZeros, meaningfulBits);
+      mLastLeadingZeros = leadingZeros;
+      mLastTrailingZeros = trailingZeros;
+    }
+  }
+
+  /**
+   * Writes bits into the value bit stream.
+   *
+   * @param bits Bits to write, in the low bits of the long.
+   * @param nbits Number of bits to write, at most 64.
+   */
+  private void writeBits(long bits, int nbits) {
+    final int nbytes = (mValueBitLength + nbits + 7) / 8;
+    if (nbytes > mValueBits.length) {
+      mValueBits = Arrays.copyOf(mValueBits, Math.max(mValueBits.length * 2, nbytes));
+    }
+    int remaining = nbits;
+    while (remaining > 0) {
+      final int bitInByte = mValueBitLength & 7;
+      final int count = Math.min(8 - bitInByte, remaining);
+      final int chunk = (int) (bits >>> (remaining - count)) & ((1 << count) - 1);
+      mValueBits[mValueBitLength >>> 3] |= (byte) (chunk << (8 - bitInByte - count));
+      mValueBitLength += count;
+      remaining -= count;
+    }
+  }
+
+  /**
+   * Writes an unsigned varint.
+   *
+   * @param value Value to write.
+   */
+  private void writeVarLong(long value) {
+    if (mLength + 10 > mBytes.length) {
+      mBytes = Arrays.copyOf(mBytes, Math.max(mBytes.length * 2, mLength + 10));
+    }
+    long remaining = value;
+    while ((remaining & ~0x7fL) != 0) {
+      mBytes[mLength++] = (byte) ((remaining & 0x7f) | 0x80);
+      remaining >>>= 7;
+    }
+    mBytes[mLength++] = (byte) remaining;
+  }
+
+  /**
+   * Zig-zag encodes a signed long, so that small negative numbers encode into short varints.
+   *
+   * @param value Signed long.
+   * @return the zig-zag encoding of the long.
+   */
+  private static long zigZag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  /**
+   * Decodes a zig-zag encoded long.
+   *
+   * @param raw Zig-zag encoded long.
+   * @return the signed long.
+   */
+  private static long unZigZag(long raw) {
+    return (raw >>> 1) ^ -(raw & 1);
+  }
+}
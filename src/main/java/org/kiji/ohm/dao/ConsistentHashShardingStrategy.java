@@ -0,0 +1,151 @@
+package org.kiji.ohm.dao;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Sharding strategy placing entity IDs on a consistent-hash ring.
+ *
+ * <p> Each shard owns a number of virtual nodes on a ring of 64-bit positions. An entity ID is
+ *   hashed onto the ring and routed to the shard owning the first virtual node at or after its
+ *   position. Adding a shard only moves the entity IDs the new virtual nodes take over, about
+ *   1/N of them, instead of reshuffling all of them as a modulo would. </p>
+ *
+ * <p> Entity IDs are hashed from the first {@code hashedComponents} components, with MD5. Hashing
+ *   a prefix of the components keeps related rows, for example the rows of a tenant, on the same
+ *   shard. Components are hashed from their string form. </p>
+ */
+public final class ConsistentHashShardingStrategy implements ShardingStrategy {
+  /** Default number of virtual nodes per shard. */
+  public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+  /** MD5 digest, per thread. */
+  private static final ThreadLocal<MessageDigest> MD5 = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      try {
+        return MessageDigest.getInstance("MD5");
+      } catch (NoSuchAlgorithmException nsae) {
+        throw new RuntimeException(nsae);
+      }
+    }
+  };
+
+  /** Number of shards. */
+  private final int mShardCount;
+
+  /** Number of virtual nodes per shard. */
+  private final int mVirtualNodes;
+
+  /** Number of leading entity ID components hashed, or 0 to hash all the components. */
+  private final int mHashedComponents;
+
+  /** Ring: map from the position of a virtual node to the index of the shard owning it. */
+  private final TreeMap<Long, Integer> mRing = new TreeMap<Long, Integer>();
+
+  /**
+   * Initializes a strategy hashing all the entity ID components.
+   *
+   * @param shardCount Number of shards.
+   */
+  public ConsistentHashShardingStrategy(int shardCount) {
+    this(shardCount, DEFAULT_VIRTUAL_NODES, 0);
+  }
+
+  /**
+   * Initializes a consistent-hash strategy.
+   *
+   * @param shardCount Number of shards.
+   * @param virtualNodes Number of virtual nodes per shard.
+   * @param hashedComponents Number of leading entity ID components to hash, or 0 to hash all of
+   *     them.
+   */
+  public ConsistentHashShardingStrategy(int shardCount, int virtualNodes, int hashedComponents) {
+    Preconditions.checkArgument(shardCount > 0, "Invalid shard count: %s", shardCount);
+    Preconditions.checkArgument(virtualNodes > 0, "Invalid virtual node count: %s", virtualNodes);
+    Preconditions.checkArgument(hashedComponents >= 0,
+        "Invalid hashed component count: %s", hashedComponents);
+    mShardCount = shardCount;
+    mVirtualNodes = virtualNodes;
+    mHashedComponents = hashedComponents;
+
+    for (int shard = 0; shard < shardCount; ++shard) {
+      for (int node = 0; node < virtualNodes; ++node) {
+        // Collisions are astronomically unlikely; the lowest shard keeps the position:
+        final Long position = hash(Bytes.toBytes(String.format("shard-%d-node-%d", shard, node)));
+        if (!mRing.containsKey(position)) {
+          mRing.put(position, shard);
+        }
+      }
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int getShardCount() {
+    return mShardCount;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int getShard(Object[] entityIdComponents) {
+    final int ncomponents = (mHashedComponents == 0)
+        ? entityIdComponents.length
+        : Math.min(mHashedComponents, entityIdComponents.length);
+    final MessageDigest md5 = MD5.get();
+    for (int i = 0; i < ncomponents; ++i) {
+      md5.update(Bytes.toBytes(String.valueOf(entityIdComponents[i])));
+      md5.update((byte) 0);  // Separator, so that ("ab", "c") and ("a", "bc") differ.
+    }
+    final Map.Entry<Long, Integer> node = ceilingOrFirst(toLong(md5.digest()));
+    return node.getValue();
+  }
+
+  /**
+   * Finds the virtual node owning a position of the ring.
+   *
+   * @param position Position on the ring.
+   * @return the first virtual node at or after the position, wrapping around the ring.
+   */
+  private Map.Entry<Long, Integer> ceilingOrFirst(long position) {
+    final Map.Entry<Long, Integer> node = mRing.ceilingEntry(position);
+    return (node != null) ? node : mRing.firstEntry();
+  }
+
+  /**
+   * Hashes bytes onto the ring.
+   *
+   * @param bytes Bytes to hash.
+   * @return the position of the bytes on the ring.
+   */
+  private static long hash(byte[] bytes) {
+    return toLong(MD5.get().digest(bytes));
+  }
+
+  /**
+   * Folds a digest into a ring position.
+   *
+   * @param digest MD5 digest.
+   * @return the first 8 bytes of the digest, as a long.
+   */
+  private static long toLong(byte[] digest) {
+    return Bytes.toLong(digest, 0);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("shards", mShardCount)
+        .add("virtual_nodes", mVirtualNodes)
+        .add("hashed_components", mHashedComponents)
+        .toString();
+  }
+}
@@ -0,0 +1,65 @@
+package org.kiji.ohm.dao;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Accumulator grouping cells into fixed time buckets, and reducing each bucket to one value.
+ *
+ * <p> Holds one reducing accumulator per non-empty bucket: memory usage depends on the number of
+ *   buckets, not on the number of cells. </p>
+ */
+final class DownsamplingAccumulator implements Accumulator {
+  /** Duration of a bucket, in milliseconds. */
+  private final long mBucketMillis;
+
+  /** Reducer applied to the values of each bucket. */
+  private final Aggregation mReducer;
+
+  /** Map from bucket start time to the accumulator reducing the bucket. */
+  private final Map<Long, Accumulator> mBuckets = new TreeMap<Long, Accumulator>();
+
+  /**
+   * Initializes a new downsampling accumulator.
+   *
+   * @param bucketMillis Duration of a bucket, in milliseconds.
+   * @param reducer Reducer applied to the values of each bucket.
+   */
+  public DownsamplingAccumulator(long bucketMillis, Aggregation reducer) {
+    Preconditions.checkArgument(bucketMillis > 0, "Invalid bucket duration: %s", bucketMillis);
+    mBucketMillis = bucketMillis;
+    mReducer = reducer;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void add(long timestamp, Object value) {
+    if (value == null) {
+      return;
+    }
+    final long offset = ((timestamp % mBucketMillis) + mBucketMillis) % mBucketMillis;
+    final Long bucket = timestamp - offset;
+    Accumulator accumulator = mBuckets.get(bucket);
+    if (accumulator == null) {
+      accumulator = mReducer.newAccumulator();
+      mBuckets.put(bucket, accumulator);
+    }
+    accumulator.add(timestamp, value);
+  }
+
+  /**
+   * Reports the downsampled time-series.
+   *
+   * @return the downsampled time-series, keyed by bucket start time.
+   */
+  @Override
+  public TimeSeries<Object> getResult() {
+    final TimeSeries<Object> timeseries = new TimeSeries<Object>();
+    for (final Map.Entry<Long, Accumulator> entry : mBuckets.entrySet()) {
+      timeseries.put(entry.getKey(), entry.getValue().getResult());
+    }
+    return timeseries;
+  }
+}
@@ -0,0 +1,225 @@
+package org.kiji.ohm.dao;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Batch of entities in struct-of-arrays form.
+ *
+ * <p> The batch holds one array per @KijiColumn and @EntityIdField field of the entity class,
+ *   named after the field. Fields with a primitive type are held in primitive arrays, other
+ *   fields in arrays of the field type. The value of the field for the i-th row of the batch
+ *   is at index i of the array, for i lower than {@link #size()}. Missing cells are null, or
+ *   the default value for primitive fields. </p>
+ *
+ * <p> Batches are reused by the scanner that fills them: arrays are overwritten when the next
+ *   batch is fetched. Not thread-safe. </p>
+ */
+public final class EntityBatch {
+  /** Names of the fields, in declaration order. */
+  private final ImmutableList<String> mFieldNames;
+
+  /** Map from field name to the array of the field values. */
+  private final ImmutableMap<String, Object> mColumns;
+
+  /** Fields of the entity class, in the order of mFieldNames. */
+  private final Field[] mFields;
+
+  /** Arrays of the field values, in the order of mFieldNames. */
+  private final Object[] mArrays;
+
+  /** Maximum number of rows in the batch. */
+  private final int mCapacity;
+
+  /** Number of rows in the batch. */
+  private int mSize = 0;
+
+  /**
+   * Initializes a new empty batch.
+   *
+   * @param fields Fields of the entity class to hold arrays for.
+   * @param capacity Maximum number of rows in the batch.
+   */
+  EntityBatch(List<Field> fields, int capacity) {
+    Preconditions.checkArgument(capacity > 0, "Invalid batch capacity: %s", capacity);
+    mCapacity = capacity;
+    mFields = fields.toArray(new Field[fields.size()]);
+    mArrays = new Object[mFields.length];
+
+    final ImmutableList.Builder<String> names = ImmutableList.builder();
+    final ImmutableMap.Builder<String, Object> columns = ImmutableMap.builder();
+    for (int i = 0; i < mFields.length; ++i) {
+      mArrays[i] = Array.newInstance(mFields[i].getType(), capacity);
+      names.add(mFields[i].getName());
+      columns.put(mFields[i].getName(), mArrays[i]);
+    }
+    mFieldNames = names.build();
+    mColumns = columns.build();
+  }
+
+  /** @return the number of rows in the batch. */
+  public int size() {
+    return mSize;
+  }
+
+  /** @return the maximum number of rows in the batch. */
+  public int getCapacity() {
+    return mCapacity;
+  }
+
+  /** @return the names of the fields held by the batch, in declaration order. */
+  public List<String> getFieldNames() {
+    return mFieldNames;
+  }
+
+  /**
+   * Reports the array of the values of a field.
+   *
+   * @param fieldName Name of the field.
+   * @return the array of the values of the field: a primitive array for primitive fields, or
+   *     an array of the field type. Only the first {@link #size()} elements are valid.
+   */
+  public Object getColumn(String fieldName) {
+    final Object column = mColumns.get(fieldName);
+    Preconditions.checkArgument(column != null, "No field named '%s' in batch.", fieldName);
+    return column;
+  }
+
+  /**
+   * Reports the values of an int field.
+   *
+   * @param fieldName Name of the int field.
+   * @return the array of the values of the field.
+   */
+  public int[] getInts(String fieldName) {
+    return getColumn(fieldName, int[].class);
+  }
+
+  /**
+   * Reports the values of a long field.
+   *
+   * @param fieldName Name of the long field.
+   * @return the array of the values of the field.
+   */
+  public long[] getLongs(String fieldName) {
+    return getColumn(fieldName, long[].class);
+  }
+
+  /**
+   * Reports the values of a float field.
+   *
+   * @param fieldName Name of the float field.
+   * @return the array of the values of the field.
+   */
+  public float[] getFloats(String fieldName) {
+    return getColumn(fieldName, float[].class);
+  }
+
+  /**
+   * Reports the values of a double field.
+   *
+   * @param fieldName Name of the double field.
+   * @return the array of the values of the field.
+   */
+  public double[] getDoubles(String fieldName) {
+    return getColumn(fieldName, double[].class);
+  }
+
+  /**
+   * Reports the values of a boolean field.
+   *
+   * @param fieldName Name of the boolean field.
+   * @return the array of the values of the field.
+   */
+  public boolean[] getBooleans(String fieldName) {
+    return getColumn(fieldName, boolean[].class);
+  }
+
+  /**
+   * Reports the values of a field with a non-primitive type.
+   *
+   * @param fieldName Name of the field.
+   * @return the array of the values of the field.
+   */
+  public Object[] getObjects(String fieldName) {
+    return getColumn(fieldName, Object[].class);
+  }
+
+  /**
+   * Reports the array of the values of a field, checking its type.
+   *
+   * @param fieldName Name of the field.
+   * @param arrayClass Expected class of the array.
+   * @return the array of the values of the field.
+   */
+  private <A> A getColumn(String fieldName, Class<A> arrayClass) {
+    final Object column = getColumn(fieldName);
+    Preconditions.checkArgument(arrayClass.isInstance(column),
+        "Field '%s' is held in a %s, not in a %s.",
+        fieldName, column.getClass().getSimpleName(), arrayClass.getSimpleName());
+    return arrayClass.cast(column);
+  }
+
+  // -----------------------------------------------------------------------------------------------
+  // Filling, used by the batch scanner.
+
+  /** Empties the batch, releasing the objects held by the previous rows. */
+  void clear() {
+    for (final Object array : mArrays) {
+      if (array instanceof Object[]) {
+        Arrays.fill((Object[]) array, 0, mSize, null);
+      }
+    }
+    mSize = 0;
+  }
+
+  /** @return whether the batch holds as many rows as its capacity. */
+  boolean isFull() {
+    return mSize == mCapacity;
+  }
+
+  /**
+   * Appends a row to the batch, from the fields of a populated entity.
+   *
+   * @param entity Entity to copy the field values of.
+   * @throws IllegalAccessException if a field cannot be read.
+   */
+  void add(Object entity) throws IllegalAccessException {
+    Preconditions.checkState(mSize < mCapacity, "Batch is full.");
+    for (int i = 0; i < mFields.length; ++i) {
+      final Field field = mFields[i];
+      final Class<?> type = field.getType();
+      if (type == int.class) {
+        ((int[]) mArrays[i])[mSize] = field.getInt(entity);
+      } else if (type == long.class) {
+        ((long[]) mArrays[i])[mSize] = field.getLong(entity);
+      } else if (type == double.class) {
+        ((double[]) mArrays[i])[mSize] = field.getDouble(entity);
+      } else if (type == float.class) {
+        ((float[]) mArrays[i])[mSize] = field.getFloat(entity);
+      } else if (type == boolean.class) {
+        ((boolean[]) mArrays[i])[mSize] = field.getBoolean(entity);
+      } else {
+        Array.set(mArrays[i], mSize, field.get(entity));
+      }
+    }
+    mSize += 1;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("size", mSize)
+        .add("capacity", mCapacity)
+        .add("fields", mFieldNames)
+        .toString();
+  }
+}
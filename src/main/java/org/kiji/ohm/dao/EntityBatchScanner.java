@@ -0,0 +1,149 @@
+package org.kiji.ohm.dao;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.kiji.schema.KijiRowData;
+import org.kiji.schema.KijiRowScanner;
+import org.kiji.schema.KijiTableReader;
+
+/**
+ * Iterator over the entities of a Kiji scan, in batches of struct-of-arrays.
+ *
+ * <p> Rows are decoded into a single scratch entity, whose field values are copied into the
+ *   arrays of the batch: no entity object is returned nor tracked. The scanner fills and
+ *   returns the same batch on every call to {@link #next()}. </p>
+ *
+ * <p> Since the scratch entity is never released, entity classes with active fields, such as
+ *   pagers or iterators over their cell budget, cannot be scanned in batches: the batch would
+ *   hold the pagers, and the readers they lease, until the DAO is closed. </p>
+ *
+ * <p> The scanner must be closed to release the underlying HBase scanner, whether or not it
+ *   was iterated until the end. </p>
+ *
+ * @param <T> Type of the entities.
+ */
+public final class EntityBatchScanner<T> implements Iterator<EntityBatch>, Closeable {
+  /** Specification of the entities, leased by this scanner until closed. */
+  private final EntitySpec<T> mSpec;
+
+  /** Reader the scanner was opened with, returned to the pool when closed. */
+  private final KijiTableReader mReader;
+
+  /** Underlying Kiji row scanner. */
+  private final KijiRowScanner mScanner;
+
+  /** Iterator on the rows of the Kiji scanner. */
+  private final Iterator<KijiRowData> mRows;
+
+  /** Start of the time range of the scan, inclusive. */
+  private final long mStartTime;
+
+  /** End of the time range of the scan, exclusive. */
+  private final long mEndTime;
+
+  /** Batch filled and returned by this scanner. */
+  private final EntityBatch mBatch;
+
+  /** Entity the rows are decoded into before being copied into the batch. */
+  private final T mScratch;
+
+  /** Whether this scanner is closed. */
+  private boolean mClosed = false;
+
+  /**
+   * Initializes a new batch scanner.
+   *
+   * <p> The batch scanner takes ownership of the specification lease, the reader and the
+   *   Kiji row scanner. </p>
+   *
+   * @param spec Specification of the entities, leased by the caller.
+   * @param reader Reader the scanner was opened with, acquired from the specification.
+   * @param scanner Kiji row scanner to populate the batches from.
+   * @param startTime Start of the time range of the scan, inclusive.
+   * @param endTime End of the time range of the scan, exclusive.
+   * @param batchSize Maximum number of rows per batch.
+   */
+  EntityBatchScanner(
+      EntitySpec<T> spec,
+      KijiTableReader reader,
+      KijiRowScanner scanner,
+      long startTime,
+      long endTime,
+      int batchSize) {
+    mSpec = spec;
+    mReader = reader;
+    mScanner = scanner;
+    mRows = scanner.iterator();
+    mStartTime = startTime;
+    mEndTime = endTime;
+    mBatch = new EntityBatch(spec.getPopulatedFields(), batchSize);
+    mScratch = spec.newEntity();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean hasNext() {
+    return !mClosed && mRows.hasNext();
+  }
+
+  /**
+   * Fills the batch with the next rows of the scan.
+   *
+   * @return the batch, holding at least one row. The batch is overwritten by the next call.
+   */
+  @Override
+  public EntityBatch next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    mBatch.clear();
+    try {
+      while (!mBatch.isFull() && mRows.hasNext()) {
+        final KijiRowData row = mRows.next();
+        mSpec.clearPopulatedFields(mScratch);
+        mSpec.populateEntityFromRow(
+            mScratch, row, KijiDao.NO_RESTRICTIONS, mStartTime, mEndTime);
+        if (mSpec.hasSecondaryTables()) {
+          mSpec.populateSecondaryFields(mScratch, row.getEntityId(), mStartTime, mEndTime);
+        }
+        mBatch.add(mScratch);
+      }
+    } catch (IllegalAccessException iae) {
+      throw new RuntimeException(iae);
+    } catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+    return mBatch;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Closes the underlying Kiji scanner and releases the resources held by this scanner.
+   *
+   * <p> Subsequent calls have no effect. </p>
+   */
+  @Override
+  public void close() throws IOException {
+    if (mClosed) {
+      return;
+    }
+    mClosed = true;
+    try {
+      mScanner.close();
+    } finally {
+      try {
+        mSpec.releaseReader(mReader);
+      } finally {
+        mSpec.release();
+      }
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package org.kiji.ohm.dao;
+
+import com.google.common.base.Objects;
+
+import org.kiji.schema.EntityId;
+import org.kiji.schema.KijiCell;
+
+/**
+ * Cell of a column, with the entity ID of the row it belongs to.
+ *
+ * <p> Immutable. </p>
+ *
+ * @param <V> Type of the cell value.
+ */
+public final class EntityCell<V> {
+  /** Entity ID of the row, in the entity table. */
+  private final EntityId mEntityId;
+
+  /** Cell. */
+  private final KijiCell<V> mCell;
+
+  /**
+   * Initializes an entity cell.
+   *
+   * @param entityId Entity ID of the row, in the entity table.
+   * @param cell Cell.
+   */
+  EntityCell(EntityId entityId, KijiCell<V> cell) {
+    mEntityId = entityId;
+    mCell = cell;
+  }
+
+  /** @return the entity ID of the row the cell belongs to, in the entity table. */
+  public EntityId getEntityId() {
+    return mEntityId;
+  }
+
+  /** @return the cell. */
+  public KijiCell<V> getCell() {
+    return mCell;
+  }
+
+  /** @return the timestamp of the cell. */
+  public long getTimestamp() {
+    return mCell.getTimestamp();
+  }
+
+  /** @return the value of the cell. */
+  public V getValue() {
+    return mCell.getData();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("entity_id", mEntityId)
+        .add("timestamp", mCell.getTimestamp())
+        .add("value", mCell.getData())
+        .toString();
+  }
+}
@@ -0,0 +1,179 @@
+package org.kiji.ohm.dao;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+import org.kiji.ohm.annotations.KijiIndexed;
+import org.kiji.schema.EntityId;
+import org.kiji.schema.Kiji;
+import org.kiji.schema.KijiBufferedWriter;
+import org.kiji.schema.KijiDataRequest;
+import org.kiji.schema.KijiRowData;
+import org.kiji.schema.KijiTable;
+import org.kiji.schema.KijiTableReader;
+
+/**
+ * Secondary index maintained by the DAO for a field annotated with {@link KijiIndexed}.
+ *
+ * <p> The index table maps the string form of a field value to the HBase row keys of the
+ *   entities holding that value. Row keys are recorded as hex-encoded qualifiers. </p>
+ *
+ * <p> The index owns the index table and a pool of readers on it, for the lifetime of the
+ *   entity specification. Updates go through writers opened by the caller, so that a write of
+ *   an entity updates all of its indexes through one buffered writer per index table. </p>
+ */
+final class EntityIndex implements Closeable {
+  /** Indexed entity field. */
+  private final Field mField;
+
+  /** Index declaration. */
+  private final KijiIndexed mIndexed;
+
+  /** Index table. Owned. */
+  private final KijiTable mTable;
+
+  /** Pool of readers on the index table. */
+  private final TableReaderPool mReaderPool;
+
+  /**
+   * Initializes a new index for an entity field.
+   *
+   * @param field Indexed entity field.
+   * @param indexed Index declaration for the field.
+   * @param kiji Kiji instance holding the index table.
+   * @throws IOException on I/O error.
+   */
+  public EntityIndex(Field field, KijiIndexed indexed, Kiji kiji) throws IOException {
+    mField = field;
+    mIndexed = indexed;
+    mTable = kiji.openTable(indexed.table());
+    mReaderPool = new TableReaderPool(mTable);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void close() throws IOException {
+    try {
+      mReaderPool.close();
+    } finally {
+      mTable.release();
+    }
+  }
+
+  /** @return the indexed entity field. */
+  public Field getField() {
+    return mField;
+  }
+
+  /** @return the name of the Kiji table holding the index. */
+  public String getTableName() {
+    return mIndexed.table();
+  }
+
+  /**
+   * Opens a buffered writer on the index table.
+   *
+   * @return a buffered writer on the index table, to be closed by the caller.
+   * @throws IOException on I/O error.
+   */
+  public KijiBufferedWriter openWriter() throws IOException {
+    return mTable.getWriterFactory().openBufferedWriter();
+  }
+
+  /**
+   * Reports the index key for a field value.
+   *
+   * @param value Field value, possibly null.
+   * @return the index key for the given value, or null if the value is null.
+   */
+  public static String indexKey(Object value) {
+    return (value == null) ? null : value.toString();
+  }
+
+  /**
+   * Records an entity in the index.
+   *
+   * @param writer Writer on the index table, from {@link #openWriter()}.
+   * @param value Indexed field value, not null.
+   * @param entityId Entity ID of the row holding the value.
+   * @throws IOException on I/O error.
+   */
+  public void add(KijiBufferedWriter writer, Object value, EntityId entityId)
+      throws IOException {
+    writer.put(
+        mTable.getEntityId(indexKey(value)), mIndexed.family(), toQualifier(entityId), true);
+  }
+
+  /**
+   * Removes an entity from the index.
+   *
+   * @param writer Writer on the index table, from {@link #openWriter()}.
+   * @param value Indexed field value the entity is recorded under, not null.
+   * @param entityId Entity ID of the row to remove from the index.
+   * @throws IOException on I/O error.
+   */
+  public void remove(KijiBufferedWriter writer, Object value, EntityId entityId)
+      throws IOException {
+    writer.deleteColumn(
+        mTable.getEntityId(indexKey(value)), mIndexed.family(), toQualifier(entityId));
+  }
+
+  /**
+   * Looks up the entities recorded under a field value.
+   *
+   * <p> The index may lag behind the entity table: callers must check the value of the
+   *   entities they fetch from the returned row keys. </p>
+   *
+   * @param value Field value to look up, not null.
+   * @return the HBase row keys of the entities recorded under the given value.
+   * @throws IOException on I/O error.
+   */
+  public List<byte[]> lookup(Object value) throws IOException {
+    final KijiTableReader reader = mReaderPool.acquire();
+    try {
+      final KijiDataRequest dataRequest = KijiDataRequest.create(mIndexed.family());
+      final KijiRowData row = reader.get(mTable.getEntityId(indexKey(value)), dataRequest);
+      final List<byte[]> rowKeys = Lists.newArrayList();
+      if (row.containsColumn(mIndexed.family())) {
+        for (final String qualifier : row.getQualifiers(mIndexed.family())) {
+          rowKeys.add(fromQualifier(qualifier));
+        }
+      }
+      return rowKeys;
+    } finally {
+      mReaderPool.release(reader);
+    }
+  }
+
+  /**
+   * Encodes an entity ID into an index qualifier.
+   *
+   * @param entityId Entity ID to encode.
+   * @return the index qualifier for the given entity ID.
+   */
+  private static String toQualifier(EntityId entityId) {
+    return Hex.encodeHexString(entityId.getHBaseRowKey());
+  }
+
+  /**
+   * Decodes an index qualifier into an HBase row key.
+   *
+   * @param qualifier Index qualifier to decode.
+   * @return the HBase row key encoded in the given qualifier.
+   */
+  private static byte[] fromQualifier(String qualifier) {
+    try {
+      return Hex.decodeHex(qualifier.toCharArray());
+    } catch (DecoderException de) {
+      throw new IllegalStateException(String.format(
+          "Invalid index qualifier '%s'.", qualifier), de);
+    }
+  }
+}
@@ -0,0 +1,227 @@
+package org.kiji.ohm.dao;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.kiji.schema.KijiTableReader.KijiScannerOptions;
+
+/**
+ * Reactive Streams publisher of the entities of a Kiji scan.
+ *
+ * <p> Each subscription runs its own scan. The scanner is opened on the first request, and rows
+ *   are only pulled from it to satisfy the demand signalled by the subscriber. Signals are
+ *   emitted from the DAO background executor. </p>
+ *
+ * <p> Cancelling the subscription closes the scanner as soon as the row being fetched, if any,
+ *   is available. Entities delivered to the subscriber must be released by the subscriber. </p>
+ *
+ * <p> Use <tt>org.reactivestreams.FlowAdapters</tt> to bridge this publisher to
+ *   <tt>java.util.concurrent.Flow</tt>. </p>
+ *
+ * @param <T> Type of the entities.
+ */
+final class EntityPublisher<T> implements Publisher<T> {
+  private static final Logger LOG = LoggerFactory.getLogger(EntityPublisher.class);
+
+  private final KijiDao mDao;
+  private final Class<T> mClass;
+  private final KijiScannerOptions mOptions;
+  private final long mStartTime;
+  private final long mEndTime;
+
+  /** Executor emitting the signals to the subscribers. */
+  private final Executor mExecutor;
+
+  /**
+   * Initializes a new publisher of the entities of a scan.
+   *
+   * @param dao DAO running the scans.
+   * @param klass Class of the entities to scan.
+   * @param options Scanner options.
+   * @param startTime
+   * @param endTime
+   * @param executor Executor emitting the signals to the subscribers.
+   */
+  EntityPublisher(
+      KijiDao dao,
+      Class<T> klass,
+      KijiScannerOptions options,
+      long startTime,
+      long endTime,
+      Executor executor) {
+    mDao = dao;
+    mClass = klass;
+    mOptions = options;
+    mStartTime = startTime;
+    mEndTime = endTime;
+    mExecutor = executor;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void subscribe(Subscriber<? super T> subscriber) {
+    if (subscriber == null) {
+      throw new NullPointerException("Subscriber must not be null.");
+    }
+    subscriber.onSubscribe(new ScanSubscription(subscriber));
+  }
+
+  /**
+   * Subscription to a scan.
+   *
+   * <p> Signals are serialized through a work-in-progress counter: at most one drain loop runs
+   *   at any time, and requests or cancellations received meanwhile are handled by the running
+   *   loop before it exits. </p>
+   */
+  private final class ScanSubscription implements Subscription, Runnable {
+    private final Subscriber<? super T> mSubscriber;
+
+    /** Outstanding demand. */
+    private final AtomicLong mRequested = new AtomicLong(0);
+
+    /** Number of drain requests not yet handled by the drain loop. */
+    private final AtomicInteger mWorkInProgress = new AtomicInteger(0);
+
+    /** Set when the subscriber cancels the subscription. */
+    private volatile boolean mCancelled = false;
+
+    /** Error to signal for an invalid request, or null. */
+    private volatile IllegalArgumentException mInvalidRequest = null;
+
+    /** Scanner, opened on first demand. Only accessed by the drain loop. */
+    private EntityScanner<T> mScanner = null;
+
+    /** Set once a terminal signal was emitted. Only accessed by the drain loop. */
+    private boolean mTerminated = false;
+
+    private ScanSubscription(Subscriber<? super T> subscriber) {
+      mSubscriber = subscriber;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void request(long n) {
+      if (n <= 0) {
+        mInvalidRequest = new IllegalArgumentException(String.format(
+            "Subscriber requested a non-positive number of entities: %d.", n));
+      } else {
+        while (true) {
+          final long current = mRequested.get();
+          final long updated = (current + n < 0) ? Long.MAX_VALUE : current + n;
+          if (mRequested.compareAndSet(current, updated)) {
+            break;
+          }
+        }
+      }
+      scheduleDrain();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void cancel() {
+      mCancelled = true;
+      scheduleDrain();
+    }
+
+    /** Schedules the drain loop unless it is already running. */
+    private void scheduleDrain() {
+      if (mWorkInProgress.getAndIncrement() == 0) {
+        mExecutor.execute(this);
+      }
+    }
+
+    /** Drain loop: emits entities while there is demand. */
+    @Override
+    public void run() {
+      int missed = 1;
+      do {
+        drain();
+        missed = mWorkInProgress.addAndGet(-missed);
+      } while (missed != 0);
+    }
+
+    /** Emits entities until the demand is satisfied or the subscription terminates. */
+    private void drain() {
+      if (mTerminated) {
+        return;
+      }
+      while (true) {
+        if (mCancelled) {
+          terminate();
+          return;
+        }
+        if (mInvalidRequest != null) {
+          terminate();
+          mSubscriber.onError(mInvalidRequest);
+          return;
+        }
+        if (mRequested.get() == 0) {
+          return;
+        }
+
+        T entity = null;
+        try {
+          if (mScanner == null) {
+            mScanner = mDao.selectAll(mClass, mOptions, mStartTime, mEndTime);
+          }
+          if (mScanner.hasNext()) {
+            entity = mScanner.next();
+          }
+        } catch (IOException ioe) {
+          terminate();
+          mSubscriber.onError(ioe);
+          return;
+        } catch (RuntimeException re) {
+          terminate();
+          mSubscriber.onError(re);
+          return;
+        }
+
+        if (entity == null) {
+          terminate();
+          mSubscriber.onComplete();
+          return;
+        }
+        if (mCancelled) {
+          releaseQuietly(entity);
+          continue;
+        }
+
+        if (mRequested.get() != Long.MAX_VALUE) {
+          mRequested.decrementAndGet();
+        }
+        mSubscriber.onNext(entity);
+      }
+    }
+
+    /** Closes the scanner and marks the subscription as terminated. */
+    private void terminate() {
+      mTerminated = true;
+      if (mScanner != null) {
+        try {
+          mScanner.close();
+        } catch (IOException ioe) {
+          LOG.warn("Error while closing scanner on '{}': {}", mClass, ioe.getMessage());
+        }
+        mScanner = null;
+      }
+    }
+
+    /** Releases an entity that will not be delivered to the subscriber. */
+    private void releaseQuietly(T entity) {
+      try {
+        mDao.releaseEntity(entity);
+      } catch (IOException ioe) {
+        LOG.warn("Error while releasing entity '{}': {}", entity, ioe.getMessage());
+      }
+    }
+  }
+}
@@ -0,0 +1,129 @@
+package org.kiji.ohm.dao;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import org.kiji.ohm.annotations.KijiEntity;
+import org.kiji.ohm.annotations.KijiReference;
+
+/**
+ * Reference to other entities, declared by a field annotated with {@link KijiReference}.
+ *
+ * <p> References are resolved in two phases, so that a batch of entities can be resolved with
+ *   one bulk get per target class: the entity IDs of all the entities are collected first, and
+ *   the resolved entities are assigned once fetched. </p>
+ */
+final class EntityReference {
+  /** Field holding the referenced entity IDs. */
+  private final Field mField;
+
+  /** Field where resolved entities are stored. */
+  private final Field mIntoField;
+
+  /** Reference declaration. */
+  private final KijiReference mReference;
+
+  /** Whether the field holds a collection of entity IDs. */
+  private final boolean mMany;
+
+  /**
+   * Initializes a new reference from an entity field.
+   *
+   * @param field Field holding the referenced entity IDs.
+   * @param reference Reference declaration for the field.
+   */
+  public EntityReference(Field field, KijiReference reference) {
+    mField = field;
+    mReference = reference;
+    mMany = Collection.class.isAssignableFrom(field.getType());
+
+    Preconditions.checkArgument(reference.target().isAnnotationPresent(KijiEntity.class),
+        "Field '%s' references class '%s' which has no @KijiEntity annotation.",
+        field, reference.target());
+    try {
+      mIntoField = field.getDeclaringClass().getDeclaredField(reference.into());
+    } catch (NoSuchFieldException nsfe) {
+      throw new IllegalArgumentException(String.format(
+          "Field '%s' resolves references into non-existing field '%s'.",
+          field, reference.into()));
+    }
+    Preconditions.checkArgument(mMany
+        ? mIntoField.getType().isAssignableFrom(List.class)
+        : mIntoField.getType().isAssignableFrom(reference.target()),
+        "Field '%s' cannot hold the entities referenced by field '%s'.", mIntoField, field);
+    mField.setAccessible(true);
+    mIntoField.setAccessible(true);
+  }
+
+  /** @return the class of the referenced entities. */
+  public Class<?> getTarget() {
+    return mReference.target();
+  }
+
+  /** @return whether references are resolved when the entity is selected. */
+  public boolean isEager() {
+    return mReference.eager();
+  }
+
+  /**
+   * Reports the key identifying an entity ID in a batch.
+   *
+   * @param entityId Array of entity ID components, or single entity ID component.
+   * @return the key identifying the entity ID.
+   */
+  public static List<Object> referenceKey(Object entityId) {
+    return Arrays.asList(KijiDao.toEntityIdComponents(entityId));
+  }
+
+  /**
+   * Collects the entity IDs referenced by an entity.
+   *
+   * @param entity Entity to collect the references of.
+   * @param entityIds Collects the entity IDs, keyed by {@link #referenceKey(Object)}.
+   * @throws IllegalAccessException
+   */
+  public void collect(Object entity, Map<List<Object>, Object> entityIds)
+      throws IllegalAccessException {
+    final Object value = mField.get(entity);
+    if (value == null) {
+      return;
+    }
+    if (mMany) {
+      for (final Object entityId : (Collection<?>) value) {
+        entityIds.put(referenceKey(entityId), entityId);
+      }
+    } else {
+      entityIds.put(referenceKey(value), value);
+    }
+  }
+
+  /**
+   * Stores the resolved entities referenced by an entity.
+   *
+   * @param entity Entity to store the resolved references of.
+   * @param resolved Resolved entities, keyed by {@link #referenceKey(Object)}.
+   * @throws IllegalAccessException
+   */
+  public void assign(Object entity, Map<List<Object>, Object> resolved)
+      throws IllegalAccessException {
+    final Object value = mField.get(entity);
+    if (value == null) {
+      mIntoField.set(entity, null);
+    } else if (mMany) {
+      final Collection<?> entityIds = (Collection<?>) value;
+      final List<Object> entities = Lists.newArrayListWithCapacity(entityIds.size());
+      for (final Object entityId : entityIds) {
+        entities.add(resolved.get(referenceKey(entityId)));
+      }
+      mIntoField.set(entity, entities);
+    } else {
+      mIntoField.set(entity, resolved.get(referenceKey(value)));
+    }
+  }
+}
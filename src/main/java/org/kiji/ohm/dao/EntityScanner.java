@@ -0,0 +1,129 @@
+package org.kiji.ohm.dao;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.kiji.schema.KijiRowData;
+import org.kiji.schema.KijiRowScanner;
+import org.kiji.schema.KijiTableReader;
+
+/**
+ * Iterator over the entities of a Kiji scan.
+ *
+ * <p> Entities are populated as the scanner is iterated. The scanner must be closed to release
+ *   the underlying HBase scanner, whether or not it was iterated until the end. </p>
+ *
+ * @param <T> Type of the entities.
+ */
+public final class EntityScanner<T> implements Iterator<T>, Closeable {
+  /** DAO the entities are populated by. */
+  private final KijiDao mDao;
+
+  /** Specification of the entities, leased by this scanner until closed. */
+  private final EntitySpec<T> mSpec;
+
+  /** Reader the scanner was opened with, returned to the pool when closed. */
+  private final KijiTableReader mReader;
+
+  /** Underlying Kiji row scanner. */
+  private final KijiRowScanner mScanner;
+
+  /** Iterator on the rows of the Kiji scanner. */
+  private final Iterator<KijiRowData> mRows;
+
+  /** Start of the time range of the scan, inclusive. */
+  private final long mStartTime;
+
+  /** End of the time range of the scan, exclusive. */
+  private final long mEndTime;
+
+  /** Whether this scanner is closed. */
+  private boolean mClosed = false;
+
+  /**
+   * Initializes a new entity scanner.
+   *
+   * <p> The entity scanner takes ownership of the specification lease, the reader and the
+   *   Kiji row scanner. </p>
+   *
+   * @param dao DAO populating the entities.
+   * @param spec Specification of the entities, leased by the caller.
+   * @param reader Reader the scanner was opened with, acquired from the specification.
+   * @param scanner Kiji row scanner to populate the entities from.
+   * @param startTime Start of the time range of the scan, inclusive.
+   * @param endTime End of the time range of the scan, exclusive.
+   */
+  EntityScanner(
+      KijiDao dao,
+      EntitySpec<T> spec,
+      KijiTableReader reader,
+      KijiRowScanner scanner,
+      long startTime,
+      long endTime) {
+    mDao = dao;
+    mSpec = spec;
+    mReader = reader;
+    mScanner = scanner;
+    mRows = scanner.iterator();
+    mStartTime = startTime;
+    mEndTime = endTime;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean hasNext() {
+    return !mClosed && mRows.hasNext();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public T next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    final KijiRowData row = mRows.next();
+    try {
+      final T entity = mSpec.populateEntityFromRow(
+          mSpec.newEntity(), row, KijiDao.NO_RESTRICTIONS, mStartTime, mEndTime);
+      if (mSpec.hasSecondaryTables()) {
+        mSpec.populateSecondaryFields(entity, row.getEntityId(), mStartTime, mEndTime);
+      }
+      return mDao.trackEntity(mSpec, entity);
+    } catch (IllegalAccessException iae) {
+      throw new RuntimeException(iae);
+    } catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Closes the underlying Kiji scanner and releases the resources held by this scanner.
+   *
+   * <p> Entities already returned by this scanner remain valid, and must still be released if
+   *   they hold active values. Subsequent calls have no effect. </p>
+   */
+  @Override
+  public void close() throws IOException {
+    if (mClosed) {
+      return;
+    }
+    mClosed = true;
+    try {
+      mScanner.close();
+    } finally {
+      try {
+        mSpec.releaseReader(mReader);
+      } finally {
+        mSpec.release();
+      }
+    }
+  }
+}
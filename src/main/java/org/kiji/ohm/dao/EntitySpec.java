@@ -0,0 +1,1827 @@
+package org.kiji.ohm.dao;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Defaults;
+import com.google.common.base.Predicate;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.apache.avro.Schema;
+import org.apache.hadoop.hbase.HConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.kiji.ohm.annotations.Downsampled;
+import org.kiji.ohm.annotations.EntityIdField;
+import org.kiji.ohm.annotations.KijiColumn;
+import org.kiji.ohm.annotations.KijiEntity;
+import org.kiji.ohm.annotations.KijiIndexed;
+import org.kiji.ohm.annotations.KijiReference;
+import org.kiji.schema.ColumnVersionIterator;
+import org.kiji.schema.EntityId;
+import org.kiji.schema.Kiji;
+import org.kiji.schema.KijiBufferedWriter;
+import org.kiji.schema.KijiCell;
+import org.kiji.schema.KijiDataRequest;
+import org.kiji.schema.KijiDataRequestBuilder;
+import org.kiji.schema.KijiDataRequestBuilder.ColumnsDef;
+import org.kiji.schema.KijiMetaTable;
+import org.kiji.schema.KijiRowData;
+import org.kiji.schema.KijiTable;
+import org.kiji.schema.KijiTableReader;
+import org.kiji.schema.KijiTableWriter;
+import org.kiji.schema.MapFamilyVersionIterator;
+import org.kiji.schema.avro.CellSchema;
+import org.kiji.schema.avro.RowKeyComponent;
+import org.kiji.schema.avro.RowKeyFormat2;
+import org.kiji.schema.avro.SchemaType;
+import org.kiji.schema.impl.HBaseKijiRowData;
+import org.kiji.schema.layout.KijiTableLayout;
+import org.kiji.schema.layout.KijiTableLayout.LocalityGroupLayout.FamilyLayout;
+import org.kiji.schema.layout.KijiTableLayout.LocalityGroupLayout.FamilyLayout.ColumnLayout;
+
+/**
+ * Specification of an annotated entity class.
+ *
+ * <p> A specification holds the entity table open, along with a pool of readers on it, until
+ *   it is closed. </p>
+ *
+ * <p> A specification is bound to the table layout it was built from. Its lifecycle is driven
+ *   by leases: the DAO registry holds one lease while the specification is current, and each
+ *   request in flight or entity with active values holds another. Once replaced in the
+ *   registry, the specification is closed when its last lease is released. </p>
+ */
+final class EntitySpec<T> implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(EntitySpec.class);
+
+  /** Number of versions per page of each row, when merging a column without a page size. */
+  private static final int DEFAULT_MERGE_PAGE_SIZE = 100;
+
+  private final Class<T> mClass;
+
+  private final String mTableName;
+
+  /** Table the entities are fetched from. Owned, released when the specification is closed. */
+  private final KijiTable mTable;
+
+  /** Pool of readers on the entity table. */
+  private final TableReaderPool mReaderPool;
+
+  /** ID of the table layout this specification was built from. */
+  private final String mLayoutId;
+
+  /** Number of leases held on this specification. The registry holds the initial lease. */
+  private final AtomicInteger mLeaseCount = new AtomicInteger(1);
+
+  /** Set once the specification is closed. */
+  private final AtomicBoolean mClosed = new AtomicBoolean(false);
+
+  /** Time of the last check for layout updates, in milliseconds since the Epoch. */
+  private final AtomicLong mLastLayoutCheck = new AtomicLong(System.currentTimeMillis());
+
+  /** Whether the entities hold active values, such as pagers, until they are released. */
+  private final boolean mHasActiveFields;
+
+  /** Whether the entities are populated from the cells of the row only, with no pager. */
+  private final boolean mCacheable;
+
+  /** Fields populated from the row columns. */
+  private final ImmutableList<Field> mColumnFields;
+
+  /** Column fields mapped to the entity table, in declaration order. */
+  private final ImmutableList<Field> mPrimaryColumnFields;
+
+  /** Tables holding the other column fields, by table name. */
+  private final ImmutableMap<String, SecondaryTable> mSecondaryTables;
+
+  /** Decoders of the primitive fields decoded without boxing, by field name. */
+  private final ImmutableMap<String, PrimitiveCellDecoder> mPrimitiveDecoders;
+
+  /** Fields populated from the row entity ID components. */
+  private final ImmutableList<Field> mEntityIdFields;
+
+  /** Map from field name to secondary index, for fields annotated with @KijiIndexed. */
+  private final ImmutableMap<String, EntityIndex> mIndexes;
+
+  /** References to other entities, from fields annotated with @KijiReference. */
+  private final ImmutableList<EntityReference> mReferences;
+
+  /** Whether some references are resolved when the entities are selected. */
+  private final boolean mHasEagerReferences;
+
+  /** Map from field name to the qualifier restriction declared on map-type family fields. */
+  private final ImmutableMap<String, QualifierRestriction> mQualifierRestrictions;
+
+  /** Executor running the background fetches of prefetching pagers. */
+  private final ExecutorService mPrefetchExecutor;
+
+  /** Default maximum number of versions per column fetched in a single get; 0 means none. */
+  private final int mDefaultCellBudget;
+
+  /** Encoder of the row keys of the entity table. */
+  private final RowKeyEncoder mRowKeyEncoder;
+
+  /** Map from row key component name to row key component specs. */
+  private final ImmutableMap<String, RowKeyComponent> mRowKeyComponentMap;
+
+  /** Map from row key component name to row key component index. */
+  private final ImmutableMap<String, Integer> mRowKeyComponentIndexMap;
+
+  /**
+   * Initializes a new specification for an Entity from an annotated Java class.
+   *
+   * @param klass Annotated Java class to derive an entity specification from.
+   * @param kiji Kiji instance where to fetch entities from.
+   * @param prefetchExecutor Executor running the background fetches of prefetching pagers.
+   * @param defaultCellBudget Default maximum number of versions per column fetched in a single
+   *     get, for the fields declaring no budget. 0 or a negative value means no budget.
+   * @throws IOException on I/O error.
+   */
+  public EntitySpec(
+      Class<T> klass, Kiji kiji, ExecutorService prefetchExecutor, int defaultCellBudget)
+      throws IOException {
+    mClass = klass;
+    mPrefetchExecutor = prefetchExecutor;
+    mDefaultCellBudget = defaultCellBudget;
+
+    final KijiEntity entity = klass.getAnnotation(KijiEntity.class);
+    Preconditions.checkArgument(entity != null,
+        "Class '{}' has no @KijiEntity annotation.", klass);
+    mTableName = entity.table();
+
+    mTable = kiji.openTable(mTableName);
+    final Map<String, KijiTable> secondaryTables = Maps.newLinkedHashMap();
+    final Map<String, EntityIndex> indexes = Maps.newHashMap();
+    boolean success = false;
+    try {
+      final KijiTableLayout layout = mTable.getLayout();
+      mLayoutId = String.valueOf(layout.getDesc().getLayoutId());
+      mRowKeyEncoder = new RowKeyEncoder(layout);
+
+      // TODO: Support deprecated RowKeyFormat?
+      final RowKeyFormat2 rowKeyFormat = (RowKeyFormat2) layout.getDesc().getKeysFormat();
+
+      final Map<String, RowKeyComponent> rkcMap = Maps.newHashMap();
+      final Map<String, Integer> rkcIndexMap = Maps.newHashMap();
+      for (int index = 0; index < rowKeyFormat.getComponents().size(); ++index) {
+        final RowKeyComponent rkc = rowKeyFormat.getComponents().get(index);
+        rkcMap.put(rkc.getName(), rkc);
+        rkcIndexMap.put(rkc.getName(), index);
+      }
+      mRowKeyComponentMap = ImmutableMap.copyOf(rkcMap);
+      mRowKeyComponentIndexMap = ImmutableMap.copyOf(rkcIndexMap);
+
+      // --------------------------------------------------------------------
+      // Parse fields with annotations from the entity class:
+
+      final List<Field> columnFields = Lists.newArrayList();
+      final List<Field> primaryColumnFields = Lists.newArrayList();
+      final Map<String, List<Field>> secondaryFields = Maps.newLinkedHashMap();
+      final Map<String, PrimitiveCellDecoder> primitiveDecoders = Maps.newHashMap();
+      final List<Field> entityIdFields = Lists.newArrayList();
+      final Map<String, QualifierRestriction> restrictions = Maps.newHashMap();
+      final List<EntityReference> references = Lists.newArrayList();
+      boolean hasActiveFields = false;
+      boolean hasStreamedFields = false;
+      boolean hasEagerReferences = false;
+
+      for (final Field field : mClass.getDeclaredFields()) {
+        final KijiColumn column = field.getAnnotation(KijiColumn.class);
+        final EntityIdField eidField = field.getAnnotation(EntityIdField.class);
+        final KijiIndexed indexed = field.getAnnotation(KijiIndexed.class);
+
+        if ((column != null) && (eidField != null)) {
+          throw new IllegalArgumentException(String.format(
+              "Field '%s' cannot have both @KijiColumn and @EntityIdField annotations.", field));
+
+        } else if (column != null) {
+          LOG.debug("Validating column field '{}'.", field);
+          field.setAccessible(true);
+          columnFields.add(field);
+
+          final String fieldTableName = column.table().isEmpty() ? mTableName : column.table();
+          final KijiTableLayout fieldLayout;
+          if (fieldTableName.equals(mTableName)) {
+            primaryColumnFields.add(field);
+            fieldLayout = layout;
+          } else {
+            Preconditions.checkArgument(indexed == null,
+                "Indexed field '%s' must map to the entity table '%s'.", field, mTableName);
+            KijiTable secondary = secondaryTables.get(fieldTableName);
+            if (secondary == null) {
+              secondary = kiji.openTable(fieldTableName);
+              secondaryTables.put(fieldTableName, secondary);
+              secondaryFields.put(fieldTableName, Lists.<Field>newArrayList());
+              final Object keysFormat = secondary.getLayout().getDesc().getKeysFormat();
+              Preconditions.checkArgument((keysFormat instanceof RowKeyFormat2)
+                  && ((RowKeyFormat2) keysFormat).getComponents()
+                      .equals(rowKeyFormat.getComponents()),
+                  "Table '%s' of field '%s' has different entity ID components than table '%s'.",
+                  fieldTableName, field, mTableName);
+            }
+            secondaryFields.get(fieldTableName).add(field);
+            fieldLayout = secondary.getLayout();
+          }
+
+          final Downsampled downsampled = field.getAnnotation(Downsampled.class);
+          if (downsampled != null) {
+            Preconditions.checkArgument(downsampled.bucketMillis() > 0,
+                "Field '%s' has an invalid bucket duration: %s.",
+                field, downsampled.bucketMillis());
+            Preconditions.checkArgument(
+                field.getType().isAssignableFrom(TimeSeries.class)
+                && (column.prefetchDepth() == 0),
+                "Downsampled field '%s' must be a TimeSeries, got '%s'.",
+                field, field.getType());
+          } else {
+            hasActiveFields |= (column.pageSize() > 0) || isPagedOverBudget(field, column);
+            final PrimitiveCellDecoder decoder =
+                PrimitiveCellDecoder.create(field, column, fieldLayout);
+            if (decoder != null) {
+              primitiveDecoders.put(field.getName(), decoder);
+            }
+          }
+          if ((downsampled != null) || (column.pageSize() > 0)) {
+            hasStreamedFields = true;
+          }
+
+          final FamilyLayout flayout = fieldLayout.getFamilyMap().get(column.family());
+          Preconditions.checkArgument(flayout != null,
+              "Field '%s' maps to non-existing family '%s' from table '%s'.",
+              field, column.family(), fieldTableName);
+
+          final QualifierRestriction restriction = QualifierRestriction.fromColumn(column);
+          if (restriction != null) {
+            Preconditions.checkArgument(column.qualifier().isEmpty(),
+                "Field '%s' has a qualifier restriction but does not map to a map-type family.",
+                field);
+            restrictions.put(field.getName(), restriction);
+          }
+
+          if (column.qualifier().isEmpty()) {
+            // Request for a map-type family:
+            Preconditions.checkArgument(flayout.isMapType(),
+                "Field '%s' maps to family '%s' from table '%s' which is not a map-type family.",
+                field, column.family(), fieldTableName);
+
+            // Validate field type:
+            if (downsampled != null) {
+              // Downsampled fields are validated above.
+            } else if (column.prefetchDepth() > 0) {
+              validatePrefetchingField(field, column);
+            } else if (column.pageSize() > 0) {
+              Preconditions.checkArgument(
+                  MapFamilyVersionIterator.class.isAssignableFrom(field.getType()),
+                  "Fields mapped to map-type family with paging enabled must be "
+                  + "MapFamilyVersionIterator, got '{}'.", field.getType());
+            } else {
+              Preconditions.checkArgument(field.getType() != CompressedTimeSeries.class,
+                  "CompressedTimeSeries field '%s' must map to a fully-qualified column.", field);
+              // TODO Validate type when no paging enabled on map-type family.
+            }
+
+          } else {
+            // Request for a fully-qualified column:
+            final ColumnLayout clayout = flayout.getColumnMap().get(column.qualifier());
+            Preconditions.checkArgument(clayout != null,
+                "Field '%s' maps to non-existing column '%s:%s' from table '%s'.",
+                field, column.family(), column.qualifier(), fieldTableName);
+
+            // Validate field type:
+            if (downsampled != null) {
+              // Downsampled fields are validated above.
+            } else if (column.prefetchDepth() > 0) {
+              validatePrefetchingField(field, column);
+            } else if (column.pageSize() > 0) {
+              Preconditions.checkArgument(
+                  ColumnVersionIterator.class.isAssignableFrom(field.getType()),
+                  "Fields mapped to column with paging enabled must be "
+                  + "ColumnVersionIterator, got '{}'.", field.getType());
+            } else if (field.getType() == CompressedTimeSeries.class) {
+              validateCompressedTimeSeriesField(field, clayout);
+            } else {
+              // TODO Validate type when no paging enabled on the column.
+            }
+          }
+
+          if (indexed != null) {
+            Preconditions.checkArgument(
+                !column.qualifier().isEmpty()
+                && (column.maxVersions() == 1)
+                && (column.pageSize() == 0),
+                "Indexed field '%s' must map to a single version of a fully-qualified column.",
+                field);
+            indexes.put(field.getName(), new EntityIndex(field, indexed, kiji));
+          }
+
+        } else if (eidField != null) {
+          LOG.debug("Validating entity ID field '{}'.", field);
+          field.setAccessible(true);
+          entityIdFields.add(field);
+
+          final RowKeyComponent rkc = mRowKeyComponentMap.get(eidField.component());
+          Preconditions.checkArgument(rkc != null,
+              "Field '%s' maps to unknown entity ID component '%s'.",
+              field, eidField.component());
+
+        } else {
+          LOG.debug("Ignoring field '{}' with no annotation.", field);
+        }
+
+        Preconditions.checkArgument((indexed == null) || (column != null),
+            "Field '%s' has a @KijiIndexed annotation but no @KijiColumn annotation.", field);
+
+        final KijiReference reference = field.getAnnotation(KijiReference.class);
+        if (reference != null) {
+          LOG.debug("Validating reference field '{}'.", field);
+          references.add(new EntityReference(field, reference));
+          hasEagerReferences |= reference.eager();
+        }
+      }
+
+      mColumnFields = ImmutableList.copyOf(columnFields);
+      mPrimaryColumnFields = ImmutableList.copyOf(primaryColumnFields);
+      mPrimitiveDecoders = ImmutableMap.copyOf(primitiveDecoders);
+      mEntityIdFields = ImmutableList.copyOf(entityIdFields);
+      mIndexes = ImmutableMap.copyOf(indexes);
+      mQualifierRestrictions = ImmutableMap.copyOf(restrictions);
+      mReferences = ImmutableList.copyOf(references);
+      mHasEagerReferences = hasEagerReferences;
+      mHasActiveFields = hasActiveFields;
+      // Iterator fields over the cell budget hold a pager, reading pages from the table:
+      mCacheable = !hasStreamedFields && !hasActiveFields;
+
+      final ImmutableMap.Builder<String, SecondaryTable> secondaries = ImmutableMap.builder();
+      for (final Map.Entry<String, KijiTable> entry : secondaryTables.entrySet()) {
+        secondaries.put(entry.getKey(),
+            new SecondaryTable(entry.getValue(), secondaryFields.get(entry.getKey())));
+      }
+      mSecondaryTables = secondaries.build();
+      success = true;
+
+    } finally {
+      if (!success) {
+        mTable.release();
+        for (final KijiTable secondary : secondaryTables.values()) {
+          secondary.release();
+        }
+        for (final EntityIndex index : indexes.values()) {
+          index.close();
+        }
+      }
+    }
+    mReaderPool = new TableReaderPool(mTable);
+  }
+
+  /**
+   * Closes this specification, regardless of the leases held on it.
+   *
+   * <p> Closing releases the entity table, the secondary and index tables, and the pooled
+   *   readers. Subsequent calls have no effect. </p>
+   */
+  @Override
+  public void close() throws IOException {
+    if (!mClosed.compareAndSet(false, true)) {
+      return;
+    }
+    mReaderPool.close();
+    mTable.release();
+    for (final SecondaryTable secondary : mSecondaryTables.values()) {
+      secondary.close();
+    }
+    for (final EntityIndex index : mIndexes.values()) {
+      index.close();
+    }
+  }
+
+  /**
+   * Attempts to take a lease on this specification.
+   *
+   * @return whether a lease was taken. False means the specification is retired and closing.
+   */
+  public boolean tryRetain() {
+    while (true) {
+      final int count = mLeaseCount.get();
+      if (count == 0) {
+        return false;
+      }
+      if (mLeaseCount.compareAndSet(count, count + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Releases a lease on this specification, and closes it when no lease remains.
+   *
+   * @throws IOException on I/O error.
+   */
+  public void release() throws IOException {
+    final int count = mLeaseCount.decrementAndGet();
+    Preconditions.checkState(count >= 0, "Specification of '%s' over-released.", mClass);
+    if (count == 0) {
+      LOG.debug("Closing retired specification of '{}' for layout '{}'.", mClass, mLayoutId);
+      close();
+    }
+  }
+
+  /** @return the number of leases currently held on this specification. */
+  int getLeaseCount() {
+    return mLeaseCount.get();
+  }
+
+  /** @return the ID of the table layout this specification was built from. */
+  public String getLayoutId() {
+    return mLayoutId;
+  }
+
+  /**
+   * Reports a table whose layout changed since this specification was built.
+   *
+   * <p> Checks the entity table, then the secondary tables. </p>
+   *
+   * @param metaTable Meta table of the Kiji instance to check the current layouts against.
+   * @return the name of a table whose layout changed, or null if all the layouts are current.
+   * @throws IOException on I/O error.
+   */
+  public String findChangedLayout(KijiMetaTable metaTable) throws IOException {
+    if (!mLayoutId.equals(getCurrentLayoutId(metaTable, mTableName))) {
+      return mTableName;
+    }
+    for (final SecondaryTable secondary : mSecondaryTables.values()) {
+      final String tableName = secondary.getTableName();
+      if (!secondary.getLayoutId().equals(getCurrentLayoutId(metaTable, tableName))) {
+        return tableName;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Reads the ID of the current layout of a table.
+   *
+   * @param metaTable Meta table of the Kiji instance.
+   * @param tableName Name of the table.
+   * @return the ID of the current layout of the table.
+   * @throws IOException on I/O error.
+   */
+  private static String getCurrentLayoutId(KijiMetaTable metaTable, String tableName)
+      throws IOException {
+    return String.valueOf(metaTable.getTableLayout(tableName).getDesc().getLayoutId());
+  }
+
+  /**
+   * Decides whether the caller should check the table layout for updates.
+   *
+   * <p> At most one caller is elected per interval. </p>
+   *
+   * @param intervalMillis Minimum interval between two checks, in milliseconds.
+   * @return whether the caller is elected to check the table layout.
+   */
+  public boolean shouldCheckLayout(long intervalMillis) {
+    final long now = System.currentTimeMillis();
+    final long last = mLastLayoutCheck.get();
+    return (now - last >= intervalMillis) && mLastLayoutCheck.compareAndSet(last, now);
+  }
+
+  /** @return whether the entities hold active values, such as pagers, until released. */
+  public boolean hasActiveFields() {
+    return mHasActiveFields;
+  }
+
+  /**
+   * Reports the fields populated from a row: the @KijiColumn fields, then the @EntityIdField
+   * fields, in declaration order.
+   *
+   * @return the fields populated from a row.
+   */
+  public List<Field> getPopulatedFields() {
+    final List<Field> fields = Lists.newArrayList(mColumnFields);
+    for (final Field field : mEntityIdFields) {
+      if (!fields.contains(field)) {
+        fields.add(field);
+      }
+    }
+    return fields;
+  }
+
+  /**
+   * Resets the fields populated from a row to their default value, so that an entity can be
+   * populated again from another row.
+   *
+   * @param entity Entity to reset the fields of.
+   * @throws IllegalAccessException if a field cannot be written.
+   */
+  public void clearPopulatedFields(T entity) throws IllegalAccessException {
+    for (final Field field : mColumnFields) {
+      field.set(entity, Defaults.defaultValue(field.getType()));
+    }
+    for (final Field field : mEntityIdFields) {
+      field.set(entity, Defaults.defaultValue(field.getType()));
+    }
+  }
+
+  /**
+   * Reports whether the entities may be populated from cached rows.
+   *
+   * <p> Entities with paged or downsampled fields, or with iterator fields that may exceed
+   *   their cell budget, read pages from the table while populated or iterated, and cannot be
+   *   populated from cached rows. </p>
+   *
+   * @return whether the entities are populated from the cells of the row only.
+   */
+  public boolean isCacheable() {
+    return mCacheable;
+  }
+
+  /**
+   * Validates a field with prefetching enabled.
+   *
+   * @param field Field to validate.
+   * @param column Column annotation of the field.
+   */
+  private static void validatePrefetchingField(Field field, KijiColumn column) {
+    Preconditions.checkArgument(column.pageSize() > 0,
+        "Field '%s' enables prefetching but not paging.", field);
+    Preconditions.checkArgument(
+        PrefetchingIterator.class.isAssignableFrom(field.getType()),
+        "Fields with prefetching enabled must be PrefetchingIterator, got '%s'.",
+        field.getType());
+  }
+
+  /**
+   * Validates a field holding a compressed time-series.
+   *
+   * <p> Compressed time-series only encode numeric values: the column must hold int, long,
+   *   float or double cells, or counters, assignable to the type parameter of the field. </p>
+   *
+   * @param field Field to validate.
+   * @param clayout Layout of the column the field maps to.
+   */
+  private static void validateCompressedTimeSeriesField(Field field, ColumnLayout clayout) {
+    final CellSchema cellSchema = clayout.getDesc().getColumnSchema();
+    Class<?> valueClass = null;
+    if (cellSchema.getType() == SchemaType.COUNTER) {
+      valueClass = Long.class;
+    } else if (cellSchema.getType() == SchemaType.INLINE) {
+      switch (new Schema.Parser().parse(cellSchema.getValue().toString()).getType()) {
+        case INT: valueClass = Integer.class; break;
+        case LONG: valueClass = Long.class; break;
+        case FLOAT: valueClass = Float.class; break;
+        case DOUBLE: valueClass = Double.class; break;
+        default: break;
+      }
+    }
+    Preconditions.checkArgument(valueClass != null,
+        "CompressedTimeSeries field '%s' maps to a column of non-numeric cells: %s.",
+        field, cellSchema);
+
+    final Type type = field.getGenericType();
+    if (type instanceof ParameterizedType) {
+      final Type valueType = ((ParameterizedType) type).getActualTypeArguments()[0];
+      Preconditions.checkArgument(
+          !(valueType instanceof Class) || ((Class<?>) valueType).isAssignableFrom(valueClass),
+          "CompressedTimeSeries field '%s' cannot hold the %s values of its column.",
+          field, valueClass.getSimpleName());
+    }
+  }
+
+  public String getTableName() {
+    return mTableName;
+  }
+
+  /** @return the table the entities are fetched from. Not retained: do not release! */
+  public KijiTable getTable() {
+    return mTable;
+  }
+
+  /**
+   * Acquires a reader on the entity table.
+   *
+   * @return a reader, to be released with {@link #releaseReader(KijiTableReader)}.
+   * @throws IOException on I/O error.
+   */
+  public KijiTableReader acquireReader() throws IOException {
+    return mReaderPool.acquire();
+  }
+
+  /**
+   * Releases a reader acquired with {@link #acquireReader()}.
+   *
+   * @param reader Reader to release.
+   * @throws IOException on I/O error.
+   */
+  public void releaseReader(KijiTableReader reader) throws IOException {
+    mReaderPool.release(reader);
+  }
+
+  /**
+   * Opens a reader on the entity table ahead of the first requests.
+   *
+   * @throws IOException on I/O error.
+   */
+  public void warmUp() throws IOException {
+    mReaderPool.warmUp(1);
+  }
+
+  /**
+   * Reports the secondary indexes declared on the entity fields.
+   *
+   * @return the secondary indexes, keyed by field name.
+   */
+  public ImmutableMap<String, EntityIndex> getIndexes() {
+    return mIndexes;
+  }
+
+  /**
+   * Builds the entity ID of a row of the entity table.
+   *
+   * @param components Entity ID components.
+   * @return the entity ID.
+   */
+  public EntityId getEntityId(Object... components) {
+    return mRowKeyEncoder.getEntityId(components);
+  }
+
+  /**
+   * Builds the entity ID of a row of the table a column is mapped to.
+   *
+   * @param column Column mapped to the entity table or to a secondary table.
+   * @param components Entity ID components.
+   * @return the entity ID of the row in the table of the column.
+   */
+  EntityId getEntityId(KijiColumn column, Object... components) {
+    final EntityId entityId = getEntityId(components);
+    final SecondaryTable secondary = mSecondaryTables.get(column.table());
+    return (secondary != null)
+        ? secondary.translate(Collections.singletonList(entityId)).get(0)
+        : entityId;
+  }
+
+  /**
+   * Builds the entity IDs of a batch of rows of the entity table.
+   *
+   * @param entityIds Entity IDs, as arrays of components or single components.
+   * @return the entity IDs, in order.
+   */
+  public List<EntityId> getEntityIds(Collection<?> entityIds) {
+    return mRowKeyEncoder.getEntityIds(entityIds);
+  }
+
+  /**
+   * Encodes the row keys of a batch of rows of the entity table into a buffer.
+   *
+   * @param entityIds Entity IDs, as arrays of components or single components.
+   * @param buffer Buffer to append the row keys to, in order.
+   */
+  public void encodeRowKeys(Collection<?> entityIds, RowKeyBuffer buffer) {
+    mRowKeyEncoder.encodeAll(entityIds, buffer);
+  }
+
+  /** @return the references to other entities declared by the entity class. */
+  public ImmutableList<EntityReference> getReferences() {
+    return mReferences;
+  }
+
+  /** @return whether some references are resolved when the entities are selected. */
+  public boolean hasEagerReferences() {
+    return mHasEagerReferences;
+  }
+
+  /**
+   * Reports the column a field is mapped to.
+   *
+   * @param fieldName Name of a field annotated with @KijiColumn.
+   * @return the column annotation of the field.
+   */
+  public KijiColumn getColumn(String fieldName) {
+    for (final Field field : mColumnFields) {
+      if (field.getName().equals(fieldName)) {
+        return field.getAnnotation(KijiColumn.class);
+      }
+    }
+    throw new IllegalArgumentException(String.format(
+        "Class '%s' has no @KijiColumn field named '%s'.", mClass, fieldName));
+  }
+
+  /**
+   * Validates query-time qualifier restrictions against this entity specification.
+   *
+   * @param restrictions Map from field name to qualifier restriction.
+   * @throws IllegalArgumentException if a field does not map to a map-type family.
+   */
+  public void validateQualifierRestrictions(Map<String, QualifierRestriction> restrictions) {
+    for (final String fieldName : restrictions.keySet()) {
+      Preconditions.checkArgument(getColumn(fieldName).qualifier().isEmpty(),
+          "Field '%s' of class '%s' does not map to a map-type family.", fieldName, mClass);
+    }
+  }
+
+  /**
+   * Reports the qualifier restriction declared on a field.
+   *
+   * @param fieldName Name of the field.
+   * @return the qualifier restriction declared on the field, or null.
+   */
+  public QualifierRestriction getQualifierRestriction(String fieldName) {
+    return mQualifierRestrictions.get(fieldName);
+  }
+
+  /**
+   * Reports the qualifier restriction applying to a field.
+   *
+   * @param field Field to report the restriction of.
+   * @param restrictions Query-time restrictions, which override the declared restrictions.
+   * @return the qualifier restriction applying to the field, or null.
+   */
+  private QualifierRestriction getQualifierRestriction(
+      Field field, Map<String, QualifierRestriction> restrictions) {
+    final QualifierRestriction restriction = restrictions.get(field.getName());
+    return (restriction != null) ? restriction : mQualifierRestrictions.get(field.getName());
+  }
+
+  /**
+   * Populates a KijiDataRequest from this entity specification.
+   *
+   * @param builder Builder for the KijiDataRequest to populate.
+   */
+  public void populateColumnRequests(KijiDataRequestBuilder builder) {
+    populateColumnRequests(builder, Collections.<String, QualifierRestriction>emptyMap());
+  }
+
+  /**
+   * Populates a KijiDataRequest from this entity specification.
+   *
+   * <p> Qualifier restrictions on map-type families are pushed down as column filters. </p>
+   *
+   * @param builder Builder for the KijiDataRequest to populate.
+   * @param restrictions Query-time qualifier restrictions, by field name.
+   */
+  public void populateColumnRequests(
+      KijiDataRequestBuilder builder, Map<String, QualifierRestriction> restrictions) {
+    populateColumnRequests(builder, mPrimaryColumnFields, restrictions);
+  }
+
+  /**
+   * Populates a KijiDataRequest for some of the column fields.
+   *
+   * @param builder Builder for the KijiDataRequest to populate.
+   * @param fields Column fields to request, all mapped to the same table.
+   * @param restrictions Query-time qualifier restrictions, by field name.
+   */
+  private void populateColumnRequests(
+      KijiDataRequestBuilder builder,
+      List<Field> fields,
+      Map<String, QualifierRestriction> restrictions) {
+    for (final Field field : fields) {
+      final KijiColumn column = field.getAnnotation(KijiColumn.class);
+      Preconditions.checkState(column != null);
+
+      // Downsampled fields are streamed from the row, hence always paged.
+      // Fields with a cell budget fetch one version past the budget, to detect overflows:
+      final int budget = getCellBudget(field, column);
+      final ColumnsDef def = ColumnsDef.create()
+          .withMaxVersions((budget > 0) ? budget + 1 : column.maxVersions())
+          .withPageSize(field.isAnnotationPresent(Downsampled.class)
+              ? getStreamingPageSize(column)
+              : column.pageSize());
+      if (column.qualifier().isEmpty()) {
+        final QualifierRestriction restriction = getQualifierRestriction(field, restrictions);
+        if (restriction != null) {
+          def.withFilter(restriction.toColumnFilter());
+        }
+        def.addFamily(column.family());
+      } else {
+        def.add(column.family(), column.qualifier());
+      }
+      builder.addColumns(def);
+    }
+  }
+
+  /**
+   * Reports the page size to stream a column with.
+   *
+   * @param column Column to stream.
+   * @return the page size of the column if paging is enabled, or a default page size.
+   */
+  private static int getStreamingPageSize(KijiColumn column) {
+    return (column.pageSize() > 0) ? column.pageSize() : CellStreams.DEFAULT_PAGE_SIZE;
+  }
+
+  /**
+   * Reports the cell budget of a field.
+   *
+   * <p> Only the multi-version fields with paging disabled and a type that can be populated
+   *   page by page have a budget, and only when they may fetch more versions than the budget.
+   *   </p>
+   *
+   * @param field Field to report the cell budget of.
+   * @param column Column annotation of the field.
+   * @return the maximum number of versions per column fetched in a single get, or 0 if the
+   *     field has no budget.
+   */
+  private int getCellBudget(Field field, KijiColumn column) {
+    if ((column.pageSize() > 0)
+        || (column.maxVersions() == 1)
+        || field.isAnnotationPresent(Downsampled.class)) {
+      return 0;
+    }
+    final Class<?> type = field.getType();
+    if ((type != TimeSeries.class)
+        && (type != CompressedTimeSeries.class)
+        && (type != KijiCellValueIterator.class)
+        && (type != KijiCellIterator.class)
+        && (type != TSMapTypeValue.class)) {
+      return 0;
+    }
+    final int budget = (column.cellBudget() != 0) ? column.cellBudget() : mDefaultCellBudget;
+    return ((budget > 0) && (column.maxVersions() > budget)) ? budget : 0;
+  }
+
+  /**
+   * Reports whether a field holds a pager when its column exceeds the cell budget.
+   *
+   * <p> Iterator fields over the budget iterate over the cells page by page, and hold the
+   *   reader until the entity is released. Other fields are populated with all the cells. </p>
+   *
+   * @param field Field to report about.
+   * @param column Column annotation of the field.
+   * @return whether the field holds a pager when its column exceeds the cell budget.
+   */
+  private boolean isPagedOverBudget(Field field, KijiColumn column) {
+    final Class<?> type = field.getType();
+    return ((type == KijiCellValueIterator.class) || (type == KijiCellIterator.class))
+        && (getCellBudget(field, column) > 0);
+  }
+
+  /**
+   * Reports whether a column of a row holds more versions than a cell budget.
+   *
+   * <p> Only the timestamps of the cells are read: no cell is decoded. </p>
+   *
+   * @param row Row fetched with one version past the budget.
+   * @param column Column to check, fully-qualified or map-type family.
+   * @param restriction Qualifier restriction on the map-type family, or null.
+   * @param budget Cell budget of the field, or 0 for no budget.
+   * @return whether a column of the row holds more versions than the budget.
+   * @throws IOException on I/O error.
+   */
+  private static boolean exceedsCellBudget(
+      KijiRowData row, KijiColumn column, QualifierRestriction restriction, int budget)
+      throws IOException {
+    if (budget <= 0) {
+      return false;
+    }
+    if (!column.qualifier().isEmpty()) {
+      return row.getTimestamps(column.family(), column.qualifier()).size() > budget;
+    }
+    for (final String qualifier : row.getQualifiers(column.family())) {
+      if (((restriction == null) || restriction.matches(qualifier))
+          && (row.getTimestamps(column.family(), qualifier).size() > budget)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Populates a KijiDataRequest detecting the rows with changes in the entity columns.
+   *
+   * <p> The request fetches at most one cell per column: it only tells whether a row has cells
+   *   within the time range of the request. Only the columns of the entity table are
+   *   requested: changes to the fields mapped to secondary tables are not detected. </p>
+   *
+   * @param builder Builder for the KijiDataRequest to populate.
+   */
+  public void populateChangeDetectionRequests(KijiDataRequestBuilder builder) {
+    for (final Field field : mPrimaryColumnFields) {
+      final KijiColumn column = field.getAnnotation(KijiColumn.class);
+      final ColumnsDef def = ColumnsDef.create().withMaxVersions(1);
+      if (column.qualifier().isEmpty()) {
+        def.addFamily(column.family());
+      } else {
+        def.add(column.family(), column.qualifier());
+      }
+      builder.addColumns(def);
+    }
+  }
+
+  /**
+   * Populates a KijiDataRequest for the columns of the indexed fields.
+   *
+   * @param builder Builder for the KijiDataRequest to populate.
+   */
+  public void populateIndexedColumnRequests(KijiDataRequestBuilder builder) {
+    for (final EntityIndex index : mIndexes.values()) {
+      final KijiColumn column = index.getField().getAnnotation(KijiColumn.class);
+      builder.addColumns(ColumnsDef.create()
+          .withMaxVersions(1)
+          .add(column.family(), column.qualifier()));
+    }
+  }
+
+  /**
+   * Populates an entity from a row.
+   *
+   * @param entity Entity object to populate from a row.
+   * @param row Kiji row to populate the entity from.
+   * @return the populated entity.
+   * @throws IllegalAccessException
+   * @throws IOException
+   */
+  public T populateEntityFromRow(T entity, KijiRowData row)
+      throws IllegalAccessException, IOException {
+    return populateEntityFromRow(
+        entity, row, Collections.<String, QualifierRestriction>emptyMap());
+  }
+
+  /**
+   * Populates an entity from a row fetched with query-time qualifier restrictions.
+   *
+   * @param entity Entity object to populate from a row.
+   * @param row Kiji row to populate the entity from.
+   * @param restrictions Query-time qualifier restrictions the row was fetched with.
+   * @return the populated entity.
+   * @throws IllegalAccessException
+   * @throws IOException
+   */
+  public T populateEntityFromRow(
+      T entity, KijiRowData row, Map<String, QualifierRestriction> restrictions)
+      throws IllegalAccessException, IOException {
+    return populateEntityFromRow(entity, row, restrictions,
+        0 /*HConstants.OLDEST_TIMESTAMP*/, HConstants.LATEST_TIMESTAMP);
+  }
+
+  /**
+   * Populates an entity from a row fetched with query-time qualifier restrictions.
+   *
+   * <p> Columns exceeding the cell budget of their field are fetched again, page by page,
+   *   within the time range the row was fetched with. </p>
+   *
+   * @param entity Entity object to populate from a row.
+   * @param row Kiji row to populate the entity from.
+   * @param restrictions Query-time qualifier restrictions the row was fetched with.
+   * @param startTime Start of the time range the row was fetched with, inclusive.
+   * @param endTime End of the time range the row was fetched with, exclusive.
+   * @return the populated entity.
+   * @throws IllegalAccessException
+   * @throws IOException
+   */
+  public T populateEntityFromRow(
+      T entity,
+      KijiRowData row,
+      Map<String, QualifierRestriction> restrictions,
+      long startTime,
+      long endTime)
+      throws IllegalAccessException, IOException {
+
+    // Populate fields from the row columns:
+    populateFields(entity, row, mPrimaryColumnFields, restrictions, startTime, endTime);
+
+    // Populate fields from the row entity ID:
+    for (final Field field : mEntityIdFields) {
+      final EntityIdField eidField = field.getAnnotation(EntityIdField.class);
+      Preconditions.checkState(eidField != null);
+
+      final int index = mRowKeyComponentIndexMap.get(eidField.component());
+      field.set(entity, row.getEntityId().getComponentByIndex(index));
+    }
+    return entity;
+  }
+
+  /**
+   * Populates some of the column fields of an entity from a row.
+   *
+   * @param entity Entity object to populate from a row.
+   * @param row Kiji row to populate the fields from.
+   * @param fields Column fields to populate, all mapped to the table of the row.
+   * @param restrictions Query-time qualifier restrictions the row was fetched with.
+   * @param startTime Start of the time range the row was fetched with, inclusive.
+   * @param endTime End of the time range the row was fetched with, exclusive.
+   * @throws IllegalAccessException
+   * @throws IOException
+   */
+  private void populateFields(
+      T entity,
+      KijiRowData row,
+      List<Field> fields,
+      Map<String, QualifierRestriction> restrictions,
+      long startTime,
+      long endTime)
+      throws IllegalAccessException, IOException {
+    for (final Field field : fields) {
+      final KijiColumn column = field.getAnnotation(KijiColumn.class);
+      Preconditions.checkState(column != null);
+
+      final Downsampled downsampled = field.getAnnotation(Downsampled.class);
+      if (downsampled != null) {
+        // Field is a time-series downsampled while the cells are streamed:
+        LOG.debug("Populating downsampled field '{}'.", field);
+        final DownsamplingAccumulator accumulator =
+            new DownsamplingAccumulator(downsampled.bucketMillis(), downsampled.reducer());
+        CellStreams.accumulate(row, column.family(), column.qualifier(),
+            getQualifierRestriction(field, restrictions), getStreamingPageSize(column),
+            accumulator);
+        field.set(entity, accumulator.getResult());
+
+      } else if (column.qualifier().isEmpty()) {
+        // Field is populated from a map-type family:
+        populateFieldFromMapTypeFamily(entity, field, column,
+            getQualifierRestriction(field, restrictions), row, startTime, endTime);
+
+      } else {
+        // Field is populated from a fully-qualified column:
+        populateFieldFromFullyQualifiedColumn(entity, field, column, row, startTime, endTime);
+      }
+    }
+  }
+
+  /** @return whether some column fields are mapped to other tables than the entity table. */
+  public boolean hasSecondaryTables() {
+    return !mSecondaryTables.isEmpty();
+  }
+
+  /**
+   * Starts fetching the rows of the secondary tables, in the background.
+   *
+   * <p> One bulk get is issued per secondary table, all concurrently: the caller fetches the
+   *   entity table rows meanwhile, then completes the entities with
+   *   {@link #populateSecondaryFields(List, List, Map, long, long)}. </p>
+   *
+   * @param entityIds Entity IDs of the rows of the entity table.
+   * @param restrictions Query-time qualifier restrictions, by field name.
+   * @param startTime Start of the time range to fetch, inclusive.
+   * @param endTime End of the time range to fetch, exclusive.
+   * @return the pending rows of each secondary table, in the order of the entity IDs.
+   */
+  public List<Future<List<KijiRowData>>> fetchSecondaryRows(
+      final List<EntityId> entityIds,
+      final Map<String, QualifierRestriction> restrictions,
+      final long startTime,
+      final long endTime) {
+    final List<Future<List<KijiRowData>>> futures = Lists.newArrayList();
+    for (final SecondaryTable secondary : mSecondaryTables.values()) {
+      futures.add(mPrefetchExecutor.submit(new Callable<List<KijiRowData>>() {
+        @Override
+        public List<KijiRowData> call() throws IOException {
+          final KijiDataRequestBuilder builder = KijiDataRequest.builder();
+          builder.withTimeRange(startTime, endTime);
+          populateColumnRequests(builder, secondary.getFields(), restrictions);
+          final KijiTableReader reader = secondary.acquireReader();
+          try {
+            return reader.bulkGet(secondary.translate(entityIds), builder.build());
+          } finally {
+            secondary.releaseReader(reader);
+          }
+        }
+      }));
+    }
+    return futures;
+  }
+
+  /**
+   * Populates the fields of entities mapped to the secondary tables.
+   *
+   * @param entities Entities to populate, in the order of the entity IDs the rows were
+   *     fetched for.
+   * @param rows Pending rows, from {@link #fetchSecondaryRows(List, Map, long, long)}.
+   * @param restrictions Query-time qualifier restrictions the rows were fetched with.
+   * @param startTime Start of the time range the rows were fetched with, inclusive.
+   * @param endTime End of the time range the rows were fetched with, exclusive.
+   * @throws IOException on I/O error.
+   */
+  public void populateSecondaryFields(
+      List<T> entities,
+      List<Future<List<KijiRowData>>> rows,
+      Map<String, QualifierRestriction> restrictions,
+      long startTime,
+      long endTime)
+      throws IOException {
+    int index = 0;
+    for (final SecondaryTable secondary : mSecondaryTables.values()) {
+      final List<KijiRowData> tableRows;
+      try {
+        tableRows = rows.get(index++).get();
+      } catch (ExecutionException ee) {
+        final Throwable cause = ee.getCause();
+        Throwables.propagateIfPossible(cause, IOException.class);
+        throw new RuntimeException(cause);
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException(String.format(
+            "Interrupted while waiting for rows of '%s'.", secondary.getTableName()));
+      }
+      for (int i = 0; i < entities.size(); ++i) {
+        try {
+          populateFields(entities.get(i), tableRows.get(i), secondary.getFields(),
+              restrictions, startTime, endTime);
+        } catch (IllegalAccessException iae) {
+          throw new RuntimeException(iae);
+        }
+      }
+    }
+  }
+
+  /**
+   * Populates the fields of an entity mapped to the secondary tables, fetching their rows.
+   *
+   * @param entity Entity to populate.
+   * @param entityId Entity ID of the row of the entity table.
+   * @param startTime Start of the time range to fetch, inclusive.
+   * @param endTime End of the time range to fetch, exclusive.
+   * @throws IOException on I/O error.
+   */
+  public void populateSecondaryFields(T entity, EntityId entityId, long startTime, long endTime)
+      throws IOException {
+    final Map<String, QualifierRestriction> restrictions = Collections.emptyMap();
+    populateSecondaryFields(Collections.singletonList(entity),
+        fetchSecondaryRows(Collections.singletonList(entityId), restrictions, startTime, endTime),
+        restrictions, startTime, endTime);
+  }
+
+  private final void populateFieldFromFullyQualifiedColumn(
+      T entity, Field field, KijiColumn column, KijiRowData row, long startTime, long endTime)
+      throws IOException, IllegalAccessException {
+
+    final PrimitiveCellDecoder decoder = mPrimitiveDecoders.get(field.getName());
+    if ((decoder != null) && (row instanceof HBaseKijiRowData)) {
+      // Field is a primitive decoded straight from the cell bytes, without boxing:
+      decoder.decode(((HBaseKijiRowData) row).getHBaseResult(), entity);
+
+    } else if (column.maxVersions() == 1) {
+      // Field represents a single value from a fully-qualified column:
+      LOG.debug("Populating field '{}' from column '{}:{}'.",
+          field, column.family(), column.qualifier());
+      KijiCell<?> cell = row.getMostRecentCell(column.family(), column.qualifier());
+      if(cell == null)
+        return;
+      Object value = cell.getData();
+
+      if(field.getType() == KijiCell.class) {
+        value = cell;
+      }
+      else if(field.getType() == String.class && value != null) {
+          value = value.toString();
+      }
+
+      // If there is no cell for a field with a primitive type, use the default value:
+      if ((null == value) && field.getType().isPrimitive()) {
+        value = Defaults.defaultValue(field.getType());
+      }
+
+      field.set(entity, value);
+    } else {
+      // Field represents a time-series from a fully-qualified column:
+      if (column.pageSize() > 0) {
+        final ColumnVersionIterator<Object> iterator =
+            new ColumnVersionIterator<Object>(
+                row, column.family(), column.qualifier(), column.pageSize());
+        if (column.prefetchDepth() > 0) {
+          field.set(entity, new PrefetchingIterator<Map.Entry<Long, Object>>(
+              iterator, column.pageSize(), column.prefetchDepth(), mPrefetchExecutor));
+        } else {
+          field.set(entity, iterator);
+        }
+      } else {
+        final int budget = getCellBudget(field, column);
+        final boolean overflow = exceedsCellBudget(row, column, null, budget);
+        if (overflow) {
+          LOG.debug("Column '{}:{}' exceeds the cell budget of field '{}': fetching pages.",
+              column.family(), column.qualifier(), field);
+        }
+
+        Object value = null;
+        if(field.getType() == KijiCellValueIterator.class) {
+          // Iterators over the budget keep the pager, and read the pages as they iterate:
+          if (overflow) {
+            final PagedCellIterator cells =
+                openPagedCells(row, column, null, budget, startTime, endTime);
+            value = new KijiCellValueIterator<Object>(cells, cells);
+          } else {
+            value = new KijiCellValueIterator<Object>(
+                row.<Object>iterator(column.family(), column.qualifier()));
+          }
+        } else {
+          final PagedCellIterator paged = overflow
+              ? openPagedCells(row, column, null, budget, startTime, endTime)
+              : null;
+          try {
+            final Iterator<KijiCell<Object>> cells = (paged != null)
+                ? paged
+                : row.<Object>iterator(column.family(), column.qualifier());
+            if(field.getType() == TimeSeries.class) {
+              final TimeSeries<Object> timeseries = new TimeSeries<Object>();
+              while (cells.hasNext()) {
+                final KijiCell<Object> cell = cells.next();
+                timeseries.put(cell.getTimestamp(), cell.getData());
+              }
+              value = timeseries;
+            }
+            else if(field.getType() == CompressedTimeSeries.class) {
+              final CompressedTimeSeries<Object> timeseries = new CompressedTimeSeries<Object>();
+              while (cells.hasNext()) {
+                final KijiCell<Object> cell = cells.next();
+                timeseries.append(cell.getTimestamp(), cell.getData());
+              }
+              timeseries.trimToSize();
+              value = timeseries;
+            }
+          } finally {
+            if (paged != null) {
+              paged.close();
+            }
+          }
+        }
+        field.set(entity, value);
+      }
+    }
+  }
+
+  /**
+   * Populates a field from a map-type family.
+   *
+   * <p> The restriction is pushed down when the row is fetched, and applied again here so that
+   *   the populated maps never hold qualifiers outside of the restriction. </p>
+   *
+   * @param entity Entity to populate.
+   * @param field Field to populate.
+   * @param column Column annotation of the field.
+   * @param restriction Qualifier restriction the row was fetched with, or null.
+   * @param row Row to populate the field from.
+   * @param startTime Start of the time range the row was fetched with, inclusive.
+   * @param endTime End of the time range the row was fetched with, exclusive.
+   * @throws IOException on I/O error.
+   * @throws IllegalAccessException
+   */
+  private final void populateFieldFromMapTypeFamily(
+      T entity,
+      Field field,
+      KijiColumn column,
+      QualifierRestriction restriction,
+      KijiRowData row,
+      long startTime,
+      long endTime)
+      throws IOException, IllegalAccessException {
+
+    LOG.debug("Populating field '{}' from map-type family '{}'.", field, column.family());
+
+    if (column.pageSize() > 0) {
+      // Field is a closeable iterator of map-family entries (qualifier, timestamp, value).
+      LOG.debug("Populating field '{}' from paging-enabled map-type family '{}'.",
+          field, column.family());
+      final MapFamilyVersionIterator<Object> iterator =
+          new MapFamilyVersionIterator<Object>(
+              row, column.family(), column.pageSize(), column.pageSize());
+      if (column.prefetchDepth() > 0) {
+        field.set(entity, new PrefetchingIterator<MapFamilyVersionIterator.Entry<Object>>(
+            iterator, column.pageSize(), column.prefetchDepth(), mPrefetchExecutor));
+      } else {
+        field.set(entity, iterator);
+      }
+
+    } else if (column.maxVersions() == 1) {
+      // Field is a map: qualifier -> single value:
+
+      LOG.debug("Populating single version map field '{}'.", field);
+      Object value = null;
+
+      if(field.getType() == KijiCellIterator.class) {
+        Iterator<KijiCell<Object>> it =
+            restrict(row.<Object>iterator(column.family()), restriction);
+        value = new KijiCellIterator<Object>(it);
+      }
+      else if(field.getType() == MapTypeCell.class) {
+        value = new MapTypeCell<Object>(
+            restrict(row.<Object>getMostRecentCells(column.family()), restriction), restriction);
+      }
+      else if(field.getType() == MapTypeValue.class) {
+        value = new MapTypeValue<Object>(
+            restrict(row.<Object>getMostRecentValues(column.family()), restriction), restriction);
+      }
+      field.set(entity, value);
+
+    } else {
+      // Field is a map: qualifier -> time-series
+      LOG.debug("Populating map field '{}'.", field);
+      final int budget = getCellBudget(field, column);
+      final boolean overflow = exceedsCellBudget(row, column, restriction, budget);
+      if (overflow) {
+        LOG.debug("Family '{}' exceeds the cell budget of field '{}': fetching pages.",
+            column.family(), field);
+      }
+      Object value = null;
+      if(field.getType() == KijiCellIterator.class) {
+        // Iterators over the budget keep the pager, and read the pages as they iterate:
+        if (overflow) {
+          final PagedCellIterator cells =
+              openPagedCells(row, column, restriction, budget, startTime, endTime);
+          value = new KijiCellIterator<Object>(cells, cells);
+        } else {
+          value = new KijiCellIterator<Object>(
+              restrict(row.<Object>iterator(column.family()), restriction));
+        }
+      }
+      else if(field.getType() == TSMapTypeValue.class) {
+        if (overflow) {
+          value = fetchPagedTimeSeries(row, column, restriction, budget, startTime, endTime);
+        } else {
+          final TSMapTypeValue<Object> tsValues = new TSMapTypeValue<Object>(restriction);
+          for(String s:row.getQualifiers(column.family())) {
+            if ((restriction != null) && !restriction.matches(s)) {
+              continue;
+            }
+            final TimeSeries<Object> timeseries = new TimeSeries<Object>();
+            for(final KijiCell<Object> cell : row.asIterable(column.family(), s)) {
+              timeseries.put(cell.getTimestamp(), cell.getData());
+            }
+            tsValues.put(s, timeseries);
+          }
+          value = tsValues;
+        }
+      }
+      field.set(entity, value);
+    }
+  }
+
+  /**
+   * Fetches a column of a row again, with paging enabled.
+   *
+   * @param row Row the column exceeded the cell budget in.
+   * @param column Column to fetch, fully-qualified or map-type family.
+   * @param restriction Qualifier restriction on the map-type family, or null.
+   * @param pageSize Number of cells per page.
+   * @param startTime Start of the time range to fetch, inclusive.
+   * @param endTime End of the time range to fetch, exclusive.
+   * @param reader Reader to fetch the column with.
+   * @return the row, with paging enabled on the column.
+   * @throws IOException on I/O error.
+   */
+  private static KijiRowData fetchPagedColumn(
+      KijiRowData row,
+      KijiColumn column,
+      QualifierRestriction restriction,
+      int pageSize,
+      long startTime,
+      long endTime,
+      KijiTableReader reader)
+      throws IOException {
+    final KijiDataRequestBuilder builder = KijiDataRequest.builder();
+    builder.withTimeRange(startTime, endTime);
+    final ColumnsDef def = ColumnsDef.create()
+        .withMaxVersions(column.maxVersions())
+        .withPageSize(pageSize);
+    if (column.qualifier().isEmpty()) {
+      if (restriction != null) {
+        def.withFilter(restriction.toColumnFilter());
+      }
+      def.addFamily(column.family());
+    } else {
+      def.add(column.family(), column.qualifier());
+    }
+    builder.addColumns(def);
+    return reader.get(row.getEntityId(), builder.build());
+  }
+
+  /**
+   * Acquires a reader on the table a column is mapped to.
+   *
+   * @param column Column to acquire a reader for.
+   * @return a reader, to be released with {@link #releaseReader(KijiColumn, KijiTableReader)}.
+   * @throws IOException on I/O error.
+   */
+  KijiTableReader acquireReader(KijiColumn column) throws IOException {
+    final SecondaryTable secondary = mSecondaryTables.get(column.table());
+    return (secondary != null) ? secondary.acquireReader() : acquireReader();
+  }
+
+  /**
+   * Releases a reader acquired with {@link #acquireReader(KijiColumn)}.
+   *
+   * @param column Column the reader was acquired for.
+   * @param reader Reader to release.
+   * @throws IOException on I/O error.
+   */
+  void releaseReader(KijiColumn column, KijiTableReader reader) throws IOException {
+    final SecondaryTable secondary = mSecondaryTables.get(column.table());
+    if (secondary != null) {
+      secondary.releaseReader(reader);
+    } else {
+      releaseReader(reader);
+    }
+  }
+
+  /**
+   * Fetches a column of a row again with paging enabled, and opens an iterator over its cells.
+   *
+   * @param row Row the column exceeded the cell budget in.
+   * @param column Column to fetch, fully-qualified or map-type family.
+   * @param restriction Qualifier restriction on the map-type family, or null.
+   * @param pageSize Number of cells per page.
+   * @param startTime Start of the time range to fetch, inclusive.
+   * @param endTime End of the time range to fetch, exclusive.
+   * @return an iterator over the cells, holding a reader until it is closed.
+   * @throws IOException on I/O error.
+   */
+  private PagedCellIterator openPagedCells(
+      KijiRowData row,
+      KijiColumn column,
+      QualifierRestriction restriction,
+      int pageSize,
+      long startTime,
+      long endTime)
+      throws IOException {
+    final KijiTableReader reader = acquireReader(column);
+    boolean success = false;
+    try {
+      final PagedCellIterator cells = new PagedCellIterator(this, column, reader,
+          fetchPagedColumn(row, column, restriction, pageSize, startTime, endTime, reader),
+          restriction, pageSize);
+      success = true;
+      return cells;
+    } finally {
+      if (!success) {
+        releaseReader(column, reader);
+      }
+    }
+  }
+
+  /**
+   * Fetches the time-series of a map-type family page by page.
+   *
+   * @param row Row the family exceeded the cell budget in.
+   * @param column Map-type family to fetch.
+   * @param restriction Qualifier restriction on the family, or null.
+   * @param pageSize Number of qualifiers and of versions per page.
+   * @param startTime Start of the time range to fetch, inclusive.
+   * @param endTime End of the time range to fetch, exclusive.
+   * @return the time-series of the family, by qualifier.
+   * @throws IOException on I/O error.
+   */
+  private TSMapTypeValue<Object> fetchPagedTimeSeries(
+      KijiRowData row,
+      KijiColumn column,
+      QualifierRestriction restriction,
+      int pageSize,
+      long startTime,
+      long endTime)
+      throws IOException {
+    final TSMapTypeValue<Object> tsValues = new TSMapTypeValue<Object>(restriction);
+    final PagedCellIterator cells =
+        openPagedCells(row, column, restriction, pageSize, startTime, endTime);
+    try {
+      while (cells.hasNext()) {
+        final KijiCell<Object> cell = cells.next();
+        TimeSeries<Object> timeseries = tsValues.get(cell.getQualifier());
+        if (timeseries == null) {
+          timeseries = new TimeSeries<Object>();
+          tsValues.put(cell.getQualifier(), timeseries);
+        }
+        timeseries.put(cell.getTimestamp(), cell.getData());
+      }
+    } finally {
+      cells.close();
+    }
+    return tsValues;
+  }
+
+  /**
+   * Restricts a map from qualifier to value.
+   *
+   * @param map Map from qualifier to value.
+   * @param restriction Qualifier restriction, or null.
+   * @return the entries of the map whose qualifier satisfies the restriction.
+   */
+  private static <V> NavigableMap<String, V> restrict(
+      NavigableMap<String, V> map, QualifierRestriction restriction) {
+    if (restriction == null) {
+      return map;
+    }
+    final NavigableMap<String, V> restricted = Maps.newTreeMap();
+    for (final Map.Entry<String, V> entry : map.entrySet()) {
+      if (restriction.matches(entry.getKey())) {
+        restricted.put(entry.getKey(), entry.getValue());
+      }
+    }
+    return restricted;
+  }
+
+  /**
+   * Restricts an iterator over the cells of a map-type family.
+   *
+   * @param cells Iterator over the cells of a map-type family.
+   * @param restriction Qualifier restriction, or null.
+   * @return an iterator over the cells whose qualifier satisfies the restriction.
+   */
+  private static <V> Iterator<KijiCell<V>> restrict(
+      Iterator<KijiCell<V>> cells, final QualifierRestriction restriction) {
+    if (restriction == null) {
+      return cells;
+    }
+    return Iterators.filter(cells, new Predicate<KijiCell<V>>() {
+      @Override
+      public boolean apply(KijiCell<V> cell) {
+        return restriction.matches(cell.getQualifier());
+      }
+    });
+  }
+
+  /**
+   * Reports the value of an entity field.
+   *
+   * @param entity Entity to read the field of.
+   * @param field Field to read.
+   * @return the value of the field.
+   */
+  public Object getFieldValue(T entity, Field field) {
+    try {
+      return field.get(entity);
+    } catch (IllegalAccessException iae) {
+      throw new RuntimeException(iae);
+    }
+  }
+
+  /**
+   * Reports the entity ID components of an entity, from its @EntityIdField fields.
+   *
+   * @param entity Entity to report the entity ID components of.
+   * @return the entity ID components, in the order of the table row key format.
+   */
+  public Object[] getEntityIdComponents(T entity) {
+    final Object[] components = new Object[mRowKeyComponentMap.size()];
+    for (final Field field : mEntityIdFields) {
+      final EntityIdField eidField = field.getAnnotation(EntityIdField.class);
+      components[mRowKeyComponentIndexMap.get(eidField.component())] =
+          getFieldValue(entity, field);
+    }
+    return components;
+  }
+
+  /**
+   * Writes the column fields of an entity to a row.
+   *
+   * <p> Null fields are skipped. Pagers, iterators and downsampled time-series are read-only
+   *   views of a row and are skipped as well. Fields mapped to secondary tables are written to
+   *   the rows of these tables with the same entity ID components. </p>
+   *
+   * @param writer Table writer to write the entity with.
+   * @param entityId Entity ID of the row to write to.
+   * @param entity Entity to write.
+   * @throws IOException on I/O error.
+   */
+  public void writeEntity(KijiTableWriter writer, EntityId entityId, T entity)
+      throws IOException {
+    writeFields(writer, entityId, mPrimaryColumnFields, entity);
+    for (final SecondaryTable secondary : mSecondaryTables.values()) {
+      final KijiTableWriter secondaryWriter = secondary.getTable().openTableWriter();
+      try {
+        writeFields(secondaryWriter,
+            secondary.translate(Collections.singletonList(entityId)).get(0),
+            secondary.getFields(), entity);
+      } finally {
+        secondaryWriter.close();
+      }
+    }
+  }
+
+  /**
+   * Writes some of the column fields of an entity to a row.
+   *
+   * @param writer Table writer to write the fields with.
+   * @param entityId Entity ID of the row to write to.
+   * @param fields Column fields to write, all mapped to the table of the writer.
+   * @param entity Entity to write.
+   * @throws IOException on I/O error.
+   */
+  private void writeFields(
+      KijiTableWriter writer, EntityId entityId, List<Field> fields, T entity)
+      throws IOException {
+    for (final Field field : fields) {
+      final KijiColumn column = field.getAnnotation(KijiColumn.class);
+      final Object value = getFieldValue(entity, field);
+      if ((value == null)
+          || (value instanceof Iterator)
+          || field.isAnnotationPresent(Downsampled.class)) {
+        continue;
+      }
+
+      LOG.debug("Writing field '{}'.", field);
+      if (column.qualifier().isEmpty()) {
+        writeMapTypeFamily(writer, entityId, column.family(), value);
+      } else {
+        writeFullyQualifiedColumn(writer, entityId, column.family(), column.qualifier(), value);
+      }
+    }
+  }
+
+  /**
+   * Deletes rows of the entity table, and the rows of the secondary tables with the same entity
+   * ID components.
+   *
+   * <p> Deletes are sent through one buffered writer per table, in batches. </p>
+   *
+   * @param entityIds Entity IDs of the rows of the entity table to delete.
+   * @param upToTimestamp Cells with a timestamp lower than or equal to this one are deleted.
+   * @throws IOException on I/O error.
+   */
+  public void deleteRows(List<EntityId> entityIds, long upToTimestamp) throws IOException {
+    deleteRows(mTable, entityIds, upToTimestamp);
+    for (final SecondaryTable secondary : mSecondaryTables.values()) {
+      deleteRows(secondary.getTable(), secondary.translate(entityIds), upToTimestamp);
+    }
+  }
+
+  /**
+   * Deletes rows of a table through a buffered writer.
+   *
+   * @param table Table to delete rows from.
+   * @param entityIds Entity IDs of the rows to delete.
+   * @param upToTimestamp Cells with a timestamp lower than or equal to this one are deleted.
+   * @throws IOException on I/O error.
+   */
+  private static void deleteRows(KijiTable table, List<EntityId> entityIds, long upToTimestamp)
+      throws IOException {
+    final KijiBufferedWriter writer = table.getWriterFactory().openBufferedWriter();
+    try {
+      for (final EntityId entityId : entityIds) {
+        writer.deleteRow(entityId, upToTimestamp);
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * Deletes the versions of the column a field is mapped to, in a batch of rows.
+   *
+   * <p> Deletes are sent through a buffered writer on the table of the field, in batches. </p>
+   *
+   * @param fieldName Name of a field annotated with @KijiColumn.
+   * @param entityIds Entity IDs of the rows of the entity table.
+   * @param upToTimestamp Versions with a timestamp lower than or equal to this one are deleted.
+   * @throws IOException on I/O error.
+   */
+  public void deleteFieldVersions(String fieldName, List<EntityId> entityIds, long upToTimestamp)
+      throws IOException {
+    final KijiColumn column = getColumn(fieldName);
+    final SecondaryTable secondary = mSecondaryTables.get(column.table());
+    final KijiTable table = (secondary != null) ? secondary.getTable() : mTable;
+    final KijiBufferedWriter writer = table.getWriterFactory().openBufferedWriter();
+    try {
+      for (final EntityId entityId
+          : (secondary != null) ? secondary.translate(entityIds) : entityIds) {
+        if (column.qualifier().isEmpty()) {
+          writer.deleteFamily(entityId, column.family(), upToTimestamp);
+        } else {
+          writer.deleteColumn(entityId, column.family(), column.qualifier(), upToTimestamp);
+        }
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * Opens a merged iterator over the versions of a field across many rows.
+   *
+   * <p> The first page of every row is fetched in a single bulk get, without paging: only the
+   *   rows whose first page is full are paged afterwards, as the merge reaches the end of their
+   *   first page. On success, the merged iterator takes ownership of the specification lease
+   *   held by the caller. </p>
+   *
+   * @param fieldName Name of a field mapped to a fully-qualified column.
+   * @param entityIds Entity IDs of the rows, in the entity table.
+   * @param startTime Start of the time range, inclusive.
+   * @param endTime End of the time range, exclusive.
+   * @return an iterator over the versions of the field, most recent first.
+   * @throws IOException on I/O error.
+   */
+  public <V> MergedCellIterator<V> openMergedVersions(
+      String fieldName, List<EntityId> entityIds, long startTime, long endTime)
+      throws IOException {
+    final KijiColumn column = getColumn(fieldName);
+    Preconditions.checkArgument(!column.qualifier().isEmpty(),
+        "Field '%s' of class '%s' does not map to a fully-qualified column.", fieldName, mClass);
+    final int pageSize = (column.pageSize() > 0) ? column.pageSize() : DEFAULT_MERGE_PAGE_SIZE;
+    final SecondaryTable secondary = mSecondaryTables.get(column.table());
+
+    final KijiDataRequestBuilder builder = KijiDataRequest.builder();
+    builder.withTimeRange(startTime, endTime);
+    builder.addColumns(ColumnsDef.create()
+        .withMaxVersions(Math.min(column.maxVersions(), pageSize))
+        .add(column.family(), column.qualifier()));
+
+    final KijiTableReader reader = acquireReader(column);
+    boolean success = false;
+    try {
+      final List<KijiRowData> rows = reader.bulkGet(
+          (secondary != null) ? secondary.translate(entityIds) : entityIds, builder.build());
+      final MergedCellIterator<V> iterator =
+          new MergedCellIterator<V>(this, column, reader, entityIds, rows, pageSize, startTime);
+      success = true;
+      return iterator;
+    } finally {
+      if (!success) {
+        releaseReader(column, reader);
+      }
+    }
+  }
+
+  private static void writeFullyQualifiedColumn(
+      KijiTableWriter writer, EntityId entityId, String family, String qualifier, Object value)
+      throws IOException {
+    if (value instanceof KijiCell) {
+      final KijiCell<?> cell = (KijiCell<?>) value;
+      writer.put(entityId, family, qualifier, cell.getTimestamp(), cell.getData());
+    } else if (value instanceof TimeSeries) {
+      for (final Map.Entry<Long, ?> entry : ((TimeSeries<?>) value).entrySet()) {
+        writer.put(entityId, family, qualifier, entry.getKey(), entry.getValue());
+      }
+    } else if (value instanceof CompressedTimeSeries) {
+      for (final Map.Entry<Long, ?> entry : (CompressedTimeSeries<?>) value) {
+        writer.put(entityId, family, qualifier, entry.getKey(), entry.getValue());
+      }
+    } else {
+      writer.put(entityId, family, qualifier, value);
+    }
+  }
+
+  private static void writeMapTypeFamily(
+      KijiTableWriter writer, EntityId entityId, String family, Object value)
+      throws IOException {
+    if (value instanceof TSMapTypeValue) {
+      for (final Map.Entry<String, ? extends TimeSeries<?>> entry
+          : ((TSMapTypeValue<?>) value).entrySet()) {
+        writeFullyQualifiedColumn(writer, entityId, family, entry.getKey(), entry.getValue());
+      }
+    } else if (value instanceof MapTypeCell) {
+      for (final KijiCell<?> cell : ((MapTypeCell<?>) value).values()) {
+        writeFullyQualifiedColumn(writer, entityId, family, cell.getQualifier(), cell);
+      }
+    } else if (value instanceof MapTypeValue) {
+      for (final Map.Entry<String, ?> entry : ((MapTypeValue<?>) value).entrySet()) {
+        writer.put(entityId, family, entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Creates a new blank entity instance.
+   *
+   * @return a new blank entity instance.
+   */
+  public T newEntity() {
+    try {
+      return mClass.newInstance();
+    } catch (InstantiationException ie) {
+      throw new RuntimeException(ie);
+    } catch (IllegalAccessException iae) {
+      throw new RuntimeException(iae);
+    }
+  }
+
+  /**
+   * Releases the active values of an entity, such as pagers.
+   *
+   * <p> Closing a prefetching pager cancels its in-flight fetches. </p>
+   *
+   * @param entity Entity to release.
+   * @throws IOException on I/O error.
+   */
+  public void releaseEntity(T entity) throws IOException {
+    for (Field field : mColumnFields) {
+      // Pagers, prefetchers, and iterators paging over the cell budget:
+      try {
+        final Object value = field.get(entity);
+        if (value instanceof Closeable) {
+          ((Closeable) value).close();
+        }
+      } catch (IllegalAccessException iae) {
+        throw new RuntimeException(iae);
+      }
+    }
+  }
+}
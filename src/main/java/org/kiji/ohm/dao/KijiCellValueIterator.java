@@ -1,15 +1,31 @@
 package org.kiji.ohm.dao;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.Iterator;
 
 import org.kiji.schema.KijiCell;
 
-public class KijiCellValueIterator<V> implements Iterator<V> {
+public class KijiCellValueIterator<V> implements Iterator<V>, Closeable {
 
   private Iterator<KijiCell<V>> mKijiCellIterator;
 
+  /** Resource released when this iterator is closed, or null. */
+  private final Closeable mResource;
+
   public KijiCellValueIterator(Iterator<KijiCell<V>> kijiCellIterator) {
+    this(kijiCellIterator, null);
+  }
+
+  /**
+   * Initializes an iterator over cells that hold a resource, such as a pager.
+   *
+   * @param kijiCellIterator Iterator over the cells.
+   * @param resource Resource released when this iterator is closed, or null.
+   */
+  public KijiCellValueIterator(Iterator<KijiCell<V>> kijiCellIterator, Closeable resource) {
     mKijiCellIterator = kijiCellIterator;
+    mResource = resource;
   }
 
   @Override
@@ -29,4 +45,12 @@ public class KijiCellValueIterator<V> implements Iterator<V> {
     // TODO Auto-generated method stub
     throw new UnsupportedOperationException();
   }
+
+  /** Releases the resource held by this iterator, if any. */
+  @Override
+  public void close() throws IOException {
+    if (mResource != null) {
+      mResource.close();
+    }
+  }
 }
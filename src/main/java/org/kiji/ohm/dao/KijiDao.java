@@ -1,44 +1,63 @@
 package org.kiji.ohm.dao;
 
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
-import java.lang.reflect.Field;
-import java.util.Iterator;
+import java.io.InterruptedIOException;
+import java.io.ObjectOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-
-import com.google.common.base.Defaults;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.ImmutableList;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
-import org.apache.commons.lang.NotImplementedException;
 import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.reactivestreams.Publisher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import org.kiji.ohm.annotations.EntityIdField;
 import org.kiji.ohm.annotations.KijiColumn;
-import org.kiji.ohm.annotations.KijiEntity;
-import org.kiji.schema.ColumnVersionIterator;
 import org.kiji.schema.EntityId;
+import org.kiji.schema.EntityIdFactory;
 import org.kiji.schema.Kiji;
+import org.kiji.schema.KijiBufferedWriter;
 import org.kiji.schema.KijiCell;
 import org.kiji.schema.KijiDataRequest;
 import org.kiji.schema.KijiDataRequestBuilder;
 import org.kiji.schema.KijiDataRequestBuilder.ColumnsDef;
+import org.kiji.schema.KijiMetaTable;
 import org.kiji.schema.KijiRowData;
+import org.kiji.schema.KijiRowScanner;
 import org.kiji.schema.KijiTable;
 import org.kiji.schema.KijiTableReader;
 import org.kiji.schema.KijiTableReader.KijiScannerOptions;
-import org.kiji.schema.MapFamilyVersionIterator;
-import org.kiji.schema.avro.RowKeyComponent;
-import org.kiji.schema.avro.RowKeyFormat2;
-import org.kiji.schema.layout.KijiTableLayout;
-import org.kiji.schema.layout.KijiTableLayout.LocalityGroupLayout.FamilyLayout;
-import org.kiji.schema.layout.KijiTableLayout.LocalityGroupLayout.FamilyLayout.ColumnLayout;
+import org.kiji.schema.KijiTableWriter;
+import org.kiji.schema.impl.HBaseKijiRowData;
+import org.kiji.schema.impl.HBaseKijiTable;
 
 /**
  * Kiji Data Access Object (DAO).
@@ -46,11 +65,67 @@ import org.kiji.schema.layout.KijiTableLayout.LocalityGroupLayout.FamilyLayout.C
 public final class KijiDao implements Closeable {
   private static final Logger LOG = LoggerFactory.getLogger(KijiDao.class);
 
+  /** Prefix of the meta-table keys recording the change scan checkpoints of consumers. */
+  private static final String CHANGE_CHECKPOINT_KEY_PREFIX = "kiji_ohm.change_checkpoint.";
+
+  /** Number of changed entities fetched per bulk get by change scans. */
+  private static final int CHANGE_SCAN_BATCH_SIZE = 100;
+
+  /** No query-time qualifier restriction. */
+  static final Map<String, QualifierRestriction> NO_RESTRICTIONS =
+      Collections.emptyMap();
+
   /** Kiji instance. */
   private final Kiji mKiji;
 
-  /** Map of entity specifications. */
-  private final Map<Class<?>, EntitySpec<?>> mEntitySpec = Maps.newHashMap();
+  /** Options of this DAO. */
+  private final KijiDaoOptions mOptions;
+
+  /** Executor running background work: prefetching pagers and entity publishers. */
+  private final ExecutorService mExecutor = Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder()
+          .setDaemon(true)
+          .setNameFormat("kiji-dao-%d")
+          .build());
+
+  /**
+   * Registry of entity specifications.
+   *
+   * <p> Each specification is built at most once, by the first thread requesting it. Lookups of
+   *   registered specifications do not lock, and are never blocked by the construction of the
+   *   specification of another class. </p>
+   */
+  private final ConcurrentMap<Class<?>, Future<EntitySpec<?>>> mEntitySpecs =
+      new ConcurrentHashMap<Class<?>, Future<EntitySpec<?>>>();
+
+  /**
+   * Entities holding active values, such as pagers, mapped to the specification they were
+   * populated from. Each entry holds a lease on the specification until the entity is released.
+   */
+  private final ConcurrentMap<Object, EntitySpec<?>> mActiveEntities =
+      new MapMaker().weakKeys().makeMap();
+
+  /**
+   * Row fetches in flight for selects, keyed by specification, row key, time range and
+   * qualifier restrictions. Concurrent identical selects wait on the fetch already in flight.
+   */
+  private final ConcurrentMap<SelectKey, Future<KijiRowData>> mInFlightSelects =
+      new ConcurrentHashMap<SelectKey, Future<KijiRowData>>();
+
+  /** Number of row fetches issued by selects. */
+  private final AtomicLong mSelectFetchCount = new AtomicLong(0);
+
+  /** Number of selects served by a fetch issued for another identical select. */
+  private final AtomicLong mCoalescedSelectCount = new AtomicLong(0);
+
+  /** Number of entity specifications rebuilt after a table layout changed. */
+  private final AtomicLong mLayoutRefreshCount = new AtomicLong(0);
+
+  /** Off-heap row cache, or null if disabled. */
+  private final MappedRowCache mRowCache;
+
+  /** Hook run by selects before fetching a row from the table, or null. For tests only. */
+  private volatile Runnable mFetchHook = null;
 
   /**
    * Initializes a new instance of Kiji Data Access Object.
@@ -58,14 +133,59 @@ public final class KijiDao implements Closeable {
    * @param kiji Kiji instance to wrap.
    */
   public KijiDao(Kiji kiji) {
+    this(kiji, new KijiDaoOptions());
+  }
+
+  /**
+   * Initializes a new instance of Kiji Data Access Object.
+   *
+   * @param kiji Kiji instance to wrap.
+   * @param options Options of the DAO.
+   */
+  public KijiDao(Kiji kiji, KijiDaoOptions options) {
     mKiji = kiji;
+    mOptions = options.copy();
+    mRowCache = openRowCache(mOptions);
 
     mKiji.retain();
   }
 
+  /**
+   * Opens the row cache configured in the DAO options.
+   *
+   * <p> The row cache is optional: failing to open it disables it. </p>
+   *
+   * @param options Options of the DAO.
+   * @return the row cache, or null if the row cache is disabled.
+   */
+  private static MappedRowCache openRowCache(KijiDaoOptions options) {
+    if (options.getRowCacheFile() == null) {
+      return null;
+    }
+    try {
+      return new MappedRowCache(options.getRowCacheFile(), options.getRowCacheCapacityBytes());
+    } catch (IOException ioe) {
+      LOG.warn("Unable to open row cache '{}', row cache disabled: {}",
+          options.getRowCacheFile(), ioe.getMessage());
+      return null;
+    }
+  }
+
   /** {@inheritDoc} */
   @Override
   public void close() throws IOException {
+    mExecutor.shutdownNow();
+    if (mRowCache != null) {
+      mRowCache.close();
+    }
+    for (final Future<EntitySpec<?>> future : mEntitySpecs.values()) {
+      final EntitySpec<?> spec = getIfBuilt(future);
+      if (spec != null) {
+        spec.close();
+      }
+    }
+    mEntitySpecs.clear();
+    mActiveEntities.clear();
     mKiji.release();
   }
 
@@ -78,17 +198,148 @@ public final class KijiDao implements Closeable {
    * @return the specification for the given entity class.
    * @throws IOException on I/O error.
    */
-  private <T> EntitySpec<T> getEntitySpec(Class<T> klass) throws IOException {
-    synchronized(mEntitySpec) {
+  private <T> EntitySpec<T> getEntitySpec(final Class<T> klass) throws IOException {
+    Future<EntitySpec<?>> future = mEntitySpecs.get(klass);
+    if (future == null) {
+      final FutureTask<EntitySpec<?>> task = new FutureTask<EntitySpec<?>>(
+          new Callable<EntitySpec<?>>() {
+            @Override
+            public EntitySpec<?> call() throws IOException {
+              return new EntitySpec<T>(klass, mKiji, mExecutor, mOptions.getCellBudget());
+            }
+          });
+      future = mEntitySpecs.putIfAbsent(klass, task);
+      if (future == null) {
+        future = task;
+        task.run();
+      }
+    }
+
+    try {
       @SuppressWarnings("unchecked")
-      final EntitySpec<T> spec = (EntitySpec<T>) mEntitySpec.get(klass);
-      if (spec != null) {
+      final EntitySpec<T> spec = (EntitySpec<T>) future.get();
+      return spec;
+    } catch (ExecutionException ee) {
+      // Allow the next request to retry building the specification:
+      mEntitySpecs.remove(klass, future);
+      final Throwable cause = ee.getCause();
+      Throwables.propagateIfPossible(cause, IOException.class);
+      throw new RuntimeException(cause);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(String.format(
+          "Interrupted while building the specification of '%s'.", klass));
+    }
+  }
+
+  /**
+   * Acquires a lease on the current specification for an entity class.
+   *
+   * <p> Checks the entity and secondary tables for layout updates, at most once per configured
+   *   interval. When a layout changed, a new specification is built and swapped in: requests
+   *   holding a lease on the previous specification complete with it. </p>
+   *
+   * @param klass Class of the entity to specify.
+   * @return the current specification for the entity class, to be released by the caller.
+   * @throws IOException on I/O error.
+   */
+  private <T> EntitySpec<T> acquireEntitySpec(Class<T> klass) throws IOException {
+    while (true) {
+      EntitySpec<T> spec = getEntitySpec(klass);
+      final long interval = mOptions.getLayoutCheckIntervalMillis();
+      if ((interval >= 0) && spec.shouldCheckLayout(interval)) {
+        spec = refreshEntitySpec(klass, spec);
+      }
+      if (spec.tryRetain()) {
         return spec;
       }
-      final EntitySpec<T> newSpec = new EntitySpec<T>(klass, mKiji);
-      mEntitySpec.put(klass, newSpec);
+      // The specification was retired concurrently: look up its replacement.
+    }
+  }
+
+  /**
+   * Rebuilds the specification for an entity class if the layout of one of its tables changed.
+   *
+   * @param klass Class of the entity to specify.
+   * @param spec Current specification for the entity class.
+   * @return the specification matching the current table layout.
+   * @throws IOException on I/O error.
+   */
+  private <T> EntitySpec<T> refreshEntitySpec(Class<T> klass, EntitySpec<T> spec)
+      throws IOException {
+    final String changedTable = spec.findChangedLayout(mKiji.getMetaTable());
+    if (changedTable == null) {
+      return spec;
+    }
+
+    LOG.info("Layout of table '{}' changed: rebuilding specification of '{}'.",
+        changedTable, klass);
+    mLayoutRefreshCount.incrementAndGet();
+    final EntitySpec<T> newSpec =
+        new EntitySpec<T>(klass, mKiji, mExecutor, mOptions.getCellBudget());
+    final Future<EntitySpec<?>> current = mEntitySpecs.get(klass);
+    if ((current != null)
+        && (getIfBuilt(current) == spec)
+        && mEntitySpecs.replace(klass, current, Futures.<EntitySpec<?>>immediateFuture(newSpec))) {
+      // Release the registry lease: the previous specification closes once idle.
+      spec.release();
       return newSpec;
     }
+
+    // Another thread swapped the specification first:
+    newSpec.close();
+    return getEntitySpec(klass);
+  }
+
+  /**
+   * Keeps track of an entity holding active values, until it is released.
+   *
+   * @param spec Specification the entity was populated from, leased by the caller.
+   * @param entity Populated entity.
+   * @return the entity.
+   */
+  <T> T trackEntity(EntitySpec<T> spec, T entity) {
+    if (spec.hasActiveFields()) {
+      // The caller holds a lease, hence the specification cannot be closing:
+      Preconditions.checkState(spec.tryRetain());
+      mActiveEntities.put(entity, spec);
+    }
+    return entity;
+  }
+
+  /**
+   * Reports the specification held by a registry entry, if it was successfully built.
+   *
+   * @param future Registry entry.
+   * @return the specification, or null if it is not built or failed to build.
+   */
+  private static EntitySpec<?> getIfBuilt(Future<EntitySpec<?>> future) {
+    if (!future.isDone() || future.isCancelled()) {
+      return null;
+    }
+    try {
+      return future.get();
+    } catch (ExecutionException ee) {
+      return null;
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+  }
+
+  /**
+   * Builds the specifications of entity classes and opens readers on their tables.
+   *
+   * <p> Call at startup so that the first requests do not pay for parsing the entity classes
+   *   and table layouts, nor for opening the tables. </p>
+   *
+   * @param classes Entity classes to prepare.
+   * @throws IOException on I/O error.
+   */
+  public void warmUp(Class<?>... classes) throws IOException {
+    for (final Class<?> klass : classes) {
+      getEntitySpec(klass).warmUp();
+    }
   }
 
   // -----------------------------------------------------------------------------------------------
@@ -107,13 +358,14 @@ public final class KijiDao implements Closeable {
   }
 
   /**
-   * Shortcut for {@link #selectAll(Class, KijiScannerOptions, long, long).
+   * Shortcut for {@link #selectAll(Class, KijiScannerOptions, long, long)}.
    *
    * @param klass
    * @param options
    * @return
    */
-  public <T> Iterator<T> selectAll(Class<T> klass, KijiScannerOptions options) throws IOException {
+  public <T> EntityScanner<T> selectAll(Class<T> klass, KijiScannerOptions options)
+      throws IOException {
     return selectAll(
         klass, options,
         0 /*HConstants.OLDEST_TIMESTAMP*/, HConstants.LATEST_TIMESTAMP);
@@ -130,414 +382,1564 @@ public final class KijiDao implements Closeable {
    */
   public <T> T select(Class<T> klass, long startTime, long endTime, Object...entityIdComponents)
       throws IOException {
-    final EntitySpec<T> spec = getEntitySpec(klass);
-    final T entity = spec.newEntity();
-    return populateFromRow(spec, entity, startTime, endTime, entityIdComponents);
+    return select(klass, NO_RESTRICTIONS, startTime, endTime, entityIdComponents);
+  }
+
+  /**
+   * Equivalent of a Kiji get request, with qualifier restrictions on map-type family fields.
+   *
+   * <p> Query-time restrictions replace the restrictions declared on the @KijiColumn annotation
+   *   of the same fields. Restrictions are pushed down as column filters: only the matching
+   *   qualifiers are fetched, and the populated maps report themselves as partial. </p>
+   *
+   * @param klass
+   * @param restrictions Map from field name to qualifier restriction.
+   * @param startTime
+   * @param endTime
+   * @param entityIdComponents
+   * @return
+   */
+  public <T> T select(
+      Class<T> klass,
+      Map<String, QualifierRestriction> restrictions,
+      long startTime,
+      long endTime,
+      Object...entityIdComponents)
+      throws IOException {
+    final EntitySpec<T> spec = acquireEntitySpec(klass);
+    try {
+      spec.validateQualifierRestrictions(restrictions);
+      final T entity = populateFromRow(
+          spec, spec.newEntity(), restrictions, startTime, endTime, entityIdComponents);
+      if (spec.hasEagerReferences()) {
+        resolveReferences(Collections.singletonList(entity), true);
+      }
+      return entity;
+    } finally {
+      spec.release();
+    }
   }
 
   public <T> T populateFromRow(T entity, long startTime, long endTime, Object...entityIdComponents)
       throws IOException {
     @SuppressWarnings("unchecked")
     final Class<T> klass = (Class<T>) entity.getClass();
-    final EntitySpec<T> spec = getEntitySpec(klass);
-    return populateFromRow(spec, entity, startTime, endTime, entityIdComponents);
+    final EntitySpec<T> spec = acquireEntitySpec(klass);
+    try {
+      return populateFromRow(
+          spec, entity, NO_RESTRICTIONS, startTime, endTime, entityIdComponents);
+    } finally {
+      spec.release();
+    }
   }
 
   private <T> T populateFromRow(
-      EntitySpec<T> spec, T entity, long startTime, long endTime, Object...entityIdComponents)
+      EntitySpec<T> spec,
+      T entity,
+      Map<String, QualifierRestriction> restrictions,
+      long startTime,
+      long endTime,
+      Object...entityIdComponents)
       throws IOException {
 
-    // TODO: Use a pool of tables and/or table readers
-    final KijiTable table = mKiji.openTable(spec.getTableName());
-    try {
-      final KijiTableReader reader = table.openTableReader();
-      try {
-        final KijiDataRequestBuilder builder = KijiDataRequest.builder();
-        builder.withTimeRange(startTime, endTime);
-        spec.populateColumnRequests(builder);
-        final KijiDataRequest dataRequest = builder.build();
-        final EntityId entityId = table.getEntityId(entityIdComponents);
-        final KijiRowData row = reader.get(entityId, dataRequest);
+    final EntityId entityId = spec.getEntityId(entityIdComponents);
 
-        try {
-          return spec.populateEntityFromRow(entity, row);
-        } catch (IllegalAccessException iae) {
-          throw new RuntimeException(iae);
-        }
+    // Rows of the secondary tables are fetched concurrently with the entity table row:
+    final List<Future<List<KijiRowData>>> secondaryRows = spec.hasSecondaryTables()
+        ? spec.fetchSecondaryRows(
+            Collections.singletonList(entityId), restrictions, startTime, endTime)
+        : null;
 
-      } finally {
-        reader.close();
+    final KijiRowData row = mOptions.getCoalesceSelects()
+        ? fetchRowCoalesced(spec, entityId, restrictions, startTime, endTime)
+        : fetchRow(spec, entityId, restrictions, startTime, endTime);
+
+    try {
+      // A coalesced row is shared by all the callers, and row decoding is not thread-safe:
+      synchronized (row) {
+        spec.populateEntityFromRow(entity, row, restrictions, startTime, endTime);
       }
-    } finally {
-      table.release();
+    } catch (IllegalAccessException iae) {
+      throw new RuntimeException(iae);
     }
+    if (secondaryRows != null) {
+      spec.populateSecondaryFields(Collections.singletonList(entity), secondaryRows,
+          restrictions, startTime, endTime);
+    }
+    return trackEntity(spec, entity);
   }
 
   /**
-   * <p> Equivalent of a Kiji scan. </p>
+   * Fetches a row for a select.
    *
-   * @param klass
-   * @param options
+   * @param spec Specification of the entity.
+   * @param entityId Entity ID of the row to fetch.
+   * @param restrictions Qualifier restrictions on map-type family fields.
    * @param startTime
    * @param endTime
-   * @return
+   * @return the row.
+   * @throws IOException on I/O error.
    */
-  public <T> Iterator<T> selectAll(
-      Class<T> klass,
-      KijiScannerOptions options,
+  private KijiRowData fetchRow(
+      EntitySpec<?> spec,
+      EntityId entityId,
+      Map<String, QualifierRestriction> restrictions,
       long startTime,
       long endTime)
       throws IOException {
-    throw new NotImplementedException();
+    final KijiDataRequestBuilder builder = KijiDataRequest.builder();
+    builder.withTimeRange(startTime, endTime);
+    spec.populateColumnRequests(builder, restrictions);
+    final KijiDataRequest dataRequest = builder.build();
+
+    final boolean cacheable = (mRowCache != null) && restrictions.isEmpty() && spec.isCacheable();
+    final byte[] requestDigest = cacheable ? digestDataRequest(dataRequest) : null;
+    if (cacheable) {
+      final KijiRowData cached =
+          getCachedRow(spec, entityId, dataRequest, requestDigest, startTime, endTime);
+      if (cached != null) {
+        return cached;
+      }
+    }
+
+    mSelectFetchCount.incrementAndGet();
+    final Runnable hook = mFetchHook;
+    if (hook != null) {
+      hook.run();
+    }
+    final long fetchTime = System.currentTimeMillis();
+    final KijiTableReader reader = spec.acquireReader();
+    final KijiRowData row;
+    try {
+      row = reader.get(entityId, dataRequest);
+    } finally {
+      spec.releaseReader(reader);
+    }
+
+    if (cacheable) {
+      cacheRow(spec, row, requestDigest, startTime, endTime, fetchTime);
+    }
+    return row;
   }
 
   /**
-   * Closes an entity managed by the DAO.
+   * Fetches a batch of rows with a single bulk get, serving the cached rows from the row cache.
    *
-   * <p> This is required for entities containing active values, such as pagers. </p>
+   * <p> Only the rows missing from the row cache are fetched, and they are cached once
+   *   fetched. </p>
    *
-   * @param entity Entity to release.
+   * @param spec Specification of the entities, leased by the caller.
+   * @param reader Reader on the entity table to fetch the missing rows with.
+   * @param entityIds Entity IDs of the rows to fetch.
+   * @param dataRequest Data request for the columns of the entities.
+   * @param startTime
+   * @param endTime
+   * @return the rows, in the order of the given entity IDs.
+   * @throws IOException on I/O error.
    */
-  public <T> void releaseEntity(T entity) throws IOException {
-    @SuppressWarnings("unchecked")
-    final Class<T> klass = (Class<T>) entity.getClass();
-    final EntitySpec<T> spec = getEntitySpec(klass);
-    spec.releaseEntity(entity);
-  }
+  private List<KijiRowData> fetchRows(
+      EntitySpec<?> spec,
+      KijiTableReader reader,
+      List<EntityId> entityIds,
+      KijiDataRequest dataRequest,
+      long startTime,
+      long endTime)
+      throws IOException {
+    if ((mRowCache == null) || !spec.isCacheable()) {
+      return reader.bulkGet(entityIds, dataRequest);
+    }
 
-  // -----------------------------------------------------------------------------------------------
+    final byte[] requestDigest = digestDataRequest(dataRequest);
+    final KijiRowData[] rows = new KijiRowData[entityIds.size()];
+    final List<Integer> missingIndexes = Lists.newArrayList();
+    final List<EntityId> missingIds = Lists.newArrayList();
+    for (int i = 0; i < rows.length; ++i) {
+      rows[i] = getCachedRow(
+          spec, entityIds.get(i), dataRequest, requestDigest, startTime, endTime);
+      if (rows[i] == null) {
+        missingIndexes.add(i);
+        missingIds.add(entityIds.get(i));
+      }
+    }
+    if (!missingIds.isEmpty()) {
+      final long fetchTime = System.currentTimeMillis();
+      final List<KijiRowData> fetched = reader.bulkGet(missingIds, dataRequest);
+      for (int i = 0; i < fetched.size(); ++i) {
+        final KijiRowData row = fetched.get(i);
+        rows[missingIndexes.get(i)] = row;
+        cacheRow(spec, row, requestDigest, startTime, endTime, fetchTime);
+      }
+    }
+    return Arrays.asList(rows);
+  }
 
   /**
-   * Specification of an annotated entity class.
+   * Digests a data request, to identify the rows cached for it.
+   *
+   * <p> Entity classes mapped to the same table request different columns and versions, and
+   *   must not be served the rows cached for one another. </p>
+   *
+   * @param dataRequest Data request to digest.
+   * @return the MD5 digest of the serialized data request.
    */
-  private static final class EntitySpec<T> {
-    private final Class<T> mClass;
-
-    private final String mTableName;
-
-    /** Fields populated from the row columns. */
-    private final ImmutableList<Field> mColumnFields;
-
-    /** Fields populated from the row entity ID components. */
-    private final ImmutableList<Field> mEntityIdFields;
-
-    /** Map from row key component name to row key component specs. */
-    private final ImmutableMap<String, RowKeyComponent> mRowKeyComponentMap;
+  private static byte[] digestDataRequest(KijiDataRequest dataRequest) {
+    try {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      final ObjectOutputStream oos = new ObjectOutputStream(bytes);
+      oos.writeObject(dataRequest);
+      oos.close();
+      return MessageDigest.getInstance("MD5").digest(bytes.toByteArray());
+    } catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    } catch (NoSuchAlgorithmException nsae) {
+      throw new RuntimeException(nsae);
+    }
+  }
 
-    /** Map from row key component name to row key component index. */
-    private final ImmutableMap<String, Integer> mRowKeyComponentIndexMap;
+  /**
+   * Looks up a row in the row cache.
+   *
+   * @param spec Specification of the entity, leased by the caller.
+   * @param entityId Entity ID of the row.
+   * @param dataRequest Data request for the columns of the entity.
+   * @param requestDigest Digest of the data request.
+   * @param startTime
+   * @param endTime
+   * @return the cached row, or null if the row is not cached.
+   * @throws IOException on I/O error.
+   */
+  private KijiRowData getCachedRow(
+      EntitySpec<?> spec,
+      EntityId entityId,
+      KijiDataRequest dataRequest,
+      byte[] requestDigest,
+      long startTime,
+      long endTime)
+      throws IOException {
+    final KeyValue[] cells = mRowCache.get(
+        spec.getTableName(), spec.getLayoutId(), requestDigest, entityId.getHBaseRowKey(),
+        startTime, endTime, mOptions.getRowCacheTtlMillis());
+    if (cells == null) {
+      return null;
+    }
+    return new HBaseKijiRowData(
+        entityId, dataRequest, HBaseKijiTable.downcast(spec.getTable()), new Result(cells));
+  }
 
-    /**
-     * Initializes a new specification for an Entity from an annotated Java class.
-     *
-     * @param klass Annotated Java class to derive an entity specification from.
-     * @param kiji Kiji instance where to fetch entities from.
-     * @throws IOException on I/O error.
-     */
-    public EntitySpec(Class<T> klass, Kiji kiji) throws IOException {
-      mClass = klass;
+  /**
+   * Stores a fetched row in the row cache.
+   *
+   * @param spec Specification of the entity, leased by the caller.
+   * @param row Row fetched from the entity table.
+   * @param requestDigest Digest of the data request the row was fetched with.
+   * @param startTime
+   * @param endTime
+   * @param fetchTime Time the row was fetched, in milliseconds since the Epoch.
+   */
+  private void cacheRow(
+      EntitySpec<?> spec,
+      KijiRowData row,
+      byte[] requestDigest,
+      long startTime,
+      long endTime,
+      long fetchTime) {
+    if (!(row instanceof HBaseKijiRowData)) {
+      return;
+    }
+    final KeyValue[] cells = ((HBaseKijiRowData) row).getHBaseResult().raw();
+    if ((cells != null) && (cells.length > 0)) {
+      mRowCache.put(spec.getTableName(), spec.getLayoutId(), requestDigest,
+          row.getEntityId().getHBaseRowKey(), startTime, endTime, fetchTime, cells);
+    }
+  }
 
-      final KijiEntity entity = klass.getAnnotation(KijiEntity.class);
-      Preconditions.checkArgument(entity != null,
-          "Class '{}' has no @KijiEntity annotation.", klass);
-      mTableName = entity.table();
+  /**
+   * Fetches a row for a select, sharing the fetch with concurrent identical selects.
+   *
+   * <p> The first caller issues the fetch, while callers arriving before it completes wait for
+   *   its result. The fetch is forgotten as soon as it completes: later selects issue a new
+   *   fetch. </p>
+   *
+   * @param spec Specification of the entity.
+   * @param entityId Entity ID of the row to fetch.
+   * @param restrictions Qualifier restrictions on map-type family fields.
+   * @param startTime
+   * @param endTime
+   * @return the row, possibly shared with other callers.
+   * @throws IOException on I/O error.
+   */
+  private KijiRowData fetchRowCoalesced(
+      final EntitySpec<?> spec,
+      final EntityId entityId,
+      final Map<String, QualifierRestriction> restrictions,
+      final long startTime,
+      final long endTime)
+      throws IOException {
+    final SelectKey key =
+        new SelectKey(spec, entityId.getHBaseRowKey(), startTime, endTime, restrictions);
+    final FutureTask<KijiRowData> task = new FutureTask<KijiRowData>(
+        new Callable<KijiRowData>() {
+          @Override
+          public KijiRowData call() throws IOException {
+            return fetchRow(spec, entityId, restrictions, startTime, endTime);
+          }
+        });
 
-      final KijiTable table = kiji.openTable(mTableName);
+    Future<KijiRowData> future = mInFlightSelects.putIfAbsent(key, task);
+    if (future == null) {
+      future = task;
       try {
-        final KijiTableLayout layout = table.getLayout();
+        task.run();
+      } finally {
+        mInFlightSelects.remove(key, task);
+      }
+    } else {
+      mCoalescedSelectCount.incrementAndGet();
+    }
 
-        // TODO: Support deprecated RowKeyFormat?
-        final RowKeyFormat2 rowKeyFormat = (RowKeyFormat2) layout.getDesc().getKeysFormat();
+    try {
+      return future.get();
+    } catch (ExecutionException ee) {
+      final Throwable cause = ee.getCause();
+      Throwables.propagateIfPossible(cause, IOException.class);
+      throw new RuntimeException(cause);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(String.format(
+          "Interrupted while waiting for row '%s' of '%s'.", entityId, spec.getTableName()));
+    }
+  }
 
-        final Map<String, RowKeyComponent> rkcMap = Maps.newHashMap();
-        final Map<String, Integer> rkcIndexMap = Maps.newHashMap();
-        for (int index = 0; index < rowKeyFormat.getComponents().size(); ++index) {
-          final RowKeyComponent rkc = rowKeyFormat.getComponents().get(index);
-          rkcMap.put(rkc.getName(), rkc);
-          rkcIndexMap.put(rkc.getName(), index);
-        }
-        mRowKeyComponentMap = ImmutableMap.copyOf(rkcMap);
-        mRowKeyComponentIndexMap = ImmutableMap.copyOf(rkcIndexMap);
-
-        // --------------------------------------------------------------------
-        // Parse fields with annotations from the entity class:
-
-        final List<Field> columnFields = Lists.newArrayList();
-        final List<Field> entityIdFields = Lists.newArrayList();
-
-        for (final Field field : mClass.getDeclaredFields()) {
-          final KijiColumn column = field.getAnnotation(KijiColumn.class);
-          final EntityIdField eidField = field.getAnnotation(EntityIdField.class);
-
-          if ((column != null) && (eidField != null)) {
-            throw new IllegalArgumentException(String.format(
-                "Field '%s' cannot have both @KijiColumn and @EntityIdField annotations.", field));
-
-          } else if (column != null) {
-            LOG.debug("Validating column field '{}'.", field);
-            field.setAccessible(true);
-            columnFields.add(field);
-
-            final FamilyLayout flayout = layout.getFamilyMap().get(column.family());
-            Preconditions.checkArgument(flayout != null,
-                "Field '%s' maps to non-existing family '%s' from table '%s'.",
-                field, column.family(), mTableName);
-
-            if (column.qualifier().isEmpty()) {
-              // Request for a map-type family:
-              Preconditions.checkArgument(flayout.isMapType(),
-                  "Field '%s' maps to family '%s' from table '%s' which is not a map-type family.",
-                  field, column.family(), mTableName);
-
-              // Validate field type:
-              if (column.pageSize() > 0) {
-                Preconditions.checkArgument(
-                    MapFamilyVersionIterator.class.isAssignableFrom(field.getType()),
-                    "Fields mapped to map-type family with paging enabled must be "
-                    + "MapFamilyVersionIterator, got '{}'.", field.getType());
-              } else {
-                // TODO Validate type when no paging enabled on map-type family.
-              }
-
-            } else {
-              // Request for a fully-qualified column:
-              final ColumnLayout clayout = flayout.getColumnMap().get(column.qualifier());
-              Preconditions.checkArgument(flayout != null,
-                  "Field '%s' maps to non-existing column '%s:%s' from table '%s'.",
-                  field, column.family(), column.qualifier(), mTableName);
-
-              // Validate field type:
-              if (column.pageSize() > 0) {
-                Preconditions.checkArgument(
-                    ColumnVersionIterator.class.isAssignableFrom(field.getType()),
-                    "Fields mapped to column with paging enabled must be "
-                    + "ColumnVersionIterator, got '{}'.", field.getType());
-              } else {
-                // TODO Validate type when no paging enabled on the column.
-              }
-            }
+  /**
+   * Sets a hook run by selects before fetching a row from the table.
+   *
+   * <p> For tests only: lets a test hold a fetch in flight. </p>
+   *
+   * @param hook Hook to run, or null to remove the hook.
+   */
+  void setFetchHook(Runnable hook) {
+    mFetchHook = hook;
+  }
 
-          } else if (eidField != null) {
-            LOG.debug("Validating entity ID field '{}'.", field);
-            field.setAccessible(true);
-            entityIdFields.add(field);
+  /**
+   * Reports the number of leases held on the current specification of an entity class.
+   *
+   * <p> For tests only: the DAO holds one lease, and each open scanner or tracked entity holds
+   *   another one. </p>
+   *
+   * @param klass Entity class.
+   * @return the number of leases held on the current specification of the entity class.
+   * @throws IOException on I/O error.
+   */
+  int getEntitySpecLeaseCount(Class<?> klass) throws IOException {
+    return getEntitySpec(klass).getLeaseCount();
+  }
 
-            final RowKeyComponent rkc = mRowKeyComponentMap.get(eidField.component());
-            Preconditions.checkArgument(rkc != null,
-                "Field '%s' maps to unknown entity ID component '%s'.",
-                field, eidField.component());
+  /** @return the number of selects served by the row cache. */
+  public long getRowCacheHitCount() {
+    return (mRowCache != null) ? mRowCache.getHitCount() : 0;
+  }
 
-          } else {
-            LOG.debug("Ignoring field '{}' with no annotation.", field);
-          }
-        }
+  /** @return the number of row fetches issued by selects. */
+  public long getSelectFetchCount() {
+    return mSelectFetchCount.get();
+  }
 
-        mColumnFields = ImmutableList.copyOf(columnFields);
-        mEntityIdFields = ImmutableList.copyOf(entityIdFields);
+  /**
+   * Reports the number of selects that did not issue a fetch of their own.
+   *
+   * <p> These selects were served by the fetch in flight for a concurrent identical select. </p>
+   *
+   * @return the number of coalesced selects.
+   */
+  public long getCoalescedSelectCount() {
+    return mCoalescedSelectCount.get();
+  }
 
-      } finally {
-        table.release();
-      }
-    }
+  /**
+   * Reports the number of entity specifications rebuilt after a layout update.
+   *
+   * <p> Updates of the entity table and of the secondary tables both trigger a rebuild. </p>
+   *
+   * @return the number of entity specifications rebuilt.
+   */
+  public long getLayoutRefreshCount() {
+    return mLayoutRefreshCount.get();
+  }
 
-    public String getTableName() {
-      return mTableName;
-    }
+  /** Identifies a select: selects with equal keys may share a single fetch. */
+  private static final class SelectKey {
+    private final EntitySpec<?> mSpec;
+    private final byte[] mRowKey;
+    private final long mStartTime;
+    private final long mEndTime;
+    private final Map<String, QualifierRestriction> mRestrictions;
+    private final int mHashCode;
 
     /**
-     * Populates a KijiDataRequest from this entity specification.
+     * Initializes a new select key.
      *
-     * @param builder Builder for the KijiDataRequest to populate.
+     * @param spec Specification of the entity. Compared by identity.
+     * @param rowKey HBase row key of the entity.
+     * @param startTime
+     * @param endTime
+     * @param restrictions Qualifier restrictions on map-type family fields.
      */
-    public void populateColumnRequests(KijiDataRequestBuilder builder) {
-      for (final Field field : mColumnFields) {
-        final KijiColumn column = field.getAnnotation(KijiColumn.class);
-        Preconditions.checkState(column != null);
-
-        final ColumnsDef def = ColumnsDef.create()
-            .withMaxVersions(column.maxVersions())
-            .withPageSize(column.pageSize());
-        if (column.qualifier().isEmpty()) {
-          def.addFamily(column.family());
-        } else {
-          def.add(column.family(), column.qualifier());
-        }
-        builder.addColumns(def);
-      }
+    private SelectKey(
+        EntitySpec<?> spec,
+        byte[] rowKey,
+        long startTime,
+        long endTime,
+        Map<String, QualifierRestriction> restrictions) {
+      mSpec = spec;
+      mRowKey = rowKey;
+      mStartTime = startTime;
+      mEndTime = endTime;
+      mRestrictions = ImmutableMap.copyOf(restrictions);
+      mHashCode = Objects.hashCode(
+          System.identityHashCode(spec), Arrays.hashCode(rowKey), startTime, endTime,
+          mRestrictions);
     }
 
-    /**
-     * Populates an entity from a row.
-     *
-     * @param entity Entity object to populate from a row.
-     * @param row Kiji row to populate the entity from.
-     * @return the populated entity.
-     * @throws IllegalAccessException
-     * @throws IOException
-     */
-    public T populateEntityFromRow(T entity, KijiRowData row)
-        throws IllegalAccessException, IOException {
-
-      // Populate fields from the row columns:
-      for (final Field field : mColumnFields) {
-        final KijiColumn column = field.getAnnotation(KijiColumn.class);
-        Preconditions.checkState(column != null);
+    /** {@inheritDoc} */
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof SelectKey)) {
+        return false;
+      }
+      final SelectKey that = (SelectKey) other;
+      return (mSpec == that.mSpec)
+          && (mStartTime == that.mStartTime)
+          && (mEndTime == that.mEndTime)
+          && Arrays.equals(mRowKey, that.mRowKey)
+          && mRestrictions.equals(that.mRestrictions);
+    }
 
-        if (column.qualifier().isEmpty()) {
-          // Field is populated from a map-type family:
-          populateFieldFromMapTypeFamily(entity, field, column, row);
+    /** {@inheritDoc} */
+    @Override
+    public int hashCode() {
+      return mHashCode;
+    }
+  }
 
-        } else {
-          // Field is populated from a fully-qualified column:
-          populateFieldFromFullyQualifiedColumn(entity, field, column, row);
+  /**
+   * Shortcut for {@link #selectMany(Class, long, long, Collection)}.
+   *
+   * @param klass
+   * @param entityIds
+   * @return
+   */
+  public <T> List<T> selectMany(Class<T> klass, Collection<?> entityIds) throws IOException {
+    return selectMany(
+        klass,
+        0 /*HConstants.OLDEST_TIMESTAMP*/, HConstants.LATEST_TIMESTAMP, entityIds);
+  }
+
+  /**
+   * <p> Equivalent of a Kiji bulk get request. </p>
+   *
+   * <p> Each entity ID is either an array of entity ID components, or the single component of
+   *   the entity ID for tables whose row keys have one component. </p>
+   *
+   * @param klass
+   * @param startTime
+   * @param endTime
+   * @param entityIds
+   * @return the entities, in the order of the given entity IDs.
+   */
+  public <T> List<T> selectMany(
+      Class<T> klass, long startTime, long endTime, Collection<?> entityIds)
+      throws IOException {
+    final EntitySpec<T> spec = acquireEntitySpec(klass);
+    try {
+      final List<T> entities = selectMany(spec, startTime, endTime, entityIds);
+      if (spec.hasEagerReferences()) {
+        resolveReferences(entities, true);
+      }
+      return entities;
+    } finally {
+      spec.release();
+    }
+  }
+
+  /**
+   * Fetches a batch of entities with a single bulk get, without resolving their references.
+   *
+   * @param spec Specification of the entities to populate.
+   * @param startTime
+   * @param endTime
+   * @param entityIds Entity IDs, as arrays of components or single components.
+   * @return the entities, in the order of the given entity IDs.
+   * @throws IOException on I/O error.
+   */
+  private <T> List<T> selectMany(
+      EntitySpec<T> spec, long startTime, long endTime, Collection<?> entityIds)
+      throws IOException {
+    return populateFromRows(spec, startTime, endTime, spec.getEntityIds(entityIds));
+  }
+
+  /**
+   * Encodes the HBase row keys of a batch of entities into a reusable buffer.
+   *
+   * <p> Row keys are encoded by an encoder specialized for the row key format of the entity
+   *   table, which allocates nothing per row key once the buffer is warm. </p>
+   *
+   * @param klass Class of the entities.
+   * @param entityIds Entity IDs, as arrays of components or single components.
+   * @param buffer Buffer to append the row keys to, in order.
+   * @throws IOException on I/O error.
+   */
+  public void encodeRowKeys(Class<?> klass, Collection<?> entityIds, RowKeyBuffer buffer)
+      throws IOException {
+    final EntitySpec<?> spec = acquireEntitySpec(klass);
+    try {
+      spec.encodeRowKeys(entityIds, buffer);
+    } finally {
+      spec.release();
+    }
+  }
+
+  /**
+   * Resolves the references held by a batch of entities.
+   *
+   * <p> The entity IDs referenced by all the entities are collected and deduplicated, then
+   *   fetched with one bulk get per target class, regardless of the number of entities and
+   *   references. Resolved entities are stored in the fields named by the @KijiReference
+   *   annotations. </p>
+   *
+   * <p> Resolved entities do not have their own references resolved. Referenced rows that do
+   *   not exist resolve to entities with no column populated. Resolved entities holding active
+   *   values must be released by the caller. </p>
+   *
+   * @param entities Entities to resolve the references of. May mix entity classes.
+   * @throws IOException on I/O error.
+   */
+  public void resolveReferences(Collection<?> entities) throws IOException {
+    resolveReferences(entities, false);
+  }
+
+  /**
+   * Resolves the references held by a batch of entities.
+   *
+   * @param entities Entities to resolve the references of.
+   * @param eagerOnly Whether to resolve the references declared as eager only.
+   * @throws IOException on I/O error.
+   */
+  private void resolveReferences(Collection<?> entities, boolean eagerOnly) throws IOException {
+    if (entities.isEmpty()) {
+      return;
+    }
+    final Map<Class<?>, EntitySpec<?>> specs = Maps.newHashMap();
+    try {
+      for (final Object entity : entities) {
+        if (!specs.containsKey(entity.getClass())) {
+          specs.put(entity.getClass(), acquireEntitySpec(entity.getClass()));
         }
       }
 
-      // Populate fields from the row entity ID:
-      for (final Field field : mEntityIdFields) {
-        final EntityIdField eidField = field.getAnnotation(EntityIdField.class);
-        Preconditions.checkState(eidField != null);
+      // Collect the referenced entity IDs, grouped by target class:
+      final Map<Class<?>, Map<List<Object>, Object>> entityIdsByTarget = Maps.newHashMap();
+      for (final Object entity : entities) {
+        for (final EntityReference reference : specs.get(entity.getClass()).getReferences()) {
+          if (eagerOnly && !reference.isEager()) {
+            continue;
+          }
+          Map<List<Object>, Object> entityIds = entityIdsByTarget.get(reference.getTarget());
+          if (entityIds == null) {
+            entityIds = Maps.newLinkedHashMap();
+            entityIdsByTarget.put(reference.getTarget(), entityIds);
+          }
+          reference.collect(entity, entityIds);
+        }
+      }
 
-        final int index = mRowKeyComponentIndexMap.get(eidField.component());
-        field.set(entity, row.getEntityId().getComponentByIndex(index));
+      // Fetch the referenced entities with one bulk get per target class:
+      final Map<Class<?>, Map<List<Object>, Object>> resolvedByTarget = Maps.newHashMap();
+      for (final Map.Entry<Class<?>, Map<List<Object>, Object>> entry
+          : entityIdsByTarget.entrySet()) {
+        final Map<List<Object>, Object> resolved =
+            resolveEntities(entry.getKey(), entry.getValue());
+        resolvedByTarget.put(entry.getKey(), resolved);
       }
-      return entity;
+
+      // Store the resolved entities:
+      for (final Object entity : entities) {
+        for (final EntityReference reference : specs.get(entity.getClass()).getReferences()) {
+          if (eagerOnly && !reference.isEager()) {
+            continue;
+          }
+          reference.assign(entity, resolvedByTarget.get(reference.getTarget()));
+        }
+      }
+    } catch (IllegalAccessException iae) {
+      throw new RuntimeException(iae);
+    } finally {
+      for (final EntitySpec<?> spec : specs.values()) {
+        spec.release();
+      }
+    }
+  }
+
+  /**
+   * Fetches the entities of a class referenced by a batch of entities.
+   *
+   * @param klass Class of the referenced entities.
+   * @param entityIds Referenced entity IDs, keyed by reference key.
+   * @return the referenced entities, keyed by reference key.
+   * @throws IOException on I/O error.
+   */
+  private <T> Map<List<Object>, Object> resolveEntities(
+      Class<T> klass, Map<List<Object>, Object> entityIds)
+      throws IOException {
+    final Map<List<Object>, Object> resolved = Maps.newHashMap();
+    if (entityIds.isEmpty()) {
+      return resolved;
+    }
+    final EntitySpec<T> spec = acquireEntitySpec(klass);
+    try {
+      final List<T> entities = selectMany(
+          spec, 0 /*HConstants.OLDEST_TIMESTAMP*/, HConstants.LATEST_TIMESTAMP,
+          entityIds.values());
+      int index = 0;
+      for (final List<Object> key : entityIds.keySet()) {
+        resolved.put(key, entities.get(index++));
+      }
+      return resolved;
+    } finally {
+      spec.release();
     }
+  }
 
-    private final void populateFieldFromFullyQualifiedColumn(
-        T entity, Field field, KijiColumn column, KijiRowData row)
-        throws IOException, IllegalAccessException {
+  /**
+   * Fetches a batch of rows with a single bulk get and populates one entity per row.
+   *
+   * <p> Rows held by the row cache are not fetched. </p>
+   *
+   * @param spec Specification of the entities to populate.
+   * @param startTime
+   * @param endTime
+   * @param entityIds Entity IDs of the rows to fetch.
+   * @return the entities, in the order of the given entity IDs.
+   * @throws IOException on I/O error.
+   */
+  <T> List<T> populateFromRows(
+      EntitySpec<T> spec, long startTime, long endTime, List<EntityId> entityIds)
+      throws IOException {
+    // Rows of the secondary tables are fetched concurrently with the entity table rows:
+    final List<Future<List<KijiRowData>>> secondaryRows = spec.hasSecondaryTables()
+        ? spec.fetchSecondaryRows(entityIds, NO_RESTRICTIONS, startTime, endTime)
+        : null;
 
-      if (column.maxVersions() == 1) {
-        // Field represents a single value from a fully-qualified column:
-        LOG.debug("Populating field '{}' from column '{}:{}'.",
-            field, column.family(), column.qualifier());
-        KijiCell<?> cell = row.getMostRecentCell(column.family(), column.qualifier());
-        if(cell == null)
-          return;
-        Object value = cell.getData();
+    final List<T> entities = Lists.newArrayListWithCapacity(entityIds.size());
+    final KijiTableReader reader = spec.acquireReader();
+    try {
+      final KijiDataRequestBuilder builder = KijiDataRequest.builder();
+      builder.withTimeRange(startTime, endTime);
+      spec.populateColumnRequests(builder);
+      final List<KijiRowData> rows =
+          fetchRows(spec, reader, entityIds, builder.build(), startTime, endTime);
 
-        if(field.getType() == KijiCell.class) {
-          value = cell;
+      for (final KijiRowData row : rows) {
+        try {
+          entities.add(spec.populateEntityFromRow(
+              spec.newEntity(), row, NO_RESTRICTIONS, startTime, endTime));
+        } catch (IllegalAccessException iae) {
+          throw new RuntimeException(iae);
         }
-        else if(field.getType() == String.class && value != null) {
-            value = value.toString();
+      }
+    } finally {
+      spec.releaseReader(reader);
+    }
+    if (secondaryRows != null) {
+      spec.populateSecondaryFields(
+          entities, secondaryRows, NO_RESTRICTIONS, startTime, endTime);
+    }
+    for (final T entity : entities) {
+      trackEntity(spec, entity);
+    }
+    return entities;
+  }
+
+  /**
+   * Normalizes an entity ID given as components or as a single component.
+   *
+   * @param entityId Array of entity ID components, or single entity ID component.
+   * @return the entity ID components.
+   */
+  static Object[] toEntityIdComponents(Object entityId) {
+    return (entityId instanceof Object[]) ? (Object[]) entityId : new Object[] {entityId};
+  }
+
+  /**
+   * <p> Equivalent of a Kiji scan. </p>
+   *
+   * @param klass
+   * @param options
+   * @param startTime
+   * @param endTime
+   * @return a scanner over the entities. The caller must close it.
+   */
+  public <T> EntityScanner<T> selectAll(
+      Class<T> klass,
+      KijiScannerOptions options,
+      long startTime,
+      long endTime)
+      throws IOException {
+    final EntitySpec<T> spec = acquireEntitySpec(klass);
+    boolean success = false;
+    try {
+      final KijiTableReader reader = spec.acquireReader();
+      try {
+        final KijiDataRequestBuilder builder = KijiDataRequest.builder();
+        builder.withTimeRange(startTime, endTime);
+        spec.populateColumnRequests(builder);
+        final KijiRowScanner scanner = reader.getScanner(
+            builder.build(),
+            (options != null) ? options : new KijiScannerOptions());
+        final EntityScanner<T> entityScanner =
+            new EntityScanner<T>(this, spec, reader, scanner, startTime, endTime);
+        success = true;
+        return entityScanner;
+      } finally {
+        if (!success) {
+          spec.releaseReader(reader);
         }
+      }
+    } finally {
+      if (!success) {
+        spec.release();
+      }
+    }
+  }
+
+  /**
+   * Shortcut for {@link #scanBatches(Class, int, KijiScannerOptions, long, long)}.
+   *
+   * @param klass Class of the entities to scan.
+   * @param batchSize Maximum number of rows per batch.
+   * @return a scanner over the batches of entities, to be closed by the caller.
+   * @throws IOException on I/O error.
+   */
+  public <T> EntityBatchScanner<T> scanBatches(Class<T> klass, int batchSize)
+      throws IOException {
+    return scanBatches(klass, batchSize, null,
+        0 /*HConstants.OLDEST_TIMESTAMP*/, HConstants.LATEST_TIMESTAMP);
+  }
 
-        // If there is no cell for a field with a primitive type, use the default value:
-        if ((null == value) && field.getType().isPrimitive()) {
-          value = Defaults.defaultValue(field.getType());
+  /**
+   * Scans the entities of a table in batches of struct-of-arrays, for analytics.
+   *
+   * <p> Each batch holds one array per @KijiColumn and @EntityIdField field, filled for up to
+   *   batchSize rows. The batch size may be tuned against the scanner caching of the options.
+   *   Entities with pagers, prefetching or downsampled fields cannot be scanned in batches.
+   *   </p>
+   *
+   * @param klass Class of the entities to scan.
+   * @param batchSize Maximum number of rows per batch.
+   * @param options Kiji scanner options, or null for the defaults.
+   * @param startTime Start of the time range to scan, inclusive.
+   * @param endTime End of the time range to scan, exclusive.
+   * @return a scanner over the batches of entities, to be closed by the caller.
+   * @throws IOException on I/O error.
+   */
+  public <T> EntityBatchScanner<T> scanBatches(
+      Class<T> klass,
+      int batchSize,
+      KijiScannerOptions options,
+      long startTime,
+      long endTime)
+      throws IOException {
+    Preconditions.checkArgument(batchSize > 0, "Invalid batch size: %s", batchSize);
+    final EntitySpec<T> spec = acquireEntitySpec(klass);
+    boolean success = false;
+    try {
+      // The scratch entity of a batch scanner is never released, and cannot hold pagers:
+      Preconditions.checkArgument(!spec.hasActiveFields(),
+          "Entity class '%s' has fields holding pagers, such as iterators over their cell "
+          + "budget: cannot be scanned in batches.",
+          klass.getName());
+      Preconditions.checkArgument(spec.isCacheable(),
+          "Entity class '%s' has paged or downsampled fields: cannot be scanned in batches.",
+          klass.getName());
+      final KijiTableReader reader = spec.acquireReader();
+      try {
+        final KijiDataRequestBuilder builder = KijiDataRequest.builder();
+        builder.withTimeRange(startTime, endTime);
+        spec.populateColumnRequests(builder);
+        final KijiRowScanner scanner = reader.getScanner(
+            builder.build(),
+            (options != null) ? options : new KijiScannerOptions());
+        final EntityBatchScanner<T> batchScanner = new EntityBatchScanner<T>(
+            spec, reader, scanner, startTime, endTime, batchSize);
+        success = true;
+        return batchScanner;
+      } finally {
+        if (!success) {
+          spec.releaseReader(reader);
         }
+      }
+    } finally {
+      if (!success) {
+        spec.release();
+      }
+    }
+  }
 
-        field.set(entity, value);
-      } else {
-        // Field represents a time-series from a fully-qualified column:
-        if (column.pageSize() > 0) {
-          final ColumnVersionIterator<?> iterator =
-              new ColumnVersionIterator<Object>(
-                  row, column.family(), column.qualifier(), column.pageSize());
-          field.set(entity, iterator);
-        } else {
-          Object value = null;
-          if(field.getType() == KijiCellValueIterator.class) {
-            value = new KijiCellValueIterator<Object>(row.iterator(column.family(), column.qualifier()));
-          }
-          else if(field.getType() == TimeSeries.class) {
-            final TimeSeries<Object> timeseries = new TimeSeries<Object>();
-            for(final KijiCell<Object> cell : row.asIterable(column.family(), column.qualifier())) {
-              timeseries.put(cell.getTimestamp(), cell.getData());
-            }
-            value = timeseries;
-          }
-          field.set(entity, value);
+  /**
+   * Shortcut for {@link #mergeVersions(Class, String, Collection, long, long)}, with all
+   * versions.
+   *
+   * @param klass Class of the entities.
+   * @param fieldName Name of a field mapped to a fully-qualified column.
+   * @param entityIds Entity IDs, as arrays of components or single components.
+   * @return an iterator over the versions of the field, to be closed by the caller.
+   * @throws IOException on I/O error.
+   */
+  public <T, V> MergedCellIterator<V> mergeVersions(
+      Class<T> klass, String fieldName, Collection<?> entityIds)
+      throws IOException {
+    return mergeVersions(
+        klass, fieldName, entityIds,
+        0 /*HConstants.OLDEST_TIMESTAMP*/, HConstants.LATEST_TIMESTAMP);
+  }
+
+  /**
+   * Merges the versions of a field across many entities, into a single stream ordered by
+   * timestamp.
+   *
+   * <p> For example, merges the zip code changes of a cohort of users. The first page of every
+   *   row is fetched in a single bulk get, with the page size of the field or 100 versions per
+   *   page; rows with more versions are then read page by page, and the rows are merged as they
+   *   are read: memory is proportional to the number of entities, not to the number of
+   *   versions. Versions are returned from the most recent to the oldest. </p>
+   *
+   * @param klass Class of the entities.
+   * @param fieldName Name of a field mapped to a fully-qualified column.
+   * @param entityIds Entity IDs, as arrays of components or single components.
+   * @param startTime Start of the time range, inclusive.
+   * @param endTime End of the time range, exclusive.
+   * @return an iterator over the versions of the field, to be closed by the caller.
+   * @throws IOException on I/O error.
+   */
+  public <T, V> MergedCellIterator<V> mergeVersions(
+      Class<T> klass,
+      String fieldName,
+      Collection<?> entityIds,
+      long startTime,
+      long endTime)
+      throws IOException {
+    final EntitySpec<T> spec = acquireEntitySpec(klass);
+    boolean success = false;
+    try {
+      final MergedCellIterator<V> iterator = spec.openMergedVersions(
+          fieldName, spec.getEntityIds(entityIds), startTime, endTime);
+      success = true;
+      return iterator;
+    } finally {
+      if (!success) {
+        spec.release();
+      }
+    }
+  }
+
+  /**
+   * Scans the entities changed since the last checkpoint committed by a consumer.
+   *
+   * <p> The first change scan of a consumer returns all the entities. Consumers commit the
+   *   checkpoint of a scan with {@link ChangeScanner#commit()} once all the changed entities
+   *   are processed: a scan that is not committed is replayed by the next scan. </p>
+   *
+   * <p> The checkpoint of a scan lags behind the client clock by
+   *   {@link KijiDaoOptions#getChangeScanLagMillis()}, so that cells timestamped by a region
+   *   server with a late clock, or still in flight, are returned by a later scan. Changed
+   *   entities are fetched with their current state: an entity changed within the lag is
+   *   returned again by the next scan, as are the entities of a scan that is not committed.
+   *   Consumers must process changes idempotently. </p>
+   *
+   * <p> Only the columns of the entity table are scanned for changes: changes to fields mapped
+   *   to secondary tables are not detected. </p>
+   *
+   * @param klass Class of the entities to scan.
+   * @param consumer Name of the consumer, unique for each entity table.
+   * @return a scanner over the changed entities, to be closed by the caller.
+   * @throws IOException on I/O error.
+   */
+  public <T> ChangeScanner<T> scanChanges(Class<T> klass, String consumer) throws IOException {
+    Preconditions.checkNotNull(consumer);
+    return scanChanges(klass, consumer, getChangeCheckpoint(klass, consumer));
+  }
+
+  /**
+   * Scans the entities with cells written since a timestamp.
+   *
+   * <p> The scan ends at the client time minus {@link KijiDaoOptions#getChangeScanLagMillis()},
+   *   as documented by {@link #scanChanges(Class, String)}. </p>
+   *
+   * @param klass Class of the entities to scan.
+   * @param sinceTimestamp Timestamp to scan changes from, inclusive.
+   * @return a scanner over the changed entities, to be closed by the caller.
+   * @throws IOException on I/O error.
+   */
+  public <T> ChangeScanner<T> scanChangesSince(Class<T> klass, long sinceTimestamp)
+      throws IOException {
+    return scanChanges(klass, null, sinceTimestamp);
+  }
+
+  /**
+   * Reports the change scan checkpoint committed by a consumer.
+   *
+   * @param klass Class of the entities the consumer scans.
+   * @param consumer Name of the consumer.
+   * @return the committed checkpoint, or 0 if the consumer never committed a checkpoint.
+   * @throws IOException on I/O error.
+   */
+  public long getChangeCheckpoint(Class<?> klass, String consumer) throws IOException {
+    final EntitySpec<?> spec = acquireEntitySpec(klass);
+    try {
+      final String key = CHANGE_CHECKPOINT_KEY_PREFIX + consumer;
+      final KijiMetaTable metaTable = mKiji.getMetaTable();
+      if (!metaTable.keySet(spec.getTableName()).contains(key)) {
+        return 0 /*HConstants.OLDEST_TIMESTAMP*/;
+      }
+      return Bytes.toLong(metaTable.getValue(spec.getTableName(), key));
+    } finally {
+      spec.release();
+    }
+  }
+
+  /**
+   * Records the change scan checkpoint of a consumer.
+   *
+   * @param tableName Name of the table scanned by the consumer.
+   * @param consumer Name of the consumer.
+   * @param checkpoint Checkpoint to record.
+   * @throws IOException on I/O error.
+   */
+  void putChangeCheckpoint(String tableName, String consumer, long checkpoint)
+      throws IOException {
+    mKiji.getMetaTable().putValue(
+        tableName, CHANGE_CHECKPOINT_KEY_PREFIX + consumer, Bytes.toBytes(checkpoint));
+  }
+
+  /**
+   * Scans the entities with cells written within a time range ending at the lagged client time.
+   *
+   * @param klass Class of the entities to scan.
+   * @param consumer Consumer the checkpoint is committed for, or null.
+   * @param sinceTimestamp Start of the time range, inclusive.
+   * @return a scanner over the changed entities.
+   * @throws IOException on I/O error.
+   */
+  private <T> ChangeScanner<T> scanChanges(Class<T> klass, String consumer, long sinceTimestamp)
+      throws IOException {
+    // Cells are timestamped by the region servers, whose clocks may be behind the client clock,
+    // and writes may still be in flight: cells written within the lag are left to the next scan.
+    final long checkpoint = System.currentTimeMillis() - mOptions.getChangeScanLagMillis();
+
+    final EntitySpec<T> spec = acquireEntitySpec(klass);
+    boolean success = false;
+    try {
+      final KijiTableReader reader = spec.acquireReader();
+      try {
+        final KijiDataRequestBuilder builder = KijiDataRequest.builder();
+        builder.withTimeRange(sinceTimestamp, Math.max(sinceTimestamp, checkpoint));
+        spec.populateChangeDetectionRequests(builder);
+        final KijiRowScanner scanner = reader.getScanner(builder.build());
+        final ChangeScanner<T> changeScanner = new ChangeScanner<T>(
+            this, spec, reader, scanner,
+            consumer, Math.max(sinceTimestamp, checkpoint), CHANGE_SCAN_BATCH_SIZE);
+        success = true;
+        return changeScanner;
+      } finally {
+        if (!success) {
+          spec.releaseReader(reader);
         }
       }
+    } finally {
+      if (!success) {
+        spec.release();
+      }
+    }
+  }
+
+  /**
+   * Shortcut for {@link #publishAll(Class, KijiScannerOptions, long, long)}.
+   *
+   * @param klass
+   * @param options
+   * @return
+   */
+  public <T> Publisher<T> publishAll(Class<T> klass, KijiScannerOptions options) {
+    return publishAll(
+        klass, options,
+        0 /*HConstants.OLDEST_TIMESTAMP*/, HConstants.LATEST_TIMESTAMP);
+  }
+
+  /**
+   * <p> Equivalent of a Kiji scan, as a Reactive Streams publisher. </p>
+   *
+   * <p> Each subscription runs its own scan. Rows are pulled from the scanner according to the
+   *   demand signalled by the subscriber, and cancelling the subscription closes the scanner.
+   *   </p>
+   *
+   * @param klass
+   * @param options
+   * @param startTime
+   * @param endTime
+   * @return a publisher of the scanned entities.
+   */
+  public <T> Publisher<T> publishAll(
+      Class<T> klass,
+      KijiScannerOptions options,
+      long startTime,
+      long endTime) {
+    return new EntityPublisher<T>(this, klass, options, startTime, endTime, mExecutor);
+  }
+
+  /**
+   * Shortcut for {@link #aggregate(Class, String, Aggregation, long, long, Object...)}.
+   *
+   * @param klass
+   * @param fieldName
+   * @param aggregation
+   * @param entityIdComponents
+   * @return
+   */
+  public <T> Object aggregate(
+      Class<T> klass, String fieldName, Aggregation aggregation, Object...entityIdComponents)
+      throws IOException {
+    return aggregate(
+        klass, fieldName, aggregation,
+        0 /*HConstants.OLDEST_TIMESTAMP*/, HConstants.LATEST_TIMESTAMP, entityIdComponents);
+  }
+
+  /**
+   * Aggregates the versions of the column a field is mapped to, without populating the field.
+   *
+   * <p> Cells are streamed from the row one page at a time and folded incrementally: memory
+   *   usage does not depend on the number of versions in the column. For a field mapped to a
+   *   map-type family, the aggregation spans the versions of all the qualifiers. </p>
+   *
+   * @param klass Class of the entity.
+   * @param fieldName Name of the field to aggregate the column of.
+   * @param aggregation Aggregation to compute.
+   * @param startTime
+   * @param endTime
+   * @param entityIdComponents
+   * @return the aggregated value, as documented by {@link Aggregation}.
+   * @throws IOException on I/O error.
+   */
+  public <T> Object aggregate(
+      Class<T> klass,
+      String fieldName,
+      Aggregation aggregation,
+      long startTime,
+      long endTime,
+      Object...entityIdComponents)
+      throws IOException {
+    final EntitySpec<T> spec = acquireEntitySpec(klass);
+    try {
+      final KijiColumn column = spec.getColumn(fieldName);
+      // The most recent version of a column is its first version:
+      final int maxVersions = ((aggregation == Aggregation.LAST) && !column.qualifier().isEmpty())
+          ? 1
+          : HConstants.ALL_VERSIONS;
+      final Accumulator accumulator = aggregation.newAccumulator();
+      accumulateColumn(spec, column, spec.getQualifierRestriction(fieldName), maxVersions,
+          accumulator, startTime, endTime, entityIdComponents);
+      return accumulator.getResult();
+    } finally {
+      spec.release();
+    }
+  }
+
+  /**
+   * Shortcut for {@link #downsample(Class, String, long, Aggregation, long, long, Object...)}.
+   *
+   * @param klass
+   * @param fieldName
+   * @param bucketMillis
+   * @param reducer
+   * @param entityIdComponents
+   * @return
+   */
+  public <T> TimeSeries<Object> downsample(
+      Class<T> klass,
+      String fieldName,
+      long bucketMillis,
+      Aggregation reducer,
+      Object...entityIdComponents)
+      throws IOException {
+    return downsample(
+        klass, fieldName, bucketMillis, reducer,
+        0 /*HConstants.OLDEST_TIMESTAMP*/, HConstants.LATEST_TIMESTAMP, entityIdComponents);
+  }
+
+  /**
+   * Downsamples the versions of the column a field is mapped to.
+   *
+   * <p> Query-time equivalent of the {@link org.kiji.ohm.annotations.Downsampled} annotation:
+   *   cells are streamed from the row one page at a time, grouped into fixed time buckets, and
+   *   each bucket is reduced to a single value. Memory usage depends on the number of buckets,
+   *   not on the number of versions. </p>
+   *
+   * @param klass Class of the entity.
+   * @param fieldName Name of the field to downsample the column of.
+   * @param bucketMillis Duration of a bucket, in milliseconds.
+   * @param reducer Reducer applied to the values of each bucket.
+   * @param startTime
+   * @param endTime
+   * @param entityIdComponents
+   * @return the downsampled time-series, keyed by bucket start time.
+   * @throws IOException on I/O error.
+   */
+  public <T> TimeSeries<Object> downsample(
+      Class<T> klass,
+      String fieldName,
+      long bucketMillis,
+      Aggregation reducer,
+      long startTime,
+      long endTime,
+      Object...entityIdComponents)
+      throws IOException {
+    final EntitySpec<T> spec = acquireEntitySpec(klass);
+    try {
+      final DownsamplingAccumulator accumulator =
+          new DownsamplingAccumulator(bucketMillis, reducer);
+      accumulateColumn(spec, spec.getColumn(fieldName), spec.getQualifierRestriction(fieldName),
+          HConstants.ALL_VERSIONS, accumulator, startTime, endTime, entityIdComponents);
+      return accumulator.getResult();
+    } finally {
+      spec.release();
+    }
+  }
+
+  /**
+   * Streams the cells of a column from a row into an accumulator, one page at a time.
+   *
+   * @param spec Specification of the entity, leased by the caller.
+   * @param column Column to stream.
+   * @param restriction Qualifier restriction on the map-type family, or null.
+   * @param maxVersions Maximum number of versions to stream.
+   * @param accumulator Accumulator to fold the cells into.
+   * @param startTime
+   * @param endTime
+   * @param entityIdComponents
+   * @throws IOException on I/O error.
+   */
+  private static void accumulateColumn(
+      EntitySpec<?> spec,
+      KijiColumn column,
+      QualifierRestriction restriction,
+      int maxVersions,
+      Accumulator accumulator,
+      long startTime,
+      long endTime,
+      Object...entityIdComponents)
+      throws IOException {
+    final int pageSize =
+        (column.pageSize() > 0) ? column.pageSize() : CellStreams.DEFAULT_PAGE_SIZE;
+    final ColumnsDef def = ColumnsDef.create()
+        .withMaxVersions(maxVersions)
+        .withPageSize(pageSize);
+    if (column.qualifier().isEmpty()) {
+      if (restriction != null) {
+        def.withFilter(restriction.toColumnFilter());
+      }
+      def.addFamily(column.family());
+    } else {
+      def.add(column.family(), column.qualifier());
     }
+    final KijiDataRequestBuilder builder = KijiDataRequest.builder();
+    builder.withTimeRange(startTime, endTime);
+    builder.addColumns(def);
 
-    private final void populateFieldFromMapTypeFamily(
-        T entity, Field field, KijiColumn column, KijiRowData row)
-        throws IOException, IllegalAccessException {
+    // Fields of secondary tables are read from their own table:
+    final EntityId entityId = spec.getEntityId(column, entityIdComponents);
+    final KijiTableReader reader = spec.acquireReader(column);
+    try {
+      final KijiRowData row = reader.get(entityId, builder.build());
+      CellStreams.accumulate(
+          row, column.family(), column.qualifier(), restriction, pageSize, accumulator);
+    } finally {
+      spec.releaseReader(column, reader);
+    }
+  }
 
-      LOG.debug("Populating field '{}' from map-type family '{}'.", field, column.family());
+  /**
+   * Closes an entity managed by the DAO.
+   *
+   * <p> This is required for entities containing active values, such as pagers. </p>
+   *
+   * @param entity Entity to release.
+   */
+  public <T> void releaseEntity(T entity) throws IOException {
+    @SuppressWarnings("unchecked")
+    final EntitySpec<T> activeSpec = (EntitySpec<T>) mActiveEntities.remove(entity);
+    if (activeSpec != null) {
+      try {
+        activeSpec.releaseEntity(entity);
+      } finally {
+        activeSpec.release();
+      }
+      return;
+    }
 
-      if (column.pageSize() > 0) {
-        // Field is a closeable iterator of map-family entries (qualifier, timestamp, value).
-        LOG.debug("Populating field '{}' from paging-enabled map-type family '{}'.",
-            field, column.family());
-        final MapFamilyVersionIterator<?> iterator =
-            new MapFamilyVersionIterator<Object>(
-                row, column.family(), column.pageSize(), column.pageSize());
-        field.set(entity, iterator);
+    @SuppressWarnings("unchecked")
+    final Class<T> klass = (Class<T>) entity.getClass();
+    final EntitySpec<T> spec = getEntitySpec(klass);
+    spec.releaseEntity(entity);
+  }
+
+  // -----------------------------------------------------------------------------------------------
 
-      } else if (column.maxVersions() == 1) {
-        // Field is a map: qualifier -> single value:
+  /**
+   * Reports the entity ID components of an entity, read from its @EntityIdField fields.
+   *
+   * @param entity Entity to report the entity ID of.
+   * @return the entity ID components of the entity, in row key order.
+   * @throws IOException on I/O error.
+   */
+  public <T> Object[] getEntityIdComponents(T entity) throws IOException {
+    @SuppressWarnings("unchecked")
+    final Class<T> klass = (Class<T>) entity.getClass();
+    final EntitySpec<T> spec = acquireEntitySpec(klass);
+    try {
+      return spec.getEntityIdComponents(entity);
+    } finally {
+      spec.release();
+    }
+  }
+
+  /**
+   * Writes an entity to its row.
+   *
+   * <p> The row is identified by the entity ID fields of the entity. Secondary indexes declared
+   *   with {@link org.kiji.ohm.annotations.KijiIndexed} are updated accordingly. </p>
+   *
+   * @param entity Entity to write.
+   * @throws IOException on I/O error.
+   */
+  public <T> void write(T entity) throws IOException {
+    @SuppressWarnings("unchecked")
+    final Class<T> klass = (Class<T>) entity.getClass();
+    final EntitySpec<T> spec = acquireEntitySpec(klass);
+    try {
+      final KijiTable table = spec.getTable();
+      final EntityId entityId = spec.getEntityId(spec.getEntityIdComponents(entity));
 
-        LOG.debug("Populating single version map field '{}'.", field);
-        Object value = null;
+      // Indexed values currently stored in the row, to retire stale index entries:
+      final Map<String, Object> previous = spec.getIndexes().isEmpty()
+          ? Collections.<String, Object>emptyMap()
+          : readIndexedValues(spec, entityId);
 
-        if(field.getType() == KijiCellIterator.class) {
-          Iterator<KijiCell<Object>> it = row.iterator(column.family());
-          value = new KijiCellIterator<Object>(it);
+      final Map<String, KijiBufferedWriter> indexWriters = openIndexWriters(spec);
+      try {
+        // Index entries are added before the row is written, so that an entity is always
+        // reachable through its indexes. Stale entries are filtered out by selectBy().
+        for (final EntityIndex index : spec.getIndexes().values()) {
+          final Object value = spec.getFieldValue(entity, index.getField());
+          if (value != null) {
+            index.add(indexWriters.get(index.getTableName()), value, entityId);
+          }
         }
-        else if(field.getType() == MapTypeCell.class) {
-          value = new MapTypeCell<Object>(row.getMostRecentCells(column.family()));
+        for (final KijiBufferedWriter indexWriter : indexWriters.values()) {
+          indexWriter.flush();
         }
-        else if(field.getType() == MapTypeValue.class) {
-          value = new MapTypeValue<Object>(row.getMostRecentValues(column.family()));
+
+        final KijiTableWriter writer = table.openTableWriter();
+        try {
+          spec.writeEntity(writer, entityId, entity);
+        } finally {
+          writer.close();
         }
-        field.set(entity, value);
-
-      } else {
-        // Field is a map: qualifier -> time-series
-        LOG.debug("Populating map field '{}'.", field);
-        Object value = null;
-        if(field.getType() == KijiCellIterator.class) {
-          Iterator<KijiCell<Object>> it = row.iterator(column.family());
-          value = new KijiCellIterator<Object>(it);
+        if (mRowCache != null) {
+          mRowCache.invalidate(
+              spec.getTableName(), spec.getLayoutId(), entityId.getHBaseRowKey());
         }
-        else if(field.getType() == TSMapTypeValue.class) {
-          //TODO: ARGH. This is awful.
-          TSMapTypeValue<Object> tsValues = new TSMapTypeValue<Object>();
-          for(String s:row.getQualifiers(column.family())) {
-            final TimeSeries<Object> timeseries = new TimeSeries<Object>();
-            for(final KijiCell<Object> cell : row.asIterable(column.family(), s)) {
-              timeseries.put(cell.getTimestamp(), cell.getData());
-            }
-            tsValues.put(s, timeseries);
+
+        for (final Map.Entry<String, EntityIndex> entry : spec.getIndexes().entrySet()) {
+          final EntityIndex index = entry.getValue();
+          final String oldKey = EntityIndex.indexKey(previous.get(entry.getKey()));
+          final String newKey =
+              EntityIndex.indexKey(spec.getFieldValue(entity, index.getField()));
+          if ((oldKey != null) && !oldKey.equals(newKey)) {
+            index.remove(indexWriters.get(index.getTableName()), oldKey, entityId);
           }
-          value = tsValues;
         }
-        field.set(entity, value);
+      } finally {
+        closeIndexWriters(indexWriters);
       }
+    } finally {
+      spec.release();
     }
+  }
 
-    /**
-     * Creates a new blank entity instance.
-     *
-     * @return a new blank entity instance.
-     */
-    private T newEntity() {
+  /**
+   * Opens one buffered writer per index table of an entity specification.
+   *
+   * @param spec Specification of the entities.
+   * @return buffered writers keyed by index table name, to be closed with
+   *     {@link #closeIndexWriters(Map)}. Empty if the entities have no index.
+   * @throws IOException on I/O error.
+   */
+  private static Map<String, KijiBufferedWriter> openIndexWriters(EntitySpec<?> spec)
+      throws IOException {
+    final Map<String, KijiBufferedWriter> writers = Maps.newHashMap();
+    boolean success = false;
+    try {
+      for (final EntityIndex index : spec.getIndexes().values()) {
+        if (!writers.containsKey(index.getTableName())) {
+          writers.put(index.getTableName(), index.openWriter());
+        }
+      }
+      success = true;
+      return writers;
+    } finally {
+      if (!success) {
+        closeIndexWriters(writers);
+      }
+    }
+  }
+
+  /**
+   * Flushes and closes index writers opened with {@link #openIndexWriters(EntitySpec)}.
+   *
+   * @param writers Index writers to close.
+   * @throws IOException on I/O error.
+   */
+  private static void closeIndexWriters(Map<String, KijiBufferedWriter> writers)
+      throws IOException {
+    IOException error = null;
+    for (final KijiBufferedWriter writer : writers.values()) {
       try {
-        return mClass.newInstance();
-      } catch (InstantiationException ie) {
-        throw new RuntimeException(ie);
-      } catch (IllegalAccessException iae) {
-        throw new RuntimeException(iae);
-      }
-    }
-
-    public void releaseEntity(T entity) throws IOException {
-      for (Field field : mColumnFields) {
-        final KijiColumn column = field.getAnnotation(KijiColumn.class);
-        if (column.pageSize() > 0) {
-          try {
-            final Closeable closeable = (Closeable) field.get(entity);
-            closeable.close();
-          } catch (IllegalAccessException iae) {
-            throw new RuntimeException(iae);
+        writer.close();
+      } catch (IOException ioe) {
+        error = (error == null) ? ioe : error;
+      }
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  /**
+   * Reads the values of the indexed columns currently stored in a row.
+   *
+   * @param spec Specification of the entity stored in the row.
+   * @param entityId Entity ID of the row to read.
+   * @return the current values of the indexed fields, keyed by field name.
+   * @throws IOException on I/O error.
+   */
+  private static <T> Map<String, Object> readIndexedValues(
+      EntitySpec<T> spec, EntityId entityId)
+      throws IOException {
+    return readIndexedValues(spec, Collections.singletonList(entityId)).get(0);
+  }
+
+  /**
+   * Reads the values of the indexed columns currently stored in a batch of rows.
+   *
+   * @param spec Specification of the entities stored in the rows.
+   * @param entityIds Entity IDs of the rows to read.
+   * @return the current values of the indexed fields, keyed by field name, for each row.
+   * @throws IOException on I/O error.
+   */
+  private static <T> List<Map<String, Object>> readIndexedValues(
+      EntitySpec<T> spec, List<EntityId> entityIds)
+      throws IOException {
+    final KijiTableReader reader = spec.acquireReader();
+    try {
+      final KijiDataRequestBuilder builder = KijiDataRequest.builder();
+      spec.populateIndexedColumnRequests(builder);
+      final List<KijiRowData> rows = reader.bulkGet(entityIds, builder.build());
+
+      final List<Map<String, Object>> values = Lists.newArrayListWithCapacity(rows.size());
+      for (final KijiRowData row : rows) {
+        final Map<String, Object> rowValues = Maps.newHashMap();
+        for (final Map.Entry<String, EntityIndex> entry : spec.getIndexes().entrySet()) {
+          final KijiColumn column =
+              entry.getValue().getField().getAnnotation(KijiColumn.class);
+          final KijiCell<?> cell = row.getMostRecentCell(column.family(), column.qualifier());
+          if (cell != null) {
+            rowValues.put(entry.getKey(), cell.getData());
           }
         }
+        values.add(rowValues);
       }
+      return values;
+    } finally {
+      spec.releaseReader(reader);
+    }
+  }
+
+  /**
+   * Deletes the entity stored in a row.
+   *
+   * @param klass Class of the entity to delete.
+   * @param entityIdComponents Entity ID of the row to delete.
+   * @throws IOException on I/O error.
+   */
+  public <T> void delete(Class<T> klass, Object... entityIdComponents) throws IOException {
+    deleteAll(klass, Collections.<Object>singletonList(entityIdComponents));
+  }
+
+  /**
+   * Shortcut for {@link #deleteAll(Class, long, Collection)}, deleting all the cells.
+   *
+   * @param klass Class of the entities to delete.
+   * @param entityIds Entity IDs, as arrays of components or single components.
+   * @throws IOException on I/O error.
+   */
+  public <T> void deleteAll(Class<T> klass, Collection<?> entityIds) throws IOException {
+    deleteAll(klass, HConstants.LATEST_TIMESTAMP, entityIds);
+  }
+
+  /**
+   * Deletes the cells of a batch of entities, up to a timestamp.
+   *
+   * <p> Rows are deleted from the entity table and from the tables of the fields mapped to
+   *   other tables, through buffered writers. Index entries of the deleted values are removed,
+   *   and the rows are evicted from the row cache. </p>
+   *
+   * @param klass Class of the entities to delete.
+   * @param upToTimestamp Cells with a timestamp lower than or equal to this one are deleted.
+   * @param entityIds Entity IDs, as arrays of components or single components.
+   * @throws IOException on I/O error.
+   */
+  public <T> void deleteAll(Class<T> klass, long upToTimestamp, Collection<?> entityIds)
+      throws IOException {
+    final EntitySpec<T> spec = acquireEntitySpec(klass);
+    try {
+      final List<EntityId> ids = spec.getEntityIds(entityIds);
+      final List<Map<String, Object>> previous =
+          spec.getIndexes().isEmpty() ? null : readIndexedValues(spec, ids);
+      spec.deleteRows(ids, upToTimestamp);
+      completeDeletes(spec, ids, previous);
+    } finally {
+      spec.release();
+    }
+  }
+
+  /**
+   * Deletes the versions of a field older than a timestamp, in a batch of entities.
+   *
+   * <p> For example, retention jobs drop the versions of a time-series field older than a
+   *   cutoff. Deletes are sent through a buffered writer. </p>
+   *
+   * @param klass Class of the entities.
+   * @param fieldName Name of a field annotated with @KijiColumn.
+   * @param upToTimestamp Versions with a timestamp lower than or equal to this one are deleted.
+   *     HConstants.LATEST_TIMESTAMP deletes all the versions.
+   * @param entityIds Entity IDs, as arrays of components or single components.
+   * @throws IOException on I/O error.
+   */
+  public <T> void deleteField(
+      Class<T> klass, String fieldName, long upToTimestamp, Collection<?> entityIds)
+      throws IOException {
+    final EntitySpec<T> spec = acquireEntitySpec(klass);
+    try {
+      final List<EntityId> ids = spec.getEntityIds(entityIds);
+      final List<Map<String, Object>> previous =
+          spec.getIndexes().containsKey(fieldName) ? readIndexedValues(spec, ids) : null;
+      spec.deleteFieldVersions(fieldName, ids, upToTimestamp);
+      completeDeletes(spec, ids, previous);
+    } finally {
+      spec.release();
+    }
+  }
+
+  /**
+   * Evicts deleted rows from the row cache and retires the index entries of deleted values.
+   *
+   * @param spec Specification of the entities stored in the rows.
+   * @param entityIds Entity IDs of the rows with deleted cells.
+   * @param previous Indexed values stored in the rows before the deletes, or null if no
+   *     indexed value was deleted.
+   * @throws IOException on I/O error.
+   */
+  private <T> void completeDeletes(
+      EntitySpec<T> spec, List<EntityId> entityIds, List<Map<String, Object>> previous)
+      throws IOException {
+    if (mRowCache != null) {
+      for (final EntityId entityId : entityIds) {
+        mRowCache.invalidate(
+            spec.getTableName(), spec.getLayoutId(), entityId.getHBaseRowKey());
+      }
+    }
+    if (previous == null) {
+      return;
+    }
+    final List<Map<String, Object>> current = readIndexedValues(spec, entityIds);
+    final Map<String, KijiBufferedWriter> indexWriters = openIndexWriters(spec);
+    try {
+      for (int i = 0; i < entityIds.size(); ++i) {
+        for (final Map.Entry<String, EntityIndex> entry : spec.getIndexes().entrySet()) {
+          final EntityIndex index = entry.getValue();
+          final String oldKey = EntityIndex.indexKey(previous.get(i).get(entry.getKey()));
+          final String newKey = EntityIndex.indexKey(current.get(i).get(entry.getKey()));
+          if ((oldKey != null) && !oldKey.equals(newKey)) {
+            index.remove(indexWriters.get(index.getTableName()), oldKey, entityIds.get(i));
+          }
+        }
+      }
+    } finally {
+      closeIndexWriters(indexWriters);
+    }
+  }
+
+  /**
+   * Selects the entities whose indexed field holds a given value.
+   *
+   * <p> The entity IDs are resolved through the secondary index of the field, then the entities
+   *   are fetched with a single bulk get. </p>
+   *
+   * @param klass Class of the entities to select.
+   * @param fieldName Name of a field annotated with {@link org.kiji.ohm.annotations.KijiIndexed}.
+   * @param value Value of the field to look up. Null values are not indexed, and cannot be
+   *     looked up.
+   * @return the entities whose field holds the given value.
+   * @throws IOException on I/O error.
+   */
+  public <T> List<T> selectBy(Class<T> klass, String fieldName, Object value)
+      throws IOException {
+    Preconditions.checkArgument(value != null,
+        "Cannot select entities of class '%s' by null '%s': null values are not indexed.",
+        klass, fieldName);
+    final EntitySpec<T> spec = acquireEntitySpec(klass);
+    try {
+      final EntityIndex index = spec.getIndexes().get(fieldName);
+      Preconditions.checkArgument(index != null,
+          "Field '%s' of class '%s' is not indexed.", fieldName, klass);
+
+      final List<byte[]> rowKeys = index.lookup(value);
+      final List<T> matches = Lists.newArrayList();
+      if (rowKeys.isEmpty()) {
+        return matches;
+      }
+
+      final EntityIdFactory factory = EntityIdFactory.getFactory(spec.getTable().getLayout());
+      final List<EntityId> entityIds = Lists.newArrayListWithCapacity(rowKeys.size());
+      for (final byte[] rowKey : rowKeys) {
+        entityIds.add(factory.getEntityIdFromHBaseRowKey(rowKey));
+      }
+
+      // The index may still hold entries for entities whose value changed since:
+      final String key = EntityIndex.indexKey(value);
+      for (final T entity : populateFromRows(
+          spec, 0 /*HConstants.OLDEST_TIMESTAMP*/, HConstants.LATEST_TIMESTAMP, entityIds)) {
+        if (key.equals(EntityIndex.indexKey(spec.getFieldValue(entity, index.getField())))) {
+          matches.add(entity);
+        } else {
+          releaseEntity(entity);
+        }
+      }
+      if (spec.hasEagerReferences()) {
+        resolveReferences(matches, true);
+      }
+      return matches;
+    } finally {
+      spec.release();
     }
   }
 }
@@ -0,0 +1,215 @@
+package org.kiji.ohm.dao;
+
+import java.io.File;
+
+import com.google.common.base.Objects;
+
+/**
+ * Options of a Kiji Data Access Object.
+ *
+ * <p> Options are read when the DAO is created: later changes have no effect on it. </p>
+ */
+public final class KijiDaoOptions {
+  /** Default minimum interval between two checks for table layout updates, in milliseconds. */
+  public static final long DEFAULT_LAYOUT_CHECK_INTERVAL_MILLIS = 10 * 1000L;
+
+  /** Default size of the row cache file, in bytes. */
+  public static final long DEFAULT_ROW_CACHE_CAPACITY_BYTES = 64L * 1024 * 1024;
+
+  /** Default maximum age of the rows served by the row cache, in milliseconds. */
+  public static final long DEFAULT_ROW_CACHE_TTL_MILLIS = 60 * 1000L;
+
+  /** Default safety lag of the change scan checkpoints behind the client clock, in ms. */
+  public static final long DEFAULT_CHANGE_SCAN_LAG_MILLIS = 60 * 1000L;
+
+  /** Minimum interval between two checks for table layout updates, in milliseconds. */
+  private long mLayoutCheckIntervalMillis = DEFAULT_LAYOUT_CHECK_INTERVAL_MILLIS;
+
+  /** Whether concurrent identical selects share a single fetch. */
+  private boolean mCoalesceSelects = true;
+
+  /** File backing the row cache, or null to disable the row cache. */
+  private File mRowCacheFile = null;
+
+  /** Size of the row cache file, in bytes. */
+  private long mRowCacheCapacityBytes = DEFAULT_ROW_CACHE_CAPACITY_BYTES;
+
+  /** Maximum age of the rows served by the row cache, in milliseconds. */
+  private long mRowCacheTtlMillis = DEFAULT_ROW_CACHE_TTL_MILLIS;
+
+  /** Default maximum number of versions per column fetched in a single get. 0 means no budget. */
+  private int mCellBudget = 0;
+
+  /** Safety lag of the change scan checkpoints behind the client clock, in milliseconds. */
+  private long mChangeScanLagMillis = DEFAULT_CHANGE_SCAN_LAG_MILLIS;
+
+  /**
+   * Sets the minimum interval between two checks for layout updates of an entity table.
+   *
+   * <p> Layouts are checked when a request acquires the specification of an entity. 0 means
+   *   the layout is checked on every request, a negative value disables the checks. </p>
+   *
+   * @param intervalMillis Minimum interval between two checks, in milliseconds.
+   * @return this options object.
+   */
+  public KijiDaoOptions setLayoutCheckIntervalMillis(long intervalMillis) {
+    mLayoutCheckIntervalMillis = intervalMillis;
+    return this;
+  }
+
+  /** @return the minimum interval between two checks for layout updates, in milliseconds. */
+  public long getLayoutCheckIntervalMillis() {
+    return mLayoutCheckIntervalMillis;
+  }
+
+  /**
+   * Sets whether concurrent identical selects share a single fetch.
+   *
+   * <p> Selects are identical when they request the same entity class, entity ID, time range
+   *   and qualifier restrictions. Each caller still receives its own entity instance. Enabled by
+   *   default. </p>
+   *
+   * @param coalesce Whether to coalesce concurrent identical selects.
+   * @return this options object.
+   */
+  public KijiDaoOptions setCoalesceSelects(boolean coalesce) {
+    mCoalesceSelects = coalesce;
+    return this;
+  }
+
+  /** @return whether concurrent identical selects share a single fetch. */
+  public boolean getCoalesceSelects() {
+    return mCoalesceSelects;
+  }
+
+  /**
+   * Enables the off-heap row cache, backed by a memory-mapped file.
+   *
+   * <p> Rows fetched by selects and multi-gets (selectMany, selectBy and reference resolution)
+   *   are cached in the file, and survive restarts of the process. Scans bypass the cache.
+   *   Only entities with no pager, prefetching or downsampled field are cached, and only for
+   *   selects with no query-time qualifier restriction. Disabled by default. </p>
+   *
+   * <p> The file is locked by the DAO: a DAO opening a file used by another DAO, in this process
+   *   or another one, runs with the row cache disabled. </p>
+   *
+   * @param file File backing the row cache, or null to disable the row cache.
+   * @return this options object.
+   */
+  public KijiDaoOptions setRowCacheFile(File file) {
+    mRowCacheFile = file;
+    return this;
+  }
+
+  /** @return the file backing the row cache, or null if the row cache is disabled. */
+  public File getRowCacheFile() {
+    return mRowCacheFile;
+  }
+
+  /**
+   * Sets the size of the row cache file. The cache is cleared when the file is full.
+   *
+   * @param capacityBytes Size of the row cache file, in bytes.
+   * @return this options object.
+   */
+  public KijiDaoOptions setRowCacheCapacityBytes(long capacityBytes) {
+    mRowCacheCapacityBytes = capacityBytes;
+    return this;
+  }
+
+  /** @return the size of the row cache file, in bytes. */
+  public long getRowCacheCapacityBytes() {
+    return mRowCacheCapacityBytes;
+  }
+
+  /**
+   * Sets the maximum age of the rows served by the row cache.
+   *
+   * @param ttlMillis Maximum age of the cached rows, in milliseconds.
+   * @return this options object.
+   */
+  public KijiDaoOptions setRowCacheTtlMillis(long ttlMillis) {
+    mRowCacheTtlMillis = ttlMillis;
+    return this;
+  }
+
+  /** @return the maximum age of the rows served by the row cache, in milliseconds. */
+  public long getRowCacheTtlMillis() {
+    return mRowCacheTtlMillis;
+  }
+
+  /**
+   * Sets the default maximum number of versions per column fetched in a single get.
+   *
+   * <p> Applies to the multi-version fields with paging disabled. A column with more versions
+   *   than the budget is fetched again with paging enabled, and populates the same
+   *   TimeSeries, KijiCellValueIterator or TSMapTypeValue field. Fields may override the budget
+   *   with {@code @KijiColumn(cellBudget=...)}. 0 or a negative value means no budget, which is
+   *   the default. </p>
+   *
+   * @param cellBudget Default maximum number of versions per column fetched in a single get.
+   * @return this options object.
+   */
+  public KijiDaoOptions setCellBudget(int cellBudget) {
+    mCellBudget = cellBudget;
+    return this;
+  }
+
+  /** @return the default maximum number of versions per column fetched in a single get. */
+  public int getCellBudget() {
+    return mCellBudget;
+  }
+
+  /**
+   * Sets the safety lag of the change scan checkpoints behind the client clock.
+   *
+   * <p> A change scan ends at its checkpoint, the client time minus this lag, and the next scan
+   *   starts from there. Cell timestamps are set by the region servers when the cells are
+   *   written: the lag leaves room for region server clocks behind the client clock, and for
+   *   writes still in flight while the scan runs. Cells timestamped before a committed
+   *   checkpoint but written after the scan are never returned: the lag must exceed the clock
+   *   skew plus the duration of a write. </p>
+   *
+   * @param lagMillis Safety lag of the checkpoints, in milliseconds.
+   * @return this options object.
+   */
+  public KijiDaoOptions setChangeScanLagMillis(long lagMillis) {
+    mChangeScanLagMillis = lagMillis;
+    return this;
+  }
+
+  /** @return the safety lag of the change scan checkpoints behind the client clock, in ms. */
+  public long getChangeScanLagMillis() {
+    return mChangeScanLagMillis;
+  }
+
+  /**
+   * Creates a copy of these options.
+   *
+   * @return a copy of these options.
+   */
+  KijiDaoOptions copy() {
+    return new KijiDaoOptions()
+        .setLayoutCheckIntervalMillis(mLayoutCheckIntervalMillis)
+        .setCoalesceSelects(mCoalesceSelects)
+        .setRowCacheFile(mRowCacheFile)
+        .setRowCacheCapacityBytes(mRowCacheCapacityBytes)
+        .setRowCacheTtlMillis(mRowCacheTtlMillis)
+        .setCellBudget(mCellBudget)
+        .setChangeScanLagMillis(mChangeScanLagMillis);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("layout_check_interval_millis", mLayoutCheckIntervalMillis)
+        .add("coalesce_selects", mCoalesceSelects)
+        .add("row_cache_file", mRowCacheFile)
+        .add("row_cache_capacity_bytes", mRowCacheCapacityBytes)
+        .add("row_cache_ttl_millis", mRowCacheTtlMillis)
+        .add("cell_budget", mCellBudget)
+        .add("change_scan_lag_millis", mChangeScanLagMillis)
+        .toString();
+  }
+}
@@ -4,9 +4,19 @@ import java.util.NavigableMap;
 
 import org.kiji.schema.KijiCell;
 
-public class MapTypeCell<V> extends AbstractDelegateNavigableMap<String, KijiCell<V>> {
-
+public class MapTypeCell<V> extends AbstractQualifierMap<KijiCell<V>> {
   public MapTypeCell(NavigableMap<String, KijiCell<V>> qualifierMap) {
-    super(qualifierMap);
+    this(qualifierMap, null);
+  }
+
+  /**
+   * Initializes a map of the qualifiers of a family fetched with a restriction.
+   *
+   * @param qualifierMap Map from qualifier to cell.
+   * @param restriction Restriction the qualifiers were fetched with, or null.
+   */
+  public MapTypeCell(
+      NavigableMap<String, KijiCell<V>> qualifierMap, QualifierRestriction restriction) {
+    super(qualifierMap, restriction);
   }
 }
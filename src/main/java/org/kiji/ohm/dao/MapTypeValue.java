@@ -2,10 +2,18 @@ package org.kiji.ohm.dao;
 
 import java.util.NavigableMap;
 
-public class MapTypeValue<V> extends AbstractDelegateNavigableMap<String, V> {
-  private NavigableMap<String, V> mQualifierMap;
-
+public class MapTypeValue<V> extends AbstractQualifierMap<V> {
   public MapTypeValue(NavigableMap<String, V> qualifierMap) {
-    super(qualifierMap);
+    this(qualifierMap, null);
+  }
+
+  /**
+   * Initializes a map of the qualifiers of a family fetched with a restriction.
+   *
+   * @param qualifierMap Map from qualifier to value.
+   * @param restriction Restriction the qualifiers were fetched with, or null.
+   */
+  public MapTypeValue(NavigableMap<String, V> qualifierMap, QualifierRestriction restriction) {
+    super(qualifierMap, restriction);
   }
 }
@@ -0,0 +1,509 @@
+package org.kiji.ohm.dao;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Row cache stored off-heap, in a memory-mapped file.
+ *
+ * <p> The file is an append-only log of records, each holding the HBase cells of a row along
+ *   with the time the row was fetched. A heap index maps each row to its most recent record.
+ *   The index is rebuilt by scanning the log when the cache is opened, so that cached rows
+ *   survive process restarts. </p>
+ *
+ * <p> Rows are identified by table name, table layout ID and HBase row key: a layout update
+ *   invalidates all the rows of a table. A row may be cached once per data request, since
+ *   entity classes mapped to the same table fetch different columns and versions: records are
+ *   keyed by a digest of the data request they were fetched with, and only served for that
+ *   data request and time range, until they are older than the maximum age requested by the
+ *   caller. Invalidating a row removes the records of all its data requests. </p>
+ *
+ * <p> When the file is full, the cache is cleared and the log restarts from the beginning.
+ *   Records carry the generation of the log they were written in, so that records left over
+ *   from a previous generation are never resurrected. </p>
+ *
+ * <p> File layout: a header (magic, version, generation), followed by records. Each record is
+ *   a body length, a CRC32 of the body, and the body: generation, cache key, data request
+ *   digest, fetch time, time range, row key, cell count, and the cells serialized as HBase
+ *   KeyValues, back to back. A record with no cell list is a tombstone for all the data
+ *   requests of the row. </p>
+ *
+ * <p> The file is locked while the cache is open: a file cannot be shared by several caches,
+ *   whether in the same process or not. </p>
+ *
+ * <p> Cells are kept in the KeyValue format so that a hit copies the cells out of the mapped
+ *   file in a single bulk copy, and the KeyValues are views on that copy. The copy cannot be
+ *   avoided: the region of the file may be overwritten as soon as the read lock is released,
+ *   when the log wraps around. </p>
+ */
+final class MappedRowCache implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(MappedRowCache.class);
+
+  /** Magic number identifying a row cache file. */
+  private static final int MAGIC = 0x4b4f4843;  // "KOHC"
+
+  /** Version of the file layout. Files with another version are cleared when opened. */
+  private static final int VERSION = 3;
+
+  /** Size of the file header, in bytes: magic, version, generation. */
+  private static final int HEADER_SIZE = 4 + 4 + 8;
+
+  /** Offset of the generation in the file header. */
+  private static final int GENERATION_OFFSET = 8;
+
+  /** Size of a record prefix, in bytes: body length and CRC. */
+  private static final int RECORD_PREFIX_SIZE = 4 + 4;
+
+  /** Cell count of tombstone records. */
+  private static final int TOMBSTONE = -1;
+
+  /** File the cache is mapped from. */
+  private final RandomAccessFile mFile;
+
+  /** Exclusive lock on the file, held until the cache is closed. */
+  private final FileLock mFileLock;
+
+  /** Mapped file content. Guarded by mLock. */
+  private final MappedByteBuffer mBuffer;
+
+  /** Guards the mapped buffer and the index. */
+  private final ReadWriteLock mLock = new ReentrantReadWriteLock();
+
+  /**
+   * Map from cache key to data request digest to the offset of the most recent record.
+   * Guarded by mLock.
+   */
+  private final Map<ByteBuffer, Map<ByteBuffer, Integer>> mIndex = Maps.newHashMap();
+
+  /** Generation of the log. Guarded by mLock. */
+  private long mGeneration;
+
+  /** Offset where the next record is appended. Guarded by mLock. */
+  private int mWritePosition;
+
+  /** Number of lookups served by the cache. */
+  private final AtomicLong mHitCount = new AtomicLong(0);
+
+  /** Number of lookups not served by the cache. */
+  private final AtomicLong mMissCount = new AtomicLong(0);
+
+  /**
+   * Opens a row cache, creating the file if necessary.
+   *
+   * @param file File to map the cache from.
+   * @param capacity Size of the file, in bytes.
+   * @throws IOException on I/O error, or if the file is used by another row cache.
+   */
+  public MappedRowCache(File file, long capacity) throws IOException {
+    Preconditions.checkArgument((capacity > HEADER_SIZE) && (capacity <= Integer.MAX_VALUE),
+        "Invalid row cache capacity: %s bytes.", capacity);
+    mFile = new RandomAccessFile(file, "rw");
+    boolean success = false;
+    try {
+      mFileLock = tryLock(mFile.getChannel());
+      if (mFileLock == null) {
+        throw new IOException(String.format(
+            "Row cache file '%s' is used by another row cache.", file));
+      }
+      final boolean exists = (mFile.length() >= HEADER_SIZE);
+      mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+      if (exists && (mBuffer.getInt(0) == MAGIC) && (mBuffer.getInt(4) == VERSION)) {
+        mGeneration = mBuffer.getLong(GENERATION_OFFSET);
+        recover();
+      } else {
+        mBuffer.putInt(0, MAGIC);
+        mBuffer.putInt(4, VERSION);
+        mGeneration = 0;
+        reset();
+      }
+      success = true;
+    } finally {
+      if (!success) {
+        mFile.close();
+      }
+    }
+    LOG.info("Opened row cache '{}' with {} rows, {} bytes used out of {}.",
+        file, mIndex.size(), mWritePosition, capacity);
+  }
+
+  /**
+   * Tries to lock a file exclusively.
+   *
+   * @param channel Channel of the file to lock.
+   * @return the lock, or null if the file is locked by another process or by this process.
+   * @throws IOException on I/O error.
+   */
+  private static FileLock tryLock(FileChannel channel) throws IOException {
+    try {
+      return channel.tryLock();
+    } catch (OverlappingFileLockException ofle) {
+      return null;
+    }
+  }
+
+  /**
+   * Rebuilds the index by scanning the records of the current generation.
+   *
+   * <p> The scan stops at the first record that is truncated, corrupted or from another
+   *   generation: appends resume from there. </p>
+   */
+  private void recover() {
+    int position = HEADER_SIZE;
+    while (position + RECORD_PREFIX_SIZE <= mBuffer.capacity()) {
+      final int bodyLength = mBuffer.getInt(position);
+      if ((bodyLength <= 8)
+          || (bodyLength > mBuffer.capacity() - position - RECORD_PREFIX_SIZE)) {
+        break;
+      }
+      final ByteBuffer body = slice(position + RECORD_PREFIX_SIZE, bodyLength);
+      if ((mBuffer.getInt(position + 4) != crc(body)) || (body.getLong() != mGeneration)) {
+        break;
+      }
+      final ByteBuffer key = ByteBuffer.wrap(readBytes(body));
+      final ByteBuffer digest = ByteBuffer.wrap(readBytes(body));
+      body.getLong();  // fetch time
+      body.getLong();  // start time
+      body.getLong();  // end time
+      readBytes(body);  // row key
+      index(key, digest, (body.getInt() == TOMBSTONE) ? null : position);
+      position += RECORD_PREFIX_SIZE + bodyLength;
+    }
+    mWritePosition = position;
+  }
+
+  /** Clears the cache and starts a new generation of the log. Requires the write lock. */
+  private void reset() {
+    mGeneration += 1;
+    mBuffer.putLong(GENERATION_OFFSET, mGeneration);
+    if (HEADER_SIZE + RECORD_PREFIX_SIZE <= mBuffer.capacity()) {
+      mBuffer.putInt(HEADER_SIZE, 0);
+    }
+    mIndex.clear();
+    mWritePosition = HEADER_SIZE;
+  }
+
+  /**
+   * Updates the index with a record. Requires the write lock.
+   *
+   * @param key Cache key of the row.
+   * @param digest Digest of the data request the record was fetched with.
+   * @param position Offset of the record, or null for a tombstone.
+   */
+  private void index(ByteBuffer key, ByteBuffer digest, Integer position) {
+    if (position == null) {
+      mIndex.remove(key);
+      return;
+    }
+    Map<ByteBuffer, Integer> records = mIndex.get(key);
+    if (records == null) {
+      records = Maps.newHashMap();
+      mIndex.put(key, records);
+    }
+    records.put(digest, position);
+  }
+
+  /**
+   * Builds the cache key of a row.
+   *
+   * @param tableName Name of the table the row belongs to.
+   * @param layoutId ID of the table layout the row was fetched with.
+   * @param rowKey HBase row key.
+   * @return the cache key of the row.
+   */
+  private static byte[] cacheKey(String tableName, String layoutId, byte[] rowKey) {
+    return Bytes.add(
+        Bytes.toBytes(tableName + "\u0000" + layoutId + "\u0000"),
+        rowKey);
+  }
+
+  /**
+   * Looks up the cells of a row.
+   *
+   * @param tableName Name of the table the row belongs to.
+   * @param layoutId ID of the table layout the row was fetched with.
+   * @param requestDigest Digest of the data request the row must have been fetched with.
+   * @param rowKey HBase row key.
+   * @param startTime Start of the time range the row must have been fetched with.
+   * @param endTime End of the time range the row must have been fetched with.
+   * @param maxAgeMillis Maximum age of the cached row, in milliseconds.
+   * @return the cells of the row, or null if the row is not cached or is too old.
+   */
+  public KeyValue[] get(
+      String tableName,
+      String layoutId,
+      byte[] requestDigest,
+      byte[] rowKey,
+      long startTime,
+      long endTime,
+      long maxAgeMillis) {
+    final ByteBuffer key = ByteBuffer.wrap(cacheKey(tableName, layoutId, rowKey));
+    mLock.readLock().lock();
+    try {
+      final Map<ByteBuffer, Integer> records = mIndex.get(key);
+      final Integer position =
+          (records != null) ? records.get(ByteBuffer.wrap(requestDigest)) : null;
+      if (position != null) {
+        final ByteBuffer body =
+            slice(position + RECORD_PREFIX_SIZE, mBuffer.getInt(position));
+        body.getLong();  // generation
+        readBytes(body);  // cache key
+        readBytes(body);  // data request digest
+        final long fetchTime = body.getLong();
+        if ((body.getLong() == startTime)
+            && (body.getLong() == endTime)
+            && (System.currentTimeMillis() - fetchTime < maxAgeMillis)) {
+          mHitCount.incrementAndGet();
+          return readCells(body);
+        }
+      }
+    } finally {
+      mLock.readLock().unlock();
+    }
+    mMissCount.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Caches the cells of a row.
+   *
+   * @param tableName Name of the table the row belongs to.
+   * @param layoutId ID of the table layout the row was fetched with.
+   * @param requestDigest Digest of the data request the row was fetched with.
+   * @param rowKey HBase row key.
+   * @param startTime Start of the time range the row was fetched with.
+   * @param endTime End of the time range the row was fetched with.
+   * @param fetchTime Time the row was fetched, in milliseconds since the Epoch.
+   * @param cells Cells of the row.
+   */
+  public void put(
+      String tableName,
+      String layoutId,
+      byte[] requestDigest,
+      byte[] rowKey,
+      long startTime,
+      long endTime,
+      long fetchTime,
+      KeyValue[] cells) {
+    append(cacheKey(tableName, layoutId, rowKey), requestDigest, rowKey,
+        startTime, endTime, fetchTime, cells);
+  }
+
+  /**
+   * Removes a row from the cache, for all the data requests it was cached with.
+   *
+   * @param tableName Name of the table the row belongs to.
+   * @param layoutId ID of the table layout of the row.
+   * @param rowKey HBase row key.
+   */
+  public void invalidate(String tableName, String layoutId, byte[] rowKey) {
+    final byte[] key = cacheKey(tableName, layoutId, rowKey);
+    mLock.readLock().lock();
+    try {
+      if (!mIndex.containsKey(ByteBuffer.wrap(key))) {
+        return;
+      }
+    } finally {
+      mLock.readLock().unlock();
+    }
+    append(key, new byte[0], rowKey, 0, 0, 0, null);
+  }
+
+  /**
+   * Appends a record to the log and updates the index.
+   *
+   * @param key Cache key of the row.
+   * @param requestDigest Digest of the data request the row was fetched with.
+   * @param rowKey HBase row key.
+   * @param startTime
+   * @param endTime
+   * @param fetchTime
+   * @param cells Cells of the row, or null for a tombstone.
+   */
+  private void append(
+      byte[] key,
+      byte[] requestDigest,
+      byte[] rowKey,
+      long startTime,
+      long endTime,
+      long fetchTime,
+      KeyValue[] cells) {
+    int bodyLength = 8 + (4 + key.length) + (4 + requestDigest.length) + 8 + 8 + 8
+        + (4 + rowKey.length) + 4;
+    if (cells != null) {
+      bodyLength += 4;
+      for (final KeyValue cell : cells) {
+        bodyLength += cell.getLength();
+      }
+    }
+    final int recordLength = RECORD_PREFIX_SIZE + bodyLength;
+    if (recordLength > mBuffer.capacity() - HEADER_SIZE) {
+      LOG.debug("Row '{}' is too large to be cached: {} bytes.",
+          Bytes.toStringBinary(rowKey), recordLength);
+      return;
+    }
+
+    mLock.writeLock().lock();
+    try {
+      if (mWritePosition + recordLength > mBuffer.capacity()) {
+        LOG.debug("Row cache is full, starting generation {}.", mGeneration + 1);
+        reset();
+      }
+      final int position = mWritePosition;
+      final ByteBuffer body = slice(position + RECORD_PREFIX_SIZE, bodyLength);
+      body.putLong(mGeneration);
+      writeBytes(body, key);
+      writeBytes(body, requestDigest);
+      body.putLong(fetchTime);
+      body.putLong(startTime);
+      body.putLong(endTime);
+      writeBytes(body, rowKey);
+      if (cells == null) {
+        body.putInt(TOMBSTONE);
+      } else {
+        body.putInt(cells.length);
+        body.putInt(bodyLength - body.position() - 4);
+        for (final KeyValue cell : cells) {
+          body.put(cell.getBuffer(), cell.getOffset(), cell.getLength());
+        }
+      }
+      body.flip();
+
+      // Terminate the log before publishing the record, so that recovery stops there:
+      final int next = position + recordLength;
+      if (next + RECORD_PREFIX_SIZE <= mBuffer.capacity()) {
+        mBuffer.putInt(next, 0);
+      }
+      mBuffer.putInt(position + 4, crc(body));
+      mBuffer.putInt(position, bodyLength);
+      mWritePosition = next;
+
+      index(ByteBuffer.wrap(key), ByteBuffer.wrap(requestDigest),
+          (cells == null) ? null : position);
+    } finally {
+      mLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Decodes the cells of a record.
+   *
+   * <p> The serialized cells are copied at once, and the KeyValues share the copy. </p>
+   *
+   * @param body Record body, positioned on the row key.
+   * @return the decoded cells.
+   */
+  private static KeyValue[] readCells(ByteBuffer body) {
+    readBytes(body);  // row key
+    final int count = body.getInt();
+    final byte[] bytes = readBytes(body);
+    final KeyValue[] cells = new KeyValue[count];
+    int offset = 0;
+    for (int i = 0; i < count; ++i) {
+      final int length = KeyValue.KEYVALUE_INFRASTRUCTURE_SIZE
+          + Bytes.toInt(bytes, offset)
+          + Bytes.toInt(bytes, offset + Bytes.SIZEOF_INT);
+      cells[i] = new KeyValue(bytes, offset, length);
+      offset += length;
+    }
+    return cells;
+  }
+
+  /**
+   * Creates a view of a region of the mapped file.
+   *
+   * @param offset Offset of the region.
+   * @param length Length of the region.
+   * @return a buffer positioned at the beginning of the region.
+   */
+  private ByteBuffer slice(int offset, int length) {
+    final ByteBuffer view = mBuffer.duplicate();
+    view.position(offset);
+    view.limit(offset + length);
+    return view.slice();
+  }
+
+  /**
+   * Computes the CRC of a record body.
+   *
+   * @param body Record body. Its position is left unchanged.
+   * @return the CRC of the record body.
+   */
+  private static int crc(ByteBuffer body) {
+    final ByteBuffer view = body.duplicate();
+    final CRC32 crc = new CRC32();
+    while (view.hasRemaining()) {
+      crc.update(view.get());
+    }
+    return (int) crc.getValue();
+  }
+
+  /**
+   * Reads a length-prefixed byte array.
+   *
+   * @param buffer Buffer to read from.
+   * @return the byte array.
+   */
+  private static byte[] readBytes(ByteBuffer buffer) {
+    final byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return bytes;
+  }
+
+  /**
+   * Writes a length-prefixed byte array.
+   *
+   * @param buffer Buffer to write to.
+   * @param bytes Byte array to write.
+   */
+  private static void writeBytes(ByteBuffer buffer, byte[] bytes) {
+    buffer.putInt(bytes.length);
+    buffer.put(bytes);
+  }
+
+  /** @return the number of lookups served by the cache. */
+  public long getHitCount() {
+    return mHitCount.get();
+  }
+
+  /** @return the number of lookups not served by the cache. */
+  public long getMissCount() {
+    return mMissCount.get();
+  }
+
+  /**
+   * Flushes the cache to the file and closes it.
+   *
+   * <p> The mapping itself is released when the buffer is garbage collected. </p>
+   */
+  @Override
+  public void close() throws IOException {
+    mLock.writeLock().lock();
+    try {
+      mBuffer.force();
+      mFileLock.release();
+      mFile.close();
+    } finally {
+      mLock.writeLock().unlock();
+    }
+  }
+}
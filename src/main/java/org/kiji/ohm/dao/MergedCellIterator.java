@@ -0,0 +1,265 @@
+package org.kiji.ohm.dao;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.kiji.ohm.annotations.KijiColumn;
+import org.kiji.schema.ColumnVersionIterator;
+import org.kiji.schema.EntityId;
+import org.kiji.schema.KijiCell;
+import org.kiji.schema.KijiDataRequest;
+import org.kiji.schema.KijiDataRequestBuilder;
+import org.kiji.schema.KijiDataRequestBuilder.ColumnsDef;
+import org.kiji.schema.KijiRowData;
+import org.kiji.schema.KijiTableReader;
+
+/**
+ * Iterator over the versions of a column across many rows, merged by timestamp.
+ *
+ * <p> The first page of every row is fetched up front, in a single bulk get. A row whose first
+ *   page is full is then read through its own pager, one page at a time, once the merge
+ *   reaches the end of its first page. The rows are merged with a heap holding the next version
+ *   of each row: memory is proportional to the number of rows times the page size, not to the
+ *   number of cells. Cells are returned from the most recent to the oldest, the order Kiji
+ *   returns versions in; cells with the same timestamp are returned in the order of the entity
+ *   IDs. </p>
+ *
+ * <p> The iterator must be closed to release the pagers, whether or not it was iterated until
+ *   the end. </p>
+ *
+ * @param <V> Type of the cell values.
+ */
+public final class MergedCellIterator<V> implements Iterator<EntityCell<V>>, Closeable {
+  /** Head of the remaining versions of a row. */
+  private static final class RowHead<V> implements Comparable<RowHead<V>> {
+    /** Position of the row in the entity IDs, to break timestamp ties. */
+    private final int mIndex;
+
+    /** Entity ID of the row, in the entity table. */
+    private final EntityId mEntityId;
+
+    /** Entity ID of the row, in the table the column is mapped to. */
+    private final EntityId mRowId;
+
+    /** Remaining versions of the row, most recent first: the first page, then the pager. */
+    private Iterator<Map.Entry<Long, V>> mVersions;
+
+    /** Pager over the versions following the first page, or null if not opened. */
+    private ColumnVersionIterator<V> mPager = null;
+
+    /** Number of versions read from the first page so far. */
+    private int mFirstPageCount = 0;
+
+    /** Next version of the row. */
+    private Map.Entry<Long, V> mNext = null;
+
+    /**
+     * Initializes a row head.
+     *
+     * @param index Position of the row in the entity IDs.
+     * @param entityId Entity ID of the row, in the entity table.
+     * @param row First page of the versions of the row.
+     * @param column Column merged.
+     * @throws IOException on I/O error.
+     */
+    RowHead(int index, EntityId entityId, KijiRowData row, KijiColumn column)
+        throws IOException {
+      mIndex = index;
+      mEntityId = entityId;
+      mRowId = row.getEntityId();
+      final List<Map.Entry<Long, V>> firstPage = Lists.newArrayList();
+      if (row.containsColumn(column.family(), column.qualifier())) {
+        final Iterator<KijiCell<V>> cells = row.<V>iterator(column.family(), column.qualifier());
+        while (cells.hasNext()) {
+          final KijiCell<V> cell = cells.next();
+          firstPage.add(Maps.immutableEntry(cell.getTimestamp(), cell.getData()));
+        }
+      }
+      mVersions = firstPage.iterator();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int compareTo(RowHead<V> other) {
+      // Most recent first:
+      final int cmp = other.mNext.getKey().compareTo(mNext.getKey());
+      return (cmp != 0) ? cmp : (mIndex - other.mIndex);
+    }
+  }
+
+  /** Specification of the entities, leased by this iterator until closed. */
+  private final EntitySpec<?> mSpec;
+
+  /** Column merged. */
+  private final KijiColumn mColumn;
+
+  /** Reader the rows were fetched with, returned to the pool when closed. */
+  private final KijiTableReader mReader;
+
+  /** Number of versions per page. */
+  private final int mPageSize;
+
+  /** Start of the time range, inclusive. */
+  private final long mStartTime;
+
+  /** All the row heads, to close their pagers. */
+  private final List<RowHead<V>> mRows;
+
+  /** Heads of the rows with remaining versions, most recent next version first. */
+  private final PriorityQueue<RowHead<V>> mHeap;
+
+  /** Whether this iterator is closed. */
+  private boolean mClosed = false;
+
+  /**
+   * Initializes a merged iterator.
+   *
+   * <p> The merged iterator takes ownership of the specification lease and of the reader. </p>
+   *
+   * @param spec Specification of the entities, leased by the caller.
+   * @param column Fully-qualified column to merge.
+   * @param reader Reader the rows were fetched with, acquired for the column.
+   * @param entityIds Entity IDs of the rows, in the entity table.
+   * @param rows First page of the versions of each row, in the order of the entity IDs.
+   * @param pageSize Number of versions per page.
+   * @param startTime Start of the time range the rows were fetched with, inclusive.
+   * @throws IOException on I/O error.
+   */
+  MergedCellIterator(
+      EntitySpec<?> spec,
+      KijiColumn column,
+      KijiTableReader reader,
+      List<EntityId> entityIds,
+      List<KijiRowData> rows,
+      int pageSize,
+      long startTime)
+      throws IOException {
+    mSpec = spec;
+    mColumn = column;
+    mReader = reader;
+    mPageSize = pageSize;
+    mStartTime = startTime;
+    mRows = Lists.newArrayListWithCapacity(rows.size());
+    mHeap = new PriorityQueue<RowHead<V>>(Math.max(1, rows.size()));
+    for (int i = 0; i < rows.size(); ++i) {
+      final RowHead<V> head = new RowHead<V>(i, entityIds.get(i), rows.get(i), column);
+      mRows.add(head);
+      if (advance(head)) {
+        mHeap.add(head);
+      }
+    }
+  }
+
+  /**
+   * Moves a row head to the next version of its row.
+   *
+   * <p> Opens the pager of the row when the merge reaches the end of a full first page. </p>
+   *
+   * @param head Row head to advance.
+   * @return whether the row has a next version.
+   */
+  private boolean advance(RowHead<V> head) {
+    if (!head.mVersions.hasNext()
+        && (head.mPager == null)
+        && (head.mFirstPageCount == mPageSize)
+        && (mColumn.maxVersions() > mPageSize)
+        && (head.mNext.getKey() > mStartTime)) {
+      try {
+        head.mPager = openPager(head.mRowId, head.mNext.getKey());
+      } catch (IOException ioe) {
+        throw new RuntimeException(ioe);
+      }
+      head.mVersions = head.mPager;
+    }
+    if (!head.mVersions.hasNext()) {
+      head.mNext = null;
+      return false;
+    }
+    head.mNext = head.mVersions.next();
+    if (head.mPager == null) {
+      head.mFirstPageCount += 1;
+    }
+    return true;
+  }
+
+  /**
+   * Opens a pager over the versions of a row following its first page.
+   *
+   * @param rowId Entity ID of the row, in the table the column is mapped to.
+   * @param endTime Timestamp of the oldest version in the first page, exclusive.
+   * @return a pager over the versions of the row older than the first page.
+   * @throws IOException on I/O error.
+   */
+  private ColumnVersionIterator<V> openPager(EntityId rowId, long endTime) throws IOException {
+    final KijiDataRequestBuilder builder = KijiDataRequest.builder();
+    builder.withTimeRange(mStartTime, endTime);
+    builder.addColumns(ColumnsDef.create()
+        .withMaxVersions(mColumn.maxVersions() - mPageSize)
+        .withPageSize(mPageSize)
+        .add(mColumn.family(), mColumn.qualifier()));
+    final KijiRowData row = mReader.get(rowId, builder.build());
+    return new ColumnVersionIterator<V>(row, mColumn.family(), mColumn.qualifier(), mPageSize);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean hasNext() {
+    return !mClosed && !mHeap.isEmpty();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public EntityCell<V> next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    final RowHead<V> head = mHeap.poll();
+    final EntityCell<V> cell = new EntityCell<V>(head.mEntityId, new KijiCell<V>(
+        mColumn.family(), mColumn.qualifier(), head.mNext.getKey(), head.mNext.getValue()));
+    if (advance(head)) {
+      mHeap.add(head);
+    }
+    return cell;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Closes the pagers of the rows and releases the resources held by this iterator.
+   *
+   * <p> Subsequent calls have no effect. </p>
+   */
+  @Override
+  public void close() throws IOException {
+    if (mClosed) {
+      return;
+    }
+    mClosed = true;
+    mHeap.clear();
+    try {
+      for (final RowHead<V> head : mRows) {
+        if (head.mPager != null) {
+          head.mPager.close();
+        }
+      }
+    } finally {
+      try {
+        mSpec.releaseReader(mColumn, mReader);
+      } finally {
+        mSpec.release();
+      }
+    }
+  }
+}
@@ -0,0 +1,128 @@
+package org.kiji.ohm.dao;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+
+import com.google.common.collect.AbstractIterator;
+
+import org.kiji.ohm.annotations.KijiColumn;
+import org.kiji.schema.ColumnVersionIterator;
+import org.kiji.schema.KijiCell;
+import org.kiji.schema.KijiRowData;
+import org.kiji.schema.KijiTableReader;
+import org.kiji.schema.MapFamilyVersionIterator;
+
+/**
+ * Iterator over the cells of a column or map-type family fetched with paging enabled.
+ *
+ * <p> Cells are read one page at a time, and the iterator holds the reader the row was fetched
+ *   with until it is closed. Cells of a map-type family are returned qualifier by qualifier,
+ *   most recent first, and only for the qualifiers matching the restriction. </p>
+ *
+ * <p> Subsequent calls to close have no effect. Not thread-safe. </p>
+ */
+final class PagedCellIterator extends AbstractIterator<KijiCell<Object>> implements Closeable {
+  /** Specification the reader was acquired from. */
+  private final EntitySpec<?> mSpec;
+
+  /** Column iterated over. */
+  private final KijiColumn mColumn;
+
+  /** Reader the row was fetched with, released when closed. */
+  private final KijiTableReader mReader;
+
+  /** Qualifier restriction on the map-type family, or null. */
+  private final QualifierRestriction mRestriction;
+
+  /** Versions of the fully-qualified column, or null for a map-type family. */
+  private final ColumnVersionIterator<Object> mColumnVersions;
+
+  /** Versions of the map-type family, or null for a fully-qualified column. */
+  private final MapFamilyVersionIterator<Object> mFamilyVersions;
+
+  /** Whether this iterator is closed. */
+  private boolean mClosed = false;
+
+  /**
+   * Initializes an iterator over the cells of a paged column.
+   *
+   * <p> The iterator takes ownership of the reader. </p>
+   *
+   * @param spec Specification the reader was acquired from.
+   * @param column Column to iterate over, fully-qualified or map-type family.
+   * @param reader Reader the row was fetched with, acquired for the column.
+   * @param row Row fetched with paging enabled on the column.
+   * @param restriction Qualifier restriction on the map-type family, or null.
+   * @param pageSize Number of cells per page.
+   * @throws IOException on I/O error.
+   */
+  PagedCellIterator(
+      EntitySpec<?> spec,
+      KijiColumn column,
+      KijiTableReader reader,
+      KijiRowData row,
+      QualifierRestriction restriction,
+      int pageSize)
+      throws IOException {
+    mSpec = spec;
+    mColumn = column;
+    mReader = reader;
+    mRestriction = restriction;
+    if (column.qualifier().isEmpty()) {
+      mColumnVersions = null;
+      mFamilyVersions =
+          new MapFamilyVersionIterator<Object>(row, column.family(), pageSize, pageSize);
+    } else {
+      mColumnVersions = new ColumnVersionIterator<Object>(
+          row, column.family(), column.qualifier(), pageSize);
+      mFamilyVersions = null;
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected KijiCell<Object> computeNext() {
+    if (mClosed) {
+      return endOfData();
+    }
+    if (mColumnVersions != null) {
+      if (!mColumnVersions.hasNext()) {
+        return endOfData();
+      }
+      final Map.Entry<Long, Object> entry = mColumnVersions.next();
+      return new KijiCell<Object>(
+          mColumn.family(), mColumn.qualifier(), entry.getKey(), entry.getValue());
+    }
+    while (mFamilyVersions.hasNext()) {
+      final MapFamilyVersionIterator.Entry<Object> entry = mFamilyVersions.next();
+      if ((mRestriction == null) || mRestriction.matches(entry.getQualifier())) {
+        return new KijiCell<Object>(
+            mColumn.family(), entry.getQualifier(), entry.getTimestamp(), entry.getValue());
+      }
+    }
+    return endOfData();
+  }
+
+  /**
+   * Closes the pager and releases the reader.
+   *
+   * <p> Subsequent calls have no effect. </p>
+   */
+  @Override
+  public void close() throws IOException {
+    if (mClosed) {
+      return;
+    }
+    mClosed = true;
+    try {
+      if (mColumnVersions != null) {
+        mColumnVersions.close();
+      } else {
+        mFamilyVersions.close();
+      }
+    } finally {
+      mSpec.releaseReader(mColumn, mReader);
+    }
+  }
+}
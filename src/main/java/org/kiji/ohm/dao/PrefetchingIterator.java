@@ -0,0 +1,263 @@
+package org.kiji.ohm.dao;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Iterator over a pager that fetches pages ahead of the consumer, in the background.
+ *
+ * <p> Elements are pulled from the wrapped pager one page at a time by a background task, while
+ *   the consumer iterates over the pages already fetched. At most <tt>depth</tt> pages are
+ *   buffered ahead of the consumer. The wrapped pager is only ever accessed by one background
+ *   task at a time. </p>
+ *
+ * <p> Closing the iterator cancels the in-flight fetch, if any, and closes the wrapped pager.
+ *   The iterator itself is meant to be consumed and closed by a single thread. </p>
+ *
+ * @param <E> Type of the elements.
+ */
+public final class PrefetchingIterator<E> implements Iterator<E>, Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(PrefetchingIterator.class);
+
+  /** Page of elements fetched from the wrapped pager. */
+  private static final class Page<E> {
+    /** Elements of the page. */
+    private final List<E> mElements;
+
+    /** Whether this is the last page. */
+    private final boolean mLast;
+
+    /** Error raised while fetching the page, or null. */
+    private final Throwable mError;
+
+    private Page(List<E> elements, boolean last, Throwable error) {
+      mElements = elements;
+      mLast = last;
+      mError = error;
+    }
+  }
+
+  /** Wrapped pager. */
+  private final Iterator<E> mSource;
+
+  /** Resource of the wrapped pager, released when this iterator is closed. */
+  private final Closeable mSourceResource;
+
+  /** Number of elements per page. */
+  private final int mPageSize;
+
+  /** Maximum number of pages buffered ahead of the consumer. */
+  private final int mDepth;
+
+  /** Executor running the background fetches. */
+  private final ExecutorService mExecutor;
+
+  /** Pages fetched ahead of the consumer. */
+  private final BlockingQueue<Page<E>> mPages = new LinkedBlockingQueue<Page<E>>();
+
+  /** Guards the state shared between the consumer and the background fetches. */
+  private final Object mLock = new Object();
+
+  /** Background fetch, either scheduled or running, or null. Guarded by mLock. */
+  private Future<?> mFetch = null;
+
+  /** Whether the background fetch is running. Guarded by mLock. */
+  private boolean mRunning = false;
+
+  /** Whether the wrapped pager is exhausted or failed. Guarded by mLock. */
+  private boolean mSourceDone = false;
+
+  /** Whether this iterator is closed. Guarded by mLock. */
+  private boolean mClosed = false;
+
+  /** Whether the wrapped pager has been closed. Guarded by mLock. */
+  private boolean mSourceClosed = false;
+
+  /** Elements of the page being consumed. Only accessed by the consumer. */
+  private Iterator<E> mCurrent = Collections.<E>emptyList().iterator();
+
+  /** Whether the consumer reached the last page. Only accessed by the consumer. */
+  private boolean mExhausted = false;
+
+  /** Background task fetching pages until the buffer is full. */
+  private final Runnable mFetcher = new Runnable() {
+    @Override
+    public void run() {
+      fetchPages();
+    }
+  };
+
+  /**
+   * Initializes a new prefetching iterator and starts fetching the first pages.
+   *
+   * @param source Pager to wrap. Owned by this iterator, closed when this iterator is closed.
+   * @param pageSize Number of elements per page.
+   * @param depth Maximum number of pages to fetch ahead of the consumer.
+   * @param executor Executor running the background fetches.
+   */
+  public <S extends Iterator<E> & Closeable> PrefetchingIterator(
+      S source, int pageSize, int depth, ExecutorService executor) {
+    Preconditions.checkArgument(pageSize > 0, "Invalid page size: %s", pageSize);
+    Preconditions.checkArgument(depth > 0, "Invalid prefetch depth: %s", depth);
+    mSource = source;
+    mSourceResource = source;
+    mPageSize = pageSize;
+    mDepth = depth;
+    mExecutor = executor;
+    ensureFetching();
+  }
+
+  /** Schedules a background fetch if none is in flight and the buffer is not full. */
+  private void ensureFetching() {
+    synchronized (mLock) {
+      if (!mClosed && !mSourceDone && (mFetch == null) && (mPages.size() < mDepth)) {
+        mFetch = mExecutor.submit(mFetcher);
+      }
+    }
+  }
+
+  /** Fetches pages from the wrapped pager until the buffer is full or the pager is exhausted. */
+  private void fetchPages() {
+    synchronized (mLock) {
+      if (mClosed) {
+        closeSource();
+        return;
+      }
+      mRunning = true;
+    }
+    try {
+      while (true) {
+        synchronized (mLock) {
+          if (mClosed || (mPages.size() >= mDepth)) {
+            return;
+          }
+        }
+
+        Page<E> page;
+        try {
+          final List<E> elements = Lists.newArrayListWithCapacity(mPageSize);
+          while ((elements.size() < mPageSize) && mSource.hasNext()) {
+            elements.add(mSource.next());
+          }
+          page = new Page<E>(elements, !mSource.hasNext(), null);
+        } catch (Throwable thr) {
+          // Errors must reach the consumer too, or it would wait for a page forever:
+          page = new Page<E>(Collections.<E>emptyList(), true, thr);
+        }
+
+        synchronized (mLock) {
+          mPages.add(page);
+          if (page.mLast) {
+            mSourceDone = true;
+            return;
+          }
+        }
+      }
+    } finally {
+      synchronized (mLock) {
+        mRunning = false;
+        mFetch = null;
+        if (mClosed) {
+          closeSource();
+        }
+      }
+    }
+  }
+
+  /** Closes the wrapped pager, at most once. Must be called while holding mLock. */
+  private void closeSource() {
+    if (mSourceClosed) {
+      return;
+    }
+    mSourceClosed = true;
+    try {
+      mSourceResource.close();
+    } catch (IOException ioe) {
+      LOG.warn("Error while closing pager: {}", ioe.getMessage());
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean hasNext() {
+    while (!mCurrent.hasNext()) {
+      if (mExhausted) {
+        return false;
+      }
+      synchronized (mLock) {
+        if (mClosed) {
+          return false;
+        }
+      }
+      ensureFetching();
+      final Page<E> page;
+      try {
+        page = mPages.take();
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(ie);
+      }
+      ensureFetching();
+
+      if (page.mError != null) {
+        mExhausted = true;
+        throw Throwables.propagate(page.mError);
+      }
+      mExhausted = page.mLast;
+      mCurrent = page.mElements.iterator();
+    }
+    return true;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public E next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    return mCurrent.next();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Cancels the in-flight fetch, if any, and closes the wrapped pager.
+   *
+   * <p> When a fetch is running, the pager is closed by the fetch as soon as it completes. </p>
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (mLock) {
+      if (mClosed) {
+        return;
+      }
+      mClosed = true;
+      mPages.clear();
+      if (mFetch != null) {
+        mFetch.cancel(true);
+      }
+      if (!mRunning) {
+        closeSource();
+      }
+    }
+  }
+}
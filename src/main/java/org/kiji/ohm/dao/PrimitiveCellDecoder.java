@@ -0,0 +1,326 @@
+package org.kiji.ohm.dao;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+
+import org.apache.avro.Schema;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.kiji.ohm.annotations.KijiColumn;
+import org.kiji.schema.KijiColumnName;
+import org.kiji.schema.avro.CellSchema;
+import org.kiji.schema.avro.SchemaStorage;
+import org.kiji.schema.avro.SchemaType;
+import org.kiji.schema.layout.ColumnNameTranslator;
+import org.kiji.schema.layout.KijiTableLayout;
+import org.kiji.schema.layout.KijiTableLayout.LocalityGroupLayout.FamilyLayout;
+import org.kiji.schema.layout.KijiTableLayout.LocalityGroupLayout.FamilyLayout.ColumnLayout;
+
+/**
+ * Decoder of the most recent cell of a column into a primitive entity field.
+ *
+ * <p> The decoder reads the cell bytes from the HBase result and writes the field with a typed
+ *   setter: no wrapper object is allocated, neither for the value nor for the lookup of the
+ *   cell. Decoders are prepared from the table layout, for the columns whose cell schema is a
+ *   primitive Avro schema matching the field type, or a counter. </p>
+ *
+ * <p> Thread-safe. </p>
+ */
+final class PrimitiveCellDecoder {
+  private static final Logger LOG = LoggerFactory.getLogger(PrimitiveCellDecoder.class);
+
+  /** Size of the schema hash prefixing the cells encoded with the HASH schema storage. */
+  private static final int SCHEMA_HASH_SIZE = 16;
+
+  /** Encodings of the cell values supported by the decoder. */
+  private static enum Encoding {
+    INT, LONG, FLOAT, DOUBLE, BOOLEAN, COUNTER
+  }
+
+  /** Field to populate. */
+  private final Field mField;
+
+  /** HBase family of the column. */
+  private final byte[] mFamily;
+
+  /** HBase qualifier of the column. */
+  private final byte[] mQualifier;
+
+  /** Encoding of the cell values. */
+  private final Encoding mEncoding;
+
+  /** Storage of the schema prefixing the cell values. */
+  private final SchemaStorage mStorage;
+
+  /**
+   * Initializes a decoder.
+   *
+   * @param field Field to populate.
+   * @param family HBase family of the column.
+   * @param qualifier HBase qualifier of the column.
+   * @param encoding Encoding of the cell values.
+   * @param storage Storage of the schema prefixing the cell values.
+   */
+  private PrimitiveCellDecoder(
+      Field field, byte[] family, byte[] qualifier, Encoding encoding, SchemaStorage storage) {
+    mField = field;
+    mFamily = family;
+    mQualifier = qualifier;
+    mEncoding = encoding;
+    mStorage = storage;
+  }
+
+  /**
+   * Prepares a decoder for a field, if the field and its column are supported.
+   *
+   * @param field Field to populate, mapped to a single version of a fully-qualified column.
+   * @param column Column annotation of the field.
+   * @param layout Layout of the table the column belongs to.
+   * @return a decoder for the field, or null if the field must be decoded through Kiji.
+   */
+  public static PrimitiveCellDecoder create(
+      Field field, KijiColumn column, KijiTableLayout layout) {
+    if (!field.getType().isPrimitive()
+        || column.qualifier().isEmpty()
+        || (column.maxVersions() != 1)
+        || (column.pageSize() > 0)) {
+      return null;
+    }
+    final FamilyLayout flayout = layout.getFamilyMap().get(column.family());
+    final ColumnLayout clayout =
+        (flayout != null) ? flayout.getColumnMap().get(column.qualifier()) : null;
+    if (clayout == null) {
+      return null;
+    }
+    final CellSchema cellSchema = clayout.getDesc().getColumnSchema();
+
+    final Encoding encoding;
+    if (cellSchema.getType() == SchemaType.COUNTER) {
+      encoding = Encoding.COUNTER;
+    } else if (cellSchema.getType() == SchemaType.INLINE) {
+      encoding = getEncoding(
+          new Schema.Parser().parse(cellSchema.getValue().toString()).getType());
+    } else {
+      encoding = null;
+    }
+    if ((encoding == null) || !matches(encoding, field.getType())) {
+      return null;
+    }
+
+    try {
+      final ColumnNameTranslator translator = new ColumnNameTranslator(layout);
+      final KijiColumnName columnName = new KijiColumnName(column.family(), column.qualifier());
+      LOG.debug("Decoding field '{}' from {} cells.", field, encoding);
+      return new PrimitiveCellDecoder(
+          field,
+          translator.toHBaseColumnName(columnName).getFamily(),
+          translator.toHBaseColumnName(columnName).getQualifier(),
+          encoding,
+          cellSchema.getStorage());
+    } catch (IOException ioe) {
+      LOG.warn("Cannot translate column of field '{}': {}", field, ioe.toString());
+      return null;
+    }
+  }
+
+  /**
+   * Reports the encoding of the values of a primitive Avro schema.
+   *
+   * @param type Type of the Avro schema.
+   * @return the encoding of the values, or null if the schema is not a supported primitive.
+   */
+  private static Encoding getEncoding(Schema.Type type) {
+    switch (type) {
+      case INT: return Encoding.INT;
+      case LONG: return Encoding.LONG;
+      case FLOAT: return Encoding.FLOAT;
+      case DOUBLE: return Encoding.DOUBLE;
+      case BOOLEAN: return Encoding.BOOLEAN;
+      default: return null;
+    }
+  }
+
+  /**
+   * Reports whether values with an encoding can be written to a field of a primitive type.
+   *
+   * @param encoding Encoding of the values.
+   * @param type Primitive type of the field.
+   * @return whether the values can be written to the field.
+   */
+  private static boolean matches(Encoding encoding, Class<?> type) {
+    switch (encoding) {
+      case INT: return type == int.class;
+      case LONG: case COUNTER: return type == long.class;
+      case FLOAT: return type == float.class;
+      case DOUBLE: return type == double.class;
+      case BOOLEAN: return type == boolean.class;
+      default: return false;
+    }
+  }
+
+  /**
+   * Decodes the most recent cell of the column into the field of an entity.
+   *
+   * <p> The field is left unchanged if the result has no cell in the column. </p>
+   *
+   * @param result HBase result of the row.
+   * @param entity Entity to populate.
+   * @throws IOException if the cell is malformed.
+   * @throws IllegalAccessException if the field cannot be written.
+   */
+  public void decode(Result result, Object entity) throws IOException, IllegalAccessException {
+    final KeyValue[] kvs = result.raw();
+    if (kvs == null) {
+      return;
+    }
+    final int index = findLatest(kvs);
+    if (index < 0) {
+      return;
+    }
+    final KeyValue kv = kvs[index];
+    final byte[] bytes = kv.getBuffer();
+    final int end = kv.getValueOffset() + kv.getValueLength();
+    int pos = kv.getValueOffset();
+
+    if (mEncoding == Encoding.COUNTER) {
+      checkAvailable(pos, Bytes.SIZEOF_LONG, end);
+      mField.setLong(entity, Bytes.toLong(bytes, pos));
+      return;
+    }
+
+    // Skip the schema prefix:
+    switch (mStorage) {
+      case HASH: pos += SCHEMA_HASH_SIZE; break;
+      case UID: {
+        while ((pos < end) && ((bytes[pos] & 0x80) != 0)) {
+          pos += 1;
+        }
+        pos += 1;
+        break;
+      }
+      case FINAL: break;
+      default: throw new IOException("Unsupported schema storage: " + mStorage);
+    }
+
+    switch (mEncoding) {
+      case INT: {
+        int raw = 0;
+        int shift = 0;
+        int b;
+        do {
+          checkAvailable(pos, 1, end);
+          b = bytes[pos++] & 0xff;
+          raw |= (b & 0x7f) << shift;
+          shift += 7;
+        } while ((b & 0x80) != 0);
+        mField.setInt(entity, (raw >>> 1) ^ -(raw & 1));
+        break;
+      }
+      case LONG: {
+        long raw = 0;
+        int shift = 0;
+        int b;
+        do {
+          checkAvailable(pos, 1, end);
+          b = bytes[pos++] & 0xff;
+          raw |= (long) (b & 0x7f) << shift;
+          shift += 7;
+        } while ((b & 0x80) != 0);
+        mField.setLong(entity, (raw >>> 1) ^ -(raw & 1));
+        break;
+      }
+      case FLOAT: {
+        checkAvailable(pos, 4, end);
+        mField.setFloat(entity, Float.intBitsToFloat(readIntLittleEndian(bytes, pos)));
+        break;
+      }
+      case DOUBLE: {
+        checkAvailable(pos, 8, end);
+        final long bits = (readIntLittleEndian(bytes, pos) & 0xffffffffL)
+            | ((long) readIntLittleEndian(bytes, pos + 4) << 32);
+        mField.setDouble(entity, Double.longBitsToDouble(bits));
+        break;
+      }
+      case BOOLEAN: {
+        checkAvailable(pos, 1, end);
+        mField.setBoolean(entity, bytes[pos] != 0);
+        break;
+      }
+      default:
+        throw new IllegalStateException("Unknown encoding: " + mEncoding);
+    }
+  }
+
+  /**
+   * Finds the most recent cell of the column in the sorted cells of a row.
+   *
+   * @param kvs Cells of a row, sorted by family, qualifier and decreasing timestamp.
+   * @return the index of the most recent cell of the column, or -1 if there is none.
+   */
+  private int findLatest(KeyValue[] kvs) {
+    int low = 0;
+    int high = kvs.length;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (compareColumn(kvs[mid]) < 0) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return ((low < kvs.length) && (compareColumn(kvs[low]) == 0)) ? low : -1;
+  }
+
+  /**
+   * Compares the column of a cell with the column of this decoder.
+   *
+   * @param kv Cell to compare.
+   * @return a negative number, zero or a positive number if the column of the cell sorts
+   *     before, equal to or after the column of this decoder.
+   */
+  private int compareColumn(KeyValue kv) {
+    final byte[] buffer = kv.getBuffer();
+    final int familyOffset = kv.getFamilyOffset();
+    final int familyLength = kv.getFamilyLength(familyOffset);
+    final int cmp = Bytes.compareTo(
+        buffer, familyOffset, familyLength, mFamily, 0, mFamily.length);
+    if (cmp != 0) {
+      return cmp;
+    }
+    return Bytes.compareTo(
+        buffer, familyOffset + familyLength, kv.getQualifierLength(), mQualifier, 0,
+        mQualifier.length);
+  }
+
+  /**
+   * Reads a little-endian int.
+   *
+   * @param bytes Bytes to read from.
+   * @param pos Position of the int.
+   * @return the int.
+   */
+  private static int readIntLittleEndian(byte[] bytes, int pos) {
+    return (bytes[pos] & 0xff)
+        | ((bytes[pos + 1] & 0xff) << 8)
+        | ((bytes[pos + 2] & 0xff) << 16)
+        | ((bytes[pos + 3] & 0xff) << 24);
+  }
+
+  /**
+   * Checks that a cell value holds enough bytes.
+   *
+   * @param pos Position of the next byte to read.
+   * @param length Number of bytes to read.
+   * @param end End of the cell value.
+   * @throws IOException if the cell value is truncated.
+   */
+  private static void checkAvailable(int pos, int length, int end) throws IOException {
+    if (pos + length > end) {
+      throw new IOException("Truncated cell value.");
+    }
+  }
+}
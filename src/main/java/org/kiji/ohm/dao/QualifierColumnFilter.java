@@ -0,0 +1,113 @@
+package org.kiji.ohm.dao;
+
+import java.io.IOException;
+import java.util.List;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+
+import org.apache.hadoop.hbase.filter.BinaryComparator;
+import org.apache.hadoop.hbase.filter.ColumnPrefixFilter;
+import org.apache.hadoop.hbase.filter.ColumnRangeFilter;
+import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.QualifierFilter;
+
+import org.kiji.schema.KijiColumnName;
+import org.kiji.schema.filter.KijiColumnFilter;
+
+/**
+ * Column filter pushing a qualifier restriction on a map-type family down to HBase.
+ *
+ * <p> Kiji qualifiers are translated into HBase qualifiers through the filter context: the
+ *   translation of a map-type family qualifier is the translation of the empty qualifier
+ *   followed by the qualifier bytes, so prefixes and ranges are preserved. </p>
+ */
+final class QualifierColumnFilter extends KijiColumnFilter {
+  private static final long serialVersionUID = 1L;
+
+  /** Restriction to push down. */
+  private final QualifierRestriction mRestriction;
+
+  /**
+   * Initializes a new column filter for a qualifier restriction.
+   *
+   * @param restriction Restriction to push down.
+   */
+  QualifierColumnFilter(QualifierRestriction restriction) {
+    mRestriction = restriction;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Filter toHBaseFilter(KijiColumnName kijiColumnName, Context context)
+      throws IOException {
+    final String family = kijiColumnName.getFamily();
+    final List<Filter> filters = Lists.newArrayList();
+
+    // Always bound the filter to the family, whose HBase qualifiers share a common prefix:
+    final String prefix = (mRestriction.getPrefix() != null) ? mRestriction.getPrefix() : "";
+    filters.add(new ColumnPrefixFilter(toHBaseQualifier(family, prefix, context)));
+
+    if ((mRestriction.getMin() != null) || (mRestriction.getMax() != null)) {
+      filters.add(new ColumnRangeFilter(
+          (mRestriction.getMin() != null)
+              ? toHBaseQualifier(family, mRestriction.getMin(), context)
+              : null,
+          true,
+          (mRestriction.getMax() != null)
+              ? toHBaseQualifier(family, mRestriction.getMax(), context)
+              : null,
+          false));
+    }
+
+    if (mRestriction.getQualifiers() != null) {
+      final FilterList qualifiers = new FilterList(FilterList.Operator.MUST_PASS_ONE);
+      for (final String qualifier : mRestriction.getQualifiers()) {
+        qualifiers.addFilter(new QualifierFilter(CompareOp.EQUAL,
+            new BinaryComparator(toHBaseQualifier(family, qualifier, context))));
+      }
+      filters.add(qualifiers);
+    }
+
+    return (filters.size() == 1)
+        ? filters.get(0)
+        : new FilterList(FilterList.Operator.MUST_PASS_ALL, filters);
+  }
+
+  /**
+   * Translates a map-type family qualifier into an HBase qualifier.
+   *
+   * @param family Map-type family.
+   * @param qualifier Kiji qualifier.
+   * @param context Filter context.
+   * @return the HBase qualifier.
+   * @throws IOException on I/O error.
+   */
+  private static byte[] toHBaseQualifier(String family, String qualifier, Context context)
+      throws IOException {
+    return context.getHBaseColumnName(new KijiColumnName(family, qualifier)).getQualifier();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean equals(Object other) {
+    return (other instanceof QualifierColumnFilter)
+        && mRestriction.equals(((QualifierColumnFilter) other).mRestriction);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int hashCode() {
+    return mRestriction.hashCode();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("restriction", mRestriction)
+        .toString();
+  }
+}
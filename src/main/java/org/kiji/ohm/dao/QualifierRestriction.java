@@ -0,0 +1,204 @@
+package org.kiji.ohm.dao;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Set;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSortedSet;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+import org.kiji.ohm.annotations.KijiColumn;
+import org.kiji.schema.filter.KijiColumnFilter;
+
+/**
+ * Restriction on the qualifiers fetched from a map-type family.
+ *
+ * <p> A restriction combines an optional qualifier prefix, an optional qualifier range and an
+ *   optional explicit set of qualifiers: a qualifier matches when it satisfies all of them.
+ *   Ranges compare qualifiers as UTF-8 bytes, which is the order of the qualifiers in HBase. </p>
+ *
+ * <p> Restrictions are pushed down to the region servers as column filters, so that only the
+ *   matching qualifiers are fetched. Restrictions are immutable. </p>
+ */
+public final class QualifierRestriction implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  /** Qualifier prefix, or null. */
+  private final String mPrefix;
+
+  /** Inclusive lower bound of the qualifier range, or null for no lower bound. */
+  private final String mMin;
+
+  /** Exclusive upper bound of the qualifier range, or null for no upper bound. */
+  private final String mMax;
+
+  /** Explicit set of qualifiers, or null. */
+  private final ImmutableSortedSet<String> mQualifiers;
+
+  /**
+   * Initializes a new qualifier restriction.
+   *
+   * @param prefix Qualifier prefix, or null.
+   * @param min Inclusive lower bound of the qualifier range, or null.
+   * @param max Exclusive upper bound of the qualifier range, or null.
+   * @param qualifiers Explicit set of qualifiers, or null.
+   */
+  private QualifierRestriction(
+      String prefix, String min, String max, ImmutableSortedSet<String> qualifiers) {
+    mPrefix = prefix;
+    mMin = min;
+    mMax = max;
+    mQualifiers = qualifiers;
+  }
+
+  /**
+   * Creates a restriction to the qualifiers starting with a prefix.
+   *
+   * @param prefix Qualifier prefix.
+   * @return a restriction to the qualifiers starting with the given prefix.
+   */
+  public static QualifierRestriction withPrefix(String prefix) {
+    Preconditions.checkNotNull(prefix);
+    return new QualifierRestriction(prefix, null, null, null);
+  }
+
+  /**
+   * Creates a restriction to a range of qualifiers.
+   *
+   * @param min Inclusive lower bound of the range, or null for no lower bound.
+   * @param max Exclusive upper bound of the range, or null for no upper bound.
+   * @return a restriction to the given range of qualifiers.
+   */
+  public static QualifierRestriction inRange(String min, String max) {
+    Preconditions.checkArgument((min != null) || (max != null),
+        "Qualifier range must have at least one bound.");
+    Preconditions.checkArgument((min == null) || (max == null)
+        || (Bytes.compareTo(Bytes.toBytes(min), Bytes.toBytes(max)) < 0),
+        "Invalid qualifier range: ['%s', '%s').", min, max);
+    return new QualifierRestriction(null, min, max, null);
+  }
+
+  /**
+   * Creates a restriction to an explicit set of qualifiers.
+   *
+   * @param qualifiers Qualifiers to fetch.
+   * @return a restriction to the given qualifiers.
+   */
+  public static QualifierRestriction in(Collection<String> qualifiers) {
+    Preconditions.checkArgument(!qualifiers.isEmpty(), "Qualifier set must not be empty.");
+    return new QualifierRestriction(null, null, null, ImmutableSortedSet.copyOf(qualifiers));
+  }
+
+  /**
+   * Creates a restriction to an explicit set of qualifiers.
+   *
+   * @param qualifiers Qualifiers to fetch.
+   * @return a restriction to the given qualifiers.
+   */
+  public static QualifierRestriction in(String... qualifiers) {
+    return in(Arrays.asList(qualifiers));
+  }
+
+  /**
+   * Creates the restriction declared on a column annotation.
+   *
+   * @param column Column annotation.
+   * @return the restriction declared on the annotation, or null if there is none.
+   */
+  static QualifierRestriction fromColumn(KijiColumn column) {
+    final String prefix = column.qualifierPrefix().isEmpty() ? null : column.qualifierPrefix();
+    final String min = column.qualifierMin().isEmpty() ? null : column.qualifierMin();
+    final String max = column.qualifierMax().isEmpty() ? null : column.qualifierMax();
+    final ImmutableSortedSet<String> qualifiers = (column.qualifiers().length == 0)
+        ? null
+        : ImmutableSortedSet.copyOf(column.qualifiers());
+    if ((prefix == null) && (min == null) && (max == null) && (qualifiers == null)) {
+      return null;
+    }
+    return new QualifierRestriction(prefix, min, max, qualifiers);
+  }
+
+  /** @return the qualifier prefix, or null. */
+  public String getPrefix() {
+    return mPrefix;
+  }
+
+  /** @return the inclusive lower bound of the qualifier range, or null. */
+  public String getMin() {
+    return mMin;
+  }
+
+  /** @return the exclusive upper bound of the qualifier range, or null. */
+  public String getMax() {
+    return mMax;
+  }
+
+  /** @return the explicit set of qualifiers, or null. */
+  public Set<String> getQualifiers() {
+    return mQualifiers;
+  }
+
+  /**
+   * Tests whether a qualifier satisfies this restriction.
+   *
+   * @param qualifier Qualifier to test.
+   * @return whether the qualifier satisfies this restriction.
+   */
+  public boolean matches(String qualifier) {
+    if ((mPrefix != null) && !qualifier.startsWith(mPrefix)) {
+      return false;
+    }
+    if ((mQualifiers != null) && !mQualifiers.contains(qualifier)) {
+      return false;
+    }
+    if ((mMin != null) || (mMax != null)) {
+      final byte[] bytes = Bytes.toBytes(qualifier);
+      if ((mMin != null) && (Bytes.compareTo(bytes, Bytes.toBytes(mMin)) < 0)) {
+        return false;
+      }
+      if ((mMax != null) && (Bytes.compareTo(bytes, Bytes.toBytes(mMax)) >= 0)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** @return the column filter pushing this restriction down to the region servers. */
+  KijiColumnFilter toColumnFilter() {
+    return new QualifierColumnFilter(this);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean equals(Object other) {
+    if (!(other instanceof QualifierRestriction)) {
+      return false;
+    }
+    final QualifierRestriction that = (QualifierRestriction) other;
+    return Objects.equal(mPrefix, that.mPrefix)
+        && Objects.equal(mMin, that.mMin)
+        && Objects.equal(mMax, that.mMax)
+        && Objects.equal(mQualifiers, that.mQualifiers);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(mPrefix, mMin, mMax, mQualifiers);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("prefix", mPrefix)
+        .add("min", mMin)
+        .add("max", mMax)
+        .add("qualifiers", mQualifiers)
+        .toString();
+  }
+}
@@ -0,0 +1,72 @@
+package org.kiji.ohm.dao;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Sharding strategy splitting the entity IDs into ranges of their first component.
+ *
+ * <p> The strategy is configured with N sorted split points, defining N + 1 shards: shard 0
+ *   holds the entity IDs whose first component is lower than the first split point, shard i
+ *   holds the first components in [split(i - 1), split(i)), and the last shard holds the first
+ *   components greater than or equal to the last split point. </p>
+ *
+ * <p> Range sharding keeps neighbouring rows together, for tables whose leading row key
+ *   component is naturally partitioned, for example by tenant or by region. </p>
+ *
+ * @param <K> Type of the first entity ID component.
+ */
+public final class RangeShardingStrategy<K extends Comparable<? super K>>
+    implements ShardingStrategy {
+
+  /** Split points, sorted in strictly increasing order. */
+  private final ImmutableList<K> mSplitPoints;
+
+  /**
+   * Initializes a range sharding strategy.
+   *
+   * @param splitPoints Split points between the shards, in strictly increasing order.
+   */
+  public RangeShardingStrategy(List<K> splitPoints) {
+    for (int i = 1; i < splitPoints.size(); ++i) {
+      Preconditions.checkArgument(splitPoints.get(i - 1).compareTo(splitPoints.get(i)) < 0,
+          "Split points must be strictly increasing: %s", splitPoints);
+    }
+    mSplitPoints = ImmutableList.copyOf(splitPoints);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int getShardCount() {
+    return mSplitPoints.size() + 1;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int getShard(Object[] entityIdComponents) {
+    Preconditions.checkArgument(entityIdComponents.length > 0, "Empty entity ID.");
+    @SuppressWarnings("unchecked")
+    final K key = (K) entityIdComponents[0];
+    final int index = Collections.binarySearch(mSplitPoints, key);
+    // A key equal to split point i belongs to shard i + 1; otherwise binarySearch returns
+    // (-(insertion point) - 1), and the insertion point is the shard index.
+    return (index >= 0) ? index + 1 : -(index + 1);
+  }
+
+  /** @return the split points between the shards. */
+  public List<K> getSplitPoints() {
+    return mSplitPoints;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("split_points", mSplitPoints)
+        .toString();
+  }
+}
@@ -0,0 +1,166 @@
+package org.kiji.ohm.dao;
+
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Reusable buffer of encoded HBase row keys.
+ *
+ * <p> Row keys are stored back to back in a single byte array, and addressed by index. The
+ *   buffer grows as needed and keeps its capacity when cleared, so that encoding a batch of
+ *   keys allocates nothing once the buffer is warm. </p>
+ *
+ * <p> Not thread-safe. </p>
+ */
+public final class RowKeyBuffer {
+  /** Encoded row keys, back to back. */
+  private byte[] mBytes;
+
+  /** Offsets of the row keys in mBytes, followed by the end offset of the last row key. */
+  private int[] mOffsets;
+
+  /** Number of row keys in the buffer. */
+  private int mCount = 0;
+
+  /** Initializes a new empty buffer. */
+  public RowKeyBuffer() {
+    this(1024, 64);
+  }
+
+  /**
+   * Initializes a new empty buffer with an initial capacity.
+   *
+   * @param byteCapacity Initial capacity, in bytes.
+   * @param keyCapacity Initial capacity, in number of row keys.
+   */
+  public RowKeyBuffer(int byteCapacity, int keyCapacity) {
+    mBytes = new byte[Math.max(byteCapacity, 16)];
+    mOffsets = new int[Math.max(keyCapacity, 1) + 1];
+  }
+
+  /** Removes all the row keys from the buffer, keeping its capacity. */
+  public void clear() {
+    mCount = 0;
+  }
+
+  /** @return the number of row keys in the buffer. */
+  public int size() {
+    return mCount;
+  }
+
+  /**
+   * Reports the array holding the row keys. The array may be replaced when the buffer grows.
+   *
+   * @return the array holding the row keys.
+   */
+  public byte[] getBytes() {
+    return mBytes;
+  }
+
+  /**
+   * Reports the offset of a row key in {@link #getBytes()}.
+   *
+   * @param index Index of the row key.
+   * @return the offset of the row key.
+   */
+  public int getOffset(int index) {
+    Preconditions.checkElementIndex(index, mCount);
+    return mOffsets[index];
+  }
+
+  /**
+   * Reports the length of a row key.
+   *
+   * @param index Index of the row key.
+   * @return the length of the row key, in bytes.
+   */
+  public int getLength(int index) {
+    Preconditions.checkElementIndex(index, mCount);
+    return mOffsets[index + 1] - mOffsets[index];
+  }
+
+  /**
+   * Copies a row key out of the buffer.
+   *
+   * @param index Index of the row key.
+   * @return a copy of the row key.
+   */
+  public byte[] getKey(int index) {
+    final int offset = getOffset(index);
+    return Arrays.copyOfRange(mBytes, offset, offset + getLength(index));
+  }
+
+  // -----------------------------------------------------------------------------------------------
+  // Appending, used by the row key encoder. While a row key is appended, it starts at
+  // mOffsets[mCount] and its current end is mOffsets[mCount + 1].
+
+  /**
+   * Starts appending a new row key.
+   *
+   * @return the offset of the new row key.
+   */
+  int startKey() {
+    if (mCount + 2 > mOffsets.length) {
+      mOffsets = Arrays.copyOf(mOffsets, 2 * mOffsets.length);
+    }
+    if (mCount == 0) {
+      mOffsets[0] = 0;
+    }
+    mOffsets[mCount + 1] = mOffsets[mCount];
+    return mOffsets[mCount];
+  }
+
+  /** @return the current end of the row key being appended. */
+  int getPosition() {
+    return mOffsets[mCount + 1];
+  }
+
+  /**
+   * Moves the end of the row key being appended, within the capacity of the buffer.
+   *
+   * @param position New end of the row key being appended.
+   */
+  void setPosition(int position) {
+    ensureCapacity(position - mOffsets[mCount + 1]);
+    mOffsets[mCount + 1] = position;
+  }
+
+  /**
+   * Appends a byte to the row key being appended.
+   *
+   * @param value Byte to append.
+   */
+  void put(byte value) {
+    ensureCapacity(1);
+    mBytes[mOffsets[mCount + 1]++] = value;
+  }
+
+  /**
+   * Appends bytes to the row key being appended.
+   *
+   * @param bytes Bytes to append.
+   */
+  void put(byte[] bytes) {
+    ensureCapacity(bytes.length);
+    System.arraycopy(bytes, 0, mBytes, mOffsets[mCount + 1], bytes.length);
+    mOffsets[mCount + 1] += bytes.length;
+  }
+
+  /** Completes the row key being appended. */
+  void endKey() {
+    mCount += 1;
+  }
+
+  /**
+   * Ensures the buffer can hold a number of additional bytes for the row key being appended.
+   *
+   * @param length Number of additional bytes.
+   */
+  private void ensureCapacity(int length) {
+    final int required = mOffsets[mCount + 1] + length;
+    if (required > mBytes.length) {
+      mBytes = Arrays.copyOf(mBytes, Math.max(required, 2 * mBytes.length));
+    }
+  }
+}
@@ -0,0 +1,395 @@
+package org.kiji.ohm.dao;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.kiji.schema.EntityId;
+import org.kiji.schema.EntityIdFactory;
+import org.kiji.schema.FormattedEntityId;
+import org.kiji.schema.avro.ComponentType;
+import org.kiji.schema.avro.HashSpec;
+import org.kiji.schema.avro.HashType;
+import org.kiji.schema.avro.RowKeyComponent;
+import org.kiji.schema.avro.RowKeyEncoding;
+import org.kiji.schema.avro.RowKeyFormat2;
+import org.kiji.schema.layout.KijiTableLayout;
+
+/**
+ * Encoder of HBase row keys, specialized for the row key format of a table.
+ *
+ * <p> The encoder is prepared once from the RowKeyFormat2 of the table layout, and writes the
+ *   FORMATTED encoding directly into reusable buffers: components are encoded in place, and the
+ *   salt is hashed from the encoded bytes. </p>
+ *
+ * <p> Entity IDs are built directly from the encoded row key and the components, with the
+ *   constructor of FormattedEntityId: the row key is neither encoded twice nor decoded back.
+ *   The constructor is private to Kiji, hence it is looked up once and verified. </p>
+ *
+ * <p> The encoder checks itself against the Kiji entity ID factory when it is prepared. Row key
+ *   formats it does not support, entity IDs with missing or mistyped components, and formats
+ *   where the check fails are all encoded through the entity ID factory instead. </p>
+ *
+ * <p> Thread-safe. </p>
+ */
+final class RowKeyEncoder {
+  private static final Logger LOG = LoggerFactory.getLogger(RowKeyEncoder.class);
+
+  /** Per-thread MD5 digest, used to hash the salt of the row keys. */
+  private static final ThreadLocal<MessageDigest> MD5 = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      try {
+        return MessageDigest.getInstance("MD5");
+      } catch (NoSuchAlgorithmException nsae) {
+        throw new RuntimeException(nsae);
+      }
+    }
+  };
+
+  /** Constructor FormattedEntityId(RowKeyFormat2, byte[], List), or null if not available. */
+  private static final Constructor<FormattedEntityId> FORMATTED_ENTITY_ID =
+      findFormattedEntityIdConstructor();
+
+  /** Per-thread buffer used to encode single row keys. */
+  private static final ThreadLocal<RowKeyBuffer> SCRATCH = new ThreadLocal<RowKeyBuffer>() {
+    @Override
+    protected RowKeyBuffer initialValue() {
+      return new RowKeyBuffer(256, 1);
+    }
+  };
+
+  /** Entity ID factory for the table, used as a fallback. */
+  private final EntityIdFactory mFactory;
+
+  /** Row key format of the table, or null if the table uses the deprecated RowKeyFormat. */
+  private final RowKeyFormat2 mFormat;
+
+  /** Whether row keys are encoded by this encoder, rather than by the entity ID factory. */
+  private final boolean mEnabled;
+
+  /** Whether entity IDs are built from the row keys encoded by this encoder. */
+  private final boolean mBuildsEntityIds;
+
+  /** Types of the row key components. */
+  private final ComponentType[] mTypes;
+
+  /** Number of leading components hashed into the salt. */
+  private final int mHashedCount;
+
+  /** Size of the salt, in bytes. 0 means no salt. */
+  private final int mHashSize;
+
+  /** Whether the row key is the salt only. */
+  private final boolean mSuppressKeyMaterialization;
+
+  /**
+   * Prepares a row key encoder for a table layout.
+   *
+   * @param layout Layout of the table.
+   */
+  public RowKeyEncoder(KijiTableLayout layout) {
+    mFactory = EntityIdFactory.getFactory(layout);
+
+    final Object keysFormat = layout.getDesc().getKeysFormat();
+    final RowKeyFormat2 format =
+        (keysFormat instanceof RowKeyFormat2) ? (RowKeyFormat2) keysFormat : null;
+    mFormat = format;
+    final HashSpec salt = (format != null) ? format.getSalt() : null;
+
+    boolean supported = (format != null)
+        && (format.getEncoding() == RowKeyEncoding.FORMATTED)
+        && ((salt == null) || (salt.getHashType() == HashType.MD5));
+    if (supported) {
+      final List<RowKeyComponent> components = format.getComponents();
+      mTypes = new ComponentType[components.size()];
+      for (int i = 0; i < mTypes.length; ++i) {
+        mTypes[i] = components.get(i).getType();
+      }
+      mHashedCount = format.getRangeScanStartIndex();
+      mHashSize = (salt == null) ? 0 : salt.getHashSize();
+      mSuppressKeyMaterialization = (salt != null) && salt.getSuppressKeyMaterialization();
+      // Row keys reduced to their salt cannot be decoded into entity IDs:
+      supported = !mSuppressKeyMaterialization && (mHashSize <= 16);
+    } else {
+      mTypes = new ComponentType[0];
+      mHashedCount = 0;
+      mHashSize = 0;
+      mSuppressKeyMaterialization = false;
+    }
+    mEnabled = supported && selfCheck(false);
+    mBuildsEntityIds = mEnabled && (FORMATTED_ENTITY_ID != null) && selfCheck(true);
+    LOG.debug("Row key encoder for table '{}' enabled: {}, building entity IDs: {}.",
+        layout.getName(), mEnabled, mBuildsEntityIds);
+  }
+
+  /**
+   * Looks up the private constructor FormattedEntityId(RowKeyFormat2, byte[], List).
+   *
+   * @return the constructor, or null if it is not available in this version of Kiji.
+   */
+  private static Constructor<FormattedEntityId> findFormattedEntityIdConstructor() {
+    try {
+      final Constructor<FormattedEntityId> constructor =
+          FormattedEntityId.class.getDeclaredConstructor(
+              RowKeyFormat2.class, byte[].class, List.class);
+      constructor.setAccessible(true);
+      return constructor;
+    } catch (NoSuchMethodException nsme) {
+      LOG.info("FormattedEntityId constructor not found: entity IDs are built by Kiji.");
+      return null;
+    } catch (SecurityException se) {
+      LOG.info("FormattedEntityId constructor not accessible: entity IDs are built by Kiji.");
+      return null;
+    }
+  }
+
+  /**
+   * Checks the row keys encoded by this encoder against the Kiji entity ID factory.
+   *
+   * @param entityIds Whether to check the entity IDs built by this encoder too.
+   * @return whether this encoder produces the same row keys, and entity IDs if requested, as
+   *     the entity ID factory.
+   */
+  private boolean selfCheck(boolean entityIds) {
+    final Object[][] samples = {sample(0), sample(1)};
+    try {
+      final RowKeyBuffer buffer = new RowKeyBuffer();
+      for (final Object[] sample : samples) {
+        buffer.clear();
+        if (!encode(sample, buffer)) {
+          return false;
+        }
+        final EntityId expected = mFactory.getEntityId(sample);
+        final boolean match = entityIds
+            ? matches(expected, newEntityId(buffer.getKey(0), sample))
+            : Arrays.equals(expected.getHBaseRowKey(), buffer.getKey(0));
+        if (!match) {
+          LOG.warn("Row key encoder disagrees with the entity ID factory on {}: "
+              + "using the entity ID factory.", Arrays.toString(sample));
+          return false;
+        }
+      }
+      return true;
+    } catch (RuntimeException re) {
+      LOG.warn("Row key encoder check failed, using the entity ID factory: {}", re.toString());
+      return false;
+    }
+  }
+
+  /**
+   * Compares an entity ID built by this encoder with the entity ID built by the factory.
+   *
+   * @param expected Entity ID built by the entity ID factory.
+   * @param actual Entity ID built by this encoder.
+   * @return whether the entity IDs have the same row key, components and representation.
+   */
+  private static boolean matches(EntityId expected, EntityId actual) {
+    return Arrays.equals(expected.getHBaseRowKey(), actual.getHBaseRowKey())
+        && expected.getComponents().equals(actual.getComponents())
+        && expected.equals(actual)
+        && expected.toString().equals(actual.toString());
+  }
+
+  /**
+   * Builds sample entity ID components for the self-check.
+   *
+   * @param seed Seed of the sample.
+   * @return sample entity ID components.
+   */
+  private Object[] sample(int seed) {
+    final Object[] components = new Object[mTypes.length];
+    for (int i = 0; i < mTypes.length; ++i) {
+      switch (mTypes[i]) {
+        case STRING: components[i] = "kiji-ohm-" + seed + "-\u00e9"; break;
+        case INTEGER: components[i] = (seed == 0) ? -42 : Integer.MAX_VALUE - i; break;
+        case LONG: components[i] = (seed == 0) ? Long.MIN_VALUE + i : 42L; break;
+        default: throw new IllegalStateException("Unknown component type: " + mTypes[i]);
+      }
+    }
+    return components;
+  }
+
+  /** @return whether row keys are encoded by this encoder, rather than by the factory. */
+  public boolean isEnabled() {
+    return mEnabled;
+  }
+
+  /**
+   * Builds the entity ID of a row.
+   *
+   * @param components Entity ID components.
+   * @return the entity ID.
+   */
+  public EntityId getEntityId(Object... components) {
+    if (mBuildsEntityIds) {
+      final RowKeyBuffer buffer = SCRATCH.get();
+      buffer.clear();
+      if (encode(components, buffer)) {
+        return newEntityId(buffer.getKey(0), components);
+      }
+    }
+    return mFactory.getEntityId(components);
+  }
+
+  /**
+   * Builds the entity IDs of a batch of rows.
+   *
+   * @param entityIds Entity IDs, as arrays of components or single components.
+   * @return the entity IDs, in order.
+   */
+  public List<EntityId> getEntityIds(Collection<?> entityIds) {
+    final EntityId[] result = new EntityId[entityIds.size()];
+    int index = 0;
+    for (final Object entityId : entityIds) {
+      result[index++] = getEntityId(KijiDao.toEntityIdComponents(entityId));
+    }
+    return Arrays.asList(result);
+  }
+
+  /**
+   * Builds an entity ID from an encoded row key and its components, without decoding the key.
+   *
+   * @param rowKey Row key encoded by this encoder. Owned by the entity ID.
+   * @param components Entity ID components the row key was encoded from.
+   * @return the entity ID.
+   */
+  private EntityId newEntityId(byte[] rowKey, Object[] components) {
+    try {
+      return FORMATTED_ENTITY_ID.newInstance(
+          mFormat, rowKey, ImmutableList.<Object>copyOf(components));
+    } catch (InvocationTargetException ite) {
+      throw Throwables.propagate(ite.getCause());
+    } catch (InstantiationException ie) {
+      throw new RuntimeException(ie);
+    } catch (IllegalAccessException iae) {
+      throw new RuntimeException(iae);
+    }
+  }
+
+  /**
+   * Encodes the row keys of a batch of rows into a buffer.
+   *
+   * @param entityIds Entity IDs, as arrays of components or single components.
+   * @param buffer Buffer to append the row keys to, in order.
+   */
+  public void encodeAll(Collection<?> entityIds, RowKeyBuffer buffer) {
+    for (final Object entityId : entityIds) {
+      final Object[] components = KijiDao.toEntityIdComponents(entityId);
+      if (!mEnabled || !encode(components, buffer)) {
+        buffer.startKey();
+        buffer.put(mFactory.getEntityId(components).getHBaseRowKey());
+        buffer.endKey();
+      }
+    }
+  }
+
+  /**
+   * Appends the row key of an entity ID to a buffer, in the FORMATTED encoding.
+   *
+   * @param components Entity ID components.
+   * @param buffer Buffer to append the row key to.
+   * @return whether the row key was appended. False means the components must be encoded by
+   *     the entity ID factory, which also validates them.
+   */
+  private boolean encode(Object[] components, RowKeyBuffer buffer) {
+    if (components.length != mTypes.length) {
+      return false;
+    }
+    for (int i = 0; i < components.length; ++i) {
+      if (!isValid(mTypes[i], components[i])) {
+        return false;
+      }
+    }
+
+    final int start = buffer.startKey();
+    buffer.setPosition(start + mHashSize);
+    int hashedEnd = buffer.getPosition();
+    for (int i = 0; i < components.length; ++i) {
+      switch (mTypes[i]) {
+        case STRING: {
+          putString(buffer, (String) components[i]);
+          buffer.put((byte) 0);
+          break;
+        }
+        case INTEGER: {
+          final int value = (Integer) components[i];
+          buffer.put((byte) ((value >>> 24) ^ 0x80));
+          buffer.put((byte) (value >>> 16));
+          buffer.put((byte) (value >>> 8));
+          buffer.put((byte) value);
+          break;
+        }
+        case LONG: {
+          final long value = (Long) components[i];
+          buffer.put((byte) ((value >>> 56) ^ 0x80));
+          for (int shift = 48; shift >= 0; shift -= 8) {
+            buffer.put((byte) (value >>> shift));
+          }
+          break;
+        }
+        default:
+          throw new IllegalStateException("Unknown component type: " + mTypes[i]);
+      }
+      if (i + 1 == mHashedCount) {
+        hashedEnd = buffer.getPosition();
+      }
+    }
+
+    if (mHashSize > 0) {
+      final MessageDigest md5 = MD5.get();
+      md5.update(buffer.getBytes(), start + mHashSize, hashedEnd - start - mHashSize);
+      System.arraycopy(md5.digest(), 0, buffer.getBytes(), start, mHashSize);
+    }
+    buffer.endKey();
+    return true;
+  }
+
+  /**
+   * Reports whether a component can be encoded by this encoder.
+   *
+   * @param type Declared type of the component.
+   * @param component Component value.
+   * @return whether the component can be encoded by this encoder.
+   */
+  private static boolean isValid(ComponentType type, Object component) {
+    switch (type) {
+      case STRING:
+        return (component instanceof String) && (((String) component).indexOf('\u0000') < 0);
+      case INTEGER:
+        return component instanceof Integer;
+      case LONG:
+        return component instanceof Long;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Appends the UTF-8 encoding of a string, without allocating for ASCII strings.
+   *
+   * @param buffer Buffer to append to.
+   * @param string String to encode.
+   */
+  private static void putString(RowKeyBuffer buffer, String string) {
+    final int length = string.length();
+    for (int i = 0; i < length; ++i) {
+      if (string.charAt(i) >= 0x80) {
+        buffer.put(Bytes.toBytes(string.substring(i)));
+        return;
+      }
+      buffer.put((byte) string.charAt(i));
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package org.kiji.ohm.dao;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import org.kiji.schema.EntityId;
+import org.kiji.schema.EntityIdFactory;
+import org.kiji.schema.KijiTable;
+import org.kiji.schema.KijiTableReader;
+
+/**
+ * Table holding some of the fields of a composite entity, besides the entity table.
+ *
+ * <p> Rows of a secondary table share the entity ID components of the entity table rows.
+ *   The secondary table owns its reader pool and the Kiji table it was created with. </p>
+ */
+final class SecondaryTable implements Closeable {
+  /** Name of the table. */
+  private final String mTableName;
+
+  /** Table holding the fields. Owned. */
+  private final KijiTable mTable;
+
+  /** ID of the table layout the fields were validated against. */
+  private final String mLayoutId;
+
+  /** Entity ID factory of the table. */
+  private final EntityIdFactory mEntityIdFactory;
+
+  /** Pool of readers on the table. */
+  private final TableReaderPool mReaderPool;
+
+  /** Column fields mapped to the table, in declaration order. */
+  private final ImmutableList<Field> mFields;
+
+  /**
+   * Initializes a secondary table.
+   *
+   * @param table Opened Kiji table, whose ownership is transferred to the secondary table.
+   * @param fields Column fields mapped to the table.
+   */
+  SecondaryTable(KijiTable table, List<Field> fields) {
+    mTableName = table.getName();
+    mTable = table;
+    mLayoutId = String.valueOf(table.getLayout().getDesc().getLayoutId());
+    mEntityIdFactory = EntityIdFactory.getFactory(table.getLayout());
+    mReaderPool = new TableReaderPool(table);
+    mFields = ImmutableList.copyOf(fields);
+  }
+
+  /** @return the name of the table. */
+  public String getTableName() {
+    return mTableName;
+  }
+
+  /** @return the ID of the table layout the fields were validated against. */
+  public String getLayoutId() {
+    return mLayoutId;
+  }
+
+  /** @return the table. Not retained: do not release! */
+  public KijiTable getTable() {
+    return mTable;
+  }
+
+  /** @return the column fields mapped to the table, in declaration order. */
+  public ImmutableList<Field> getFields() {
+    return mFields;
+  }
+
+  /**
+   * Translates entity IDs of the entity table into entity IDs of this table.
+   *
+   * @param entityIds Entity IDs of rows of the entity table.
+   * @return the entity IDs of the rows of this table with the same components, in order.
+   */
+  public List<EntityId> translate(List<EntityId> entityIds) {
+    final List<EntityId> translated = Lists.newArrayListWithCapacity(entityIds.size());
+    for (final EntityId entityId : entityIds) {
+      translated.add(mEntityIdFactory.getEntityId(entityId.getComponents().toArray()));
+    }
+    return translated;
+  }
+
+  /**
+   * Acquires a reader on this table.
+   *
+   * @return a reader, to be released with {@link #releaseReader(KijiTableReader)}.
+   * @throws IOException on I/O error.
+   */
+  public KijiTableReader acquireReader() throws IOException {
+    return mReaderPool.acquire();
+  }
+
+  /**
+   * Releases a reader acquired with {@link #acquireReader()}.
+   *
+   * @param reader Reader to release.
+   * @throws IOException on I/O error.
+   */
+  public void releaseReader(KijiTableReader reader) throws IOException {
+    mReaderPool.release(reader);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void close() throws IOException {
+    try {
+      mReaderPool.close();
+    } finally {
+      mTable.release();
+    }
+  }
+}
@@ -0,0 +1,254 @@
+package org.kiji.ohm.dao;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Iterator over the entities of a scan of all the shards of a {@link ShardedKijiDao}.
+ *
+ * <p> Each shard is scanned by its own background task, which pushes the entities into a
+ *   bounded queue: shards are scanned in parallel, and entities are returned in the order they
+ *   are fetched. There is no ordering across shards. </p>
+ *
+ * <p> The scanner must be closed to stop the background scans and release the underlying HBase
+ *   scanners, whether or not it was iterated until the end. </p>
+ *
+ * @param <T> Type of the entities.
+ */
+public final class ShardedEntityScanner<T> implements Iterator<T>, Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(ShardedEntityScanner.class);
+
+  /** Interval between checks of the background scans while closing, in milliseconds. */
+  private static final long CLOSE_POLL_INTERVAL_MS = 10;
+
+  /** Queue element: an entity and the shard it was fetched from. */
+  private static final class Item {
+    /** Index of the shard the entity was fetched from. */
+    private final int mShard;
+
+    /** Entity, or null if the item marks the end of the shard. */
+    private final Object mEntity;
+
+    /** Error the scan of the shard failed with, or null. */
+    private final Throwable mError;
+
+    /**
+     * Initializes a queue element.
+     *
+     * @param shard Index of the shard.
+     * @param entity Entity, or null to mark the end of the shard.
+     * @param error Error the scan failed with, or null.
+     */
+    Item(int shard, Object entity, Throwable error) {
+      mShard = shard;
+      mEntity = entity;
+      mError = error;
+    }
+  }
+
+  /** DAOs of the shards, used to release the entities dropped when closing. */
+  private final List<KijiDao> mDaos;
+
+  /** Queue of the entities fetched by the background scans. */
+  private final BlockingQueue<Item> mQueue;
+
+  /** Background scans, one per shard. */
+  private final List<Future<Void>> mScans;
+
+  /** Number of shards whose scan has not ended yet. */
+  private int mRunningScans;
+
+  /** Next entity to return, or null if not fetched yet. */
+  private T mNext = null;
+
+  /** Index of the shard the next entity was fetched from. */
+  private int mNextShard = -1;
+
+  /** Whether this scanner is closed. */
+  private volatile boolean mClosed = false;
+
+  /**
+   * Initializes a new sharded scanner, and starts the scans of the shards.
+   *
+   * <p> The sharded scanner takes ownership of the entity scanners. </p>
+   *
+   * @param daos DAOs of the shards.
+   * @param scanners Entity scanners of the shards, in the order of the DAOs.
+   * @param executor Executor running the scans of the shards.
+   * @param queueCapacity Maximum number of fetched entities not returned yet.
+   */
+  ShardedEntityScanner(
+      List<KijiDao> daos,
+      List<EntityScanner<T>> scanners,
+      ExecutorService executor,
+      int queueCapacity) {
+    mDaos = daos;
+    mQueue = new ArrayBlockingQueue<Item>(queueCapacity);
+    mScans = Lists.newArrayListWithCapacity(scanners.size());
+    mRunningScans = scanners.size();
+    for (int i = 0; i < scanners.size(); ++i) {
+      final int shard = i;
+      final EntityScanner<T> scanner = scanners.get(i);
+      mScans.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          scanShard(shard, scanner);
+          return null;
+        }
+      }));
+    }
+  }
+
+  /**
+   * Pushes the entities of a shard into the queue, until the scan ends or this scanner closes.
+   *
+   * @param shard Index of the shard.
+   * @param scanner Entity scanner of the shard. Closed when the scan ends.
+   * @throws IOException on I/O error.
+   */
+  private void scanShard(int shard, EntityScanner<T> scanner) throws IOException {
+    try {
+      Throwable error = null;
+      try {
+        while (!mClosed && scanner.hasNext()) {
+          mQueue.put(new Item(shard, scanner.next(), null));
+        }
+      } catch (RuntimeException re) {
+        error = re;
+      }
+      if (!mClosed) {
+        mQueue.put(new Item(shard, null, error));
+      }
+    } catch (InterruptedException ie) {
+      // The executor is shutting down.
+      Thread.currentThread().interrupt();
+    } finally {
+      scanner.close();
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean hasNext() {
+    if (mClosed) {
+      return false;
+    }
+    while ((mNext == null) && (mRunningScans > 0)) {
+      final Item item;
+      try {
+        item = mQueue.take();
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(new InterruptedIOException("Interrupted while scanning."));
+      }
+      if (item.mEntity != null) {
+        @SuppressWarnings("unchecked")
+        final T entity = (T) item.mEntity;
+        mNext = entity;
+        mNextShard = item.mShard;
+      } else {
+        mRunningScans -= 1;
+        if (item.mError != null) {
+          throw Throwables.propagate(item.mError);
+        }
+      }
+    }
+    return mNext != null;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public T next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    final T entity = mNext;
+    mNext = null;
+    return entity;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Stops the scans of the shards and releases the entities fetched but not returned.
+   *
+   * <p> Waits for the background scans to notice the scanner is closed, which they do before
+   *   fetching their next entity, so that the underlying HBase scanners are closed when this
+   *   method returns. Subsequent calls have no effect. </p>
+   */
+  @Override
+  public void close() throws IOException {
+    if (mClosed) {
+      return;
+    }
+    mClosed = true;
+    for (final Future<Void> scan : mScans) {
+      while (true) {
+        // Scans blocked on a full queue resume once the queue is drained:
+        releaseQueuedEntities();
+        try {
+          scan.get(CLOSE_POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+          break;
+        } catch (TimeoutException te) {
+          continue;
+        } catch (ExecutionException ee) {
+          LOG.warn("Error closing the scan of a shard: {}", ee.getCause().toString());
+          break;
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while closing sharded scanner.");
+        }
+      }
+    }
+    releaseQueuedEntities();
+    if (mNext != null) {
+      releaseEntity(mNextShard, mNext);
+      mNext = null;
+    }
+  }
+
+  /** Releases the entities fetched but not returned, and empties the queue. */
+  private void releaseQueuedEntities() {
+    Item item;
+    while ((item = mQueue.poll()) != null) {
+      if (item.mEntity != null) {
+        releaseEntity(item.mShard, item.mEntity);
+      }
+    }
+  }
+
+  /**
+   * Releases an entity dropped by this scanner.
+   *
+   * @param shard Index of the shard the entity was fetched from.
+   * @param entity Entity to release.
+   */
+  private void releaseEntity(int shard, Object entity) {
+    try {
+      mDaos.get(shard).releaseEntity(entity);
+    } catch (IOException ioe) {
+      LOG.warn("Error releasing entity dropped by sharded scanner: {}", ioe.toString());
+    }
+  }
+}
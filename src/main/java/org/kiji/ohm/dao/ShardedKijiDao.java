@@ -0,0 +1,522 @@
+package org.kiji.ohm.dao;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.apache.hadoop.hbase.HConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.kiji.schema.Kiji;
+import org.kiji.schema.KijiTableReader.KijiScannerOptions;
+
+/**
+ * Kiji Data Access Object spreading the entities across several Kiji instances.
+ *
+ * <p> Each Kiji instance is a shard, holding the same tables, and is wrapped by its own
+ *   {@link KijiDao}. A {@link ShardingStrategy} routes each entity ID to the shard holding its
+ *   row. Multi-gets, batched deletes and scans are split per shard, and the shards are
+ *   requested in parallel. </p>
+ *
+ * <p> Operations not exposed here can be issued on the DAO of a shard, through
+ *   {@link #getShardDao(int)} and {@link #getShard(Object...)}. Entities must be released and
+ *   written through the DAO that populated them. </p>
+ *
+ * <p> Thread-safe. </p>
+ */
+public final class ShardedKijiDao implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(ShardedKijiDao.class);
+
+  /** Maximum number of entities fetched by a sharded scan and not returned yet. */
+  private static final int SCAN_QUEUE_CAPACITY = 1024;
+
+  /** DAOs of the shards, in shard order. */
+  private final ImmutableList<KijiDao> mShards;
+
+  /** Strategy routing entity IDs to shards. */
+  private final ShardingStrategy mStrategy;
+
+  /** Executor running the per-shard requests. */
+  private final ExecutorService mExecutor;
+
+  /**
+   * Initializes a sharded DAO with the default options.
+   *
+   * @param kijis Kiji instances of the shards, in shard order.
+   * @param strategy Strategy routing entity IDs to shards.
+   */
+  public ShardedKijiDao(List<Kiji> kijis, ShardingStrategy strategy) {
+    this(kijis, strategy, new KijiDaoOptions());
+  }
+
+  /**
+   * Initializes a sharded DAO.
+   *
+   * <p> The DAO of each shard is configured with the given options. If a row cache file is
+   *   configured, each shard uses its own file, suffixed with the shard index. </p>
+   *
+   * @param kijis Kiji instances of the shards, in shard order. Retained by the sharded DAO.
+   * @param strategy Strategy routing entity IDs to shards.
+   * @param options Options of the DAOs of the shards.
+   */
+  public ShardedKijiDao(List<Kiji> kijis, ShardingStrategy strategy, KijiDaoOptions options) {
+    Preconditions.checkArgument(!kijis.isEmpty(), "No Kiji instance to shard across.");
+    Preconditions.checkArgument(strategy.getShardCount() == kijis.size(),
+        "Sharding strategy %s routes to %s shards, but %s Kiji instances are provided.",
+        strategy, strategy.getShardCount(), kijis.size());
+    mStrategy = strategy;
+    mExecutor = Executors.newCachedThreadPool(
+        new ThreadFactoryBuilder()
+            .setDaemon(true)
+            .setNameFormat("sharded-kiji-dao-%d")
+            .build());
+
+    final List<KijiDao> shards = Lists.newArrayListWithCapacity(kijis.size());
+    boolean success = false;
+    try {
+      for (int i = 0; i < kijis.size(); ++i) {
+        final KijiDaoOptions shardOptions = options.copy();
+        if (options.getRowCacheFile() != null) {
+          shardOptions.setRowCacheFile(
+              new File(String.format("%s.shard-%d", options.getRowCacheFile().getPath(), i)));
+        }
+        shards.add(new KijiDao(kijis.get(i), shardOptions));
+      }
+      mShards = ImmutableList.copyOf(shards);
+      success = true;
+    } finally {
+      if (!success) {
+        // Do not leak the DAOs of the shards already opened, nor the executor threads:
+        mExecutor.shutdownNow();
+        for (final KijiDao shard : shards) {
+          try {
+            shard.close();
+          } catch (IOException ioe) {
+            LOG.warn("Error closing the DAO of a shard: {}", ioe.toString());
+          }
+        }
+      }
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void close() throws IOException {
+    mExecutor.shutdownNow();
+    IOException error = null;
+    for (final KijiDao shard : mShards) {
+      try {
+        shard.close();
+      } catch (IOException ioe) {
+        LOG.warn("Error closing the DAO of a shard: {}", ioe.toString());
+        error = (error == null) ? ioe : error;
+      }
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  // -----------------------------------------------------------------------------------------------
+
+  /** @return the number of shards. */
+  public int getShardCount() {
+    return mShards.size();
+  }
+
+  /**
+   * Reports the DAO of a shard.
+   *
+   * @param shard Index of the shard.
+   * @return the DAO of the shard. Owned by the sharded DAO: do not close!
+   */
+  public KijiDao getShardDao(int shard) {
+    return mShards.get(shard);
+  }
+
+  /**
+   * Routes an entity ID to its shard.
+   *
+   * @param entityIdComponents Entity ID components.
+   * @return the index of the shard holding the entity.
+   */
+  public int getShard(Object... entityIdComponents) {
+    final int shard = mStrategy.getShard(entityIdComponents);
+    Preconditions.checkState((shard >= 0) && (shard < mShards.size()),
+        "Sharding strategy %s routed entity ID %s to invalid shard %s.",
+        mStrategy, Arrays.toString(entityIdComponents), shard);
+    return shard;
+  }
+
+  // -----------------------------------------------------------------------------------------------
+
+  /**
+   * Shortcut for {@link #select(Class, long, long, Object...)}, with all versions.
+   *
+   * @param klass Class of the entity to populate.
+   * @param entityIdComponents Entity ID of the row to populate the entity from.
+   * @return the entity populated from the shard holding the row.
+   * @throws IOException on I/O error.
+   */
+  public <T> T select(Class<T> klass, Object... entityIdComponents) throws IOException {
+    return select(
+        klass,
+        0 /*HConstants.OLDEST_TIMESTAMP*/, HConstants.LATEST_TIMESTAMP, entityIdComponents);
+  }
+
+  /**
+   * Equivalent of a Kiji get request, sent to the shard holding the row.
+   *
+   * @param klass Class of the entity to populate.
+   * @param startTime Start of the time range, inclusive.
+   * @param endTime End of the time range, exclusive.
+   * @param entityIdComponents Entity ID of the row to populate the entity from.
+   * @return the entity populated from the shard holding the row.
+   * @throws IOException on I/O error.
+   */
+  public <T> T select(Class<T> klass, long startTime, long endTime, Object... entityIdComponents)
+      throws IOException {
+    return mShards.get(getShard(entityIdComponents))
+        .select(klass, startTime, endTime, entityIdComponents);
+  }
+
+  /**
+   * Shortcut for {@link #selectMany(Class, long, long, Collection)}, with all versions.
+   *
+   * @param klass Class of the entities to populate.
+   * @param entityIds Entity IDs, as arrays of components or single components.
+   * @return the entities, in the order of the entity IDs.
+   * @throws IOException on I/O error.
+   */
+  public <T> List<T> selectMany(Class<T> klass, Collection<?> entityIds) throws IOException {
+    return selectMany(
+        klass,
+        0 /*HConstants.OLDEST_TIMESTAMP*/, HConstants.LATEST_TIMESTAMP, entityIds);
+  }
+
+  /**
+   * Equivalent of a Kiji bulk-get request, split per shard.
+   *
+   * <p> Each shard receives one bulk-get for the entity IDs it holds, and the shards are
+   *   requested in parallel. </p>
+   *
+   * @param klass Class of the entities to populate.
+   * @param startTime Start of the time range, inclusive.
+   * @param endTime End of the time range, exclusive.
+   * @param entityIds Entity IDs, as arrays of components or single components.
+   * @return the entities, in the order of the entity IDs.
+   * @throws IOException on I/O error.
+   */
+  public <T> List<T> selectMany(
+      final Class<T> klass, final long startTime, final long endTime, Collection<?> entityIds)
+      throws IOException {
+    final int[] shardOf = new int[entityIds.size()];
+    final List<List<Object>> split = splitByShard(entityIds, shardOf);
+    final List<List<T>> selected = runPerShard(split, new ShardCall<List<T>>() {
+      @Override
+      public List<T> call(KijiDao dao, List<Object> shardEntityIds) throws IOException {
+        return dao.selectMany(klass, startTime, endTime, shardEntityIds);
+      }
+
+      @Override
+      public void discard(KijiDao dao, List<T> entities) throws IOException {
+        for (final T entity : entities) {
+          if (entity != null) {
+            dao.releaseEntity(entity);
+          }
+        }
+      }
+    });
+
+    // Reassemble the entities in the order of the entity IDs:
+    final int[] cursors = new int[mShards.size()];
+    final List<T> entities = Lists.newArrayListWithCapacity(shardOf.length);
+    for (final int shard : shardOf) {
+      entities.add(selected.get(shard).get(cursors[shard]++));
+    }
+    return entities;
+  }
+
+  /**
+   * Shortcut for {@link #selectAll(Class, KijiScannerOptions, long, long)}, scanning all the
+   * rows with all versions.
+   *
+   * @param klass Class of the entities to scan.
+   * @return a scanner over the entities of all the shards, to be closed by the caller.
+   * @throws IOException on I/O error.
+   */
+  public <T> ShardedEntityScanner<T> selectAll(Class<T> klass) throws IOException {
+    return selectAll(
+        klass, null, 0 /*HConstants.OLDEST_TIMESTAMP*/, HConstants.LATEST_TIMESTAMP);
+  }
+
+  /**
+   * Equivalent of a Kiji scan, across all the shards.
+   *
+   * <p> The shards are scanned in parallel, by background tasks. Entities of different shards
+   *   are interleaved in the order they are fetched. </p>
+   *
+   * @param klass Class of the entities to scan.
+   * @param options Options of the scan of each shard, or null for the default options.
+   * @param startTime Start of the time range, inclusive.
+   * @param endTime End of the time range, exclusive.
+   * @return a scanner over the entities of all the shards, to be closed by the caller.
+   * @throws IOException on I/O error.
+   */
+  public <T> ShardedEntityScanner<T> selectAll(
+      Class<T> klass, KijiScannerOptions options, long startTime, long endTime)
+      throws IOException {
+    final List<EntityScanner<T>> scanners = Lists.newArrayListWithCapacity(mShards.size());
+    boolean success = false;
+    try {
+      for (final KijiDao shard : mShards) {
+        scanners.add(shard.selectAll(klass, options, startTime, endTime));
+      }
+      final ShardedEntityScanner<T> scanner =
+          new ShardedEntityScanner<T>(mShards, scanners, mExecutor, SCAN_QUEUE_CAPACITY);
+      success = true;
+      return scanner;
+    } finally {
+      if (!success) {
+        for (final EntityScanner<T> scanner : scanners) {
+          scanner.close();
+        }
+      }
+    }
+  }
+
+  // -----------------------------------------------------------------------------------------------
+
+  /**
+   * Writes an entity to the shard holding its row.
+   *
+   * @param entity Entity to write.
+   * @throws IOException on I/O error.
+   */
+  public <T> void write(T entity) throws IOException {
+    final KijiDao any = mShards.get(0);
+    mShards.get(getShard(any.getEntityIdComponents(entity))).write(entity);
+  }
+
+  /**
+   * Deletes the entity stored in a row, from the shard holding the row.
+   *
+   * @param klass Class of the entity to delete.
+   * @param entityIdComponents Entity ID of the row to delete.
+   * @throws IOException on I/O error.
+   */
+  public <T> void delete(Class<T> klass, Object... entityIdComponents) throws IOException {
+    deleteAll(klass, Collections.<Object>singletonList(entityIdComponents));
+  }
+
+  /**
+   * Shortcut for {@link #deleteAll(Class, long, Collection)}, deleting all the cells.
+   *
+   * @param klass Class of the entities to delete.
+   * @param entityIds Entity IDs, as arrays of components or single components.
+   * @throws IOException on I/O error.
+   */
+  public <T> void deleteAll(Class<T> klass, Collection<?> entityIds) throws IOException {
+    deleteAll(klass, HConstants.LATEST_TIMESTAMP, entityIds);
+  }
+
+  /**
+   * Deletes the cells of a batch of entities up to a timestamp, split per shard.
+   *
+   * @param klass Class of the entities to delete.
+   * @param upToTimestamp Cells with a timestamp lower than or equal to this one are deleted.
+   * @param entityIds Entity IDs, as arrays of components or single components.
+   * @throws IOException on I/O error.
+   */
+  public <T> void deleteAll(
+      final Class<T> klass, final long upToTimestamp, Collection<?> entityIds)
+      throws IOException {
+    final List<List<Object>> split = splitByShard(entityIds, new int[entityIds.size()]);
+    runPerShard(split, new ShardCall<Void>() {
+      @Override
+      public Void call(KijiDao dao, List<Object> shardEntityIds) throws IOException {
+        dao.deleteAll(klass, upToTimestamp, shardEntityIds);
+        return null;
+      }
+
+      @Override
+      public void discard(KijiDao dao, Void result) {
+      }
+    });
+  }
+
+  // -----------------------------------------------------------------------------------------------
+
+  /**
+   * Request on the DAO of a shard.
+   *
+   * @param <R> Type of the result of the request.
+   */
+  private interface ShardCall<R> {
+    /**
+     * Issues the request on a shard.
+     *
+     * @param dao DAO of the shard.
+     * @param entityIds Entity IDs held by the shard.
+     * @return the result of the request.
+     * @throws IOException on I/O error.
+     */
+    R call(KijiDao dao, List<Object> entityIds) throws IOException;
+
+    /**
+     * Releases the result of the request on a shard, when the request failed on another shard.
+     *
+     * @param dao DAO of the shard.
+     * @param result Result of the request on the shard.
+     * @throws IOException on I/O error.
+     */
+    void discard(KijiDao dao, R result) throws IOException;
+  }
+
+  /**
+   * Splits entity IDs per shard.
+   *
+   * @param entityIds Entity IDs, as arrays of components or single components.
+   * @param shardOf Filled with the shard index of each entity ID, in order.
+   * @return the entity IDs held by each shard, in shard order.
+   */
+  private List<List<Object>> splitByShard(Collection<?> entityIds, int[] shardOf) {
+    final List<List<Object>> split = Lists.newArrayListWithCapacity(mShards.size());
+    for (int i = 0; i < mShards.size(); ++i) {
+      split.add(Lists.<Object>newArrayList());
+    }
+    int index = 0;
+    for (final Object entityId : entityIds) {
+      final int shard = getShard(KijiDao.toEntityIdComponents(entityId));
+      shardOf[index++] = shard;
+      split.get(shard).add(entityId);
+    }
+    return split;
+  }
+
+  /**
+   * Issues a request on the shards holding some entity IDs, in parallel.
+   *
+   * <p> A request involving a single shard is issued from the calling thread. </p>
+   *
+   * @param split Entity IDs held by each shard, in shard order.
+   * @param request Request to issue on each shard.
+   * @return the result of the request on each shard, in shard order. Null for the shards
+   *     holding none of the entity IDs.
+   * @throws IOException on I/O error.
+   */
+  private <R> List<R> runPerShard(List<List<Object>> split, final ShardCall<R> request)
+      throws IOException {
+    int nshards = 0;
+    for (final List<Object> shardEntityIds : split) {
+      nshards += shardEntityIds.isEmpty() ? 0 : 1;
+    }
+
+    final List<R> results = Lists.newArrayListWithCapacity(split.size());
+    if (nshards <= 1) {
+      for (int shard = 0; shard < split.size(); ++shard) {
+        final List<Object> shardEntityIds = split.get(shard);
+        results.add(shardEntityIds.isEmpty()
+            ? null
+            : request.call(mShards.get(shard), shardEntityIds));
+      }
+      return results;
+    }
+
+    final List<Future<R>> futures = Lists.newArrayListWithCapacity(split.size());
+    for (int shard = 0; shard < split.size(); ++shard) {
+      final KijiDao dao = mShards.get(shard);
+      final List<Object> shardEntityIds = split.get(shard);
+      futures.add(shardEntityIds.isEmpty()
+          ? null
+          : mExecutor.submit(new Callable<R>() {
+            @Override
+            public R call() throws IOException {
+              return request.call(dao, shardEntityIds);
+            }
+          }));
+    }
+    boolean success = false;
+    try {
+      for (int shard = 0; shard < futures.size(); ++shard) {
+        final Future<R> future = futures.get(shard);
+        if (future == null) {
+          results.add(null);
+          continue;
+        }
+        try {
+          results.add(future.get());
+        } catch (ExecutionException ee) {
+          final Throwable cause = ee.getCause();
+          Throwables.propagateIfPossible(cause, IOException.class);
+          throw new RuntimeException(cause);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException(String.format(
+              "Interrupted while waiting for shard %d.", shard));
+        }
+      }
+      success = true;
+    } finally {
+      if (!success) {
+        discardPerShard(futures, results, request);
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Cancels a request issued on many shards after it failed on one of them.
+   *
+   * <p> Requests not started yet are cancelled. The results of the shards that succeeded,
+   *   including the requests already running, are released: a failed request leaks no entity.
+   *   Failures while releasing are logged, so that the original failure propagates. </p>
+   *
+   * @param futures Pending request on each shard, in shard order. Null for the shards holding
+   *     none of the entity IDs.
+   * @param results Results already collected, in shard order.
+   * @param request Request issued on each shard.
+   */
+  private <R> void discardPerShard(
+      List<Future<R>> futures, List<R> results, ShardCall<R> request) {
+    for (int shard = results.size(); shard < futures.size(); ++shard) {
+      final Future<R> future = futures.get(shard);
+      if (future != null) {
+        future.cancel(false);
+      }
+    }
+    for (int shard = 0; shard < futures.size(); ++shard) {
+      final Future<R> future = futures.get(shard);
+      if ((future == null) || future.isCancelled()) {
+        continue;
+      }
+      try {
+        final R result = (shard < results.size())
+            ? results.get(shard)
+            : Uninterruptibles.getUninterruptibly(future);
+        request.discard(mShards.get(shard), result);
+      } catch (ExecutionException ee) {
+        // This shard failed too: it holds no result.
+      } catch (IOException ioe) {
+        LOG.warn("Error while releasing the result of shard {}: {}", shard, ioe.getMessage());
+      }
+    }
+  }
+}
@@ -0,0 +1,21 @@
+package org.kiji.ohm.dao;
+
+/**
+ * Strategy routing entity IDs to the shards of a {@link ShardedKijiDao}.
+ *
+ * <p> A strategy is configured for a fixed number of shards, and must route a given entity ID
+ *   to the same shard for as long as the shards hold the same data. Implementations must be
+ *   thread-safe. </p>
+ */
+public interface ShardingStrategy {
+  /** @return the number of shards the strategy routes entity IDs to. */
+  int getShardCount();
+
+  /**
+   * Routes an entity ID to a shard.
+   *
+   * @param entityIdComponents Components of the entity ID, in row key order.
+   * @return the index of the shard holding the entity, in [0, getShardCount()).
+   */
+  int getShard(Object[] entityIdComponents);
+}
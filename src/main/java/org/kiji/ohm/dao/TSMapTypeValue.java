@@ -1,6 +1,85 @@
 package org.kiji.ohm.dao;
 
+import java.util.Map;
+import java.util.NavigableMap;
 import java.util.TreeMap;
 
-public class TSMapTypeValue<V> extends TreeMap<String, TimeSeries<V>> {
+/**
+ * Map from the qualifiers of a map-type family to their time-series.
+ *
+ * <p> Unlike the other qualifier maps, this map is mutable, so that entities can be built
+ *   qualifier by qualifier before being written. </p>
+ *
+ * @param <V> Type of the cell values.
+ */
+public class TSMapTypeValue<V> extends AbstractQualifierMap<TimeSeries<V>> {
+  /** Mutable map from qualifier to time-series, backing this map. */
+  private final NavigableMap<String, TimeSeries<V>> mQualifierMap;
+
+  public TSMapTypeValue() {
+    this(null);
+  }
+
+  /**
+   * Initializes an empty map of the qualifiers of a family fetched with a restriction.
+   *
+   * @param restriction Restriction the qualifiers were fetched with, or null.
+   */
+  public TSMapTypeValue(QualifierRestriction restriction) {
+    this(new TreeMap<String, TimeSeries<V>>(), restriction);
+  }
+
+  /**
+   * Initializes a map of the qualifiers of a family backed by a mutable map.
+   *
+   * @param qualifierMap Mutable map from qualifier to time-series.
+   * @param restriction Restriction the qualifiers were fetched with, or null.
+   */
+  private TSMapTypeValue(
+      NavigableMap<String, TimeSeries<V>> qualifierMap, QualifierRestriction restriction) {
+    super(qualifierMap, restriction);
+    mQualifierMap = qualifierMap;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public TimeSeries<V> put(String qualifier, TimeSeries<V> timeseries) {
+    return mQualifierMap.put(qualifier, timeseries);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void putAll(Map<? extends String, ? extends TimeSeries<V>> map) {
+    mQualifierMap.putAll(map);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public TimeSeries<V> remove(Object qualifier) {
+    return mQualifierMap.remove(qualifier);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void clear() {
+    mQualifierMap.clear();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean equals(Object other) {
+    return mQualifierMap.equals(other);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int hashCode() {
+    return mQualifierMap.hashCode();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String toString() {
+    return mQualifierMap.toString();
+  }
 }
@@ -0,0 +1,84 @@
+package org.kiji.ohm.dao;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.kiji.schema.KijiTable;
+import org.kiji.schema.KijiTableReader;
+
+/**
+ * Pool of readers on a Kiji table.
+ *
+ * <p> Readers are handed out to one thread at a time, and returned to the pool once the
+ *   request completes. The pool grows to the peak number of concurrent requests. </p>
+ */
+final class TableReaderPool implements Closeable {
+  /** Table to open readers on. Not owned. */
+  private final KijiTable mTable;
+
+  /** Idle readers. */
+  private final Queue<KijiTableReader> mIdle = new ConcurrentLinkedQueue<KijiTableReader>();
+
+  /** Set when the pool is closed. Readers released after close are closed immediately. */
+  private volatile boolean mClosed = false;
+
+  /**
+   * Initializes a new empty pool of readers.
+   *
+   * @param table Table to open readers on.
+   */
+  public TableReaderPool(KijiTable table) {
+    mTable = table;
+  }
+
+  /**
+   * Acquires a reader from the pool, opening a new one if none is idle.
+   *
+   * @return a reader, to be released with {@link #release(KijiTableReader)}.
+   * @throws IOException on I/O error.
+   */
+  public KijiTableReader acquire() throws IOException {
+    final KijiTableReader reader = mIdle.poll();
+    return (reader != null) ? reader : mTable.openTableReader();
+  }
+
+  /**
+   * Returns a reader to the pool.
+   *
+   * @param reader Reader acquired from this pool.
+   * @throws IOException on I/O error.
+   */
+  public void release(KijiTableReader reader) throws IOException {
+    mIdle.offer(reader);
+    if (mClosed && mIdle.remove(reader)) {
+      reader.close();
+    }
+  }
+
+  /**
+   * Opens readers ahead of the first requests.
+   *
+   * @param count Minimum number of idle readers to hold.
+   * @throws IOException on I/O error.
+   */
+  public void warmUp(int count) throws IOException {
+    while (!mClosed && (mIdle.size() < count)) {
+      release(mTable.openTableReader());
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void close() throws IOException {
+    mClosed = true;
+    while (true) {
+      final KijiTableReader reader = mIdle.poll();
+      if (reader == null) {
+        break;
+      }
+      reader.close();
+    }
+  }
+}
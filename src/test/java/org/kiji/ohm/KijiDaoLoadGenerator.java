@@ -0,0 +1,470 @@
+package org.kiji.ohm;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.HConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.kiji.ohm.annotations.EntityIdField;
+import org.kiji.ohm.annotations.KijiColumn;
+import org.kiji.ohm.annotations.KijiEntity;
+import org.kiji.ohm.dao.EntityScanner;
+import org.kiji.ohm.dao.KijiDao;
+import org.kiji.ohm.dao.KijiDaoOptions;
+import org.kiji.ohm.dao.MapTypeValue;
+import org.kiji.ohm.dao.TimeSeries;
+import org.kiji.schema.EntityId;
+import org.kiji.schema.Kiji;
+import org.kiji.schema.KijiInstaller;
+import org.kiji.schema.KijiTable;
+import org.kiji.schema.KijiTableWriter;
+import org.kiji.schema.KijiURI;
+import org.kiji.schema.layout.KijiTableLayouts;
+
+/**
+ * Multi-threaded end-to-end load generator for the KijiDao.
+ *
+ * <p> Installs a Kiji instance on a fake in-memory HBase, seeds the user_table with synthetic
+ *   users, then drives a mix of selects, multi-gets, scans and writes from several threads for
+ *   a fixed duration. Reports the throughput and the p50/p99/p999 latencies of each operation.
+ *   </p>
+ *
+ * <p> Run from the test classpath, for example:
+ *   <pre>
+ *   mvn test-compile exec:java -Dexec.classpathScope=test \
+ *       -Dexec.mainClass=org.kiji.ohm.KijiDaoLoadGenerator \
+ *       -Dexec.args="--threads=16 --rows=10000 --duration-secs=60"
+ *   </pre>
+ *   Flags are given as --name=value; run with --help to list them and their defaults. </p>
+ */
+public final class KijiDaoLoadGenerator {
+  private static final Logger LOG = LoggerFactory.getLogger(KijiDaoLoadGenerator.class);
+
+  private static final String USER_TABLE_LAYOUT = "org/kiji/ohm/user_table.json";
+
+  /** Operations driven by the load generator. */
+  private static enum Operation {
+    SELECT, MULTI_GET, SCAN, WRITE
+  }
+
+  /** Entity read and written by the load generator. */
+  @KijiEntity(table="user_table")
+  public static class LoadUser {
+    @EntityIdField(component="login")
+    public String login;
+
+    @KijiColumn(family="info", qualifier="full_name")
+    public String fullName;
+
+    @KijiColumn(family="info", qualifier="birth_date")
+    public long birthDate;
+
+    @KijiColumn(family="info", qualifier="zip_code", maxVersions=HConstants.ALL_VERSIONS)
+    public TimeSeries<Integer> zipCodes;
+
+    @KijiColumn(family="query_count")
+    public MapTypeValue<Integer> queryCounts;
+  }
+
+  /** Configuration of a load run, with defaults. */
+  private static final class Config {
+    private int mThreads = 8;
+    private int mRows = 1000;
+    private int mWidth = 10;
+    private int mVersions = 5;
+    private int mDurationSecs = 30;
+    private int mWarmUpSecs = 5;
+    private int mSelectPercent = 60;
+    private int mMultiGetPercent = 20;
+    private int mScanPercent = 5;
+    private int mWritePercent = 15;
+    private int mMultiGetSize = 20;
+    private int mScanRows = 100;
+    private boolean mCoalesceSelects = true;
+    private int mCellBudget = 0;
+    private long mSeed = 42L;
+
+    /**
+     * Parses the command-line flags.
+     *
+     * @param args Command-line flags, as --name=value.
+     * @return the configuration, or null if the usage was requested.
+     */
+    static Config parse(String[] args) {
+      final Config config = new Config();
+      for (final String arg : args) {
+        if (arg.equals("--help")) {
+          return null;
+        }
+        Preconditions.checkArgument(arg.startsWith("--") && arg.contains("="),
+            "Invalid flag '%s', expecting --name=value.", arg);
+        final String name = arg.substring(2, arg.indexOf('='));
+        final String value = arg.substring(arg.indexOf('=') + 1);
+        if (name.equals("threads")) {
+          config.mThreads = Integer.parseInt(value);
+        } else if (name.equals("rows")) {
+          config.mRows = Integer.parseInt(value);
+        } else if (name.equals("width")) {
+          config.mWidth = Integer.parseInt(value);
+        } else if (name.equals("versions")) {
+          config.mVersions = Integer.parseInt(value);
+        } else if (name.equals("duration-secs")) {
+          config.mDurationSecs = Integer.parseInt(value);
+        } else if (name.equals("warm-up-secs")) {
+          config.mWarmUpSecs = Integer.parseInt(value);
+        } else if (name.equals("select-percent")) {
+          config.mSelectPercent = Integer.parseInt(value);
+        } else if (name.equals("multi-get-percent")) {
+          config.mMultiGetPercent = Integer.parseInt(value);
+        } else if (name.equals("scan-percent")) {
+          config.mScanPercent = Integer.parseInt(value);
+        } else if (name.equals("write-percent")) {
+          config.mWritePercent = Integer.parseInt(value);
+        } else if (name.equals("multi-get-size")) {
+          config.mMultiGetSize = Integer.parseInt(value);
+        } else if (name.equals("scan-rows")) {
+          config.mScanRows = Integer.parseInt(value);
+        } else if (name.equals("coalesce-selects")) {
+          config.mCoalesceSelects = Boolean.parseBoolean(value);
+        } else if (name.equals("cell-budget")) {
+          config.mCellBudget = Integer.parseInt(value);
+        } else if (name.equals("seed")) {
+          config.mSeed = Long.parseLong(value);
+        } else {
+          throw new IllegalArgumentException(String.format("Unknown flag '%s'.", arg));
+        }
+      }
+      Preconditions.checkArgument(config.mThreads > 0, "Invalid thread count.");
+      Preconditions.checkArgument(config.mRows > 0, "Invalid row count.");
+      Preconditions.checkArgument(
+          config.mSelectPercent + config.mMultiGetPercent + config.mScanPercent
+              + config.mWritePercent == 100,
+          "Operation percentages must sum up to 100.");
+      return config;
+    }
+
+    /** @return the usage of the command-line flags. */
+    static String usage() {
+      final Config defaults = new Config();
+      return "Usage: KijiDaoLoadGenerator [--name=value]...\n"
+          + "  --threads=" + defaults.mThreads + "  Number of client threads.\n"
+          + "  --rows=" + defaults.mRows + "  Number of seeded users.\n"
+          + "  --width=" + defaults.mWidth + "  Number of query_count qualifiers per user.\n"
+          + "  --versions=" + defaults.mVersions + "  Number of zip_code versions per user.\n"
+          + "  --duration-secs=" + defaults.mDurationSecs + "  Duration of the measurement.\n"
+          + "  --warm-up-secs=" + defaults.mWarmUpSecs + "  Duration of the warm-up.\n"
+          + "  --select-percent=" + defaults.mSelectPercent + "\n"
+          + "  --multi-get-percent=" + defaults.mMultiGetPercent + "\n"
+          + "  --scan-percent=" + defaults.mScanPercent + "\n"
+          + "  --write-percent=" + defaults.mWritePercent + "\n"
+          + "  --multi-get-size=" + defaults.mMultiGetSize + "  Users per multi-get.\n"
+          + "  --scan-rows=" + defaults.mScanRows + "  Users read per scan.\n"
+          + "  --coalesce-selects=" + defaults.mCoalesceSelects + "\n"
+          + "  --cell-budget=" + defaults.mCellBudget + "\n"
+          + "  --seed=" + defaults.mSeed + "  Seed of the random workload.\n";
+    }
+  }
+
+  /** Latencies recorded by one thread for one operation, in nanoseconds. */
+  private static final class Latencies {
+    private long[] mSamples = new long[1024];
+    private int mCount = 0;
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos Latency, in nanoseconds.
+     */
+    void add(long nanos) {
+      if (mCount == mSamples.length) {
+        mSamples = Arrays.copyOf(mSamples, 2 * mSamples.length);
+      }
+      mSamples[mCount++] = nanos;
+    }
+
+    /**
+     * Merges the latencies recorded by several threads.
+     *
+     * @param all Latencies to merge.
+     * @return the merged latencies, sorted.
+     */
+    static long[] mergeSorted(List<Latencies> all) {
+      int total = 0;
+      for (final Latencies latencies : all) {
+        total += latencies.mCount;
+      }
+      final long[] merged = new long[total];
+      int offset = 0;
+      for (final Latencies latencies : all) {
+        System.arraycopy(latencies.mSamples, 0, merged, offset, latencies.mCount);
+        offset += latencies.mCount;
+      }
+      Arrays.sort(merged);
+      return merged;
+    }
+  }
+
+  /** Configuration of the run. */
+  private final Config mConfig;
+
+  /** DAO under load. */
+  private final KijiDao mDao;
+
+  /**
+   * Initializes a load generator.
+   *
+   * @param config Configuration of the run.
+   * @param dao DAO under load.
+   */
+  private KijiDaoLoadGenerator(Config config, KijiDao dao) {
+    mConfig = config;
+    mDao = dao;
+  }
+
+  /**
+   * Reports the login of a seeded user.
+   *
+   * @param index Index of the user.
+   * @return the login of the user.
+   */
+  private static String login(int index) {
+    return String.format("user-%08d", index);
+  }
+
+  /**
+   * Seeds the user table.
+   *
+   * @param kiji Kiji instance holding the user table.
+   * @param config Configuration of the run.
+   * @throws IOException on I/O error.
+   */
+  private static void seed(Kiji kiji, Config config) throws IOException {
+    final KijiTable table = kiji.openTable("user_table");
+    try {
+      final KijiTableWriter writer = table.openTableWriter();
+      try {
+        for (int i = 0; i < config.mRows; ++i) {
+          final EntityId entityId = table.getEntityId(login(i));
+          writer.put(entityId, "info", "login", login(i));
+          writer.put(entityId, "info", "full_name", "User " + i);
+          writer.put(entityId, "info", "birth_date", 1000L * i);
+          for (int version = 1; version <= config.mVersions; ++version) {
+            writer.put(entityId, "info", "zip_code", version, 10000 + (i + version) % 90000);
+          }
+          for (int q = 0; q < config.mWidth; ++q) {
+            writer.put(entityId, "query_count", "query-" + q, q * i);
+          }
+        }
+      } finally {
+        writer.close();
+      }
+    } finally {
+      table.release();
+    }
+  }
+
+  /**
+   * Runs one operation.
+   *
+   * @param operation Operation to run.
+   * @param random Source of randomness of the calling thread.
+   * @throws IOException on I/O error.
+   */
+  private void run(Operation operation, Random random) throws IOException {
+    switch (operation) {
+      case SELECT: {
+        mDao.select(LoadUser.class, login(random.nextInt(mConfig.mRows)));
+        break;
+      }
+      case MULTI_GET: {
+        final List<String> logins = Lists.newArrayListWithCapacity(mConfig.mMultiGetSize);
+        for (int i = 0; i < mConfig.mMultiGetSize; ++i) {
+          logins.add(login(random.nextInt(mConfig.mRows)));
+        }
+        mDao.selectMany(LoadUser.class, logins);
+        break;
+      }
+      case SCAN: {
+        final EntityScanner<LoadUser> scanner = mDao.selectAll(LoadUser.class, null);
+        try {
+          for (int i = 0; (i < mConfig.mScanRows) && scanner.hasNext(); ++i) {
+            scanner.next();
+          }
+        } finally {
+          scanner.close();
+        }
+        break;
+      }
+      case WRITE: {
+        final LoadUser user = new LoadUser();
+        user.login = login(random.nextInt(mConfig.mRows));
+        user.fullName = "User " + random.nextInt();
+        mDao.write(user);
+        break;
+      }
+      default:
+        throw new IllegalStateException("Unknown operation: " + operation);
+    }
+  }
+
+  /**
+   * Picks the next operation according to the configured mix.
+   *
+   * @param random Source of randomness of the calling thread.
+   * @return the next operation.
+   */
+  private Operation pick(Random random) {
+    final int draw = random.nextInt(100);
+    if (draw < mConfig.mSelectPercent) {
+      return Operation.SELECT;
+    } else if (draw < mConfig.mSelectPercent + mConfig.mMultiGetPercent) {
+      return Operation.MULTI_GET;
+    } else if (draw < mConfig.mSelectPercent + mConfig.mMultiGetPercent + mConfig.mScanPercent) {
+      return Operation.SCAN;
+    } else {
+      return Operation.WRITE;
+    }
+  }
+
+  /**
+   * Drives the workload from the configured number of threads, and reports the results.
+   *
+   * @throws Exception on error.
+   */
+  private void drive() throws Exception {
+    final AtomicBoolean measuring = new AtomicBoolean(false);
+    final AtomicBoolean stopped = new AtomicBoolean(false);
+    final CountDownLatch done = new CountDownLatch(mConfig.mThreads);
+    final List<Map<Operation, Latencies>> perThread = Lists.newArrayList();
+    final List<Throwable> errors = Lists.newArrayList();
+
+    for (int t = 0; t < mConfig.mThreads; ++t) {
+      final Map<Operation, Latencies> latencies = Maps.newEnumMap(Operation.class);
+      for (final Operation operation : Operation.values()) {
+        latencies.put(operation, new Latencies());
+      }
+      perThread.add(latencies);
+      final Random random = new Random(mConfig.mSeed + t);
+
+      final Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            while (!stopped.get()) {
+              final Operation operation = pick(random);
+              final long start = System.nanoTime();
+              KijiDaoLoadGenerator.this.run(operation, random);
+              final long elapsed = System.nanoTime() - start;
+              if (measuring.get()) {
+                latencies.get(operation).add(elapsed);
+              }
+            }
+          } catch (Throwable error) {
+            synchronized (errors) {
+              errors.add(error);
+            }
+            stopped.set(true);
+          } finally {
+            done.countDown();
+          }
+        }
+      }, "load-" + t);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    LOG.info("Warming up for {} seconds.", mConfig.mWarmUpSecs);
+    Thread.sleep(mConfig.mWarmUpSecs * 1000L);
+    measuring.set(true);
+    final long start = System.nanoTime();
+    Thread.sleep(mConfig.mDurationSecs * 1000L);
+    measuring.set(false);
+    final double seconds = (System.nanoTime() - start) / 1e9;
+    stopped.set(true);
+    done.await();
+
+    if (!errors.isEmpty()) {
+      throw new RuntimeException("Load thread failed.", errors.get(0));
+    }
+
+    System.out.printf("%-10s %12s %12s %12s %12s %12s%n",
+        "operation", "count", "ops/s", "p50 (us)", "p99 (us)", "p999 (us)");
+    for (final Operation operation : Operation.values()) {
+      final List<Latencies> all = Lists.newArrayList();
+      for (final Map<Operation, Latencies> latencies : perThread) {
+        all.add(latencies.get(operation));
+      }
+      final long[] sorted = Latencies.mergeSorted(all);
+      System.out.printf("%-10s %12d %12.1f %12.1f %12.1f %12.1f%n",
+          operation, sorted.length, sorted.length / seconds,
+          percentile(sorted, 0.50), percentile(sorted, 0.99), percentile(sorted, 0.999));
+    }
+    System.out.printf("select fetches: %d, coalesced selects: %d%n",
+        mDao.getSelectFetchCount(), mDao.getCoalescedSelectCount());
+  }
+
+  /**
+   * Reports a percentile of sorted latencies.
+   *
+   * @param sorted Latencies, in nanoseconds, sorted.
+   * @param quantile Quantile to report, between 0 and 1.
+   * @return the percentile, in microseconds, or 0 if there is no latency.
+   */
+  private static double percentile(long[] sorted, double quantile) {
+    if (sorted.length == 0) {
+      return 0.0;
+    }
+    final int index = Math.min(sorted.length - 1, (int) Math.ceil(quantile * sorted.length) - 1);
+    return sorted[Math.max(index, 0)] / 1000.0;
+  }
+
+  /**
+   * Program entry point.
+   *
+   * @param args Command-line flags, as --name=value.
+   * @throws Exception on error.
+   */
+  public static void main(String[] args) throws Exception {
+    final Config config = Config.parse(args);
+    if (config == null) {
+      System.out.print(Config.usage());
+      return;
+    }
+
+    final Configuration conf = HBaseConfiguration.create();
+    final KijiURI uri = KijiURI.newBuilder(
+        String.format("kiji://.fake.%d/load", System.currentTimeMillis())).build();
+    KijiInstaller.get().install(uri, conf);
+    final Kiji kiji = Kiji.Factory.open(uri, conf);
+    try {
+      kiji.createTable(KijiTableLayouts.getLayout(USER_TABLE_LAYOUT));
+      LOG.info("Seeding {} users.", config.mRows);
+      seed(kiji, config);
+
+      final KijiDao dao = new KijiDao(kiji, new KijiDaoOptions()
+          .setCoalesceSelects(config.mCoalesceSelects)
+          .setCellBudget(config.mCellBudget));
+      try {
+        new KijiDaoLoadGenerator(config, dao).drive();
+      } finally {
+        dao.close();
+      }
+    } finally {
+      kiji.release();
+      KijiInstaller.get().uninstall(uri, conf);
+    }
+  }
+}
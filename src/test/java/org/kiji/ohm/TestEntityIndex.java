@@ -0,0 +1,109 @@
+package org.kiji.ohm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.kiji.ohm.annotations.EntityIdField;
+import org.kiji.ohm.annotations.KijiColumn;
+import org.kiji.ohm.annotations.KijiEntity;
+import org.kiji.ohm.annotations.KijiIndexed;
+import org.kiji.ohm.dao.KijiDao;
+import org.kiji.schema.Kiji;
+import org.kiji.schema.KijiClientTest;
+import org.kiji.schema.layout.KijiTableLayouts;
+import org.kiji.schema.util.InstanceBuilder;
+
+public class TestEntityIndex extends KijiClientTest {
+  private static final String USER_TABLE_LAYOUT = "org/kiji/ohm/user_table.json";
+  private static final String INDEX_TABLE_LAYOUT = "org/kiji/ohm/user_full_name_index.json";
+
+  /** Test Kiji instance. Not owned: do not release! */
+  private Kiji mKiji;
+
+  /** Test Kiji mDAO. */
+  private KijiDao mDAO;
+
+  // -----------------------------------------------------------------------------------------------
+
+  @Before
+  public final void setup() throws Exception {
+    final InstanceBuilder builder = new InstanceBuilder(getKiji());
+    builder.withTable(KijiTableLayouts.getLayout(USER_TABLE_LAYOUT));
+    builder.withTable(KijiTableLayouts.getLayout(INDEX_TABLE_LAYOUT));
+    mKiji = builder.build();
+    mDAO = new KijiDao(mKiji);
+  }
+
+  @After
+  public final void teardown() throws Exception {
+    mDAO.close();
+    mDAO = null;
+    mKiji = null;
+  }
+
+  // -----------------------------------------------------------------------------------------------
+
+  @Test
+  public void testSelectByIndexedField() throws Exception {
+    mDAO.write(newUser("taton", "Christophe Taton"));
+    mDAO.write(newUser("amit", "Amit N"));
+
+    final List<IndexedUser> users = mDAO.selectBy(IndexedUser.class, "fullName", "Amit N");
+    assertEquals(1, users.size());
+    assertEquals("amit", users.get(0).login);
+    assertEquals("Amit N", users.get(0).fullName);
+
+    assertTrue(mDAO.selectBy(IndexedUser.class, "fullName", "Nobody").isEmpty());
+  }
+
+  @Test
+  public void testIndexFollowsUpdates() throws Exception {
+    mDAO.write(newUser("taton", "Christophe Taton"));
+    mDAO.write(newUser("taton", "C. Taton"));
+
+    assertTrue(mDAO.selectBy(IndexedUser.class, "fullName", "Christophe Taton").isEmpty());
+    final List<IndexedUser> users = mDAO.selectBy(IndexedUser.class, "fullName", "C. Taton");
+    assertEquals(1, users.size());
+    assertEquals("taton", users.get(0).login);
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void testSelectByNonIndexedField() throws Exception {
+    mDAO.selectBy(IndexedUser.class, "zipCode", 94110);
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void testSelectByNullValue() throws Exception {
+    mDAO.selectBy(IndexedUser.class, "fullName", null);
+  }
+
+  // -----------------------------------------------------------------------------------------------
+
+  private static IndexedUser newUser(String login, String fullName) {
+    final IndexedUser user = new IndexedUser();
+    user.login = login;
+    user.fullName = fullName;
+    user.zipCode = 94110;
+    return user;
+  }
+
+  @KijiEntity(table="user_table")
+  public static class IndexedUser {
+    @EntityIdField(component="login")
+    public String login;
+
+    @KijiIndexed(table="user_full_name_index")
+    @KijiColumn(family="info", qualifier="full_name")
+    public String fullName;
+
+    /** User zip code. */
+    @KijiColumn(family="info", qualifier="zip_code")
+    public int zipCode;
+  }
+}
@@ -0,0 +1,211 @@
+package org.kiji.ohm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.HConstants;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.kiji.ohm.annotations.EntityIdField;
+import org.kiji.ohm.annotations.KijiColumn;
+import org.kiji.ohm.annotations.KijiEntity;
+import org.kiji.ohm.dao.ConsistentHashShardingStrategy;
+import org.kiji.ohm.dao.KijiDaoTestHooks;
+import org.kiji.ohm.dao.RangeShardingStrategy;
+import org.kiji.ohm.dao.ShardedEntityScanner;
+import org.kiji.ohm.dao.ShardedKijiDao;
+import org.kiji.ohm.dao.ShardingStrategy;
+import org.kiji.schema.ColumnVersionIterator;
+import org.kiji.schema.Kiji;
+import org.kiji.schema.KijiClientTest;
+import org.kiji.schema.KijiInstaller;
+import org.kiji.schema.KijiURI;
+import org.kiji.schema.layout.KijiTableLayouts;
+import org.kiji.schema.util.InstanceBuilder;
+
+public class TestShardedKijiDao extends KijiClientTest {
+  private static final String USER_TABLE_LAYOUT = "org/kiji/ohm/user_table.json";
+
+  /** First shard, the test Kiji instance. Not owned: do not release! */
+  private Kiji mShard0;
+
+  /** URI of the second shard, a fake Kiji instance installed by the test. */
+  private KijiURI mShard1Uri;
+
+  /** Second shard. Owned. */
+  private Kiji mShard1;
+
+  /** Sharded DAO, with shard 0 holding the logins before "m". */
+  private ShardedKijiDao mDAO;
+
+  // -----------------------------------------------------------------------------------------------
+
+  @Before
+  public final void setup() throws Exception {
+    mShard0 = new InstanceBuilder(getKiji())
+        .withTable(KijiTableLayouts.getLayout(USER_TABLE_LAYOUT))
+        .build();
+
+    mShard1Uri = KijiURI.newBuilder(
+        String.format("kiji://.fake.%d/shard1", System.nanoTime())).build();
+    KijiInstaller.get().install(mShard1Uri, HBaseConfiguration.create());
+    mShard1 = new InstanceBuilder(Kiji.Factory.open(mShard1Uri, HBaseConfiguration.create()))
+        .withTable(KijiTableLayouts.getLayout(USER_TABLE_LAYOUT))
+        .build();
+
+    mDAO = new ShardedKijiDao(
+        ImmutableList.of(mShard0, mShard1),
+        new RangeShardingStrategy<String>(ImmutableList.of("m")));
+  }
+
+  @After
+  public final void teardown() throws Exception {
+    mDAO.close();
+    mDAO = null;
+    mShard1.release();
+    KijiInstaller.get().uninstall(mShard1Uri, HBaseConfiguration.create());
+    mShard1 = null;
+    mShard0 = null;
+  }
+
+  // -----------------------------------------------------------------------------------------------
+
+  @Test
+  public void testRouting() throws Exception {
+    mDAO.write(newUser("amit", "Amit N"));
+    mDAO.write(newUser("taton", "Christophe Taton"));
+    assertEquals(0, mDAO.getShard("amit"));
+    assertEquals(1, mDAO.getShard("taton"));
+
+    // Each row is written to its shard only:
+    assertEquals("Amit N", mDAO.getShardDao(0).select(ShardedUser.class, "amit").fullName);
+    assertNull(mDAO.getShardDao(1).select(ShardedUser.class, "amit").fullName);
+    assertEquals("Christophe Taton",
+        mDAO.getShardDao(1).select(ShardedUser.class, "taton").fullName);
+    assertNull(mDAO.getShardDao(0).select(ShardedUser.class, "taton").fullName);
+
+    assertEquals("Amit N", mDAO.select(ShardedUser.class, "amit").fullName);
+    assertEquals("Christophe Taton", mDAO.select(ShardedUser.class, "taton").fullName);
+
+    mDAO.delete(ShardedUser.class, "taton");
+    assertNull(mDAO.select(ShardedUser.class, "taton").fullName);
+    assertEquals("Amit N", mDAO.select(ShardedUser.class, "amit").fullName);
+  }
+
+  @Test
+  public void testSelectManyAndScanAcrossShards() throws Exception {
+    final List<String> logins = ImmutableList.of("zoe", "amit", "taton", "bob", "nina");
+    for (final String login : logins) {
+      mDAO.write(newUser(login, "User " + login));
+    }
+
+    // Multi-get is split per shard, and the entities come back in the order requested:
+    final List<ShardedUser> users = mDAO.selectMany(ShardedUser.class, logins);
+    assertEquals(logins.size(), users.size());
+    for (int i = 0; i < logins.size(); ++i) {
+      assertEquals(logins.get(i), users.get(i).login);
+      assertEquals("User " + logins.get(i), users.get(i).fullName);
+    }
+
+    // Scan merges the rows of both shards:
+    final Set<String> scanned = Sets.newHashSet();
+    final ShardedEntityScanner<ShardedUser> scanner = mDAO.selectAll(ShardedUser.class);
+    try {
+      while (scanner.hasNext()) {
+        assertTrue(scanned.add(scanner.next().login));
+      }
+    } finally {
+      scanner.close();
+    }
+    assertEquals(Sets.newHashSet(logins), scanned);
+
+    mDAO.deleteAll(ShardedUser.class, logins);
+    for (final ShardedUser user : mDAO.selectMany(ShardedUser.class, logins)) {
+      assertNull(user.fullName);
+    }
+  }
+
+  @Test
+  public void testSelectManyReleasesEntitiesOnShardFailure() throws Exception {
+    final List<String> logins = ImmutableList.of("amit", "taton");
+    // Shard 1 fails, after shard 0 returned an entity holding a pager:
+    mShard1.deleteTable("user_table");
+    try {
+      mDAO.selectMany(ShardedUserWithHistory.class, logins);
+      fail();
+    } catch (Exception exn) {
+      // Expected: shard 1 has no table.
+    }
+
+    // The entity fetched from shard 0 is released, with its pager:
+    assertEquals(1, KijiDaoTestHooks.getEntitySpecLeaseCount(
+        mDAO.getShardDao(0), ShardedUserWithHistory.class));
+  }
+
+  @Test
+  public void testConsistentHashStrategy() throws Exception {
+    final ShardingStrategy three = new ConsistentHashShardingStrategy(3);
+    final ShardingStrategy four = new ConsistentHashShardingStrategy(4);
+    final int nkeys = 3000;
+    final int[] counts = new int[3];
+    int moved = 0;
+    for (int i = 0; i < nkeys; ++i) {
+      final Object[] eid = new Object[] {"user-" + i};
+      final int shard = three.getShard(eid);
+      assertEquals(shard, three.getShard(eid));
+      counts[shard] += 1;
+      final int newShard = four.getShard(eid);
+      if (newShard != shard) {
+        // Adding a shard only moves keys to the new shard:
+        assertEquals(3, newShard);
+        moved += 1;
+      }
+    }
+    for (final int count : counts) {
+      assertTrue(count > nkeys / 6);
+    }
+    assertTrue(moved < nkeys / 2);
+  }
+
+  // -----------------------------------------------------------------------------------------------
+
+  private static ShardedUser newUser(String login, String fullName) {
+    final ShardedUser user = new ShardedUser();
+    user.eidLogin = login;
+    user.login = login;
+    user.fullName = fullName;
+    return user;
+  }
+
+  @KijiEntity(table="user_table")
+  public static class ShardedUser {
+    @EntityIdField(component="login")
+    public String eidLogin;
+
+    @KijiColumn(family="info", qualifier="login")
+    public String login;
+
+    @KijiColumn(family="info", qualifier="full_name")
+    public String fullName;
+  }
+
+  @KijiEntity(table="user_table")
+  public static class ShardedUserWithHistory {
+    @EntityIdField(component="login")
+    public String eidLogin;
+
+    @KijiColumn(family="info", qualifier="zip_code",
+        maxVersions=HConstants.ALL_VERSIONS, pageSize=2)
+    public ColumnVersionIterator<Integer> zipCodes;
+  }
+}
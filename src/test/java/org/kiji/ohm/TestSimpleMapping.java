@@ -1,33 +1,80 @@
 package org.kiji.ohm;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.Closeable;
+import java.io.File;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.google.common.base.Objects;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import org.apache.hadoop.hbase.HConstants;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.kiji.ohm.annotations.Downsampled;
 import org.kiji.ohm.annotations.EntityIdField;
 import org.kiji.ohm.annotations.KijiColumn;
 import org.kiji.ohm.annotations.KijiEntity;
+import org.kiji.ohm.annotations.KijiReference;
+import org.kiji.ohm.dao.Aggregation;
+import org.kiji.ohm.dao.ChangeScanner;
+import org.kiji.ohm.dao.CompressedTimeSeries;
+import org.kiji.ohm.dao.EntityBatch;
+import org.kiji.ohm.dao.EntityBatchScanner;
+import org.kiji.ohm.dao.EntityCell;
+import org.kiji.ohm.dao.EntityScanner;
 import org.kiji.ohm.dao.ForHelper;
 import org.kiji.ohm.dao.KijiCellIterator;
+import org.kiji.ohm.dao.KijiCellValueIterator;
 import org.kiji.ohm.dao.KijiDao;
+import org.kiji.ohm.dao.KijiDaoOptions;
+import org.kiji.ohm.dao.KijiDaoTestHooks;
 import org.kiji.ohm.dao.MapTypeValue;
+import org.kiji.ohm.dao.MergedCellIterator;
+import org.kiji.ohm.dao.PrefetchingIterator;
+import org.kiji.ohm.dao.QualifierRestriction;
+import org.kiji.ohm.dao.RowKeyBuffer;
+import org.kiji.ohm.dao.TSMapTypeValue;
 import org.kiji.ohm.dao.TimeSeries;
 import org.kiji.schema.ColumnVersionIterator;
 import org.kiji.schema.Kiji;
 import org.kiji.schema.KijiCell;
 import org.kiji.schema.KijiClientTest;
 import org.kiji.schema.KijiTable;
+import org.kiji.schema.KijiTableWriter;
 import org.kiji.schema.MapFamilyVersionIterator;
+import org.kiji.schema.avro.TableLayoutDesc;
 import org.kiji.schema.layout.KijiTableLayouts;
 import org.kiji.schema.util.InstanceBuilder;
 
@@ -98,6 +145,121 @@ public class TestSimpleMapping extends KijiClientTest {
     assertEquals(12345, user.zipCode);
   }
 
+  @Test
+  public void testWarmUp() throws Exception {
+    mDAO.warmUp(User.class, UserMultiVersion.class);
+    final User user = mDAO.select(User.class, "taton");
+    assertEquals("Christophe Taton", user.fullName);
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void testWarmUpNonEntity() throws Exception {
+    mDAO.warmUp(String.class);
+  }
+
+  @Test
+  public void testSelectMany() throws Exception {
+    final List<User> users = mDAO.selectMany(User.class, Lists.newArrayList("taton", "amit"));
+    assertEquals(2, users.size());
+    assertEquals("Christophe Taton", users.get(0).fullName);
+    assertEquals("Amit N", users.get(1).fullName);
+  }
+
+  @Test
+  public void testSelectAll() throws Exception {
+    final Set<String> logins = Sets.newHashSet();
+    final EntityScanner<User> scanner = mDAO.selectAll(User.class, null);
+    try {
+      for (User user : ForHelper.from(scanner)) {
+        logins.add(user.eidLogin);
+      }
+    } finally {
+      scanner.close();
+    }
+    assertEquals(Sets.newHashSet("taton", "amit", "missing_cells"), logins);
+  }
+
+  @Test
+  public void testPublishAll() throws Exception {
+    final RecordingSubscriber<User> subscriber = new RecordingSubscriber<User>();
+    mDAO.publishAll(User.class, null).subscribe(subscriber);
+    subscriber.request(Long.MAX_VALUE);
+    assertTrue(subscriber.mTerminated.await(10, TimeUnit.SECONDS));
+    assertNull(subscriber.mError.get());
+
+    final Set<String> logins = Sets.newHashSet();
+    for (final User user : subscriber.mEntities) {
+      logins.add(user.eidLogin);
+    }
+    assertEquals(Sets.newHashSet("taton", "amit", "missing_cells"), logins);
+  }
+
+  @Test
+  public void testPublishAllOnDemand() throws Exception {
+    final RecordingSubscriber<User> subscriber = new RecordingSubscriber<User>();
+    mDAO.publishAll(User.class, null).subscribe(subscriber);
+
+    // Nothing is delivered until requested:
+    assertNull(subscriber.mEntities.poll(200, TimeUnit.MILLISECONDS));
+
+    final Set<String> logins = Sets.newHashSet();
+    for (int i = 0; i < 3; ++i) {
+      subscriber.request(1);
+      final User user = subscriber.mEntities.poll(10, TimeUnit.SECONDS);
+      assertNotNull(user);
+      logins.add(user.eidLogin);
+      // Exactly one entity is delivered per requested entity:
+      assertNull(subscriber.mEntities.poll(100, TimeUnit.MILLISECONDS));
+    }
+    assertEquals(Sets.newHashSet("taton", "amit", "missing_cells"), logins);
+
+    subscriber.request(1);
+    assertTrue(subscriber.mTerminated.await(10, TimeUnit.SECONDS));
+    assertNull(subscriber.mError.get());
+    assertTrue(subscriber.mEntities.isEmpty());
+    assertFalse(subscriber.mViolation.get());
+  }
+
+  @Test
+  public void testPublishAllCancel() throws Exception {
+    final RecordingSubscriber<UserWithPaging> subscriber =
+        new RecordingSubscriber<UserWithPaging>();
+    mDAO.publishAll(UserWithPaging.class, null).subscribe(subscriber);
+    subscriber.request(1);
+    final List<UserWithPaging> delivered = Lists.newArrayList();
+    delivered.add(subscriber.mEntities.poll(10, TimeUnit.SECONDS));
+    assertNotNull(delivered.get(0));
+
+    // Cancel while the next entities are being fetched:
+    subscriber.request(2);
+    subscriber.mSubscription.cancel();
+
+    // The DAO holds one lease on the specification, and each delivered entity holds another.
+    // The scanner and the entities fetched but not delivered release theirs once cancelled:
+    final long deadline = System.currentTimeMillis() + 10000;
+    while (true) {
+      subscriber.mEntities.drainTo(delivered);
+      final int leases = KijiDaoTestHooks.getEntitySpecLeaseCount(mDAO, UserWithPaging.class);
+      if (leases == 1 + delivered.size()) {
+        break;
+      }
+      assertTrue(String.format("Cancelled scan still holds %d leases.",
+          leases - 1 - delivered.size()), System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+
+    for (final UserWithPaging user : delivered) {
+      mDAO.releaseEntity(user);
+    }
+    assertEquals(1, KijiDaoTestHooks.getEntitySpecLeaseCount(mDAO, UserWithPaging.class));
+
+    // Cancelled subscriptions emit no further signal:
+    subscriber.request(1);
+    assertNull(subscriber.mEntities.poll(200, TimeUnit.MILLISECONDS));
+    assertEquals(1, subscriber.mTerminated.getCount());
+    assertFalse(subscriber.mViolation.get());
+  }
+
   @Test
   public void testMissingCells() throws Exception {
     final User user = mDAO.select(User.class, "missing_cells");
@@ -137,6 +299,616 @@ public class TestSimpleMapping extends KijiClientTest {
     assertEquals(2, (long)firstCell.getTimestamp());
   }
 
+  @Test
+  public void testAggregate() throws Exception {
+    final Class<UserMultiVersion> klass = UserMultiVersion.class;
+    assertEquals(94110L + 94131L + 12345L,
+        mDAO.aggregate(klass, "zipCodes", Aggregation.SUM, "taton"));
+    assertEquals(3L, mDAO.aggregate(klass, "zipCodes", Aggregation.COUNT, "taton"));
+    assertEquals(12345, mDAO.aggregate(klass, "zipCodes", Aggregation.MIN, "taton"));
+    assertEquals(94131, mDAO.aggregate(klass, "zipCodes", Aggregation.MAX, "taton"));
+    assertEquals(12345, mDAO.aggregate(klass, "zipCodes", Aggregation.LAST, "taton"));
+    assertNull(mDAO.aggregate(klass, "zipCodes", Aggregation.MAX, "amit"));
+
+    // Map-type family spans the versions of all qualifiers:
+    assertEquals(20L + 30L + 40L + 50L,
+        mDAO.aggregate(klass, "queryCount", Aggregation.SUM, "amit"));
+  }
+
+  @Test
+  public void testCoalescedSelects() throws Exception {
+    final int nthreads = 8;
+    // The first fetch is held in flight until all the other selects wait for it:
+    final CountDownLatch fetching = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    KijiDaoTestHooks.setFetchHook(mDAO, new Runnable() {
+      @Override
+      public void run() {
+        fetching.countDown();
+        Uninterruptibles.awaitUninterruptibly(release);
+      }
+    });
+
+    final List<Thread> threads = Lists.newArrayList();
+    final List<User> users = Collections.synchronizedList(Lists.<User>newArrayList());
+    for (int i = 0; i < nthreads; ++i) {
+      final Thread thread = new Thread() {
+        @Override
+        public void run() {
+          try {
+            users.add(mDAO.select(User.class, "taton"));
+          } catch (Exception exn) {
+            throw new RuntimeException(exn);
+          }
+        }
+      };
+      thread.start();
+      threads.add(thread);
+    }
+    try {
+      assertTrue(fetching.await(10, TimeUnit.SECONDS));
+      final long deadline = System.currentTimeMillis() + 10 * 1000L;
+      while ((mDAO.getCoalescedSelectCount() < nthreads - 1)
+          && (System.currentTimeMillis() < deadline)) {
+        Thread.sleep(1);
+      }
+    } finally {
+      release.countDown();
+      for (final Thread thread : threads) {
+        thread.join();
+      }
+      KijiDaoTestHooks.setFetchHook(mDAO, null);
+    }
+
+    // A single select issued a fetch, all the others waited for it:
+    assertEquals(nthreads, users.size());
+    assertEquals(1, mDAO.getSelectFetchCount());
+    assertEquals(nthreads - 1, mDAO.getCoalescedSelectCount());
+    // Each caller owns a distinct entity:
+    final Set<User> distinct = Sets.newIdentityHashSet();
+    distinct.addAll(users);
+    assertEquals(nthreads, distinct.size());
+    for (final User user : users) {
+      assertEquals("taton", user.login);
+    }
+  }
+
+  @Test
+  public void testResolveReferences() throws Exception {
+    final Follower follower1 = new Follower();
+    follower1.followedLogins = Lists.newArrayList("taton", "amit");
+    final Follower follower2 = new Follower();
+    follower2.followedLogins = Lists.newArrayList("amit");
+    mDAO.resolveReferences(Lists.newArrayList(follower1, follower2));
+
+    assertEquals(2, follower1.followed.size());
+    assertEquals("Christophe Taton", follower1.followed.get(0).fullName);
+    assertEquals("Amit N", follower1.followed.get(1).fullName);
+    // Each referenced entity is fetched once per batch:
+    assertSame(follower1.followed.get(1), follower2.followed.get(0));
+  }
+
+  @Test
+  public void testEagerReference() throws Exception {
+    final UserWithReference user = mDAO.select(UserWithReference.class, "amit");
+    assertEquals("Amit N", user.self.fullName);
+  }
+
+  @Test
+  public void testRowCache() throws Exception {
+    final File cacheFile = File.createTempFile("row-cache", ".bin");
+    cacheFile.deleteOnExit();
+    final KijiDaoOptions options = new KijiDaoOptions()
+        .setRowCacheFile(cacheFile)
+        .setRowCacheCapacityBytes(1024 * 1024);
+
+    final KijiDao dao = new KijiDao(mKiji, options);
+    try {
+      assertEquals("Christophe Taton", dao.select(User.class, "taton").fullName);
+      assertEquals(0, dao.getRowCacheHitCount());
+      assertEquals("Christophe Taton", dao.select(User.class, "taton").fullName);
+      assertEquals(1, dao.getRowCacheHitCount());
+      assertEquals(1, dao.getSelectFetchCount());
+
+      // Multi-gets fetch the rows missing from the cache only, and cache them:
+      final List<String> logins = Lists.newArrayList("taton", "amit");
+      final List<User> users = dao.selectMany(User.class, logins);
+      assertEquals("Christophe Taton", users.get(0).fullName);
+      assertEquals("Amit N", users.get(1).fullName);
+      assertEquals(2, dao.getRowCacheHitCount());
+      assertEquals("Amit N", dao.selectMany(User.class, logins).get(1).fullName);
+      assertEquals(4, dao.getRowCacheHitCount());
+
+      // Classes requesting other columns or versions of the same row are cached apart:
+      final UserMultiVersion multi = dao.select(UserMultiVersion.class, "taton");
+      assertEquals(4, dao.getRowCacheHitCount());
+      assertEquals(3, multi.zipCodes.size());
+      assertEquals(3, dao.select(UserMultiVersion.class, "taton").zipCodes.size());
+      assertEquals(5, dao.getRowCacheHitCount());
+      assertEquals("Christophe Taton", dao.select(User.class, "taton").fullName);
+      assertEquals(6, dao.getRowCacheHitCount());
+
+      // The cache file cannot be shared by two DAOs: the second one runs without row cache.
+      final KijiDao concurrent = new KijiDao(mKiji, options);
+      try {
+        concurrent.select(User.class, "taton");
+        concurrent.select(User.class, "taton");
+        assertEquals(0, concurrent.getRowCacheHitCount());
+        assertEquals(2, concurrent.getSelectFetchCount());
+      } finally {
+        concurrent.close();
+      }
+    } finally {
+      dao.close();
+    }
+
+    // Cached rows survive the DAO:
+    final KijiDao reopened = new KijiDao(mKiji, options);
+    try {
+      final User user = reopened.select(User.class, "taton");
+      assertEquals("Christophe Taton", user.fullName);
+      assertEquals(1, reopened.getRowCacheHitCount());
+
+      // Writes invalidate the cached row:
+      user.fullName = "C. Taton";
+      reopened.write(user);
+      assertEquals("C. Taton", reopened.select(User.class, "taton").fullName);
+      assertEquals(1, reopened.getRowCacheHitCount());
+    } finally {
+      reopened.close();
+    }
+  }
+
+  @Test
+  public void testChangeScan() throws Exception {
+    final long lagMillis = 3600 * 1000L;
+    final KijiDao dao = new KijiDao(mKiji, new KijiDaoOptions().setChangeScanLagMillis(lagMillis));
+    try {
+      // The first change scan of a consumer returns the entities with cells older than the lag.
+      // Only the zip codes of taton are explicitly timestamped in the past:
+      final long before = System.currentTimeMillis();
+      final ChangeScanner<User> initial = dao.scanChanges(User.class, "sync");
+      final long checkpoint;
+      try {
+        final Set<String> logins = Sets.newHashSet();
+        while (initial.hasNext()) {
+          logins.add(initial.next().eidLogin);
+        }
+        assertEquals(Sets.newHashSet("taton"), logins);
+        initial.commit();
+        checkpoint = initial.getCheckpoint();
+        assertTrue(checkpoint >= before - lagMillis);
+        assertTrue(checkpoint <= System.currentTimeMillis() - lagMillis);
+        assertEquals(checkpoint, dao.getChangeCheckpoint(User.class, "sync"));
+      } finally {
+        initial.close();
+      }
+
+      // A cell timestamped before the scan ran, but written after it, as by a region server
+      // with a late clock, is returned by the next scan:
+      final KijiTableWriter writer = mTable.openTableWriter();
+      try {
+        writer.put(mTable.getEntityId("amit"), "info", "full_name", checkpoint, "Amit N.");
+      } finally {
+        writer.close();
+      }
+      // The next scan ends at the lagged clock, which must move past the checkpoint:
+      while (System.currentTimeMillis() - lagMillis <= checkpoint) {
+        Thread.yield();
+      }
+      final ChangeScanner<User> changes = dao.scanChanges(User.class, "sync");
+      try {
+        assertTrue(changes.hasNext());
+        assertEquals("amit", changes.next().eidLogin);
+        assertFalse(changes.hasNext());
+      } finally {
+        changes.close();
+      }
+    } finally {
+      dao.close();
+    }
+  }
+
+  @Test
+  public void testEncodeRowKeys() throws Exception {
+    final List<String> logins = Lists.newArrayList("taton", "amit", "", "\u00e9t\u00e9");
+    final RowKeyBuffer buffer = new RowKeyBuffer(4, 1);
+    for (int round = 0; round < 2; ++round) {
+      buffer.clear();
+      mDAO.encodeRowKeys(User.class, logins, buffer);
+      assertEquals(logins.size(), buffer.size());
+      for (int i = 0; i < logins.size(); ++i) {
+        assertArrayEquals(
+            mTable.getEntityId(logins.get(i)).getHBaseRowKey(), buffer.getKey(i));
+      }
+    }
+  }
+
+  @Test
+  public void testCellBudget() throws Exception {
+    // Columns over the budget of 1 version are fetched again, page by page:
+    final UserWithCellBudget taton = mDAO.select(UserWithCellBudget.class, "taton");
+    assertEquals(3, taton.zipCodes.size());
+    assertEquals(12345, (int) taton.zipCodes.get(3L));
+
+    final UserWithCellBudget amit = mDAO.select(UserWithCellBudget.class, "amit");
+    assertEquals(2, amit.queryCounts.size());
+    assertEquals(2, amit.queryCounts.get("hello").size());
+    assertEquals(50, (int) amit.queryCounts.get("world").get(2L));
+  }
+
+  @Test
+  public void testLazyIteratorOverCellBudget() throws Exception {
+    final UserWithLazyHistory taton = mDAO.select(UserWithLazyHistory.class, "taton");
+    assertEquals(12345, (int) taton.zipCodes.next());
+
+    // The next versions are read page by page, after the first page was consumed:
+    final KijiTableWriter writer = mTable.openTableWriter();
+    try {
+      writer.deleteCell(mTable.getEntityId("taton"), "info", "zip_code", 1L);
+    } finally {
+      writer.close();
+    }
+    assertEquals(94131, (int) taton.zipCodes.next());
+    assertFalse(taton.zipCodes.hasNext());
+    mDAO.releaseEntity(taton);
+
+    // Map-type family over the budget, iterated qualifier by qualifier:
+    final UserWithLazyHistory amit = mDAO.select(UserWithLazyHistory.class, "amit");
+    int sum = 0;
+    int count = 0;
+    while (amit.queryCounts.hasNext()) {
+      final KijiCell<Integer> cell = amit.queryCounts.next();
+      assertEquals("query_count", cell.getFamily());
+      sum += cell.getData();
+      count += 1;
+    }
+    assertEquals(4, count);
+    assertEquals(20 + 30 + 40 + 50, sum);
+    mDAO.releaseEntity(amit);
+  }
+
+  @Test
+  public void testCompressedTimeSeries() throws Exception {
+    final UserWithCompressedHistory taton =
+        mDAO.select(UserWithCompressedHistory.class, "taton");
+    assertEquals(3, taton.zipCodes.size());
+    assertEquals(3L, taton.zipCodes.getNewestTimestamp());
+    assertEquals(94110, (int) taton.zipCodes.get(1L));
+    assertNull(taton.zipCodes.get(4L));
+    assertEquals(12345, (int) taton.zipCodes.toTimeSeries().firstEntry().getValue());
+
+    final Iterator<Map.Entry<Long, Integer>> range = taton.zipCodes.range(2L, 3L);
+    assertEquals(94131, (int) range.next().getValue());
+    assertFalse(range.hasNext());
+
+    // Points spanning many blocks round-trip, and ranges decode from the right block:
+    final CompressedTimeSeries<Double> series = new CompressedTimeSeries<Double>();
+    for (long ts = 10000; ts > 0; ts -= 10) {
+      series.append(ts, ts / 100.0);
+    }
+    assertEquals(1000, series.size());
+    assertTrue(series.getEncodedSizeBytes() < 1000 * 16);
+    long expected = 10000;
+    for (final Map.Entry<Long, Double> entry : series) {
+      assertEquals(expected, (long) entry.getKey());
+      assertEquals(expected / 100.0, entry.getValue(), 0.0);
+      expected -= 10;
+    }
+    final List<Long> timestamps = Lists.newArrayList();
+    for (final Iterator<Map.Entry<Long, Double>> it = series.range(4000, 4030); it.hasNext(); ) {
+      timestamps.add(it.next().getKey());
+    }
+    assertEquals(Lists.newArrayList(4020L, 4010L, 4000L), timestamps);
+
+    // Lookups at the latest timestamp do not overflow:
+    final CompressedTimeSeries<Long> latest = new CompressedTimeSeries<Long>();
+    latest.append(HConstants.LATEST_TIMESTAMP, 1L);
+    latest.append(1L, 2L);
+    assertEquals(1L, (long) latest.get(HConstants.LATEST_TIMESTAMP));
+    assertEquals(2L, (long) latest.get(1L));
+    assertFalse(latest.range(Long.MIN_VALUE, Long.MIN_VALUE).hasNext());
+    assertEquals(2, latest.toTimeSeries().size());
+
+    // Arbitrary doubles round-trip bit for bit, and repeated values take about a bit each:
+    final Random random = new Random(0);
+    final double[] doubles = new double[1000];
+    final CompressedTimeSeries<Double> noisy = new CompressedTimeSeries<Double>();
+    final CompressedTimeSeries<Double> constant = new CompressedTimeSeries<Double>();
+    for (int i = 0; i < doubles.length; ++i) {
+      doubles[i] = (i % 100 == 0) ? Double.NaN : random.nextGaussian() * 1000.0;
+      noisy.append(doubles.length - i, doubles[i]);
+      constant.append(doubles.length - i, 21.5);
+    }
+    int index = 0;
+    for (final Map.Entry<Long, Double> entry : noisy) {
+      assertEquals(Double.doubleToRawLongBits(doubles[index]),
+          Double.doubleToRawLongBits(entry.getValue()));
+      index += 1;
+    }
+    assertEquals(doubles.length, index);
+    assertTrue(constant.getEncodedSizeBytes() < 1000 * 2);
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void testCompressedTimeSeriesOfStrings() throws Exception {
+    mDAO.warmUp(UserWithCompressedNames.class);
+  }
+
+  @Test
+  public void testMergeVersions() throws Exception {
+    final UserWithCellBudget amit = new UserWithCellBudget();
+    amit.login = "amit";
+    amit.zipCodes = new TimeSeries<Integer>();
+    amit.zipCodes.put(4L, 10001);
+    amit.zipCodes.put(2L, 10002);
+    mDAO.write(amit);
+
+    // Versions of both rows, merged most recent first; ties follow the order of the rows:
+    final List<String> merged = Lists.newArrayList();
+    final MergedCellIterator<Integer> it = mDAO.mergeVersions(
+        UserWithCellBudget.class, "zipCodes",
+        Lists.newArrayList("amit", "missing_cells", "taton"));
+    try {
+      while (it.hasNext()) {
+        final EntityCell<Integer> cell = it.next();
+        merged.add(String.format("%s@%d=%d",
+            cell.getEntityId().getComponentByIndex(0), cell.getTimestamp(), cell.getValue()));
+      }
+    } finally {
+      it.close();
+    }
+    assertEquals(Lists.newArrayList(
+        "amit@4=10001", "taton@3=12345", "amit@2=10002", "taton@2=94131", "taton@1=94110"),
+        merged);
+  }
+
+  @Test
+  public void testMergeVersionsPaged() throws Exception {
+    // With 2 versions per page, the first page of taton is full and its last version is paged:
+    final List<String> merged = Lists.newArrayList();
+    final MergedCellIterator<Integer> it = mDAO.mergeVersions(
+        UserWithPaging.class, "zipCodes", Lists.newArrayList("missing_cells", "taton"));
+    try {
+      while (it.hasNext()) {
+        final EntityCell<Integer> cell = it.next();
+        merged.add(String.format("%s@%d=%d",
+            cell.getEntityId().getComponentByIndex(0), cell.getTimestamp(), cell.getValue()));
+      }
+    } finally {
+      it.close();
+    }
+    assertEquals(Lists.newArrayList("taton@3=12345", "taton@2=94131", "taton@1=94110"), merged);
+  }
+
+  @Test
+  public void testScanBatches() throws Exception {
+    final Map<String, Integer> zipCodes = Maps.newHashMap();
+    final EntityBatchScanner<User> scanner = mDAO.scanBatches(User.class, 2);
+    try {
+      int batches = 0;
+      while (scanner.hasNext()) {
+        final EntityBatch batch = scanner.next();
+        final Object[] logins = batch.getObjects("eidLogin");
+        final int[] codes = batch.getInts("zipCode");
+        for (int i = 0; i < batch.size(); ++i) {
+          zipCodes.put((String) logins[i], codes[i]);
+        }
+        batches += 1;
+      }
+      assertEquals(2, batches);
+    } finally {
+      scanner.close();
+    }
+    assertEquals(3, zipCodes.size());
+    assertEquals(12345, (int) zipCodes.get("taton"));
+    assertEquals(0, (int) zipCodes.get("missing_cells"));
+  }
+
+  @Test
+  public void testScanBatchesWithDefaultCellBudget() throws Exception {
+    // With no cell budget, iterator fields are filled from the row and can be batched:
+    final EntityBatchScanner<UserWithIteratorHistory> scanner =
+        mDAO.scanBatches(UserWithIteratorHistory.class, 10);
+    try {
+      assertEquals(3, scanner.next().size());
+    } finally {
+      scanner.close();
+    }
+
+    // With a DAO-wide cell budget, the same fields may hold pagers the batches cannot release:
+    final KijiDao dao = new KijiDao(mKiji, new KijiDaoOptions().setCellBudget(1));
+    try {
+      dao.scanBatches(UserWithIteratorHistory.class, 10);
+      fail("Entities with fields over the cell budget must not be scanned in batches.");
+    } catch (IllegalArgumentException iae) {
+      LOG.debug("Expected exception: {}", iae.getMessage());
+    } finally {
+      dao.close();
+    }
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void testScanBatchesOverCellBudget() throws Exception {
+    // Iterator fields over their cell budget hold a pager, which batches cannot release:
+    mDAO.scanBatches(UserWithLazyHistory.class, 2);
+  }
+
+  @Test
+  public void testLayoutUpdateWhileLeased() throws Exception {
+    final File cacheFile = File.createTempFile("row-cache", ".bin");
+    cacheFile.deleteOnExit();
+    final KijiDaoOptions options = new KijiDaoOptions()
+        .setLayoutCheckIntervalMillis(0)
+        .setRowCacheFile(cacheFile)
+        .setRowCacheCapacityBytes(1024 * 1024);
+
+    final KijiDao dao = new KijiDao(mKiji, options);
+    try {
+      assertEquals("Christophe Taton", dao.select(User.class, "taton").fullName);
+
+      // Writes bypassing the DAO leave the row cached for the current layout stale:
+      final KijiTableWriter writer = mTable.openTableWriter();
+      try {
+        writer.put(mTable.getEntityId("taton"), "info", "full_name", "C. Taton");
+      } finally {
+        writer.close();
+      }
+      assertEquals("Christophe Taton", dao.select(User.class, "taton").fullName);
+
+      // The scanner holds a lease on the specification built for the current layout:
+      final EntityScanner<User> scanner = dao.selectAll(User.class, null);
+      try {
+        assertTrue(scanner.hasNext());
+        assertNotNull(scanner.next().login);
+
+        bumpLayoutId("user_table");
+
+        // New requests get a specification rebuilt for the new layout, not cached yet:
+        assertEquals("C. Taton", dao.select(User.class, "taton").fullName);
+        assertEquals(1, dao.getLayoutRefreshCount());
+
+        // The in-flight scan completes with the retired specification:
+        int nrows = 1;
+        while (scanner.hasNext()) {
+          assertNotNull(scanner.next().login);
+          nrows += 1;
+        }
+        assertEquals(3, nrows);
+      } finally {
+        scanner.close();
+      }
+      assertEquals("C. Taton", dao.select(User.class, "taton").fullName);
+      assertEquals(1, dao.getLayoutRefreshCount());
+
+      // Layout updates of secondary tables are detected too:
+      final TableLayoutDesc profileLayout = KijiTableLayouts.getLayout(USER_TABLE_LAYOUT);
+      profileLayout.setName("user_profile");
+      new InstanceBuilder(mKiji)
+          .withTable(profileLayout)
+              .withRow("taton")
+                  .withFamily("info")
+                      .withQualifier("full_name").withValue("Chris")
+          .build();
+      assertEquals("Chris", dao.select(UserProfile.class, "taton").nickname);
+      bumpLayoutId("user_profile");
+      assertEquals("Chris", dao.select(UserProfile.class, "taton").nickname);
+      assertEquals(2, dao.getLayoutRefreshCount());
+    } finally {
+      dao.close();
+    }
+  }
+
+  @Test
+  public void testCompositeEntity() throws Exception {
+    final TableLayoutDesc profileLayout = KijiTableLayouts.getLayout(USER_TABLE_LAYOUT);
+    profileLayout.setName("user_profile");
+    new InstanceBuilder(mKiji)
+        .withTable(profileLayout)
+            .withRow("taton")
+                .withFamily("info")
+                    .withQualifier("full_name").withValue("Chris")
+        .build();
+
+    final UserProfile user = mDAO.select(UserProfile.class, "taton");
+    assertEquals("Christophe Taton", user.fullName);
+    assertEquals("Chris", user.nickname);
+
+    final List<UserProfile> users =
+        mDAO.selectMany(UserProfile.class, Lists.newArrayList("taton", "amit"));
+    assertEquals("Chris", users.get(0).nickname);
+    assertEquals("Amit N", users.get(1).fullName);
+    assertNull(users.get(1).nickname);
+
+    // Aggregations read the fields of secondary tables from their own table:
+    assertEquals("Chris",
+        mDAO.aggregate(UserProfile.class, "nickname", Aggregation.LAST, "taton"));
+    assertEquals(1L, mDAO.aggregate(UserProfile.class, "nickname", Aggregation.COUNT, "taton"));
+    assertEquals(1L, mDAO.downsample(
+        UserProfile.class, "nickname", 1000L, Aggregation.COUNT, "taton").size());
+    assertNull(mDAO.aggregate(UserProfile.class, "nickname", Aggregation.LAST, "amit"));
+  }
+
+  @Test
+  public void testDelete() throws Exception {
+    // Drop the zip code versions up to timestamp 2:
+    mDAO.deleteField(UserMultiVersion.class, "zipCodes", 2L, Lists.newArrayList("taton"));
+    final UserMultiVersion user = mDAO.select(UserMultiVersion.class, "taton");
+    assertEquals(1, user.zipCodes.size());
+    assertEquals(12345, (int) user.zipCodes.get(3L));
+    assertEquals(1372272810769L, (long) user.birthDate);
+
+    mDAO.delete(User.class, "amit");
+    assertNull(mDAO.select(User.class, "amit").fullName);
+    assertTrue(mDAO.select(UserMultiVersion.class, "amit").queryCount.isEmpty());
+  }
+
+  @Test
+  public void testPrimitiveFields() throws Exception {
+    final UserPrimitives taton = mDAO.select(UserPrimitives.class, "taton");
+    assertEquals(1372272810769L, taton.birthDate);
+    assertEquals(12345, taton.zipCode);
+
+    // Missing cells leave primitive fields to their default value:
+    final UserPrimitives missing = mDAO.select(UserPrimitives.class, "missing_cells");
+    assertEquals(0L, missing.birthDate);
+    assertEquals(0, missing.zipCode);
+  }
+
+  @Test
+  public void testDeclaredQualifierRestriction() throws Exception {
+    final UserWithRestriction user = mDAO.select(UserWithRestriction.class, "amit");
+    assertTrue(user.queryCount.isPartial());
+    assertEquals(Sets.newHashSet("world"), user.queryCount.keySet());
+    assertEquals(50, (int) user.queryCount.get("world"));
+
+    // Aggregations span the versions of the restricted qualifiers only:
+    assertEquals(40L + 50L,
+        mDAO.aggregate(UserWithRestriction.class, "queryCount", Aggregation.SUM, "amit"));
+    assertEquals(40L + 50L, mDAO.downsample(
+        UserWithRestriction.class, "queryCount", 10L, Aggregation.SUM, "amit").get(0L));
+
+    // The family exceeds the cell budget: the paged fetch is restricted too.
+    final UserWithRestrictedHistory history =
+        mDAO.select(UserWithRestrictedHistory.class, "amit");
+    assertTrue(history.queryCounts.isPartial());
+    assertEquals(Sets.newHashSet("world"), history.queryCounts.keySet());
+    assertEquals(2, history.queryCounts.get("world").size());
+    assertEquals(2L, mDAO.aggregate(
+        UserWithRestrictedHistory.class, "queryCounts", Aggregation.COUNT, "amit"));
+  }
+
+  @Test
+  public void testQueryQualifierRestriction() throws Exception {
+    final Map<String, QualifierRestriction> restrictions = Maps.newHashMap();
+    restrictions.put("queryCount", QualifierRestriction.withPrefix("he"));
+    final UserMultiVersion user = mDAO.select(UserMultiVersion.class, restrictions,
+        0 /*HConstants.OLDEST_TIMESTAMP*/, HConstants.LATEST_TIMESTAMP, "amit");
+    assertTrue(user.queryCount.isPartial());
+    assertEquals(Sets.newHashSet("hello"), user.queryCount.keySet());
+
+    final UserMultiVersion fullUser = mDAO.select(UserMultiVersion.class, "amit");
+    assertFalse(fullUser.queryCount.isPartial());
+    assertEquals(2, fullUser.queryCount.size());
+  }
+
+  @Test
+  public void testDownsampledField() throws Exception {
+    final UserDownsampled user = mDAO.select(UserDownsampled.class, "taton");
+    // Versions at timestamps 1, 2 and 3 fall into buckets [0, 2) and [2, 4):
+    assertEquals(2, user.zipCodes.size());
+    assertEquals(94110, user.zipCodes.get(0L));
+    assertEquals(94131, user.zipCodes.get(2L));
+  }
+
+  @Test
+  public void testDownsample() throws Exception {
+    final TimeSeries<Object> zipCodes =
+        mDAO.downsample(UserMultiVersion.class, "zipCodes", 2L, Aggregation.COUNT, "taton");
+    assertEquals(1L, zipCodes.get(0L));
+    assertEquals(2L, zipCodes.get(2L));
+  }
+
   @Test
   public void testColumnPaging() throws Exception {
     final UserWithPaging user = mDAO.select(UserWithPaging.class, "taton");
@@ -161,6 +933,156 @@ public class TestSimpleMapping extends KijiClientTest {
     assertEquals(4, counter);
   }
 
+  @Test
+  public void testPrefetchingPaging() throws Exception {
+    final UserWithPrefetching user = mDAO.select(UserWithPrefetching.class, "taton");
+    int counter = 0;
+    for (Map.Entry<Long, Integer> entry : ForHelper.from(user.zipCodes)) {
+      LOG.debug("ZipCode entry: {}", entry);
+      counter += 1;
+    }
+    mDAO.releaseEntity(user);
+    assertEquals(3, counter);
+  }
+
+  @Test
+  public void testReleasePrefetchingPager() throws Exception {
+    final UserWithPrefetching user = mDAO.select(UserWithPrefetching.class, "taton");
+    user.zipCodes.next();
+    mDAO.releaseEntity(user);
+    assertFalse(user.zipCodes.hasNext());
+  }
+
+  @Test(timeout=10000)
+  public void testPrefetchingPagerError() throws Exception {
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    final PrefetchingIterator<Integer> it =
+        new PrefetchingIterator<Integer>(new FailingPager(), 1, 2, executor);
+    try {
+      assertEquals(0, (int) it.next());
+      // Errors, not only runtime exceptions, are delivered to the consumer instead of hanging it:
+      try {
+        it.hasNext();
+        fail("The error of the pager must be rethrown.");
+      } catch (StackOverflowError soe) {
+        assertEquals("Pager failure.", soe.getMessage());
+      }
+      assertFalse(it.hasNext());
+    } finally {
+      it.close();
+      executor.shutdownNow();
+    }
+  }
+
+  // -----------------------------------------------------------------------------------------------
+
+  /** Subscriber recording the signals of a publisher, and requesting entities on demand. */
+  private static final class RecordingSubscriber<T> implements Subscriber<T> {
+    /** Entities delivered and not consumed by the test yet. */
+    private final BlockingQueue<T> mEntities = new LinkedBlockingQueue<T>();
+
+    /** Counted down when the publisher signals completion or an error. */
+    private final CountDownLatch mTerminated = new CountDownLatch(1);
+
+    /** Error signalled by the publisher, if any. */
+    private final AtomicReference<Throwable> mError = new AtomicReference<Throwable>();
+
+    /** Number of entities requested and not delivered yet. */
+    private final AtomicLong mPending = new AtomicLong(0);
+
+    /** Set when an entity is delivered without demand, or a signal follows termination. */
+    private final AtomicBoolean mViolation = new AtomicBoolean(false);
+
+    /** Subscription, set when subscribing. */
+    private volatile Subscription mSubscription = null;
+
+    /**
+     * Requests entities from the publisher.
+     *
+     * @param n Number of entities to request.
+     */
+    public void request(long n) {
+      mPending.addAndGet(n);
+      mSubscription.request(n);
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+      mSubscription = subscription;
+    }
+
+    @Override
+    public void onNext(T entity) {
+      if ((mPending.decrementAndGet() < 0) || (mTerminated.getCount() == 0)) {
+        mViolation.set(true);
+      }
+      mEntities.add(entity);
+    }
+
+    @Override
+    public void onError(Throwable error) {
+      LOG.error("Scan failed: {}", error);
+      mError.set(error);
+      terminate();
+    }
+
+    @Override
+    public void onComplete() {
+      terminate();
+    }
+
+    /** Records the termination of the stream of signals. */
+    private void terminate() {
+      if (mTerminated.getCount() == 0) {
+        mViolation.set(true);
+      }
+      mTerminated.countDown();
+    }
+  }
+
+  /** Pager failing with an error after its first element. */
+  private static final class FailingPager implements Iterator<Integer>, Closeable {
+    private int mNext = 0;
+
+    @Override
+    public boolean hasNext() {
+      return true;
+    }
+
+    @Override
+    public Integer next() {
+      if (mNext > 0) {
+        throw new StackOverflowError("Pager failure.");
+      }
+      return mNext++;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  /**
+   * Updates the layout of a table through the meta table, with a new layout ID only.
+   *
+   * @param tableName Name of the table to update.
+   * @throws Exception on error.
+   */
+  private void bumpLayoutId(String tableName) throws Exception {
+    final TableLayoutDesc current = mKiji.getMetaTable().getTableLayout(tableName).getDesc();
+    final String layoutId = String.valueOf(current.getLayoutId());
+    final TableLayoutDesc update = TableLayoutDesc.newBuilder(current)
+        .setReferenceLayout(layoutId)
+        .setLayoutId(layoutId + ".1")
+        .build();
+    mKiji.getMetaTable().updateTableLayout(tableName, update);
+  }
+
   // -----------------------------------------------------------------------------------------------
 
   @KijiEntity(table="user_table")
@@ -252,5 +1174,131 @@ public class TestSimpleMapping extends KijiClientTest {
         maxVersions=HConstants.ALL_VERSIONS,
         pageSize=2)
     public MapFamilyVersionIterator<Integer> queryCount;
-}
+  }
+
+  @KijiEntity(table="user_table")
+  public static class UserWithPrefetching {
+    /** User zip code. */
+    @KijiColumn(family="info", qualifier="zip_code",
+        maxVersions=HConstants.ALL_VERSIONS,
+        pageSize=1,
+        prefetchDepth=2)
+    public PrefetchingIterator<Map.Entry<Long, Integer>> zipCodes;
+  }
+
+  @KijiEntity(table="user_table")
+  public static class UserDownsampled {
+    /** User zip code, maximum value per 2ms bucket. */
+    @Downsampled(bucketMillis=2, reducer=Aggregation.MAX)
+    @KijiColumn(family="info", qualifier="zip_code", maxVersions=HConstants.ALL_VERSIONS)
+    public TimeSeries<Integer> zipCodes;
+  }
+
+  @KijiEntity(table="user_table")
+  public static class UserWithRestriction {
+    /** Query counts, restricted to a single query. */
+    @KijiColumn(family="query_count", qualifiers={"world"})
+    public MapTypeValue<Integer> queryCount;
+  }
+
+  @KijiEntity(table="user_table")
+  public static class UserWithRestrictedHistory {
+    /** Query count histories, restricted to a single query, over the cell budget. */
+    @KijiColumn(family="query_count", qualifiers={"world"},
+        maxVersions=HConstants.ALL_VERSIONS, cellBudget=1)
+    public TSMapTypeValue<Integer> queryCounts;
+  }
+
+  @KijiEntity(table="user_table")
+  public static class Follower {
+    /** Logins of the followed users. */
+    @KijiReference(target=User.class, into="followed")
+    public List<String> followedLogins;
+
+    /** Followed users, resolved on demand. */
+    public List<User> followed;
+  }
+
+  @KijiEntity(table="user_table")
+  public static class UserWithCellBudget {
+    @EntityIdField(component="login")
+    public String login;
+
+    @KijiColumn(family="info", qualifier="zip_code",
+        maxVersions=HConstants.ALL_VERSIONS, cellBudget=1)
+    public TimeSeries<Integer> zipCodes;
+
+    @KijiColumn(family="query_count", maxVersions=HConstants.ALL_VERSIONS, cellBudget=1)
+    public TSMapTypeValue<Integer> queryCounts;
+  }
+
+  @KijiEntity(table="user_table")
+  public static class UserWithIteratorHistory {
+    @EntityIdField(component="login")
+    public String login;
+
+    @KijiColumn(family="info", qualifier="zip_code", maxVersions=HConstants.ALL_VERSIONS)
+    public KijiCellValueIterator<Integer> zipCodes;
+  }
+
+  @KijiEntity(table="user_table")
+  public static class UserWithLazyHistory {
+    @KijiColumn(family="info", qualifier="zip_code",
+        maxVersions=HConstants.ALL_VERSIONS, cellBudget=1)
+    public KijiCellValueIterator<Integer> zipCodes;
+
+    @KijiColumn(family="query_count", maxVersions=HConstants.ALL_VERSIONS, cellBudget=1)
+    public KijiCellIterator<Integer> queryCounts;
+  }
+
+  @KijiEntity(table="user_table")
+  public static class UserWithCompressedHistory {
+    @EntityIdField(component="login")
+    public String login;
+
+    @KijiColumn(family="info", qualifier="zip_code", maxVersions=HConstants.ALL_VERSIONS)
+    public CompressedTimeSeries<Integer> zipCodes;
+  }
+
+  @KijiEntity(table="user_table")
+  public static class UserWithCompressedNames {
+    @EntityIdField(component="login")
+    public String login;
+
+    @KijiColumn(family="info", qualifier="full_name", maxVersions=HConstants.ALL_VERSIONS)
+    public CompressedTimeSeries<String> fullNames;
+  }
+
+  @KijiEntity(table="user_table")
+  public static class UserProfile {
+    @EntityIdField(component="login")
+    public String login;
+
+    @KijiColumn(family="info", qualifier="full_name")
+    public String fullName;
+
+    /** Full name from the profile table, sharing the entity ID of the user table. */
+    @KijiColumn(table="user_profile", family="info", qualifier="full_name")
+    public String nickname;
+  }
+
+  @KijiEntity(table="user_table")
+  public static class UserPrimitives {
+    @KijiColumn(family="info", qualifier="birth_date")
+    public long birthDate;
+
+    @KijiColumn(family="info", qualifier="zip_code")
+    public int zipCode;
+  }
+
+  @KijiEntity(table="user_table")
+  public static class UserWithReference {
+    /** User login, which is also the user entity ID. */
+    @KijiReference(target=User.class, into="self", eager=true)
+    @KijiColumn(family="info", qualifier="login")
+    public String login;
+
+    /** User entity, resolved when selected. */
+    public User self;
+  }
 }
@@ -0,0 +1,32 @@
+package org.kiji.ohm.dao;
+
+import java.io.IOException;
+
+/** Exposes the test hooks of the DAO to the tests of other packages. */
+public final class KijiDaoTestHooks {
+  /**
+   * Sets a hook run by the selects of a DAO before fetching a row from the table.
+   *
+   * @param dao DAO to set the hook of.
+   * @param hook Hook to run, or null to remove the hook.
+   */
+  public static void setFetchHook(KijiDao dao, Runnable hook) {
+    dao.setFetchHook(hook);
+  }
+
+  /**
+   * Reports the number of leases held on the current specification of an entity class.
+   *
+   * @param dao DAO holding the specification.
+   * @param klass Entity class.
+   * @return the number of leases held on the specification.
+   * @throws IOException on I/O error.
+   */
+  public static int getEntitySpecLeaseCount(KijiDao dao, Class<?> klass) throws IOException {
+    return dao.getEntitySpecLeaseCount(klass);
+  }
+
+  /** Utility class may not be instantiated. */
+  private KijiDaoTestHooks() {
+  }
+}
@@ -0,0 +1,94 @@
+package org.kiji.ohm.dao;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import org.kiji.schema.EntityId;
+import org.kiji.schema.EntityIdFactory;
+import org.kiji.schema.layout.KijiTableLayout;
+import org.kiji.schema.layout.KijiTableLayouts;
+
+/**
+ * Micro-benchmark of the row key encoder against the Kiji entity ID factory.
+ *
+ * <p> Builds the entity IDs of a batch of logins with the user_table layout, through the entity
+ *   ID factory, through the encoder, and as raw row keys into a reusable buffer. Reports the
+ *   average time per entity ID of each path, after a warm-up. </p>
+ *
+ * <p> Run from the test classpath, for example:
+ *   <pre>
+ *   mvn test-compile exec:java -Dexec.classpathScope=test \
+ *       -Dexec.mainClass=org.kiji.ohm.dao.RowKeyEncoderBenchmark \
+ *       -Dexec.args="10000 200"
+ *   </pre>
+ *   Arguments are the batch size and the number of measured rounds. </p>
+ */
+public final class RowKeyEncoderBenchmark {
+  private static final String USER_TABLE_LAYOUT = "org/kiji/ohm/user_table.json";
+
+  /** Sink for the built entity IDs, so that the JIT cannot discard them. */
+  private static long sSink = 0;
+
+  /** Utility class. */
+  private RowKeyEncoderBenchmark() {
+  }
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args Batch size and number of measured rounds.
+   * @throws Exception on error.
+   */
+  public static void main(String[] args) throws Exception {
+    final int batchSize = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+    final int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+
+    final KijiTableLayout layout =
+        KijiTableLayout.newLayout(KijiTableLayouts.getLayout(USER_TABLE_LAYOUT));
+    final EntityIdFactory factory = EntityIdFactory.getFactory(layout);
+    final RowKeyEncoder encoder = new RowKeyEncoder(layout);
+    final List<String> logins = Lists.newArrayListWithCapacity(batchSize);
+    for (int i = 0; i < batchSize; ++i) {
+      logins.add("user-" + i);
+    }
+    final RowKeyBuffer buffer = new RowKeyBuffer();
+
+    for (int pass = 0; pass < 2; ++pass) {
+      // The first pass warms up the JIT, the second pass is reported:
+      final boolean report = (pass == 1);
+      long start = System.nanoTime();
+      for (int round = 0; round < rounds; ++round) {
+        for (final String login : logins) {
+          sSink += factory.getEntityId(login).getHBaseRowKey().length;
+        }
+      }
+      final long factoryNanos = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (int round = 0; round < rounds; ++round) {
+        for (final EntityId entityId : encoder.getEntityIds(logins)) {
+          sSink += entityId.getHBaseRowKey().length;
+        }
+      }
+      final long encoderNanos = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (int round = 0; round < rounds; ++round) {
+        buffer.clear();
+        encoder.encodeAll(logins, buffer);
+        sSink += buffer.size();
+      }
+      final long bufferNanos = System.nanoTime() - start;
+
+      if (report) {
+        final double count = (double) batchSize * rounds;
+        System.out.printf("Encoder enabled: %s%n", encoder.isEnabled());
+        System.out.printf("EntityIdFactory.getEntityId:  %8.1f ns/key%n", factoryNanos / count);
+        System.out.printf("RowKeyEncoder.getEntityIds:   %8.1f ns/key%n", encoderNanos / count);
+        System.out.printf("RowKeyEncoder.encodeAll:      %8.1f ns/key%n", bufferNanos / count);
+        System.out.printf("(sink: %d)%n", sSink);
+      }
+    }
+  }
+}
@@ -0,0 +1,207 @@
+package org.kiji.ohm.dao;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.kiji.schema.EntityId;
+import org.kiji.schema.Kiji;
+import org.kiji.schema.KijiClientTest;
+import org.kiji.schema.KijiTable;
+import org.kiji.schema.avro.ComponentType;
+import org.kiji.schema.avro.HashSpec;
+import org.kiji.schema.avro.RowKeyComponent;
+import org.kiji.schema.avro.RowKeyEncoding;
+import org.kiji.schema.avro.RowKeyFormat;
+import org.kiji.schema.avro.RowKeyFormat2;
+import org.kiji.schema.avro.TableLayoutDesc;
+import org.kiji.schema.layout.KijiTableLayouts;
+import org.kiji.schema.util.InstanceBuilder;
+
+public class TestRowKeyEncoder extends KijiClientTest {
+  private static final String USER_TABLE_LAYOUT = "org/kiji/ohm/user_table.json";
+
+  /** Test Kiji instance. Not owned: do not release! */
+  private Kiji mKiji;
+
+  // -----------------------------------------------------------------------------------------------
+
+  @Before
+  public final void setup() throws Exception {
+    mKiji = new InstanceBuilder(getKiji())
+        .withTable(newLayout("salted", RowKeyFormat2.newBuilder()
+            .setEncoding(RowKeyEncoding.FORMATTED)
+            .setSalt(HashSpec.newBuilder().setHashSize(2).build())
+            .setRangeScanStartIndex(1)
+            .setNullableStartIndex(1)
+            .setComponents(Lists.newArrayList(
+                component("login", ComponentType.STRING),
+                component("id", ComponentType.INTEGER),
+                component("time", ComponentType.LONG)))
+            .build()))
+        .withTable(newLayout("hashed", RowKeyFormat2.newBuilder()
+            .setEncoding(RowKeyEncoding.FORMATTED)
+            .setSalt(HashSpec.newBuilder()
+                .setHashSize(16)
+                .setSuppressKeyMaterialization(true)
+                .build())
+            .setRangeScanStartIndex(1)
+            .setNullableStartIndex(1)
+            .setComponents(Lists.newArrayList(component("login", ComponentType.STRING)))
+            .build()))
+        .withTable(newLayout("raw", RowKeyFormat.newBuilder()
+            .setEncoding(RowKeyEncoding.RAW)
+            .build()))
+        .build();
+  }
+
+  // -----------------------------------------------------------------------------------------------
+
+  @Test
+  public void testSaltedFormat() throws Exception {
+    final List<Object[]> entityIds = ImmutableList.of(
+        new Object[] {"taton", 1, 1372272810769L},
+        new Object[] {"", Integer.MIN_VALUE, Long.MIN_VALUE},
+        new Object[] {"\u00e9t\u00e9", Integer.MAX_VALUE, Long.MAX_VALUE},
+        new Object[] {"amit", -1, -1L});
+    assertEncoding("salted", entityIds, true);
+  }
+
+  @Test
+  public void testHashedFormat() throws Exception {
+    // Row keys reduced to their hash cannot be decoded: encoded by the entity ID factory.
+    final List<Object[]> entityIds = ImmutableList.of(
+        new Object[] {"taton"}, new Object[] {""}, new Object[] {"\u00e9t\u00e9"});
+    assertEncoding("hashed", entityIds, false);
+  }
+
+  @Test
+  public void testRawFormat() throws Exception {
+    final List<Object[]> entityIds = ImmutableList.of(
+        new Object[] {Bytes.toBytes("taton")},
+        new Object[] {new byte[] {0, (byte) 0xff, 0}},
+        new Object[] {new byte[0]});
+    assertEncoding("raw", entityIds, false);
+  }
+
+  @Test
+  public void testFallbackOnMissingComponents() throws Exception {
+    final KijiTable table = mKiji.openTable("salted");
+    try {
+      final RowKeyEncoder encoder = new RowKeyEncoder(table.getLayout());
+      // Trailing nullable components are left to the entity ID factory:
+      final Object[] components = {"taton"};
+      assertArrayEquals(table.getEntityId(components).getHBaseRowKey(),
+          encoder.getEntityId(components).getHBaseRowKey());
+      final RowKeyBuffer buffer = new RowKeyBuffer();
+      encoder.encodeAll(ImmutableList.of(components), buffer);
+      assertArrayEquals(table.getEntityId(components).getHBaseRowKey(), buffer.getKey(0));
+    } finally {
+      table.release();
+    }
+  }
+
+  @Test
+  public void testRowKeyBuffer() throws Exception {
+    final RowKeyBuffer buffer = new RowKeyBuffer(1, 1);
+    assertEquals(0, buffer.size());
+    final List<byte[]> keys = ImmutableList.of(
+        Bytes.toBytes("first"), new byte[0], Bytes.toBytes("a longer third row key"));
+    for (int round = 0; round < 2; ++round) {
+      buffer.clear();
+      for (final byte[] key : keys) {
+        buffer.startKey();
+        buffer.put(key);
+        buffer.endKey();
+      }
+      assertEquals(keys.size(), buffer.size());
+      int offset = 0;
+      for (int i = 0; i < keys.size(); ++i) {
+        assertEquals(offset, buffer.getOffset(i));
+        assertEquals(keys.get(i).length, buffer.getLength(i));
+        assertArrayEquals(keys.get(i), buffer.getKey(i));
+        offset += keys.get(i).length;
+      }
+    }
+  }
+
+  // -----------------------------------------------------------------------------------------------
+
+  /**
+   * Checks the row keys and entity IDs of the encoder against the entity IDs of the table.
+   *
+   * @param tableName Name of the table.
+   * @param entityIds Entity IDs to encode, as arrays of components.
+   * @param enabled Whether the encoder is expected to encode the row keys itself.
+   * @throws Exception on error.
+   */
+  private void assertEncoding(String tableName, List<Object[]> entityIds, boolean enabled)
+      throws Exception {
+    final KijiTable table = mKiji.openTable(tableName);
+    try {
+      final RowKeyEncoder encoder = new RowKeyEncoder(table.getLayout());
+      assertEquals(enabled, encoder.isEnabled());
+
+      for (final Object[] components : entityIds) {
+        final EntityId expected = table.getEntityId(components);
+        final EntityId actual = encoder.getEntityId(components);
+        assertArrayEquals(expected.getHBaseRowKey(), actual.getHBaseRowKey());
+        assertEquals(expected, actual);
+      }
+
+      final List<EntityId> actualIds = encoder.getEntityIds(entityIds);
+      assertEquals(entityIds.size(), actualIds.size());
+      for (int i = 0; i < entityIds.size(); ++i) {
+        assertEquals(table.getEntityId(entityIds.get(i)), actualIds.get(i));
+      }
+
+      // The buffer grows from its minimal capacity, then is reused:
+      final RowKeyBuffer buffer = new RowKeyBuffer(1, 1);
+      for (int round = 0; round < 2; ++round) {
+        buffer.clear();
+        encoder.encodeAll(entityIds, buffer);
+        assertEquals(entityIds.size(), buffer.size());
+        for (int i = 0; i < entityIds.size(); ++i) {
+          final byte[] expected = table.getEntityId(entityIds.get(i)).getHBaseRowKey();
+          assertArrayEquals(expected, buffer.getKey(i));
+          assertEquals(expected.length, buffer.getLength(i));
+        }
+      }
+    } finally {
+      table.release();
+    }
+  }
+
+  /**
+   * Builds the layout of a test table with the columns of the user table.
+   *
+   * @param tableName Name of the table.
+   * @param keysFormat Row key format of the table.
+   * @return the layout of the table.
+   * @throws Exception on error.
+   */
+  private static TableLayoutDesc newLayout(String tableName, Object keysFormat) throws Exception {
+    final TableLayoutDesc layout = KijiTableLayouts.getLayout(USER_TABLE_LAYOUT);
+    layout.setName(tableName);
+    layout.setKeysFormat(keysFormat);
+    return layout;
+  }
+
+  /**
+   * Builds a row key component.
+   *
+   * @param name Name of the component.
+   * @param type Type of the component.
+   * @return the row key component.
+   */
+  private static RowKeyComponent component(String name, ComponentType type) {
+    return RowKeyComponent.newBuilder().setName(name).setType(type).build();
+  }
+}